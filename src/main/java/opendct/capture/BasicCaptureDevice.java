@@ -412,6 +412,17 @@ public abstract class BasicCaptureDevice implements CaptureDevice {
         return logger.exit(returnValue);
     }
 
+    @Override
+    public boolean getChannelInfoOffline(TVChannel tvChannels[], boolean skipCCI) {
+        for (TVChannel tvChannel : tvChannels) {
+            if (!getChannelInfoOffline(tvChannel, skipCCI)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     @Override
     public void streamError(File sourceFile, SocketAddress address, int uploadId) {
 
@@ -775,6 +786,7 @@ public abstract class BasicCaptureDevice implements CaptureDevice {
             sageTVConsumerRunnable = sageTVConsumer;
             setLastChannel(channel);
             sageTVConsumerRunnable.setChannel(channel);
+            sageTVConsumerRunnable.setLineup(encoderLineup);
             sageTVConsumerRunnable.setRecordBufferSize(recordBufferSize);
 
             if (sageTVConsumer instanceof FFmpegTransSageTVConsumerImpl) {
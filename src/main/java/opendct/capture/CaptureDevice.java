@@ -319,6 +319,21 @@ DCTRTSPClientImpl - Configures the connection for RTP streaming to this IP addre
      */
     public boolean getChannelInfoOffline(TVChannel tvChannel, boolean skipCCI);
 
+    /**
+     * Tunes a group of channels on the same physical frequency outside of any requests from the
+     * SageTV server and updates information about all of them.
+     * <p/>
+     * Capture devices that can see every program on a frequency at once only need to tune the
+     * frequency one time for the whole group. Otherwise each channel is tuned individually the
+     * same way {@link #getChannelInfoOffline(TVChannel, boolean)} would. The same rules about
+     * locking apply.
+     *
+     * @param tvChannels TVChannel objects that all have the same modulation and frequency.
+     * @return <i>true</i> if the test was complete and successful for every channel. <i>false</i>
+     * if we should try again on a different capture device since this one is currently locked.
+     */
+    public boolean getChannelInfoOffline(TVChannel tvChannels[], boolean skipCCI);
+
     /**
      * Stop anything currently happening and put the capture device in a safe state for shutdown.
      */
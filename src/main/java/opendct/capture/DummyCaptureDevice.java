@@ -142,6 +142,11 @@ public class DummyCaptureDevice implements CaptureDevice {
         return false;
     }
 
+    @Override
+    public boolean getChannelInfoOffline(TVChannel tvChannels[], boolean skipCCI) {
+        return false;
+    }
+
     @Override
     public void stopDevice() {
 
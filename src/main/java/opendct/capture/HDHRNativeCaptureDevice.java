@@ -26,11 +26,13 @@ import opendct.producer.RTPProducer;
 import opendct.producer.SageTVProducer;
 import opendct.sagetv.SageTVDeviceCrossbar;
 import opendct.sagetv.SageTVManager;
+import opendct.sagetv.TuningTrace;
 import opendct.tuning.discovery.CaptureDeviceLoadException;
 import opendct.tuning.discovery.discoverers.HDHomeRunDiscoverer;
 import opendct.tuning.hdhomerun.*;
 import opendct.tuning.hdhomerun.returns.*;
 import opendct.tuning.hdhomerun.types.HDHomeRunChannelMap;
+import opendct.util.ThreadPool;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -45,6 +47,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
     private final static Logger logger = LogManager.getLogger(HDHRNativeCaptureDevice.class);
 
+    // Offline scans poll the programs on a frequency until they settle instead of always waiting
+    // the longest time it might take.
+    private final static long SCAN_PROGRAMS_POLL_MS = 250;
+    private final static long SCAN_PROGRAMS_TIMEOUT_MS = 6000;
+    private final static int SCAN_STABLE_POLLS = 3;
+    private final static int SCAN_INCOMPLETE_STABLE_POLLS = 8;
+
     private final HDHomeRunDiscoveredDeviceParent discoveredDeviceParent;
     private final HDHomeRunDiscoveredDevice discoveredDevice;
     private final HDHomeRunDevice device;
@@ -61,6 +70,18 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
     private HTTPProducer httpProducer;
     private boolean httpProducing;
 
+    // When warm re-tuning is enabled, STOP leaves the RTP producer and the consumer running for a
+    // short time so a START on this tuner can switch the consumer to the new recording instead of
+    // building a new pipeline. These are only used while holding exclusiveLock.
+    private boolean warmPipeline;
+    private long warmGeneration;
+
+    // HDHomeRun devices serve streams over HTTP on this port.
+    private static final int HTTP_STREAMING_PORT = 5004;
+    // After HTTP streaming fails to start, RTP is used for this long before HTTP is tried again.
+    private static final long HTTP_STREAMING_RETRY_MS = 300000;
+    private long httpStreamingRetryAt = 0;
+
     /**
      * Create a new HDHomeRun capture device.
      *
@@ -82,7 +103,8 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         // =========================================================================================
         // Print out diagnostic information for troubleshooting.
         // =========================================================================================
-        if (logger.isDebugEnabled()) {
+        // A device loaded from the registry might not be reachable yet, so don't wait on it.
+        if (logger.isDebugEnabled() && device.isRevalidated()) {
             try {
                 logger.debug("HDHomeRun details: {}, {}, {}, {}", device.getSysHwModel(), device.getSysModel(), device.getSysVersion(), device.getSysFeatures());
                 logger.debug("HDHomeRun help: {}", Arrays.toString(device.getHelp()));
@@ -102,7 +124,7 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
 
         try {
             if (device.isCableCardTuner()) {
-                cableCardPresent = device.getCardStatus().toLowerCase().contains("card=ready");
+                cableCardPresent = device.getKnownCardStatus().toLowerCase().contains("card=ready");
 
                 if (cableCardPresent) {
                     encoderDeviceType = CaptureDeviceType.DCT_HDHOMERUN;
@@ -113,10 +135,10 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
                 }
             } else {
                 if (!discoveredDeviceParent.getChannelMap().equals("")) {
-                    tuner.setChannelmap(discoveredDeviceParent.getChannelMap());
+                    device.setChannelmap(tuner.TUNER_NUMBER, discoveredDeviceParent.getChannelMap());
                 }
 
-                String channelMapName = tuner.getChannelmap();
+                String channelMapName = device.getKnownChannelmap(tuner.TUNER_NUMBER);
                 channelMap = HDHomeRunFeatures.getEnumForChannelmap(channelMapName);
 
                 switch (channelMap) {
@@ -289,7 +311,7 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         try {
             boolean returnValue = tuner.isLocked();
 
-            logger.info("HDHomeRun is currently {}.", (returnValue ? "locked" : "unlocked"));
+            logger.debug("HDHomeRun is currently {}.", (returnValue ? "locked" : "unlocked"));
 
             return returnValue;
         } catch (IOException e) {
@@ -366,18 +388,30 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
             int timeout = HDHomeRunDiscoverer.getOfflineDetectionSeconds();
 
             if (!skipCCI) {
+                boolean cableCard = encoderDeviceType == CaptureDeviceType.DCT_HDHOMERUN;
+                long startTime = System.currentTimeMillis();
+                long waitUntil = startTime + timeout * 1000L;
                 CopyProtection copyProtection = getCopyProtection();
+
                 while ((copyProtection == CopyProtection.NONE ||
                         copyProtection == CopyProtection.UNKNOWN) &&
-                        timeout-- > 0) {
+                        System.currentTimeMillis() < waitUntil) {
 
                     if (isInternalLocked()) {
                         stopEncoding();
                         return logger.exit(false);
                     }
 
+                    // Only CableCARD tuners ever report anything other than NONE, so the others
+                    // only need to wait until it's clear if this channel is streaming or not.
+                    if (!cableCard && (getRecordedBytes() > offlineDetectionMinBytes ||
+                            (System.currentTimeMillis() - startTime >= 3000 && !isSignalPresent()))) {
+
+                        break;
+                    }
+
                     try {
-                        Thread.sleep(1000);
+                        Thread.sleep(cableCard ? 1000 : 250);
                     } catch (InterruptedException e) {
                         return logger.exit(false);
                     }
@@ -446,6 +480,104 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         return logger.exit(true);
     }
 
+    @Override
+    public boolean getChannelInfoOffline(TVChannel tvChannels[], boolean skipCCI) {
+        if (tvChannels.length == 0) {
+            return true;
+        }
+
+        // Every virtual channel on a CableCARD tuner has its own authorization and CCI, so they
+        // can't be assumed to be the same just because they share a frequency.
+        if (tvChannels.length == 1 || encoderDeviceType == CaptureDeviceType.DCT_HDHOMERUN) {
+            return super.getChannelInfoOffline(tvChannels, skipCCI);
+        }
+
+        // The channels were grouped by the frequency they had before this scan.
+        int groupFrequency = tvChannels[0].getFrequency();
+
+        if (!getChannelInfoOffline(tvChannels[0], skipCCI)) {
+            return false;
+        }
+
+        synchronized (exclusiveLock) {
+            if (isInternalLocked()) {
+                return false;
+            }
+
+            TVChannel firstChannel = tvChannels[0];
+            HDHomeRunProgram programs[] = new HDHomeRunProgram[0];
+            // If the first channel moved, nothing it found says anything about the others.
+            boolean sameFrequency = groupFrequency > 0 &&
+                    firstChannel.getFrequency() == groupFrequency;
+            boolean signalPresent = sameFrequency && isSignalPresent();
+
+            if (signalPresent) {
+                try {
+                    HDHomeRunStreamInfo streamInfo =
+                            waitForStablePrograms(SCAN_PROGRAMS_TIMEOUT_MS);
+
+                    if (streamInfo != null) {
+                        programs = streamInfo.getProgramsParsed();
+                    }
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            for (int i = 1; i < tvChannels.length; i++) {
+                TVChannel tvChannel = tvChannels[i];
+
+                HDHomeRunProgram found = null;
+
+                if (sameFrequency && tvChannel.getProgram() > 0) {
+                    for (HDHomeRunProgram program : programs) {
+                        if (program.PROGRAM == tvChannel.getProgram()) {
+                            found = program;
+                            break;
+                        }
+                    }
+                }
+
+                // Without a program on the same frequency, there's no way to tell from the first
+                // channel if this channel is still there, so it needs to be tuned by itself.
+                if (!sameFrequency || tvChannel.getProgram() <= 0 ||
+                        (signalPresent && found == null)) {
+
+                    if (!getChannelInfoOffline(tvChannel, skipCCI)) {
+                        return false;
+                    }
+
+                    continue;
+                }
+
+                tvChannel.setSignalStrength(firstChannel.getSignalStrength());
+                tvChannel.setModulation(firstChannel.getModulation());
+                tvChannel.setFrequency(firstChannel.getFrequency());
+
+                if (!skipCCI) {
+                    tvChannel.setCci(firstChannel.getCci());
+                }
+
+                tvChannel.setTunable(signalPresent && found != null && found.isTunable());
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isSignalPresent() {
+        try {
+            return tuner.getStatus().SIGNAL_PRESENT;
+        } catch (IOException e) {
+            logger.error("Unable to get signal presence from HDHomeRun because it cannot be reached => ", e);
+        } catch (GetSetException e) {
+            logger.error("Unable to get signal presence from HDHomeRun because the command did not work => ", e);
+        }
+
+        // Assume there's a signal when we can't tell, so nothing is marked untunable by mistake.
+        return true;
+    }
+
     @Override
     public boolean startEncoding(String channel, String filename, String encodingQuality,
                                  long bufferSize, SageTVDeviceCrossbar deviceType,
@@ -528,6 +660,13 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
             }
         }
 
+        // Status, stream info and CCI are polled repeatedly until streaming starts, so keep the
+        // cached status for this device fresh in the background until then.
+        device.STATUS_POLLER.pollFaster(HDHomeRunDiscoverer.getStreamingWait());
+
+        boolean warm = !retune && claimWarmPipeline(
+                !scanOnly && canSwitchConsumerTo(filename, bufferSize, uploadID, remoteAddress));
+
         // Only lock the HDHomeRun if this device is locked too. This will prevent any offline
         // activities from taking the tuner away from outside programs.
         if (isInternalLocked()) {
@@ -550,28 +689,43 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
                     return logger.exit(false);
                 }*/
             }
+
+            TuningTrace.markCurrent("external_lock");
         }
 
-        if (!httpProducing) {
+        if (warm) {
+            TuningTrace.markCurrent("warm_pipeline");
+        } else if (!httpProducing) {
             // The producer and consumer methods are requested to not block. If they don't shut down in
             // time, it will be caught and handled later. This gives us a small gain in speed.
             rtpServices.stopProducing(false);
         } else {
             httpServices.stopProducing(false);
+            httpProducer = null;
+            // Nothing is producing anymore. Leaving this set would skip tuning and starting the
+            // new producer below.
+            httpProducing = false;
         }
 
         // If we are trying to restart the stream, we don't need to stop the consumer.
-        if (!retune) {
+        if (!retune && !warm) {
             stopConsuming(false);
         }
 
-        // Get a new producer and consumer.
-        RTPProducer newRTPProducer = rtpServices.getNewRTPProducer(propertiesDeviceParent);
+        TuningTrace.markCurrent("previous_stopped");
+
+        // Get a new producer and consumer. A warm pipeline keeps the producer it already has.
+        RTPProducer newRTPProducer = warm ? null : rtpServices.getNewRTPProducer(propertiesDeviceParent);
         SageTVConsumer newConsumer;
 
         // If we are trying to restart the stream, we don't need to get a new consumer.
         if (retune) {
             newConsumer = sageTVConsumerRunnable;
+        } else if (warm) {
+            newConsumer = sageTVConsumerRunnable;
+
+            // Anything left over from the last channel must not end up in the new recording.
+            newConsumer.clearBuffer();
         } else if (scanOnly) {
             newConsumer = getNewChannelScanSageTVConsumer();
             newConsumer.consumeToNull(true);
@@ -940,7 +1094,31 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
                 return logger.exit(false);
         }
 
-        if (!httpProducing) {
+        TuningTrace.markCurrent(httpProducing ? "tuned_http" : "tuned");
+
+        // Pull the stream over HTTP instead of having the tuner push RTP when this device is
+        // configured to. A warm pipeline is already receiving RTP, so it's left alone.
+        if (!warm && !httpProducing && discoveredDeviceParent.isHttpStreaming()) {
+            String vchannel = null;
+
+            if (encoderDeviceType == CaptureDeviceType.DCT_HDHOMERUN) {
+                vchannel = tvChannel != null ? tvChannel.getChannel() : dotChannel;
+            }
+
+            httpProducing = startHttpStreaming(vchannel, newConsumer);
+
+            if (httpProducing) {
+                TuningTrace.markCurrent("producer_started");
+            }
+        }
+
+        if (warm && httpProducing) {
+            // The new channel is streaming over HTTP to the same consumer, so the RTP producer
+            // that was kept warm is no longer needed.
+            rtpServices.stopProducing(false);
+        } else if (warm) {
+            logger.info("Re-using the running RTP producer...");
+        } else if (!httpProducing) {
             logger.info("Configuring and starting the new RTP producer...");
 
             if (!rtpServices.startProducing(newRTPProducer, newConsumer, discoveredDeviceParent.getRemoteAddress(), rtpServices.getRtpLocalPort(), encoderName)) {
@@ -959,6 +1137,8 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
                 logger.error("HDHomeRun is unable to start RTP because the command did not work => ", e);
                 return logger.exit(false);
             }
+
+            TuningTrace.markCurrent("producer_started");
         }
 
         // If we are trying to restart the stream, we don't need to stop the consumer.
@@ -993,19 +1173,34 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
                 return logger.exit(false);
             }
 
-            logger.info("Configuring and starting the new SageTV consumer...");
+            TuningTrace.markCurrent("program_found");
+
+            if (warm) {
+                // The switch happens on the first PAT of the new channel, so the new recording
+                // starts the same way it would from a new consumer.
+                logger.info("Switching the running SageTV consumer to the new recording...");
 
-            if (uploadID > 0 && remoteAddress != null) {
-                if (!newConsumer.consumeToUploadID(filename, uploadID, remoteAddress)) {
+                if (!switchEncoding(channel, filename, bufferSize, null, 0, uploadID, remoteAddress)) {
                     return logger.exit(false);
                 }
-            } else if (!scanOnly) {
-                if (!newConsumer.consumeToFilename(filename)) {
-                    return logger.exit(false);
+
+                TuningTrace.markCurrent("consumer_switched");
+            } else {
+                logger.info("Configuring and starting the new SageTV consumer...");
+
+                if (uploadID > 0 && remoteAddress != null) {
+                    if (!newConsumer.consumeToUploadID(filename, uploadID, remoteAddress)) {
+                        return logger.exit(false);
+                    }
+                } else if (!scanOnly) {
+                    if (!newConsumer.consumeToFilename(filename)) {
+                        return logger.exit(false);
+                    }
                 }
-            }
 
-            startConsuming(channel, newConsumer, encodingQuality, bufferSize);
+                startConsuming(channel, newConsumer, encodingQuality, bufferSize);
+                TuningTrace.markCurrent("consumer_started");
+            }
         } else {
             logger.info("Consumer is already running; this is a re-tune and it does not need to restart.");
         }
@@ -1034,6 +1229,7 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
             }
         }
 
+        TuningTrace.markCurrent("streaming_wait");
         lastTuneTime = System.currentTimeMillis();
         return logger.exit(true);
     }
@@ -1156,6 +1352,121 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         return programSelected;
     }
 
+    /**
+     * Pull the stream from the tuner over HTTP instead of having the tuner push RTP.
+     * <p/>
+     * The tuner has already been tuned, so the requested URL is for the same channel. If the
+     * stream can't be started, the tuner is locked again so RTP can be used instead and HTTP isn't
+     * tried again on this device for a while.
+     *
+     * @param vchannel The virtual channel if the tuner was tuned by virtual channel. Otherwise
+     *                 <i>null</i> to use the current frequency and program of the tuner.
+     * @param newConsumer The consumer to receive the stream.
+     * @return <i>true</i> if the stream is being received over HTTP.
+     */
+    private boolean startHttpStreaming(String vchannel, SageTVConsumer newConsumer) {
+        if (isTuneLegacy() || httpServices == null ||
+                System.currentTimeMillis() < httpStreamingRetryAt) {
+
+            return false;
+        }
+
+        String tunerPath;
+
+        try {
+            if (vchannel != null) {
+                tunerPath = "v" + vchannel;
+            } else {
+                String channel = tuner.getChannel();
+                long frequency = Long.parseLong(channel.substring(channel.lastIndexOf(':') + 1));
+
+                // The program might not be selected yet. Without a program, the device sends
+                // every program on the frequency.
+                int program = tuner.getProgram();
+                int timeout = 20;
+
+                while (program <= 0 && timeout-- > 0) {
+                    Thread.sleep(100);
+                    program = tuner.getProgram();
+                }
+
+                tunerPath = "ch" + frequency + (program > 0 ? "-" + program : "");
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Unable to stream over HTTP because the tuner does not have a" +
+                    " frequency. Using RTP.");
+            return false;
+        } catch (IOException e) {
+            logger.error("Unable to stream over HTTP because the HDHomeRun" +
+                    " cannot be reached. Using RTP => ", e);
+            return false;
+        } catch (GetSetException e) {
+            logger.error("Unable to stream over HTTP because the command did not work." +
+                    " Using RTP => ", e);
+            return false;
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted while waiting for a program to stream over HTTP.");
+            return false;
+        }
+
+        String tunerUrl = "http://" + device.getIpAddress().getHostAddress() + ":" +
+                HTTP_STREAMING_PORT + "/tuner" + tuner.TUNER_NUMBER + "/" + tunerPath;
+
+        // Support for transcode.
+        if (!Util.isNullOrEmpty(HDHomeRunDiscoverer.getTranscodeProfile())) {
+            tunerUrl += "?transcode=" + HDHomeRunDiscoverer.getTranscodeProfile();
+        }
+
+        URL streamUrl;
+
+        try {
+            streamUrl = new URL(tunerUrl);
+        } catch (MalformedURLException e) {
+            logger.error("'{}' does not appear to be a valid URL => ", tunerUrl, e);
+            return false;
+        }
+
+        logger.info("Configuring and starting the new HTTP producer using '{}'...", streamUrl);
+
+        httpProducer = httpServices.getNewHTTPProducer(propertiesDeviceParent, false);
+
+        boolean returnValue = false;
+
+        try {
+            // The device will not stream over HTTP while the tuner is locked.
+            tuner.clearLockkey();
+
+            returnValue = httpServices.startProducing(
+                    encoderName, httpProducer, newConsumer, false, streamUrl);
+        } catch (IOException e) {
+            logger.error("Unable to clear lock on HDHomeRun capture device" +
+                    " because it cannot be reached => ", e);
+        } catch (GetSetException e) {
+            logger.error("Unable to clear lock on HDHomeRun capture device" +
+                    " because the command did not work => ", e);
+        }
+
+        if (!returnValue) {
+            httpProducer = null;
+            httpStreamingRetryAt = System.currentTimeMillis() + HTTP_STREAMING_RETRY_MS;
+
+            logger.warn("Unable to stream over HTTP from '{}'. Using RTP for the next {}ms.",
+                    streamUrl, HTTP_STREAMING_RETRY_MS);
+
+            try {
+                tuner.setLockkey(device.getIpAddress());
+            } catch (IOException e) {
+                logger.error("Unable to set lock on HDHomeRun capture device" +
+                        " because it cannot be reached => ", e);
+            } catch (GetSetException e) {
+                logger.error("Unable to set lock HDHomeRun capture device" +
+                        " because the command did not work => ", e);
+            }
+        }
+
+        return returnValue;
+    }
+
     private boolean tuneUrl(TVChannel channel, String transcodeProfile, SageTVConsumer newConsumer) {
         if (isTuneLegacy() ||
                 Util.isNullOrEmpty(channel.getUrl()) ||
@@ -1404,67 +1715,22 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
                     " because the command did not work => ", e);
         }
 
-        int retry = 12;
         // Wait for the HDHomeRun to report that it has a signal before we wait to see what it can
-        // find on this frequency.
-        while (retry-- > 0 && !Thread.currentThread().isInterrupted()) {
-            try {
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
-                return "ERROR";
-            }
-
-            try {
-                if (tuner.getStatus().SIGNAL_PRESENT) {
-                    break;
-                }
-            } catch (IOException e) {
-                logger.error("Unable to get signal present on HDHomeRun capture device" +
-                        " because it cannot be reached => ", e);
-            } catch (GetSetException e) {
-                logger.error("Unable to get signal present on HDHomeRun capture device" +
-                        " because the command did not work => ", e);
-            }
+        // find on this frequency. Without a signal, there's nothing to wait for.
+        if (!waitForSignal(12)) {
+            return Thread.currentThread().isInterrupted() ? "ERROR" : "";
         }
 
-        HDHomeRunStreamInfo streamInfo;
         HDHomeRunProgram programs[] = null;
 
-        // Give the HDHomeRun some time to read the programs on the tuned frequency.
         try {
-            Thread.sleep(6000);
-        } catch (InterruptedException e) {
-            return "ERROR";
-        }
-
-        try {
-            streamInfo = tuner.getStreamInfo();
+            HDHomeRunStreamInfo streamInfo = waitForStablePrograms(SCAN_PROGRAMS_TIMEOUT_MS);
 
             if (streamInfo != null && streamInfo.getProgramsRaw().length > 0) {
                 programs = streamInfo.getProgramsParsed();
-                //boolean incompleteInfo = false;
-
-                // Sometimes, it takes longer for the HDHomeRun to detect the info
-                // for the tuned channel (guide number and callsign), and sometimes,
-                // even when it has this info, it hasn't detected the datastreams yet.
-                // We will check for these conditions and get streaminfo again.
-                /*for (HDHomeRunProgram program : programs) {
-                    if (program.NO_DATA || program.CHANNEL.equals("0")) {
-                        incompleteInfo = true;
-                        break;
-                    }
-                }*/
-
-                /*if (!incompleteInfo) {
-                    break;
-                }*/
             }
-        } catch (IOException e) {
-            logger.error("Unable to get programs on HDHomeRun capture device" +
-                    " because it cannot be reached => ", e);
-        } catch (GetSetException e) {
-            logger.error("Unable to get programs on HDHomeRun capture device" +
-                    " because the command did not work => ", e);
+        } catch (InterruptedException e) {
+            return "ERROR";
         }
 
         if (programs != null) {
@@ -1518,6 +1784,96 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         return "";
     }
 
+    /**
+     * Wait for the tuner to report that it has a signal.
+     *
+     * @param attempts The number of times to check, 250ms apart.
+     * @return <i>true</i> if a signal is present.
+     */
+    private boolean waitForSignal(int attempts) {
+        device.STATUS_POLLER.pollFaster(attempts * 250 + SCAN_PROGRAMS_TIMEOUT_MS);
+
+        while (attempts-- > 0 && !Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(250);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            try {
+                if (tuner.getStatus().SIGNAL_PRESENT) {
+                    return true;
+                }
+            } catch (IOException e) {
+                logger.error("Unable to get signal present on HDHomeRun capture device" +
+                        " because it cannot be reached => ", e);
+            } catch (GetSetException e) {
+                logger.error("Unable to get signal present on HDHomeRun capture device" +
+                        " because the command did not work => ", e);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait for the programs on the tuned frequency to stop changing.
+     * <p/>
+     * The HDHomeRun finds the programs first and fills in the guide number and call sign later, so
+     * the list is only trusted once it has stayed the same for a few checks in a row. Programs
+     * still missing data need to stay the same for longer since they might be filled in yet.
+     *
+     * @param timeoutMs The longest time in milliseconds to wait for the list to settle.
+     * @return The last stream info returned or <i>null</i> if the device never returned any.
+     * @throws InterruptedException Thrown if the thread is interrupted while waiting.
+     */
+    private HDHomeRunStreamInfo waitForStablePrograms(long timeoutMs) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + timeoutMs;
+        HDHomeRunStreamInfo streamInfo = null;
+        String lastPrograms[] = null;
+        int stableCount = 0;
+
+        while (System.currentTimeMillis() < timeout) {
+            Thread.sleep(SCAN_PROGRAMS_POLL_MS);
+
+            try {
+                streamInfo = tuner.getStreamInfo();
+            } catch (IOException e) {
+                logger.error("Unable to get programs on HDHomeRun capture device" +
+                        " because it cannot be reached => ", e);
+                continue;
+            } catch (GetSetException e) {
+                logger.error("Unable to get programs on HDHomeRun capture device" +
+                        " because the command did not work => ", e);
+                continue;
+            }
+
+            String programs[] = streamInfo.getProgramsRaw();
+
+            if (programs.length == 0 || !Arrays.equals(programs, lastPrograms)) {
+                lastPrograms = programs;
+                stableCount = 0;
+                continue;
+            }
+
+            boolean incomplete = false;
+
+            for (HDHomeRunProgram program : streamInfo.getProgramsParsed()) {
+                if (program.NO_DATA || program.CHANNEL == null || program.CHANNEL.equals("0")) {
+                    incomplete = true;
+                    break;
+                }
+            }
+
+            if (++stableCount >= (incomplete ? SCAN_INCOMPLETE_STABLE_POLLS : SCAN_STABLE_POLLS)) {
+                break;
+            }
+        }
+
+        return streamInfo;
+    }
+
     @Override
     public String scanChannelInfo(String channel) {
         String returnValue = "ERROR";
@@ -1626,45 +1982,192 @@ public class HDHRNativeCaptureDevice extends BasicCaptureDevice {
         logger.debug("Stopping encoding...");
 
         synchronized (exclusiveLock) {
+            if (!parkWarmPipeline()) {
+                stopPipeline();
+            }
+        }
+
+        logger.exit();
+    }
+
+    /**
+     * Stops the producer, the consumer and the tuner.
+     * <p/>
+     * This must only be called while holding <i>exclusiveLock</i>.
+     */
+    private void stopPipeline() {
+        warmPipeline = false;
+
+        if (httpProducing) {
+            httpServices.stopProducing(false);
+            httpProducer = null;
+        } else {
+            rtpServices.stopProducing(false);
+        }
+
+        super.stopEncoding();
+
+        try {
             if (httpProducing) {
-                httpServices.stopProducing(false);
-                httpProducer = null;
-            } else {
-                rtpServices.stopProducing(false);
+                tuner.forceClearLockkey();
+                httpProducing = false;
             }
 
-            super.stopEncoding();
+            tuner.clearChannel();
+            tuner.clearTarget();
+        } catch (IOException e) {
+            logger.error("Unable to stop HDHomeRun capture device" +
+                    " because it cannot be reached => ", e);
+        } catch (GetSetException e) {
+            logger.error("Unable to stop HDHomeRun capture device" +
+                    " because the command did not work => ", e);
+        }
 
-            try {
-                if (httpProducing) {
-                    tuner.forceClearLockkey();
-                    httpProducing = false;
+        // Only remove the external lock if we are not performing an offline activity. This also
+        // prevents the device from possibly being forced to be unlocked.
+        if (isInternalLocked()) {
+            setExternalLock(false);
+        }
+    }
+
+    /**
+     * Stops the tuner, but leaves the RTP producer and consumer running so they can be used by the
+     * next START.
+     * <p/>
+     * The tuner stops streaming and the consumer discards everything until it's switched, so
+     * nothing more is written to the recording, but the recording stays open until the consumer is
+     * switched to the next recording or the pipeline is stopped because no START arrived in time.
+     * This must only be called while holding <i>exclusiveLock</i>.
+     *
+     * @return <i>false</i> if the pipeline can't be kept and needs to be stopped.
+     */
+    private boolean parkWarmPipeline() {
+        final long warmRetuneMs = HDHomeRunDiscoverer.getWarmRetuneMs();
+
+        // Only a recording started by SageTV is kept since offline activities do not lock the
+        // capture device. The consumer must be able to follow the stream to a different channel
+        // or the next recording would only contain the streams it detected for this channel.
+        if (warmRetuneMs <= 0 || httpProducing || !canSwitch || !isInternalLocked() ||
+                sageTVConsumerRunnable == null || !sageTVConsumerRunnable.canSwitchChannel() ||
+                !isConsuming() || !rtpServices.isProducing()) {
+
+            return false;
+        }
+
+        try {
+            // The target is left alone so the next channel streams to the same producer.
+            tuner.clearChannel();
+        } catch (IOException e) {
+            logger.warn("Unable to keep the pipeline warm because the HDHomeRun" +
+                    " cannot be reached => ", e);
+            return false;
+        } catch (GetSetException e) {
+            logger.warn("Unable to keep the pipeline warm because the command" +
+                    " did not work => ", e);
+            return false;
+        }
+
+        // The next channel streams to this consumer before it's switched to the next recording.
+        sageTVConsumerRunnable.discardUntilSwitch();
+        setExternalLock(false);
+
+        recordLastFilename = null;
+        warmPipeline = true;
+        final long generation = ++warmGeneration;
+
+        ThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(warmRetuneMs);
+                } catch (InterruptedException e) {
+                    logger.debug("Warm pipeline timeout was interrupted. Stopping now.");
                 }
 
-                tuner.clearChannel();
-                tuner.clearTarget();
-            } catch (IOException e) {
-                logger.error("Unable to stop HDHomeRun capture device" +
-                        " because it cannot be reached => ", e);
-            } catch (GetSetException e) {
-                logger.error("Unable to stop HDHomeRun capture device" +
-                        " because the command did not work => ", e);
-            }
+                synchronized (exclusiveLock) {
+                    if (warmPipeline && warmGeneration == generation) {
+                        logger.info("No START within {}ms. Stopping the warm pipeline.",
+                                warmRetuneMs);
 
-            // Only remove the external lock if we are not performing an offline activity. This also
-            // prevents the device from possibly being forced to be unlocked.
-            if (isInternalLocked()) {
-                setExternalLock(false);
+                        stopPipeline();
+                    }
+                }
             }
+        }, Thread.MIN_PRIORITY, "WarmPipeline", encoderName);
+
+        logger.info("Keeping the pipeline warm for {}ms.", warmRetuneMs);
+
+        return true;
+    }
+
+    /**
+     * Takes the warm pipeline if there is one.
+     * <p/>
+     * If the pipeline can't be used, it is stopped so the caller can start over. This must only be
+     * called while holding <i>exclusiveLock</i>.
+     *
+     * @param usable <i>false</i> if the request can't be handled by switching the consumer.
+     * @return <i>true</i> if the producer and consumer are still running and can be used.
+     */
+    private boolean claimWarmPipeline(boolean usable) {
+        if (!warmPipeline) {
+            return false;
         }
 
-        logger.exit();
+        warmPipeline = false;
+        warmGeneration++;
+
+        if (usable && isConsuming() && rtpServices.isProducing()) {
+            logger.info("Re-using the warm pipeline.");
+            return true;
+        }
+
+        logger.info("The warm pipeline can't be used for this request. Stopping it.");
+        stopPipeline();
+
+        return false;
+    }
+
+    /**
+     * Can the current consumer be switched to a new recording requested this way?
+     * <p/>
+     * The consumer must be able to switch to a different channel. A consumer that is uploading can
+     * only switch to another upload and a consumer writing to a file can only switch to another
+     * file. Restarting the same recording needs a new consumer since the current one still has the
+     * recording open. The recording buffer size is only applied when a consumer starts, so it must
+     * not change either.
+     *
+     * @param filename The new recording.
+     * @param bufferSize The recording buffer size of the new recording.
+     * @param uploadID The upload ID of the new recording.
+     * @param remoteAddress The address of the SageTV server for uploading.
+     * @return <i>true</i> if a switch will work.
+     */
+    private boolean canSwitchConsumerTo(String filename, long bufferSize, int uploadID,
+                                        InetAddress remoteAddress) {
+
+        SageTVConsumer consumer = sageTVConsumerRunnable;
+
+        if (consumer == null || !consumer.canSwitchChannel() || bufferSize != recordBufferSize ||
+                filename == null || filename.equals(consumer.getEncoderFilename())) {
+
+            return false;
+        }
+
+        boolean upload = uploadID > 0 && remoteAddress != null && consumer.acceptsUploadID();
+
+        return upload == (consumer.getEncoderUploadID() > 0);
     }
 
     @Override
     public void stopDevice() {
         logger.entry();
 
+        synchronized (exclusiveLock) {
+            warmPipeline = false;
+            warmGeneration++;
+        }
+
         if (httpProducing) {
             httpServices.stopProducing(false);
             httpProducer = null;
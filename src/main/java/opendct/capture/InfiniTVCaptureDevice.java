@@ -23,6 +23,7 @@ import opendct.consumer.SageTVConsumer;
 import opendct.producer.RTPProducer;
 import opendct.producer.SageTVProducer;
 import opendct.sagetv.SageTVDeviceCrossbar;
+import opendct.sagetv.TuningTrace;
 import opendct.tuning.discovery.CaptureDeviceLoadException;
 import opendct.tuning.discovery.discoverers.UpnpDiscoverer;
 import opendct.tuning.http.InfiniTVStatus;
@@ -394,6 +395,8 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
             stopConsuming(false);
         }
 
+        TuningTrace.markCurrent("previous_stopped");
+
         // Get a new producer and consumer.
         RTPProducer newRTPProducer = rtpServices.getNewRTPProducer(propertiesDeviceParent);
         SageTVConsumer newConsumer;
@@ -453,6 +456,7 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
             return logger.exit(false);
         }
 
+        TuningTrace.markCurrent("tuned");
         logger.info("Configuring and starting the new RTP producer...");
 
         if (!rtpServices.startProducing(
@@ -471,6 +475,8 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
             logger.error("Unable to start RTSP. Will try again on re-tune.");
         }
 
+        TuningTrace.markCurrent("producer_started");
+
         if (!retune) {
             try {
                 int getProgram = InfiniTVStatus.getProgram(encoderAddress, encoderNumber, 5);
@@ -500,6 +506,8 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
                 return logger.exit(false);
             }
 
+            TuningTrace.markCurrent("program_found");
+
             // If we are trying to restart the stream, we don't need to stop the consumer.
             logger.info("Configuring and starting the new SageTV consumer...");
 
@@ -514,6 +522,7 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
             }
 
             startConsuming(channel, newConsumer, encodingQuality, bufferSize);
+            TuningTrace.markCurrent("consumer_started");
         } else {
             logger.info("Consumer is already running; this is a re-tune and it does not need to restart.");
         }
@@ -543,6 +552,7 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
             }
         }
 
+        TuningTrace.markCurrent("streaming_wait");
         lastTuneTime = System.currentTimeMillis();
         return logger.exit(true);
     }
@@ -591,6 +601,18 @@ public class InfiniTVCaptureDevice extends BasicCaptureDevice {
 
         String encoderAddress = parent.getRemoteAddress().getHostAddress();
 
+        try {
+            // Read everything at once so the values below are all from about the same moment and
+            // are read from the cache.
+            InfiniTVStatus.getVars(encoderAddress, encoderNumber,
+                    new String[] { "tuner", "tuner", "diag", "diag", "diag", "av" },
+                    new String[] { "CarrierLock", "PCRLock", "Streaming_IP", "Streaming_Port",
+                            "Temperature", "TransportState" });
+        } catch (Exception e) {
+            logger.debug("Unable to get the tuner status from capture device => {}",
+                    e.getMessage());
+        }
+
         try {
             stringBuilder.append("CarrierLock: ")
                     .append(InfiniTVStatus.getCarrierLock(encoderAddress, encoderNumber));
@@ -18,12 +18,15 @@ package opendct.channel;
 
 import opendct.capture.CaptureDevice;
 import opendct.capture.CaptureDeviceType;
+import opendct.config.Config;
 import opendct.sagetv.SageTVManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -335,7 +338,8 @@ public class OfflineChannelScan {
         // things if need to suspend or shutdown.
         ChannelManager.addOfflineChannelScan(this);
 
-        for (final TVChannel channel : channels) {
+        for (final TVChannel group[] : groupByFrequency(channels, devices)) {
+            final TVChannel channel = group[0];
 
             executorService.submit(new Runnable() {
                 public void run() {
@@ -360,7 +364,7 @@ public class OfflineChannelScan {
                         } catch (InterruptedException e) {
                             logger.debug("The offline channel scan has been interrupted => ", e);
                             stop = true;
-                            completeLatch.countDown();
+                            countDown(group.length);
                             break;
                         }
 
@@ -371,13 +375,17 @@ public class OfflineChannelScan {
                         } catch (InterruptedException e) {
                             logger.debug("The offline channel scan has been interrupted => ", e);
                             stop = true;
-                            completeLatch.countDown();
+                            countDown(group.length);
                             break;
                         }
 
                         if (!captureDevice.isInternalLocked()) {
-                            logger.info("Scanning the channel '{}' ({}).", channel.getChannel(), channel.getName());
-                            result = captureDevice.getChannelInfoOffline(channel, false);
+                            if (group.length > 1) {
+                                logger.info("Scanning the channel '{}' ({}) and {} more on the same frequency.", channel.getChannel(), channel.getName(), group.length - 1);
+                            } else {
+                                logger.info("Scanning the channel '{}' ({}).", channel.getChannel(), channel.getName());
+                            }
+                            result = captureDevice.getChannelInfoOffline(group, false);
                         } else {
                             // If the device is locked, it's not really fair to call this a failure.
                             retry++;
@@ -388,21 +396,23 @@ public class OfflineChannelScan {
                         } catch (InterruptedException e) {
                             logger.debug("The offline channel scan has been interrupted => ", e);
                             stop = true;
-                            completeLatch.countDown();
+                            countDown(group.length);
                             break;
                         }
                     }
 
-                    if (retry == 0) {
-                        logger.error("Unable to Scan channel {} ({}).", channel.getChannel(), channel.getName());
-                        channel.setTunable(false);
-                        addScannedChannel(channel);
-                    } else if (!stop) {
-                        logger.info("Scanned channel {} ({}). Signal strength is now '{}', CCI is now '{}' and tunable is now '{}'.", channel.getChannel(), channel.getName(), channel.getSignalStrength(), channel.getCci(), channel.isTunable());
-                        addScannedChannel(channel);
+                    for (TVChannel scannedChannel : group) {
+                        if (retry == 0) {
+                            logger.error("Unable to Scan channel {} ({}).", scannedChannel.getChannel(), scannedChannel.getName());
+                            scannedChannel.setTunable(false);
+                            addScannedChannel(scannedChannel);
+                        } else if (!stop) {
+                            logger.info("Scanned channel {} ({}). Signal strength is now '{}', CCI is now '{}' and tunable is now '{}'.", scannedChannel.getChannel(), scannedChannel.getName(), scannedChannel.getSignalStrength(), scannedChannel.getCci(), scannedChannel.isTunable());
+                            addScannedChannel(scannedChannel);
+                        }
                     }
 
-                    completeLatch.countDown();
+                    countDown(group.length);
 
                     // This will free up the completion CountDownLatch if it's waiting.
                     if (stop) {
@@ -450,6 +460,75 @@ public class OfflineChannelScan {
         return logger.exit(true);
     }
 
+    private void countDown(int count) {
+        while (count-- > 0) {
+            completeLatch.countDown();
+        }
+    }
+
+    /**
+     * Group channels that are on the same physical frequency so they can be scanned together.
+     * <p/>
+     * Channels that don't have a known frequency and program yet are never grouped. Only HDHomeRun
+     * tuners without a CableCARD can check every program on a frequency at once, so nothing is
+     * grouped if any other kind of capture device is doing the scan. A group would otherwise be
+     * scanned one channel at a time on a single capture device.
+     *
+     * @param channels The channels to be scanned.
+     * @param devices The capture devices that will be doing the scan.
+     * @return The groups of channels in the same order as the first channel in each group.
+     */
+    private ArrayList<TVChannel[]> groupByFrequency(TVChannel channels[], Collection<CaptureDevice> devices) {
+        boolean group = Config.getBoolean("channels.offline_scan.group_by_frequency", true);
+
+        for (CaptureDevice device : devices) {
+            switch (device.getEncoderDeviceType()) {
+                case ATSC_HDHOMERUN:
+                case DVBC_HDHOMERUN:
+                case DVBT_HDHOMERUN:
+                case QAM_HDHOMERUN:
+                    break;
+                default:
+                    group = false;
+            }
+        }
+
+        LinkedHashMap<String, ArrayList<TVChannel>> frequencies = new LinkedHashMap<>();
+
+        for (int i = 0; i < channels.length; i++) {
+            TVChannel channel = channels[i];
+            String key;
+
+            if (group && channel.getFrequency() > 0 && channel.getProgram() > 0) {
+                key = channel.getModulation() + ":" + channel.getFrequency();
+            } else {
+                key = String.valueOf(i);
+            }
+
+            ArrayList<TVChannel> frequency = frequencies.get(key);
+
+            if (frequency == null) {
+                frequency = new ArrayList<>();
+                frequencies.put(key, frequency);
+            }
+
+            frequency.add(channel);
+        }
+
+        ArrayList<TVChannel[]> returnValue = new ArrayList<>(frequencies.size());
+
+        for (ArrayList<TVChannel> frequency : frequencies.values()) {
+            returnValue.add(frequency.toArray(new TVChannel[frequency.size()]));
+        }
+
+        if (returnValue.size() < channels.length) {
+            logger.info("Grouped {} channels into {} frequencies for the offline channel scan.",
+                    channels.length, returnValue.size());
+        }
+
+        return returnValue;
+    }
+
     /**
      * Call this method to block until the channel scan has completed.
      *
@@ -561,6 +561,16 @@ public class Config {
         logger.exit();
     }
 
+    public static void removeKey(String key) {
+        logger.entry(key);
+
+        if (Config.properties.remove(key) != null) {
+            isDirty = true;
+        }
+
+        logger.exit();
+    }
+
     // This will be used to request all string properties so we can do trace logging if there is
     // any configuration related weirdness.
     public static String getString(String key, String defaultValue) {
@@ -22,6 +22,7 @@ import opendct.config.options.DeviceOption;
 import opendct.config.options.DeviceOptionException;
 import opendct.config.options.StringDeviceOption;
 import opendct.nanohttpd.pojo.JsonOption;
+import opendct.video.java.TsHealthAnalyzer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -53,6 +54,7 @@ public class DynamicConsumerImpl implements SageTVConsumer {
 
     private SageTVConsumer sageTVConsumer;
     private String channel;
+    private String lineup;
 
     static {
         dynamicMapsLock = new ReentrantReadWriteLock();
@@ -172,6 +174,8 @@ public class DynamicConsumerImpl implements SageTVConsumer {
             consumer.consumeToNull(consumeToNull);
             consumer.setEncodingQuality(encodeQuality);
             consumer.setProgram(desiredProgram);
+            consumer.setChannel(channel);
+            consumer.setLineup(lineup);
         }
     }
 
@@ -226,6 +230,21 @@ public class DynamicConsumerImpl implements SageTVConsumer {
         return consumer != null && consumer.canSwitch();
     }
 
+    @Override
+    public boolean canSwitchChannel() {
+        // Changing the channel replaces the consumer, so a running consumer can't follow it.
+        return false;
+    }
+
+    @Override
+    public void discardUntilSwitch() {
+        SageTVConsumer consumer = sageTVConsumer;
+
+        if (consumer != null) {
+            consumer.discardUntilSwitch();
+        }
+    }
+
     @Override
     public boolean getIsRunning() {
         SageTVConsumer consumer = sageTVConsumer;
@@ -380,6 +399,16 @@ public class DynamicConsumerImpl implements SageTVConsumer {
         return channel;
     }
 
+    @Override
+    public void setLineup(String lineup) {
+        this.lineup = lineup;
+    }
+
+    @Override
+    public String getLineup() {
+        return lineup;
+    }
+
     @Override
     public boolean isStreaming(long timeout) {
         SageTVConsumer consumer = sageTVConsumer;
@@ -387,6 +416,13 @@ public class DynamicConsumerImpl implements SageTVConsumer {
         return consumer != null && consumer.isStreaming(timeout);
     }
 
+    @Override
+    public TsHealthAnalyzer getStreamHealth() {
+        SageTVConsumer consumer = sageTVConsumer;
+
+        return consumer != null ? consumer.getStreamHealth() : null;
+    }
+
     private static void initDeviceOptions() {
         while (true) {
             try {
@@ -20,17 +20,22 @@ import opendct.config.Config;
 import opendct.config.options.DeviceOption;
 import opendct.config.options.DeviceOptionException;
 import opendct.consumer.buffers.FFmpegCircularBufferNIO;
+import opendct.consumer.disk.DiskWriteService;
+import opendct.consumer.disk.DiskWriteStream;
 import opendct.consumer.upload.NIOSageTVMediaServer;
 import opendct.nanohttpd.pojo.JsonOption;
-import opendct.util.ThreadPool;
+import opendct.sagetv.TuningTrace;
 import opendct.util.Util;
 import opendct.video.ccextractor.CCExtractorSrtInstance;
+import opendct.video.ccextractor.CaptionExtractor;
 import opendct.video.ffmpeg.*;
+import opendct.video.java.TsHealthAnalyzer;
+import opendct.video.java.TsIndexWriter;
+import opendct.video.java.TsPsiParser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bytedeco.javacpp.BytePointer;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -38,11 +43,8 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.channels.FileChannel;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
     private final static Logger logger = LogManager.getLogger(FFmpegTransSageTVConsumerImpl.class);
@@ -63,6 +65,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
     private final boolean ccExtractorEnabled = FFmpegConfig.getCcExtractor();
     private final boolean ccExtractorAllStreams = FFmpegConfig.getCcExtractorAllStreams();
+    private final boolean ccExtractorBuiltIn = FFmpegConfig.getCcExtractorBuiltIn();
     private boolean ccExtractorAvailable = false;
 
     private long initBufferedData = 65536;
@@ -71,10 +74,16 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
     private boolean consumeToNull;
 
     // volatile long is atomic as long as only one thread ever updates it.
-    private volatile long bytesStreamed = 0;
+    private final AtomicLong bytesStreamed = new AtomicLong(0);
+    // Only the writer that most recently started writing updates bytesStreamed. Writes to the
+    // file that was just switched away from can still be completing on the disk writer thread.
+    // Guarded by bytesStreamed.
+    private Object bytesStreamedOwner = null;
+    private volatile TuningTrace tuningTrace = null;
     private AtomicBoolean running = new AtomicBoolean(false);
     private boolean streaming = false;
     private String currentChannel = "";
+    private String currentLineup = "";
     private String currentEncoderFilename = "";
     private FFmpegWriter currentWriter = null;
     private FFmpegWriter switchWriter = null;
@@ -86,6 +95,8 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
     private InetSocketAddress uploadSocketAddress = null;
 
     int desiredProgram = 0;
+    private final TsPsiParser psiParser = new TsPsiParser(0);
+    private final TsHealthAnalyzer streamHealth = new TsHealthAnalyzer();
     private FFmpegCircularBufferNIO circularBuffer;
     private FFmpegContext ctx;
 
@@ -124,6 +135,8 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             circularBuffer.clear();
         }
 
+        psiParser.setDesiredProgram(desiredProgram);
+
         logger.info("FFmpeg Transcoder consumer thread is now running.");
 
         streaming = false;
@@ -148,6 +161,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             ctx = new FFmpegContext(circularBuffer, RW_BUFFER_SIZE, new FFmpegTranscoder());
 
             ctx.setProgram(desiredProgram);
+            ctx.setStreamCache(currentLineup, currentChannel, psiParser);
 
             FFmpegProfile profile = FFmpegProfileManager.getEncoderProfile(currentRecordingQuality);
             ctx.setEncodeProfile(profile);
@@ -159,6 +173,11 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
             ctx.STREAM_PROCESSOR.initStreamOutput(ctx, currentEncoderFilename, currentWriter, currentCcWriter);
 
+            TuningTrace trace = tuningTrace;
+            if (trace != null) {
+                trace.mark("stream_start");
+            }
+
             initBufferedData = ctx.getDetectionBytes();
 
             ctx.STREAM_PROCESSOR.streamOutput();
@@ -173,7 +192,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             }
         } finally {
             // Ensure that this always gets returned when it is no longer needed.
-            FFmpegTranscoder.returnTranscodePermission(ctx.OPAQUE);
+            FFmpegTranscodeScheduler.release(ctx.OPAQUE);
 
             if (currentWriter != null) {
                 currentWriter.closeFile();
@@ -181,6 +200,14 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
             ctx.dispose();
 
+            streamHealth.logSummary(currentEncoderFilename);
+
+            TuningTrace trace = tuningTrace;
+            if (trace != null) {
+                tuningTrace = null;
+                trace.complete("stopped", false);
+            }
+
             // This probably needs to be done differently if the class is to be reused.
             //buffers.offer(circularBuffer);
             //circularBuffer = null;
@@ -192,6 +219,19 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
     @Override
     public void write(byte[] bytes, int offset, int length) throws IOException {
+        TuningTrace trace = tuningTrace;
+        if (trace != null) {
+            trace.markOnce("first_packet");
+        }
+
+        if (!psiParser.isComplete()) {
+            synchronized (psiParser) {
+                psiParser.parse(bytes, offset, length);
+            }
+        }
+
+        streamHealth.analyze(bytes, offset, length);
+
         if (circularBuffer != null) {
             circularBuffer.write(bytes, offset, length);
         }
@@ -199,6 +239,19 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
     @Override
     public void write(ByteBuffer buffer) throws IOException {
+        TuningTrace trace = tuningTrace;
+        if (trace != null) {
+            trace.markOnce("first_packet");
+        }
+
+        if (!psiParser.isComplete()) {
+            synchronized (psiParser) {
+                psiParser.parse(buffer);
+            }
+        }
+
+        streamHealth.analyze(buffer);
+
         if (circularBuffer != null) {
             circularBuffer.write(buffer);
         }
@@ -222,6 +275,19 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         return true;
     }
 
+    @Override
+    public boolean canSwitchChannel() {
+        // The input context and stream map are from the streams detected for the first channel.
+        // Packets from the PIDs of another channel would be dropped.
+        return false;
+    }
+
+    @Override
+    public void discardUntilSwitch() {
+        // This consumer is never kept running across a channel change, so there's nothing that
+        // could end up in the wrong recording.
+    }
+
     @Override
     public boolean getIsRunning() {
         return running.get();
@@ -246,7 +312,14 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
     @Override
     public long getBytesStreamed() {
-        return bytesStreamed;
+        return bytesStreamed.get();
+    }
+
+    private void resetBytesStreamed(Object owner) {
+        synchronized (bytesStreamed) {
+            bytesStreamedOwner = owner;
+            bytesStreamed.set(0);
+        }
     }
 
     @Override
@@ -264,12 +337,33 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         currentRecordingQuality = encodingQuality;
     }
 
+    // The capture device gives the consumer the recording on the thread tuning the device.
+    private void attachTuningTrace() {
+        TuningTrace trace = TuningTrace.current();
+
+        if (trace != null) {
+            trace.attach();
+        }
+
+        tuningTrace = trace;
+    }
+
+    private void completeTuningTrace(String step) {
+        TuningTrace trace = tuningTrace;
+
+        if (trace != null) {
+            tuningTrace = null;
+            trace.complete(step, true);
+        }
+    }
+
     @Override
     public boolean consumeToUploadID(String filename, int uploadId, InetAddress socketAddress) {
         try {
             uploadSocketAddress = new InetSocketAddress(socketAddress, uploadIDPort);
             currentWriter = new FFmpegUploadIDWriter(uploadSocketAddress, filename, uploadId);
             currentEncoderFilename = filename;
+            attachTuningTrace();
         } catch (IOException e) {
             logger.error("Unable to open '{}' for writing via upload ID {} => ", filename, uploadId, e);
             return false;
@@ -283,6 +377,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         try {
             currentWriter = new FFmpegDirectWriter(filename);
             currentEncoderFilename = filename;
+            attachTuningTrace();
         } catch (IOException e) {
             logger.error("Unable to open '{}' for writing => ", filename, e);
             return false;
@@ -304,6 +399,9 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
             ctx.STREAM_PROCESSOR.switchOutput(filename, switchWriter, null);
 
+            streamHealth.logSummary(currentEncoderFilename);
+            streamHealth.reset();
+
             currentWriter.closeFile();
             currentUploadID = uploadId;
             currentEncoderFilename = filename;
@@ -335,6 +433,9 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
             ctx.STREAM_PROCESSOR.switchOutput(filename, switchWriter, switchCcWriter);
 
+            streamHealth.logSummary(currentEncoderFilename);
+            streamHealth.reset();
+
             currentWriter.closeFile();
             currentEncoderFilename = filename;
             currentWriter = switchWriter;
@@ -385,6 +486,16 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         return currentChannel;
     }
 
+    @Override
+    public void setLineup(String lineup) {
+        currentLineup = lineup;
+    }
+
+    @Override
+    public String getLineup() {
+        return currentLineup;
+    }
+
     @Override
     public boolean isStreaming(long timeout) {
         synchronized (streamingMonitor) {
@@ -398,6 +509,11 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         return streaming;
     }
 
+    @Override
+    public TsHealthAnalyzer getStreamHealth() {
+        return streamHealth;
+    }
+
     @Override
     public DeviceOption[] getOptions() {
         return FFmpegConfig.getFFmpegTransOptions();
@@ -443,6 +559,7 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                         uploadFilename, uploadID, e);
             }
 
+            RecordingSizeRegistry.unregister(uploadFilename, bytesStreamed);
             firstWrite = true;
             isFailed = false;
         }
@@ -458,8 +575,9 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                 return 0;
 
             if (firstWrite) {
-                bytesStreamed = 0;
+                resetBytesStreamed(this);
                 firstWrite = false;
+                RecordingSizeRegistry.register(uploadFilename, bytesStreamed);
             }
 
             if (length == 0) {
@@ -514,7 +632,8 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                     break;
                 }
 
-                long currentBytes = bytesStreamed += bytesToStream;
+                long currentBytes = bytesStreamed.addAndGet(bytesToStream);
+                completeTuningTrace("first_upload");
 
                 if (currentBytes > initBufferedData) {
                     synchronized (streamingMonitor) {
@@ -543,11 +662,27 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
     public class FFmpegCCExtractorWriter implements FFmpegWriter {
         private CCExtractorSrtInstance ccInstance;
+        private CaptionExtractor captionExtractor;
         protected DatagramChannel datagramChannel;
         protected SocketAddress targetAddress;
         protected int portNumber;
 
         public FFmpegCCExtractorWriter(String filename) throws IOException {
+            int extIndex = filename.lastIndexOf(".");
+            String baseFilename;
+
+            if (extIndex > 0) {
+                baseFilename = filename.substring(0, extIndex);
+            } else {
+                baseFilename = filename;
+            }
+
+            // The built-in extractor only understands transport streams.
+            if (ccExtractorBuiltIn && !filename.endsWith(".mpg")) {
+                captionExtractor = new CaptionExtractor(baseFilename, 0, ccExtractorAllStreams);
+                return;
+            }
+
             String customOptions = FFmpegConfig.getCcExtractorCustomOptions();
             StringBuilder paramBuilder = new StringBuilder(1024);
 
@@ -585,18 +720,13 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
                 paramBuilder.append(customOptions).append(" ");
             }
 
-            int extIndex = filename.lastIndexOf(".");
-            String baseFilename;
-
-            if (extIndex > 0) {
-                baseFilename = filename.substring(0, extIndex);
-            } else {
-                baseFilename = filename;
-            }
-
             // Create the CCExtractor instance before the recording file so that the .srt files will
             // already exist providing the subtitle option during playback.
             ccInstance = new CCExtractorSrtInstance(paramBuilder.toString(), baseFilename);
+
+            if (datagramChannel != null) {
+                ccInstance.setDatagramChannel(datagramChannel);
+            }
         }
 
         protected long lastWriteAddress = 0;
@@ -623,37 +753,12 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
             int bytesSent = length;
 
-            if (ccInstance != null) {
-                bytesSent = 0;
-
-                if (datagramChannel != null) {
-                    if (length > 31960) {
-                        ByteBuffer slice;
-                        int increment;
-                        while (writeBuffer.hasRemaining()) {
-                            increment = Math.min(31960, writeBuffer.remaining());
-                            slice = writeBuffer.slice();
-                            slice.limit(increment);
-                            writeBuffer.position(writeBuffer.position() + increment);
-
-                            while (slice.hasRemaining() && datagramChannel.isOpen()) {
-                                bytesSent += datagramChannel.write(slice);
-                                try {
-                                    Thread.sleep(1);
-                                } catch (InterruptedException e) {
-                                    logger.debug("Interrupted while writing to CCExtractor => {}",
-                                            e.toString());
-                                }
-                            }
-                        }
-                    } else {
-                        while (writeBuffer.hasRemaining() && datagramChannel.isOpen()) {
-                            bytesSent += datagramChannel.write(writeBuffer);
-                        }
-                    }
-                } else {
-                    ccInstance.streamIn(writeBuffer);
-                }
+            if (captionExtractor != null) {
+                captionExtractor.parse(writeBuffer);
+            } else if (ccInstance != null) {
+                // This only queues the data. If CCExtractor can't keep up, the data is dropped
+                // instead of holding up the recording.
+                ccInstance.streamIn(writeBuffer);
             }
 
             return bytesSent;
@@ -661,6 +766,11 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
 
         @Override
         public synchronized void closeFile() {
+            if (captionExtractor != null) {
+                captionExtractor.close();
+                captionExtractor = null;
+            }
+
             if (ccInstance != null) {
                 ccInstance.setClosed();
             }
@@ -690,30 +800,41 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         private boolean firstWrite;
         private boolean closed;
 
-        private final ByteBuffer asyncBuffer = ByteBuffer.allocateDirect(RW_BUFFER_SIZE * 2);
-        private final int minWrite = RW_BUFFER_SIZE;
-        private volatile boolean canWrite = false;
-
-        private Future asyncWriter;
-        private FileChannel fileChannel;
+        private final DiskWriteStream diskStream;
         private final String directFilename;
-        private final File recordingFile;
+        private final AtomicLong fileBytes = new AtomicLong(0);
+        private TsIndexWriter indexWriter;
 
         public FFmpegDirectWriter(final String filename) throws IOException {
 
-            fileChannel = FileChannel.open(
-                    Paths.get(filename),
-                    StandardOpenOption.WRITE,
-                    StandardOpenOption.CREATE);
-
             directFilename = filename;
-            recordingFile = new File(directFilename);
+
+            diskStream = DiskWriteService.open(filename, new DiskWriteStream.DiskWriteListener() {
+                @Override
+                public void bytesWritten(int bytes) {
+                    long currentBytes = fileBytes.addAndGet(bytes);
+
+                    synchronized (bytesStreamed) {
+                        if (bytesStreamedOwner != FFmpegDirectWriter.this) {
+                            return;
+                        }
+
+                        bytesStreamed.set(currentBytes);
+                    }
+
+                    completeTuningTrace("first_write");
+
+                    if (currentBytes > initBufferedData) {
+                        synchronized (streamingMonitor) {
+                            streamingMonitor.notifyAll();
+                        }
+                    }
+                }
+            });
 
             autoOffset = 0;
             firstWrite = true;
             closed = false;
-
-            asyncWriter = ThreadPool.submit(new AsyncWriter(), Thread.NORM_PRIORITY, "AsyncWriter", new File(directFilename).getName());
         }
 
         protected long lastWriteAddress = 0;
@@ -721,8 +842,6 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         protected long writeAddress = 0;
         protected ByteBuffer writeBuffer = null;
 
-        private long lastFilelength;
-
         @Override
         public int write(BytePointer data, int length) throws IOException {
             if (closed) {
@@ -734,112 +853,62 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
             }
 
             if (firstWrite) {
-                bytesStreamed = 0;
+                resetBytesStreamed(this);
                 firstWrite = false;
-                asyncBuffer.clear();
+                RecordingSizeRegistry.register(directFilename, fileBytes);
+
+                // The buffer size is known by the first write, so the index is created here.
+                indexWriter = TsIndexWriter.open(directFilename, stvRecordBufferSize, 0);
             }
 
             writeAddress = data.address();
 
             if (writeBuffer == null || writeAddress != lastWriteAddress || lastWriteCapacity < length) {
-                writeBuffer = data.position(0).limit(length).asByteBuffer();;
+                writeBuffer = data.position(0).limit(length).asByteBuffer();
                 lastWriteAddress = writeAddress;
                 lastWriteCapacity = length;
             } else {
                 writeBuffer.limit(length).position(0);
             }
 
+            if (indexWriter != null) {
+                indexWriter.parse(writeBuffer);
+            }
+
             if (stvRecordBufferSize > 0 && stvRecordBufferSize < autoOffset + length) {
                 ByteBuffer slice = writeBuffer.slice();
                 slice.limit((int) (stvRecordBufferSize - autoOffset));
 
-                synchronized (asyncBuffer) {
-                    while(canWrite) {
-                        try {
-                            asyncBuffer.wait(500);
-                        } catch (InterruptedException e) {
-                            logger.error("Interrupted while waiting for the buffer => ",
-                                    directFilename, e);
-                            break;
-                        }
-                    }
+                diskStream.write(slice, autoOffset);
 
-                    asyncBuffer.put(slice);
-                    asyncBuffer.flip();
-                    canWrite = true;
-                    asyncBuffer.notifyAll();
-
-                    while(canWrite) {
-                        try {
-                            asyncBuffer.wait(500);
-                        } catch (InterruptedException e) {
-                            logger.error("Interrupted while waiting for the buffer => ",
-                                    directFilename, e);
-                            break;
-                        }
-                    }
-
-                    data.position((int) (data.position() + (stvRecordBufferSize - autoOffset)));
-                    autoOffset = 0;
-                }
+                writeBuffer.position(writeBuffer.position() + slice.limit());
+                autoOffset = 0;
             }
 
-            synchronized (asyncBuffer) {
-                while(canWrite) {
-                    try {
-                        asyncBuffer.wait(500);
-                    } catch (InterruptedException e) {
-                        logger.error("Interrupted while waiting for the buffer => ",
-                                directFilename, e);
-                        break;
-                    }
-                }
-
-                if (stvRecordBufferSize == 0) {
-                    asyncBuffer.put(writeBuffer);
-
-                    int remains = asyncBuffer.remaining();
-                    if (remains > minWrite) {
-                        return length;
-                    }
-                } else {
-                    asyncBuffer.put(writeBuffer);
-                }
-
-                asyncBuffer.flip();
-                canWrite = true;
-                asyncBuffer.notifyAll();
-            }
+            long writeOffset = autoOffset;
+            autoOffset += writeBuffer.remaining();
+            diskStream.write(writeBuffer, writeOffset);
 
             return length;
         }
 
         @Override
         public void closeFile() {
-            synchronized (asyncBuffer) {
-                while(canWrite) {
-                    try {
-                        asyncBuffer.wait(500);
-                    } catch (InterruptedException e) {
-                        logger.error("Interrupted while waiting for the buffer to return" +
-                                " for filename '{}' => ", directFilename, e);
-                        break;
-                    }
-                }
+            if (closed) {
+                return;
+            }
 
-                closed = true;
-                canWrite = true;
-                asyncBuffer.notifyAll();
+            closed = true;
+            diskStream.close();
+            RecordingSizeRegistry.unregister(directFilename, fileBytes);
 
-                while (fileChannel != null) {
-                    try {
-                        asyncBuffer.wait(500);
-                    } catch (InterruptedException e) {
-                        logger.error("Interrupted while waiting for the buffer to return" +
-                                " for filename '{}' => ", directFilename, e);
-                        break;
-                    }
-                }
+            if (indexWriter != null) {
+                indexWriter.close();
+            }
+
+            if (ccExtractorAvailable && currentCcWriter != null) {
+                currentCcWriter.closeFile();
+                currentCcWriter = switchCcWriter;
             }
         }
 
@@ -847,104 +916,6 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         public Logger getLogger() {
             return logger;
         }
-
-        public class AsyncWriter implements Runnable {
-            private long bytesFlushCounter = 0;
-
-            @Override
-            public void run() {
-                int bytesWritten;
-                int writeBytes;
-                long currentBytes;
-                long currentBytesStreamed;
-
-                while (true) {
-                    synchronized (asyncBuffer) {
-                        while (!canWrite) {
-                            try {
-                                asyncBuffer.wait(500);
-                            } catch (InterruptedException e) {
-                                logger.error("Interrupted while waiting for the buffer => ",
-                                        directFilename, e);
-                                break;
-                            }
-                        }
-
-                        if (closed) {
-                            if (fileChannel != null && fileChannel.isOpen()) {
-                                logger.info("Closing the file '{}'", directFilename);
-
-                                try {
-                                    fileChannel.close();
-                                    fileChannel = null;
-                                } catch (IOException e) {
-                                    logger.error("Unable to close the file '{}' => ",
-                                            directFilename, e);
-                                }
-
-                                if (ccExtractorAvailable && currentCcWriter != null) {
-                                    currentCcWriter.closeFile();
-                                    currentCcWriter = switchCcWriter;
-                                }
-                            }
-
-                            canWrite = false;
-                            asyncBuffer.clear();
-                            return;
-                        }
-
-                        writeBytes = 0;
-
-                        try {
-                            while (asyncBuffer.hasRemaining()) {
-                                bytesWritten = fileChannel.write(asyncBuffer, autoOffset);
-                                autoOffset += bytesWritten;
-                                writeBytes += bytesWritten;
-                            }
-                        } catch (Exception e) {
-                            logger.error("File '{}' write failed => ", directFilename, e);
-
-                            if (fileChannel != null && fileChannel.isOpen()) {
-                                try {
-                                    fileChannel.close();
-                                } catch (IOException e0) {
-                                    logger.debug("Consumer created an exception while" +
-                                            " closing the current file => {}", e0);
-                                }
-                            }
-
-                            try {
-                                fileChannel = FileChannel.open(
-                                        Paths.get(directFilename),
-                                        StandardOpenOption.WRITE,
-                                        StandardOpenOption.CREATE);
-                            } catch (IOException e0) {
-                                logger.error("Unable to re-open file '{}' => ", directFilename, e0);
-                            }
-
-                            asyncBuffer.clear();
-                            canWrite = false;
-                            asyncBuffer.notifyAll();
-                            continue;
-                        }
-
-                        asyncBuffer.clear();
-                        canWrite = false;
-                        asyncBuffer.notifyAll();
-                    }
-
-                    currentBytes = bytesStreamed += writeBytes;
-
-                    bytesFlushCounter += writeBytes;
-
-                    if (currentBytes > initBufferedData) {
-                        synchronized (streamingMonitor) {
-                            streamingMonitor.notifyAll();
-                        }
-                    }
-                }
-            }
-        }
     }
 
     public class FFmpegNullWriter implements FFmpegWriter {
@@ -953,11 +924,11 @@ public class FFmpegTransSageTVConsumerImpl implements SageTVConsumer {
         @Override
         public int write(BytePointer data, int length) throws IOException {
             if (firstWrite) {
-                bytesStreamed = 0;
+                resetBytesStreamed(this);
                 firstWrite = false;
             }
 
-            bytesStreamed += length;
+            bytesStreamed.addAndGet(length);
 
             return length;
         }
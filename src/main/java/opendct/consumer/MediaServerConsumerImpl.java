@@ -23,6 +23,7 @@ import opendct.config.options.IntegerDeviceOption;
 import opendct.consumer.buffers.SeekableCircularBufferNIO;
 import opendct.consumer.upload.NIOSageTVMediaServer;
 import opendct.nanohttpd.pojo.JsonOption;
+import opendct.video.java.TsHealthAnalyzer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -66,13 +67,16 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
     private String currentRecordingQuality = null;
     private int desiredProgram = -1;
     private String tunedChannel = "";
+    private String currentLineup = "";
 
     private volatile boolean switchFile = false;
+    private volatile boolean discardUntilSwitch = false;
     private final Object switchMonitor = new Object();
 
     private NIOSageTVMediaServer mediaServer = new NIOSageTVMediaServer();
     private ByteBuffer streamBuffer = ByteBuffer.allocateDirect(maxTransferSize);
     private SeekableCircularBufferNIO seekableBuffer = new SeekableCircularBufferNIO(bufferSize);
+    private final TsHealthAnalyzer streamHealth = new TsHealthAnalyzer();
 
     private final int uploadIDPort = uploadIdPortOpt.getInteger();
     private SocketAddress uploadIDSocket = null;
@@ -181,6 +185,9 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
                 if (switchFile) {
                     synchronized (switchMonitor) {
                         if (mediaServer.isSwitched()) {
+                            streamHealth.logSummary(currentRecordingFilename);
+                            streamHealth.reset();
+
                             currentRecordingFilename = switchRecordingFilename;
                             currentUploadID = switchUploadID;
 
@@ -234,6 +241,8 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
                 logger.debug("There was a problem while disconnecting from MediaServer.");
             }
 
+            streamHealth.logSummary(currentRecordingFilename);
+
             logger.info("MediaServer thread stopped.");
             running.getAndSet(false);
         }
@@ -241,11 +250,21 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
 
     @Override
     public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (discardUntilSwitch) {
+            return;
+        }
+
+        streamHealth.analyze(bytes, offset, length);
         seekableBuffer.write(bytes, offset, length);
     }
 
     @Override
     public void write(ByteBuffer buffer) throws IOException {
+        if (discardUntilSwitch) {
+            return;
+        }
+
+        streamHealth.analyze(buffer);
         seekableBuffer.write(buffer);
     }
 
@@ -265,6 +284,16 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
         return true;
     }
 
+    @Override
+    public boolean canSwitchChannel() {
+        return true;
+    }
+
+    @Override
+    public void discardUntilSwitch() {
+        discardUntilSwitch = true;
+    }
+
     @Override
     public boolean getIsRunning() {
         return running.get();
@@ -363,6 +392,7 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
             }
 
             this.switchFile = true;
+            discardUntilSwitch = false;
 
             while (switchFile && !seekableBuffer.isClosed()) {
                 try {
@@ -417,6 +447,16 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
         return tunedChannel;
     }
 
+    @Override
+    public void setLineup(String lineup) {
+        currentLineup = lineup;
+    }
+
+    @Override
+    public String getLineup() {
+        return currentLineup;
+    }
+
     @Override
     public boolean isStreaming(long timeout) {
         if (currentInit) {
@@ -435,6 +475,11 @@ public class MediaServerConsumerImpl implements SageTVConsumer {
         return currentInit;
     }
 
+    @Override
+    public TsHealthAnalyzer getStreamHealth() {
+        return streamHealth;
+    }
+
     private final static Map<String, DeviceOption> deviceOptions;
 
     private static BooleanDeviceOption preferPSOpt;
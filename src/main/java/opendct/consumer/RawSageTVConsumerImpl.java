@@ -21,24 +21,29 @@ import opendct.config.options.BooleanDeviceOption;
 import opendct.config.options.DeviceOption;
 import opendct.config.options.DeviceOptionException;
 import opendct.config.options.IntegerDeviceOption;
+import opendct.config.options.StringDeviceOption;
 import opendct.consumer.buffers.SeekableCircularBufferNIO;
+import opendct.consumer.disk.DiskWriteService;
+import opendct.consumer.disk.DiskWriteStream;
 import opendct.consumer.upload.NIOSageTVMediaServer;
 import opendct.nanohttpd.pojo.JsonOption;
+import opendct.sagetv.TuningTrace;
+import opendct.video.java.TsHealthAnalyzer;
+import opendct.video.java.TsIndexWriter;
+import opendct.video.java.TsPacketStripper;
 import opendct.video.java.VideoUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RawSageTVConsumerImpl implements SageTVConsumer {
     private static final Logger logger = LogManager.getLogger(RawSageTVConsumerImpl.class);
@@ -48,13 +53,16 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     private final int maxTransferSize = maxTransferSizeOpt.getInteger();
     private final int bufferSize = bufferSizeOpt.getInteger();
     private final int rawThreadPriority = threadPriorityOpt.getInteger();
+    private final boolean stripNullPackets = stripNullPacketsOpt.getBoolean();
+    private final int stripPids[] = TsPacketStripper.parsePids(stripPidsOpt.getArrayValue());
 
     // volatile long is atomic as long as only one thread ever updates it.
-    private volatile long bytesStreamed = 0;
+    private final AtomicLong bytesStreamed = new AtomicLong(0);
+    private volatile TuningTrace tuningTrace = null;
 
     private boolean consumeToNull = false;
-    private FileOutputStream currentFileOutputStream = null;
-    private FileOutputStream switchFileOutputStream = null;
+    private DiskWriteStream currentDiskStream = null;
+    private DiskWriteStream switchDiskStream = null;
     private String currentRecordingFilename = null;
     private String switchRecordingFilename = null;
     private int currentUploadID = -1;
@@ -62,6 +70,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     private String currentRecordingQuality = null;
     private int desiredProgram = -1;
     private String tunedChannel = "";
+    private String currentLineup = "";
 
     private AtomicBoolean running = new AtomicBoolean(false);
     private long stvRecordBufferSize = 0;
@@ -69,9 +78,18 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
     private int switchAttempts = 100;
     private volatile boolean switchFile = false;
+    private volatile boolean discardUntilSwitch = false;
     private final Object switchMonitor = new Object();
 
     private ByteBuffer streamBuffer = ByteBuffer.allocateDirect(maxTransferSize);
+
+    // Only used when packets are being removed from the stream before it is written. The extra
+    // packet is room for a packet that was split across the last buffer.
+    private TsPacketStripper stripper = null;
+    private ByteBuffer strippedBuffer = null;
+
+    private final TsHealthAnalyzer streamHealth = new TsHealthAnalyzer();
+    private TsIndexWriter indexWriter = null;
     private SeekableCircularBufferNIO seekableBuffer = new SeekableCircularBufferNIO(bufferSize);
 
     private NIOSageTVMediaServer mediaServer = null;
@@ -99,8 +117,9 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         boolean isFailed = false;
         boolean uploadEnabled = false;
         int bytesToStream = 0;
-        FileChannel currentFile = null;
+        DiskWriteStream currentFile = null;
         switchFile = false;
+        discardUntilSwitch = false;
         seekableBuffer.clear();
 
         try {
@@ -132,9 +151,11 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                     if (currentRecordingFilename != null) {
                         logger.info("Attempting to write the file directly...");
                         try {
-                            this.currentFileOutputStream = new FileOutputStream(currentRecordingFilename);
-                            currentFile = currentFileOutputStream.getChannel();
-                        } catch (FileNotFoundException e) {
+                            this.currentDiskStream = openDiskStream(currentRecordingFilename);
+                            currentFile = currentDiskStream;
+                            indexWriter = TsIndexWriter.open(
+                                    currentRecordingFilename, stvRecordBufferSize, desiredProgram);
+                        } catch (IOException e) {
                             logger.error("Unable to create the recording file '{}'.", currentRecordingFilename);
                             currentRecordingFilename = null;
                         }
@@ -143,7 +164,9 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                     uploadEnabled = true;
                 }
             } else if (currentRecordingFilename != null) {
-                currentFile = currentFileOutputStream.getChannel();
+                currentFile = currentDiskStream;
+                indexWriter = TsIndexWriter.open(
+                        currentRecordingFilename, stvRecordBufferSize, desiredProgram);
             } else if (consumeToNull) {
                 logger.debug("Consuming to a null output...");
             } else {
@@ -152,6 +175,8 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                         "Raw consumer does not have a file or UploadID to use.");
             }
 
+            RecordingSizeRegistry.register(currentRecordingFilename, bytesStreamed);
+
             boolean start = true;
             logger.info("Waiting for PES start byte...");
             while (!Thread.currentThread().isInterrupted()) {
@@ -178,6 +203,19 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                     if (startIndex > 0) {
                         streamBuffer.position(startIndex);
                         start = false;
+
+                        if (stripNullPackets || stripPids.length > 0) {
+                            stripper = new TsPacketStripper(
+                                    desiredProgram, stripNullPackets, stripPids);
+                            strippedBuffer = ByteBuffer.allocateDirect(
+                                    maxTransferSize + VideoUtil.MTS_PACKET_LEN);
+                        }
+
+                        TuningTrace trace = tuningTrace;
+                        if (trace != null) {
+                            trace.mark("stream_start");
+                        }
+
                         logger.info("Raw consumer is now streaming...");
                     } else {
                         continue;
@@ -216,6 +254,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                                         lastWriteBuffer.limit(switchIndex - 1);
                                         streamBuffer.position(switchIndex);
 
+                                        lastWriteBuffer = strip(lastWriteBuffer);
                                         lastBytesToStream = lastWriteBuffer.remaining();
 
 
@@ -226,7 +265,12 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                                         }
                                     }
 
-                                    bytesStreamed += lastBytesToStream;
+                                    bytesStreamed.addAndGet(lastBytesToStream);
+
+                                    // The new file starts on a packet boundary.
+                                    if (stripper != null) {
+                                        stripper.discardPartial();
+                                    }
 
                                     mediaServer.endUpload();
                                     mediaServer.reset();
@@ -238,9 +282,16 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                                                         " upload id '{}'.",
                                                 switchRecordingFilename, switchUploadID);
                                     } else {
+                                        streamHealth.logSummary(currentRecordingFilename);
+                                        streamHealth.reset();
+
+                                        RecordingSizeRegistry.unregister(
+                                                currentRecordingFilename, bytesStreamed);
                                         currentRecordingFilename = switchRecordingFilename;
                                         currentUploadID = switchUploadID;
-                                        bytesStreamed = 0;
+                                        bytesStreamed.set(0);
+                                        RecordingSizeRegistry.register(
+                                                currentRecordingFilename, bytesStreamed);
                                         switchFile = false;
 
                                         switchMonitor.notifyAll();
@@ -252,13 +303,14 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                         }
 
                         boolean retry = true;
-                        bytesToStream = streamBuffer.remaining();
+                        ByteBuffer uploadBuffer = strip(streamBuffer);
+                        bytesToStream = uploadBuffer.remaining();
                         while (true) {
                             try {
                                 if (stvRecordBufferSize > 0) {
-                                    mediaServer.uploadAutoBuffered(stvRecordBufferSize, streamBuffer);
+                                    mediaServer.uploadAutoBuffered(stvRecordBufferSize, uploadBuffer);
                                 } else {
-                                    mediaServer.uploadAutoIncrement(streamBuffer);
+                                    mediaServer.uploadAutoIncrement(uploadBuffer);
                                 }
                             } catch (IOException e) {
                                 if (retry && !isFailed) {
@@ -279,7 +331,8 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                             break;
                         }
 
-                        bytesStreamed += bytesToStream;
+                        bytesStreamed.addAndGet(bytesToStream);
+                        completeTuningTrace("first_upload");
                     } else if (!consumeToNull) {
                         if (switchFile) {
                             int switchIndex = VideoUtil.getTsVideoPatStartByte(
@@ -289,45 +342,44 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
                             if (switchIndex > -1) {
                                 synchronized (switchMonitor) {
-                                    int lastBytesToStream = 0;
                                     if (switchIndex > streamBuffer.position()) {
                                         ByteBuffer lastWriteBuffer = streamBuffer.duplicate();
                                         lastWriteBuffer.limit(switchIndex - 1);
                                         streamBuffer.position(switchIndex);
 
-                                        lastBytesToStream = lastWriteBuffer.remaining();
-
-                                        while (lastWriteBuffer.hasRemaining()) {
-                                            int savedSize = currentFile.write(lastWriteBuffer);
-                                            bytesStreamed += savedSize;
-
-                                            if (stvRecordBufferSize > 0 && stvRecordBufferPos >
-                                                    stvRecordBufferSize) {
+                                        writeToDisk(currentFile, strip(lastWriteBuffer));
+                                    }
 
-                                                currentFile.position(0);
-                                            }
-                                            stvRecordBufferPos = currentFile.position();
-                                        }
+                                    // The new file starts on a packet boundary.
+                                    if (stripper != null) {
+                                        stripper.discardPartial();
                                     }
 
-                                    bytesStreamed += lastBytesToStream;
-
-                                    if (switchFileOutputStream != null) {
-                                        if (currentFile != null && currentFile.isOpen()) {
-                                            try {
-                                                currentFile.close();
-                                            } catch (IOException e) {
-                                                logger.error("Raw consumer created an exception" +
-                                                        " while closing the current file => {}", e);
-                                            } finally {
-                                                currentFile = null;
-                                            }
+                                    if (switchDiskStream != null) {
+                                        if (currentFile != null) {
+                                            // This waits for everything queued to be written, so
+                                            // nothing will update bytesStreamed after it's reset.
+                                            currentFile.close();
                                         }
-                                        currentFile = switchFileOutputStream.getChannel();
-                                        currentFileOutputStream = switchFileOutputStream;
+                                        streamHealth.logSummary(currentRecordingFilename);
+                                        streamHealth.reset();
+
+                                        RecordingSizeRegistry.unregister(
+                                                currentRecordingFilename, bytesStreamed);
+                                        currentFile = switchDiskStream;
+                                        currentDiskStream = switchDiskStream;
                                         currentRecordingFilename = switchRecordingFilename;
-                                        switchFileOutputStream = null;
-                                        bytesStreamed = 0;
+                                        switchDiskStream = null;
+                                        stvRecordBufferPos = 0;
+
+                                        if (indexWriter != null) {
+                                            indexWriter.close();
+                                        }
+                                        indexWriter = TsIndexWriter.open(currentRecordingFilename,
+                                                stvRecordBufferSize, desiredProgram);
+                                        bytesStreamed.set(0);
+                                        RecordingSizeRegistry.register(
+                                                currentRecordingFilename, bytesStreamed);
                                     }
                                     switchFile = false;
 
@@ -337,21 +389,12 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                             }
                         }
 
-                        while (currentFile != null && streamBuffer.hasRemaining()) {
-                            int savedSize = currentFile.write(streamBuffer);
-
-                            bytesStreamed += savedSize;
-
-                            if (stvRecordBufferSize > 0 && stvRecordBufferPos >
-                                    stvRecordBufferSize) {
-
-                                currentFile.position(0);
-                            }
-                            stvRecordBufferPos = currentFile.position();
+                        if (currentFile != null) {
+                            writeToDisk(currentFile, strip(streamBuffer));
                         }
                     } else {
                         // Write to null.
-                        bytesStreamed += streamBuffer.limit();
+                        bytesStreamed.addAndGet(streamBuffer.limit());
                     }
                 } catch (IOException e) {
                     logger.error("Raw consumer created an unexpected IO exception => {}", e);
@@ -364,19 +407,40 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         } finally {
             logger.info("Raw consumer thread is now stopping.");
 
-            bytesStreamed = 0;
+            if (stripper != null) {
+                logger.info("Removed {} packets from the stream.", stripper.getPacketsStripped());
+                stripper = null;
+                strippedBuffer = null;
+            }
+
+            RecordingSizeRegistry.unregister(currentRecordingFilename, bytesStreamed);
+            bytesStreamed.set(0);
+
+            TuningTrace trace = tuningTrace;
+            if (trace != null) {
+                tuningTrace = null;
+                trace.complete("stopped", false);
+            }
 
             seekableBuffer.clear();
 
+            streamHealth.logSummary(currentRecordingFilename);
+
             currentRecordingFilename = null;
-            if (currentFile != null && currentFile.isOpen()) {
-                try {
-                    currentFile.close();
-                } catch (IOException e) {
-                    logger.debug("Raw consumer created an exception while closing the current file => {}", e);
-                } finally {
-                    currentFile = null;
-                }
+            if (currentFile != null) {
+                currentFile.close();
+                currentFile = null;
+            }
+            currentDiskStream = null;
+            if (switchDiskStream != null) {
+                switchDiskStream.close();
+                switchDiskStream = null;
+            }
+            stvRecordBufferPos = 0;
+
+            if (indexWriter != null) {
+                indexWriter.close();
+                indexWriter = null;
             }
 
             if (mediaServer != null) {
@@ -399,11 +463,101 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         }
     }
 
+    private DiskWriteStream openDiskStream(String filename) throws IOException {
+        return DiskWriteService.open(filename, true, new DiskWriteStream.DiskWriteListener() {
+            @Override
+            public void bytesWritten(int bytes) {
+                bytesStreamed.addAndGet(bytes);
+                completeTuningTrace("first_write");
+            }
+        });
+    }
+
+    private void completeTuningTrace(String step) {
+        TuningTrace trace = tuningTrace;
+
+        if (trace != null) {
+            tuningTrace = null;
+            trace.complete(step, true);
+        }
+    }
+
+    /**
+     * Remove any packets that are not wanted from the provided data.
+     * <p/>
+     * If packets are not being removed, the provided buffer is returned unchanged. Otherwise the
+     * position of the provided buffer is advanced to the limit and a buffer containing only the
+     * complete packets being kept is returned. The returned buffer is only valid until the next
+     * call to this method.
+     *
+     * @param buffer The data to be filtered.
+     * @return A buffer containing the data to be written.
+     */
+    private ByteBuffer strip(ByteBuffer buffer) {
+        if (stripper == null) {
+            return buffer;
+        }
+
+        strippedBuffer.clear();
+        stripper.strip(buffer, strippedBuffer);
+        buffer.position(buffer.limit());
+        strippedBuffer.flip();
+
+        return strippedBuffer;
+    }
+
+    /**
+     * Queue data to be written to disk, wrapping to the start of the file when a SageTV buffer
+     * size is set. The data is also added to the recording index.
+     *
+     * @param diskStream The stream for the file being written.
+     * @param buffer The data to write. The position will be advanced to the limit.
+     * @throws IOException Thrown if the data could not be queued.
+     */
+    private void writeToDisk(DiskWriteStream diskStream, ByteBuffer buffer) throws IOException {
+        if (indexWriter != null) {
+            indexWriter.parse(buffer);
+        }
+
+        if (stvRecordBufferSize > 0 && stvRecordBufferPos + buffer.remaining() > stvRecordBufferSize) {
+            ByteBuffer slice = buffer.slice();
+            slice.limit((int) (stvRecordBufferSize - stvRecordBufferPos));
+            diskStream.write(slice, stvRecordBufferPos);
+
+            buffer.position(buffer.position() + slice.limit());
+            stvRecordBufferPos = 0;
+        }
+
+        long writeOffset = stvRecordBufferPos;
+        stvRecordBufferPos += buffer.remaining();
+        diskStream.write(buffer, writeOffset);
+    }
+
     public void write(byte[] bytes, int offset, int length) throws IOException {
+        TuningTrace trace = tuningTrace;
+        if (trace != null) {
+            trace.markOnce("first_packet");
+        }
+
+        if (discardUntilSwitch) {
+            return;
+        }
+
+        streamHealth.analyze(bytes, offset, length);
         seekableBuffer.write(bytes, offset, length);
     }
 
     public void write(ByteBuffer buffer) throws IOException {
+        TuningTrace trace = tuningTrace;
+        if (trace != null) {
+            trace.markOnce("first_packet");
+        }
+
+        if (discardUntilSwitch) {
+            return;
+        }
+
+        streamHealth.analyze(buffer);
         seekableBuffer.write(buffer);
     }
 
@@ -421,6 +575,16 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         return true;
     }
 
+    public boolean canSwitchChannel() {
+        // Every PID is passed through, so the new channel only needs to start on a random access
+        // point like any other switch.
+        return true;
+    }
+
+    public void discardUntilSwitch() {
+        discardUntilSwitch = true;
+    }
+
     public boolean getIsRunning() {
         return running.get();
     }
@@ -437,13 +601,24 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     }
 
     public long getBytesStreamed() {
-        return bytesStreamed;
+        return bytesStreamed.get();
     }
 
     public boolean acceptsUploadID() {
         return acceptsUploadID;
     }
 
+    // The capture device gives the consumer the recording on the thread tuning the device.
+    private void attachTuningTrace() {
+        TuningTrace trace = TuningTrace.current();
+
+        if (trace != null) {
+            trace.attach();
+        }
+
+        tuningTrace = trace;
+    }
+
     public boolean acceptsFilename() {
         return true;
     }
@@ -457,6 +632,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
         this.currentRecordingFilename = filename;
         this.currentUploadID = uploadId;
+        attachTuningTrace();
 
         uploadSocket = new InetSocketAddress(inetAddress, uploadIDPort);
 
@@ -468,9 +644,10 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         logger.entry(filename);
 
         try {
-            this.currentFileOutputStream = new FileOutputStream(filename);
+            this.currentDiskStream = openDiskStream(filename);
             this.currentRecordingFilename = filename;
-        } catch (FileNotFoundException e) {
+            attachTuningTrace();
+        } catch (IOException e) {
             logger.error("Unable to create the recording file '{}'.", filename);
             return logger.exit(false);
         }
@@ -487,6 +664,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
             this.switchUploadID = uploadId;
             this.switchRecordingFilename = filename;
             this.switchFile = true;
+            discardUntilSwitch = false;
 
             while (switchFile && this.getIsRunning()) {
                 try {
@@ -507,9 +685,10 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
 
         try {
             synchronized (switchMonitor) {
-                this.switchFileOutputStream = new FileOutputStream(filename);
+                this.switchDiskStream = openDiskStream(filename);
                 this.switchRecordingFilename = filename;
                 this.switchFile = true;
+                discardUntilSwitch = false;
 
                 while (switchFile && this.getIsRunning()) {
                     try {
@@ -519,7 +698,7 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                     }
                 }
             }
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             logger.error("Unable to create the recording file '{}'.", filename);
             return logger.exit(false);
         }
@@ -559,6 +738,14 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         this.tunedChannel = tunedChannel;
     }
 
+    public void setLineup(String lineup) {
+        currentLineup = lineup;
+    }
+
+    public String getLineup() {
+        return currentLineup;
+    }
+
     /**
      * This method always returns immediately for the raw consumer because it just streams.
      *
@@ -585,6 +772,10 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
         return true;
     }
 
+    public TsHealthAnalyzer getStreamHealth() {
+        return streamHealth;
+    }
+
     private final static Map<String, DeviceOption> deviceOptions;
 
     private static BooleanDeviceOption uploadIdEnabledOpt;
@@ -593,6 +784,8 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
     private static IntegerDeviceOption bufferSizeOpt;
     private static IntegerDeviceOption threadPriorityOpt;
     private static IntegerDeviceOption uploadIdPortOpt;
+    private static BooleanDeviceOption stripNullPacketsOpt;
+    private static StringDeviceOption stripPidsOpt;
 
     private static void initDeviceOptions() {
         while (true) {
@@ -663,6 +856,26 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                         1024,
                         65535);
 
+                stripNullPacketsOpt = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.raw.strip_null_packets", false),
+                        false,
+                        "Remove Null Packets",
+                        "consumer.raw.strip_null_packets",
+                        "This removes null packets (PID 0x1FFF) from the stream before it is" +
+                                " written. Null packets only pad the stream to a constant bitrate" +
+                                " and are not needed for playback.");
+
+                stripPidsOpt = new StringDeviceOption(
+                        Config.getStringArray("consumer.raw.strip_pids_csv"),
+                        true,
+                        false,
+                        "Remove PIDs",
+                        "consumer.raw.strip_pids_csv",
+                        "All PIDs in this list will be removed from the stream before it is" +
+                                " written. Values can be decimal or hexadecimal starting with" +
+                                " 0x. The PAT, PMT, PCR and all streams in the program being" +
+                                " recorded are never removed.");
+
             } catch (DeviceOptionException e) {
                 logger.warn("Invalid options. Reverting to defaults => ", e);
 
@@ -672,6 +885,8 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 Config.setInteger("consumer.raw.stream_buffer_size", 2097152);
                 Config.setInteger("consumer.raw.thread_priority", Thread.MAX_PRIORITY - 2);
                 Config.setInteger("consumer.raw.upload_id_port", 7818);
+                Config.setBoolean("consumer.raw.strip_null_packets", false);
+                Config.setStringArray("consumer.raw.strip_pids_csv");
                 continue;
             }
 
@@ -685,7 +900,9 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 maxTransferSizeOpt,
                 bufferSizeOpt,
                 threadPriorityOpt,
-                uploadIdPortOpt
+                uploadIdPortOpt,
+                stripNullPacketsOpt,
+                stripPidsOpt
         );
     }
 
@@ -697,7 +914,9 @@ public class RawSageTVConsumerImpl implements SageTVConsumer {
                 maxTransferSizeOpt,
                 bufferSizeOpt,
                 threadPriorityOpt,
-                uploadIdPortOpt
+                uploadIdPortOpt,
+                stripNullPacketsOpt,
+                stripPidsOpt
         };
     }
 
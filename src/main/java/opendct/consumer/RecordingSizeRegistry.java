@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps the filename of every recording in progress to the counter of bytes its consumer has
+ * written.
+ * <p/>
+ * SageTV asks for the size of every active recording constantly. Consumers register the same
+ * counter they update as they write, so the size can be looked up without any locks or calls
+ * into the capture device.
+ */
+public class RecordingSizeRegistry {
+    private static final ConcurrentHashMap<String, AtomicLong> recordings =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Start reporting the size of a recording from a counter.
+     * <p/>
+     * If another counter is already registered for the filename, it is replaced.
+     *
+     * @param filename The complete filename (including path) of the recording.
+     * @param bytesStreamed The counter the consumer updates as it writes the recording.
+     */
+    public static void register(String filename, AtomicLong bytesStreamed) {
+        if (filename == null) {
+            return;
+        }
+
+        recordings.put(filename, bytesStreamed);
+    }
+
+    /**
+     * Stop reporting the size of a recording from a counter.
+     * <p/>
+     * Nothing is removed if a different counter has since been registered for the filename.
+     *
+     * @param filename The complete filename (including path) of the recording.
+     * @param bytesStreamed The counter that was registered.
+     */
+    public static void unregister(String filename, AtomicLong bytesStreamed) {
+        if (filename == null) {
+            return;
+        }
+
+        recordings.remove(filename, bytesStreamed);
+    }
+
+    /**
+     * Get the number of bytes written to a recording in progress.
+     *
+     * @param filename The complete filename (including path) of the recording.
+     * @return The number of bytes written or -1 if the recording is not in progress.
+     */
+    public static long getSize(String filename) {
+        AtomicLong bytesStreamed = recordings.get(filename);
+
+        return bytesStreamed != null ? bytesStreamed.get() : -1;
+    }
+}
@@ -17,6 +17,7 @@
 package opendct.consumer;
 
 import opendct.config.options.DeviceOptions;
+import opendct.video.java.TsHealthAnalyzer;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -85,6 +86,25 @@ public interface SageTVConsumer extends Runnable, DeviceOptions {
      */
     public boolean canSwitch();
 
+    /**
+     * Can this consumer be switched to a recording of a different channel arriving on the same
+     * stream?
+     * <p/>
+     * This is only possible when the consumer doesn't depend on the streams it detected when it
+     * started, so the new recording picks up the PAT, PMT and PIDs of the new channel on its own.
+     *
+     * @return Returns <i>true</i> if switching to a different channel is supported.
+     */
+    public boolean canSwitchChannel();
+
+    /**
+     * Discard everything written to this consumer until the next switch is requested.
+     * <p/>
+     * This is used when the stream is about to change to a different channel while the consumer
+     * still has the last recording open, so nothing from the new channel ends up in it.
+     */
+    public void discardUntilSwitch();
+
     /**
      * Is the consumer currently running?
      *
@@ -246,6 +266,21 @@ public interface SageTVConsumer extends Runnable, DeviceOptions {
      */
     public String getChannel();
 
+    /**
+     * Sets the lineup of the currently tuned channel in case the consumer would like to do
+     * something with this information.
+     *
+     * @param lineup The name of the lineup.
+     */
+    public void setLineup(String lineup);
+
+    /**
+     * Gets the lineup set for the consumer.
+     *
+     * @return The set lineup.
+     */
+    public String getLineup();
+
     /**
      * Gets if the consumer is currently streaming.
      * <p/>
@@ -257,4 +292,11 @@ public interface SageTVConsumer extends Runnable, DeviceOptions {
      * @return <i>true</i> if the consumer is currently streaming.
      */
     public boolean isStreaming(long timeout);
+
+    /**
+     * Gets the analyzer tracking the health of the transport stream provided to this consumer.
+     *
+     * @return The analyzer or <i>null</i> if a stream has not been provided yet.
+     */
+    public TsHealthAnalyzer getStreamHealth();
 }
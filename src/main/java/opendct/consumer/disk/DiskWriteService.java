@@ -0,0 +1,518 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.disk;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes recordings to disk with one thread per storage device.
+ * <p/>
+ * Every consumer used to write its own file from its own thread. With several recordings on the
+ * same disk, that is several threads competing with small writes for the same device. Here, all
+ * writes for a device go through one thread. Each pass drains everything that is queued for that
+ * device, then writes contiguous buffers for the same file with a single gathering write, so small
+ * writes from different recordings are combined before they reach the disk.
+ * <p/>
+ * The direct buffers used by every stream come from one pool. A closed file returns its buffers,
+ * so the pool only ever grows to what the most files open at the same time have needed.
+ */
+public class DiskWriteService {
+    private static final Logger logger = LogManager.getLogger(DiskWriteService.class);
+
+    public static final int BUFFER_SIZE =
+            Math.max(4096, Config.getInteger("consumer.disk_writer.buffer_size", 262144));
+
+    public static final int STREAM_BUFFERS =
+            Math.max(2, Config.getInteger("consumer.disk_writer.stream_buffers", 8));
+
+    public static final long MAX_DELAY_MS =
+            Math.max(10, Config.getInteger("consumer.disk_writer.max_delay_ms", 250));
+
+    public static final int MAX_BATCH_BYTES =
+            Math.max(BUFFER_SIZE, Config.getInteger("consumer.disk_writer.max_batch_bytes", 4194304));
+
+    public static final int WRITE_ATTEMPTS =
+            Math.max(1, Config.getInteger("consumer.disk_writer.write_attempts", 3));
+
+    private static final ConcurrentLinkedDeque<ByteBuffer> bufferPool = new ConcurrentLinkedDeque<>();
+
+    private static final Map<Object, DiskWriter> diskWriters = new HashMap<>();
+
+    /**
+     * Open a file for writing on the disk writer for its storage device.
+     * <p/>
+     * The file is created if it doesn't already exist. Existing data is not truncated.
+     *
+     * @param filename The full path and name of the file.
+     * @param listener Notified on the disk writer thread as data is written. This can be
+     *                 <i>null</i>.
+     * @return A new stream to write the file.
+     * @throws IOException Thrown if the file cannot be opened.
+     */
+    public static DiskWriteStream open(String filename, DiskWriteStream.DiskWriteListener listener)
+            throws IOException {
+
+        return open(filename, false, listener);
+    }
+
+    /**
+     * Open a file for writing on the disk writer for its storage device.
+     * <p/>
+     * The file is created if it doesn't already exist.
+     *
+     * @param filename The full path and name of the file.
+     * @param truncate If <i>true</i>, any existing data in the file is discarded.
+     * @param listener Notified on the disk writer thread as data is written. This can be
+     *                 <i>null</i>.
+     * @return A new stream to write the file.
+     * @throws IOException Thrown if the file cannot be opened.
+     */
+    public static DiskWriteStream open(String filename, boolean truncate,
+                                       DiskWriteStream.DiskWriteListener listener)
+            throws IOException {
+
+        Path path = Paths.get(filename).toAbsolutePath();
+        DiskWriter disk = getDiskWriter(path);
+
+        DiskWriteStream stream = new DiskWriteStream(
+                disk, path, truncate, listener, BUFFER_SIZE, STREAM_BUFFERS);
+        disk.streams.add(stream);
+
+        return stream;
+    }
+
+    /**
+     * Take a direct buffer from the pool or allocate one if there aren't any available.
+     *
+     * @param bufferSize The capacity of the buffer.
+     * @return A cleared buffer.
+     */
+    static ByteBuffer takeBuffer(int bufferSize) {
+        ByteBuffer buffer;
+
+        while ((buffer = bufferPool.pollFirst()) != null) {
+            if (buffer.capacity() == bufferSize) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Return a direct buffer to the pool.
+     *
+     * @param buffer The buffer. It must not be used again by the caller.
+     */
+    static void returnBuffer(ByteBuffer buffer) {
+        bufferPool.addFirst(buffer);
+    }
+
+    private static DiskWriter getDiskWriter(Path path) {
+        Object key;
+        String name;
+
+        try {
+            // The file might not exist yet, so use the directory it will be created in.
+            Path parent = path.getParent();
+            FileStore store = Files.getFileStore(parent != null ? parent : path);
+            key = store;
+            name = store.name();
+        } catch (IOException e) {
+            logger.debug("Unable to determine the storage device for '{}', using the root => ",
+                    path, e);
+
+            key = path.getRoot();
+            name = String.valueOf(path.getRoot());
+        }
+
+        synchronized (diskWriters) {
+            DiskWriter disk = diskWriters.get(key);
+
+            if (disk == null) {
+                disk = new DiskWriter(name);
+                diskWriters.put(key, disk);
+
+                Thread thread = new Thread(disk);
+                thread.setName("DiskWriter-" + thread.getId() + ":" + name);
+                thread.setPriority(Thread.MAX_PRIORITY - 1);
+                thread.setDaemon(true);
+                thread.start();
+
+                logger.info("Started a disk writer for '{}'.", name);
+            }
+
+            return disk;
+        }
+    }
+
+    /**
+     * Get the current statistics for every storage device that has been written to.
+     *
+     * @return The statistics for each device.
+     */
+    public static DiskStatus[] getStatus() {
+        List<DiskWriter> disks;
+
+        synchronized (diskWriters) {
+            disks = new ArrayList<>(diskWriters.values());
+        }
+
+        DiskStatus returnValue[] = new DiskStatus[disks.size()];
+
+        for (int i = 0; i < returnValue.length; i++) {
+            returnValue[i] = disks.get(i).getStatus();
+        }
+
+        return returnValue;
+    }
+
+    static class Chunk {
+        protected final DiskWriteStream stream;
+        protected final ByteBuffer buffer;
+        protected final long offset;
+
+        protected Chunk(DiskWriteStream stream, ByteBuffer buffer, long offset) {
+            this.stream = stream;
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+    }
+
+    static class DiskWriter implements Runnable {
+        private final String name;
+        private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final List<DiskWriteStream> streams = new CopyOnWriteArrayList<>();
+
+        // Only updated by the disk writer thread.
+        private volatile long bytesWritten;
+        private volatile long writeCalls;
+        private volatile long chunksWritten;
+        private volatile long batches;
+        private volatile long writeErrors;
+        private volatile long totalLatencyNs;
+        private volatile long maxLatencyNs;
+
+        private volatile long stalls;
+
+        // Used to calculate the current throughput.
+        private long lastRateTime = System.currentTimeMillis();
+        private long lastRateBytes;
+        private double lastRate;
+
+        private DiskWriter(String name) {
+            this.name = name;
+        }
+
+        protected void submit(Chunk chunk) {
+            queue.add(chunk);
+        }
+
+        protected void submitClose(DiskWriteStream stream) {
+            // A chunk without a buffer closes the file once everything before it is written.
+            queue.add(new Chunk(stream, null, 0));
+        }
+
+        protected void stalled() {
+            synchronized (this) {
+                stalls += 1;
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Chunk> batch = new ArrayList<>();
+            List<ByteBuffer> run = new ArrayList<>();
+
+            while (true) {
+                try {
+                    Chunk chunk = queue.poll(MAX_DELAY_MS, TimeUnit.MILLISECONDS);
+
+                    if (chunk == null) {
+                        long now = System.currentTimeMillis();
+
+                        for (DiskWriteStream stream : streams) {
+                            stream.flushIfStale(now);
+                        }
+
+                        continue;
+                    }
+
+                    batch.add(chunk);
+                    queue.drainTo(batch);
+                    batches += 1;
+
+                    int index = 0;
+                    while (index < batch.size()) {
+                        index = writeRun(batch, index, run);
+                    }
+                } catch (InterruptedException e) {
+                    logger.debug("Disk writer for '{}' was interrupted.", name);
+                } catch (Throwable e) {
+                    logger.error("Disk writer for '{}' created an unexpected exception => ", name, e);
+                } finally {
+                    batch.clear();
+                    run.clear();
+                }
+            }
+        }
+
+        /**
+         * Write the chunk at <b>index</b> and every following chunk in the batch that belongs to
+         * the same file and continues at the offset where the last chunk ended.
+         *
+         * @return The index of the first chunk that was not written.
+         */
+        private int writeRun(List<Chunk> batch, int index, List<ByteBuffer> run) {
+            Chunk first = batch.get(index);
+            DiskWriteStream stream = first.stream;
+
+            if (first.buffer == null) {
+                closeStream(stream);
+                return index + 1;
+            }
+
+            long nextOffset = first.offset + first.buffer.remaining();
+            int runBytes = first.buffer.remaining();
+            int end = index + 1;
+            run.add(first.buffer);
+
+            while (end < batch.size() && runBytes < MAX_BATCH_BYTES) {
+                Chunk next = batch.get(end);
+
+                if (next.stream != stream || next.buffer == null || next.offset != nextOffset) {
+                    break;
+                }
+
+                run.add(next.buffer);
+                nextOffset += next.buffer.remaining();
+                runBytes += next.buffer.remaining();
+                end += 1;
+            }
+
+            ByteBuffer buffers[] = run.toArray(new ByteBuffer[run.size()]);
+            int lengths[] = new int[buffers.length];
+            for (int i = 0; i < buffers.length; i++) {
+                lengths[i] = buffers[i].remaining();
+            }
+            run.clear();
+
+            long startTime = System.nanoTime();
+            boolean failed = stream.isFailed();
+            int attempt = 0;
+
+            // Once a stream has failed, the rest of its data is discarded since the file already
+            // has a hole in it.
+            while (!failed) {
+                try {
+                    FileChannel fileChannel = stream.fileChannel;
+
+                    if (fileChannel == null) {
+                        throw new IOException("The file is not open.");
+                    }
+
+                    fileChannel.position(first.offset);
+
+                    long written = 0;
+                    while (written < runBytes) {
+                        written += fileChannel.write(buffers);
+                        writeCalls += 1;
+                    }
+
+                    break;
+                } catch (Exception e) {
+                    writeErrors += 1;
+
+                    if (++attempt >= WRITE_ATTEMPTS) {
+                        failed = true;
+                        logger.error("File '{}' write failed after {} attempts. The recording" +
+                                " is missing data. => ", stream.getFilename(), attempt, e);
+                        stream.writeFailed(e instanceof IOException ?
+                                (IOException) e : new IOException(e));
+                        break;
+                    }
+
+                    logger.warn("File '{}' write failed. Re-opening the file and trying" +
+                            " again. => ", stream.getFilename(), e);
+                    reopenStream(stream);
+
+                    for (ByteBuffer buffer : buffers) {
+                        buffer.rewind();
+                    }
+                }
+            }
+
+            long latency = System.nanoTime() - startTime;
+            totalLatencyNs += latency;
+            if (latency > maxLatencyNs) {
+                maxLatencyNs = latency;
+            }
+
+            for (int i = 0; i < buffers.length; i++) {
+                if (!failed) {
+                    bytesWritten += lengths[i];
+                    chunksWritten += 1;
+                }
+
+                stream.returnBuffer(buffers[i], failed ? 0 : lengths[i]);
+            }
+
+            return end;
+        }
+
+        private void reopenStream(DiskWriteStream stream) {
+            if (stream.fileChannel != null && stream.fileChannel.isOpen()) {
+                try {
+                    stream.fileChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Disk writer created an exception while closing the current" +
+                            " file => {}", e);
+                }
+            }
+
+            try {
+                stream.fileChannel = FileChannel.open(
+                        stream.getPath(),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE);
+            } catch (IOException e) {
+                stream.fileChannel = null;
+                logger.error("Unable to re-open file '{}' => ", stream.getFilename(), e);
+            }
+        }
+
+        private void closeStream(DiskWriteStream stream) {
+            streams.remove(stream);
+
+            if (stream.fileChannel != null && stream.fileChannel.isOpen()) {
+                logger.info("Closing the file '{}'", stream.getFilename());
+
+                try {
+                    stream.fileChannel.close();
+                } catch (IOException e) {
+                    logger.error("Unable to close the file '{}' => ", stream.getFilename(), e);
+                }
+            }
+
+            stream.fileChannel = null;
+            stream.fileClosed();
+        }
+
+        protected DiskStatus getStatus() {
+            long currentBytes = bytesWritten;
+            long currentCalls = writeCalls;
+            double rate;
+
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                long elapsed = now - lastRateTime;
+
+                // Don't let frequent polling turn the throughput into noise.
+                if (elapsed >= 1000) {
+                    lastRate = (double) (currentBytes - lastRateBytes) * 1000d / (double) elapsed;
+                    lastRateTime = now;
+                    lastRateBytes = currentBytes;
+                }
+
+                rate = lastRate;
+            }
+
+            long queuedBytes = 0;
+            int backpressured = 0;
+            for (DiskWriteStream stream : streams) {
+                queuedBytes += stream.getQueuedBytes();
+                if (stream.isBackpressured()) {
+                    backpressured += 1;
+                }
+            }
+
+            return new DiskStatus(
+                    name,
+                    streams.size(),
+                    currentBytes,
+                    (long) rate,
+                    currentCalls,
+                    chunksWritten,
+                    batches,
+                    currentCalls == 0 ? 0 : totalLatencyNs / currentCalls / 1000,
+                    maxLatencyNs / 1000,
+                    queue.size(),
+                    queuedBytes,
+                    backpressured,
+                    stalls,
+                    writeErrors);
+        }
+    }
+
+    public static class DiskStatus {
+        public final String NAME;
+        public final int STREAMS;
+        public final long BYTES_WRITTEN;
+        public final long BYTES_PER_SECOND;
+        public final long WRITE_CALLS;
+        public final long CHUNKS_WRITTEN;
+        public final long BATCHES;
+        public final long AVERAGE_LATENCY_US;
+        public final long MAX_LATENCY_US;
+        public final int QUEUED_CHUNKS;
+        public final long QUEUED_BYTES;
+        public final int BACKPRESSURED_STREAMS;
+        public final long STALLS;
+        public final long WRITE_ERRORS;
+
+        public DiskStatus(String name, int streams, long bytesWritten, long bytesPerSecond,
+                          long writeCalls, long chunksWritten, long batches, long averageLatencyUs,
+                          long maxLatencyUs, int queuedChunks, long queuedBytes,
+                          int backpressuredStreams, long stalls, long writeErrors) {
+
+            NAME = name;
+            STREAMS = streams;
+            BYTES_WRITTEN = bytesWritten;
+            BYTES_PER_SECOND = bytesPerSecond;
+            WRITE_CALLS = writeCalls;
+            CHUNKS_WRITTEN = chunksWritten;
+            BATCHES = batches;
+            AVERAGE_LATENCY_US = averageLatencyUs;
+            MAX_LATENCY_US = maxLatencyUs;
+            QUEUED_CHUNKS = queuedChunks;
+            QUEUED_BYTES = queuedBytes;
+            BACKPRESSURED_STREAMS = backpressuredStreams;
+            STALLS = stalls;
+            WRITE_ERRORS = writeErrors;
+        }
+    }
+}
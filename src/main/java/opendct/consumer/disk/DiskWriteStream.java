@@ -0,0 +1,383 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.consumer.disk;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * A single file being written by a disk writer thread.
+ * <p/>
+ * Data is copied into a small set of direct buffers taken from a pool shared by every stream and
+ * given back when the file is closed, so opening a new file doesn't allocate native memory that
+ * can only be freed by garbage collection. Full buffers are queued on the disk writer for the
+ * storage device the file is on. When every buffer
+ * is queued, <b>write()</b> blocks until the disk catches up. This is the backpressure that keeps
+ * one slow disk from growing the heap. It will be seen by the producer as the consumer not
+ * keeping up with the circular buffer.
+ * <p/>
+ * If the disk writer can't write a buffer even after re-opening the file, the stream fails and
+ * every following <b>write()</b> throws an exception instead of leaving a hole in the file.
+ * <p/>
+ * Only one thread is expected to call <b>write()</b>, <b>flush()</b> and <b>close()</b>.
+ */
+public class DiskWriteStream {
+    private static final Logger logger = LogManager.getLogger(DiskWriteStream.class);
+
+    private final DiskWriteService.DiskWriter disk;
+    private final Path path;
+    private final String filename;
+    private final DiskWriteListener listener;
+    private final int bufferSize;
+    private final int buffers;
+
+    // The number of buffers taken from the pool. Guarded by this.
+    private int allocatedBuffers;
+
+    // Buffers not currently queued on the disk writer. Guarded by this.
+    private final ArrayDeque<ByteBuffer> freeBuffers;
+
+    // The buffer currently being filled. Guarded by this.
+    private ByteBuffer fillBuffer;
+    private long fillOffset;
+    private long fillStartTime;
+
+    // Only accessed by the disk writer thread after the stream is opened.
+    FileChannel fileChannel;
+
+    private volatile long queuedBytes;
+    private volatile long writtenBytes;
+    private volatile long stalls;
+    private volatile long stallTimeMs;
+    private volatile boolean closed;
+    private volatile boolean fileClosed;
+    private volatile IOException failure;
+
+    DiskWriteStream(DiskWriteService.DiskWriter disk, Path path, boolean truncate,
+                    DiskWriteListener listener, int bufferSize, int buffers) throws IOException {
+
+        this.disk = disk;
+        this.path = path;
+        this.filename = path.toString();
+        this.listener = listener;
+        this.bufferSize = bufferSize;
+        this.buffers = buffers;
+
+        if (truncate) {
+            fileChannel = FileChannel.open(path, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            fileChannel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+
+        freeBuffers = new ArrayDeque<>(buffers);
+    }
+
+    /**
+     * Queue data to be written at a specific offset in the file.
+     * <p/>
+     * Writes that continue from where the last write ended are combined into the same buffer.
+     * This method only blocks when every buffer for this stream is waiting on the disk.
+     *
+     * @param data The data to write. The position will be advanced to the limit.
+     * @param offset The offset in the file to write this data.
+     * @throws IOException Thrown if the stream is closed, the disk writer was unable to write
+     *                     earlier data or the thread is interrupted while waiting on the disk.
+     */
+    public void write(ByteBuffer data, long offset) throws IOException {
+        if (closed) {
+            throw new IOException("The file '" + filename + "' is closed.");
+        }
+
+        checkFailure();
+
+        while (data.hasRemaining()) {
+            synchronized (this) {
+                if (fillBuffer != null &&
+                        (fillOffset + fillBuffer.position() != offset || !fillBuffer.hasRemaining())) {
+
+                    submitFillBuffer();
+                }
+
+                if (fillBuffer == null) {
+                    fillBuffer = takeFreeBuffer();
+                    fillOffset = offset;
+                    fillStartTime = System.currentTimeMillis();
+                }
+
+                int copy = Math.min(fillBuffer.remaining(), data.remaining());
+                ByteBuffer slice = data.slice();
+                slice.limit(copy);
+                fillBuffer.put(slice);
+                data.position(data.position() + copy);
+                offset += copy;
+
+                if (!fillBuffer.hasRemaining()) {
+                    submitFillBuffer();
+                }
+            }
+        }
+
+        if (System.currentTimeMillis() - fillStartTime >= DiskWriteService.MAX_DELAY_MS) {
+            flush();
+        }
+    }
+
+    /**
+     * Queue any partially filled buffer to be written.
+     * <p/>
+     * This does not wait for the data to be written.
+     */
+    public synchronized void flush() {
+        if (fillBuffer != null) {
+            submitFillBuffer();
+        }
+    }
+
+    /**
+     * Write everything that is queued, then close the file.
+     * <p/>
+     * This blocks until the file is closed by the disk writer.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        flush();
+        closed = true;
+        disk.submitClose(this);
+
+        synchronized (this) {
+            while (!fileClosed) {
+                try {
+                    wait(500);
+                } catch (InterruptedException e) {
+                    logger.error("Interrupted while waiting for the file '{}' to close.", filename);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Called by the disk writer thread when a stalled producer hasn't filled a buffer in time.
+    synchronized void flushIfStale(long now) {
+        if (fillBuffer != null && fillBuffer.position() > 0 &&
+                now - fillStartTime >= DiskWriteService.MAX_DELAY_MS) {
+
+            submitFillBuffer();
+        }
+    }
+
+    private void submitFillBuffer() {
+        ByteBuffer buffer = fillBuffer;
+        fillBuffer = null;
+
+        if (buffer.position() == 0) {
+            freeBuffers.addLast(buffer);
+            return;
+        }
+
+        buffer.flip();
+        queuedBytes += buffer.remaining();
+        disk.submit(new DiskWriteService.Chunk(this, buffer, fillOffset));
+    }
+
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        ByteBuffer buffer = freeBuffers.pollFirst();
+
+        if (buffer != null) {
+            return buffer;
+        }
+
+        if (allocatedBuffers < buffers) {
+            allocatedBuffers += 1;
+            return DiskWriteService.takeBuffer(bufferSize);
+        }
+
+        long startTime = System.currentTimeMillis();
+        disk.stalled();
+
+        while ((buffer = freeBuffers.pollFirst()) == null) {
+            if (fileClosed) {
+                throw new IOException("The file '" + filename + "' was closed while waiting to write.");
+            }
+
+            checkFailure();
+
+            try {
+                wait(500);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for the disk to write '" +
+                        filename + "'.");
+            }
+        }
+
+        long stallTime = System.currentTimeMillis() - startTime;
+        stalls += 1;
+        stallTimeMs += stallTime;
+
+        if (stallTime > 1000) {
+            logger.warn("Waited {}ms for the disk to write '{}'.", stallTime, filename);
+        }
+
+        return buffer;
+    }
+
+    // Called by the disk writer thread after a chunk has been written or discarded.
+    void returnBuffer(ByteBuffer buffer, int bytesWritten) {
+        int length = buffer.limit();
+        buffer.clear();
+
+        synchronized (this) {
+            queuedBytes -= length;
+            writtenBytes += bytesWritten;
+            freeBuffers.addLast(buffer);
+            notifyAll();
+        }
+
+        if (listener != null && bytesWritten > 0) {
+            listener.bytesWritten(bytesWritten);
+        }
+    }
+
+    // Called by the disk writer thread after the file is closed. Everything queued has been
+    // written or discarded by now, so every buffer can go back to the pool.
+    void fileClosed() {
+        synchronized (this) {
+            fileClosed = true;
+
+            if (fillBuffer != null) {
+                freeBuffers.addLast(fillBuffer);
+                fillBuffer = null;
+            }
+
+            ByteBuffer buffer;
+            while ((buffer = freeBuffers.pollFirst()) != null) {
+                DiskWriteService.returnBuffer(buffer);
+            }
+
+            notifyAll();
+        }
+    }
+
+    // Called by the disk writer thread when data could not be written.
+    void writeFailed(IOException e) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+
+            notifyAll();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+
+        if (e != null) {
+            throw new IOException("The file '" + filename + "' is missing data because it could" +
+                    " not be written.", e);
+        }
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Is every buffer for this stream currently waiting on the disk?
+     *
+     * @return <i>true</i> if the next full buffer will block.
+     */
+    public synchronized boolean isBackpressured() {
+        return freeBuffers.isEmpty() && allocatedBuffers >= buffers;
+    }
+
+    /**
+     * The number of bytes queued, but not yet written to disk.
+     *
+     * @return The number of bytes.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * The number of bytes written to disk by this stream.
+     *
+     * @return The number of bytes.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * The number of times the producer had to wait on the disk.
+     *
+     * @return The number of stalls.
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * The total time in milliseconds the producer had to wait on the disk.
+     *
+     * @return The total stall time.
+     */
+    public long getStallTimeMs() {
+        return stallTimeMs;
+    }
+
+    /**
+     * Receives updates from the disk writer thread as data is committed to the file.
+     */
+    public interface DiskWriteListener {
+        /**
+         * Bytes have been written to the file.
+         * <p/>
+         * This is called on the disk writer thread, so it must not block.
+         *
+         * @param bytes The number of bytes written.
+         */
+        void bytesWritten(int bytes);
+    }
+}
@@ -73,5 +73,20 @@ public class NanoServlet extends RouterNanoHTTPD {
         // GET: Get the properties for a discoverer or multiple discoverers
         // POST: Set the properties for a discoverer or multiple discoverers
         addRoute("/discovery/:discoverer", DiscovererJsonServlet.GetPost.class);
+
+        // GET: Get the transcode scheduler capacity, active jobs and recent decisions
+        addRoute("/transcode", TranscodeJsonServlet.List.class);
+
+        // GET: Get the throughput, latency and queue depth for each disk being written to
+        addRoute("/disks", DiskWriterJsonServlet.List.class);
+
+        // GET: Get the continuity errors, PCR jitter and bitrates for each capture device stream
+        addRoute("/health", StreamHealthJsonServlet.List.class);
+
+        // GET: Get the response time percentiles for each kind of request SageTV sends
+        addRoute("/commands", SageTVCommandsJsonServlet.List.class);
+
+        // GET: Get the recent tuning timelines and step time percentiles for each device type
+        addRoute("/tuning", TuningTraceJsonServlet.List.class);
     }
 }
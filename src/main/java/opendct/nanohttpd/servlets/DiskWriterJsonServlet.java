@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.consumer.disk.DiskWriteService;
+
+public class DiskWriterJsonServlet {
+    private static final GsonBuilder gsonBuilder = new GsonBuilder();
+    private static final Gson gson;
+
+    static {
+        gsonBuilder.setPrettyPrinting();
+        gson = gsonBuilder.create();
+    }
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            JsonArray disks = new JsonArray();
+
+            for (DiskWriteService.DiskStatus status : DiskWriteService.getStatus()) {
+                JsonObject diskObject = new JsonObject();
+                diskObject.addProperty("name", status.NAME);
+                diskObject.addProperty("streams", status.STREAMS);
+                diskObject.addProperty("bytesWritten", status.BYTES_WRITTEN);
+                diskObject.addProperty("bytesPerSecond", status.BYTES_PER_SECOND);
+                diskObject.addProperty("writeCalls", status.WRITE_CALLS);
+                diskObject.addProperty("chunksWritten", status.CHUNKS_WRITTEN);
+                diskObject.addProperty("batches", status.BATCHES);
+                diskObject.addProperty("averageLatencyUs", status.AVERAGE_LATENCY_US);
+                diskObject.addProperty("maxLatencyUs", status.MAX_LATENCY_US);
+                diskObject.addProperty("queuedChunks", status.QUEUED_CHUNKS);
+                diskObject.addProperty("queuedBytes", status.QUEUED_BYTES);
+                diskObject.addProperty("backpressuredStreams", status.BACKPRESSURED_STREAMS);
+                diskObject.addProperty("stalls", status.STALLS);
+                diskObject.addProperty("writeErrors", status.WRITE_ERRORS);
+                disks.add(diskObject);
+            }
+
+            return gson.toJson(disks);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.sagetv.SageTVCommandStats;
+import opendct.util.LatencyHistogram;
+
+import java.util.Map;
+
+public class SageTVCommandsJsonServlet {
+    private static final GsonBuilder gsonBuilder = new GsonBuilder();
+    private static final Gson gson;
+
+    static {
+        gsonBuilder.setPrettyPrinting();
+        gson = gsonBuilder.create();
+    }
+
+    /**
+     * Adds the counts and percentiles of a latency histogram to a JSON object.
+     *
+     * @param object The object to add the properties to.
+     * @param snapshot The histogram values to add.
+     */
+    public static void addLatencyProperties(JsonObject object, LatencyHistogram.Snapshot snapshot) {
+        object.addProperty("count", snapshot.COUNT);
+        object.addProperty("averageUs", snapshot.AVERAGE_US);
+        object.addProperty("maxUs", snapshot.MAX_US);
+        object.addProperty("p50Us", snapshot.P50_US);
+        object.addProperty("p90Us", snapshot.P90_US);
+        object.addProperty("p99Us", snapshot.P99_US);
+
+        // Only the buckets with something in them are included. The last bucket has no limit.
+        JsonArray buckets = new JsonArray();
+        for (int i = 0; i < snapshot.BUCKETS.length; i++) {
+            if (snapshot.BUCKETS[i] == 0) {
+                continue;
+            }
+
+            JsonObject bucketObject = new JsonObject();
+            long limit = LatencyHistogram.getBucketLimitUs(i);
+            if (limit != Long.MAX_VALUE) {
+                bucketObject.addProperty("maxUs", limit);
+            }
+            bucketObject.addProperty("count", snapshot.BUCKETS[i]);
+            buckets.add(bucketObject);
+        }
+        object.add("histogram", buckets);
+    }
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            JsonArray commands = new JsonArray();
+
+            for (Map.Entry<String, LatencyHistogram> entry :
+                    SageTVCommandStats.getHistograms().entrySet()) {
+
+                LatencyHistogram.Snapshot snapshot = entry.getValue().getSnapshot();
+
+                if (snapshot.COUNT == 0) {
+                    continue;
+                }
+
+                JsonObject commandObject = new JsonObject();
+                commandObject.addProperty("command", entry.getKey());
+                addLatencyProperties(commandObject, snapshot);
+                commands.add(commandObject);
+            }
+
+            return gson.toJson(commands);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.capture.BasicCaptureDevice;
+import opendct.capture.CaptureDevice;
+import opendct.consumer.SageTVConsumer;
+import opendct.sagetv.SageTVManager;
+import opendct.video.java.TsHealthAnalyzer;
+
+public class StreamHealthJsonServlet {
+    private static final GsonBuilder gsonBuilder = new GsonBuilder();
+    private static final Gson gson;
+
+    static {
+        gsonBuilder.setPrettyPrinting();
+        gson = gsonBuilder.create();
+    }
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            JsonArray devices = new JsonArray();
+
+            for (CaptureDevice captureDevice : SageTVManager.getAllSageTVCaptureDevices()) {
+                if (!(captureDevice instanceof BasicCaptureDevice)) {
+                    continue;
+                }
+
+                SageTVConsumer consumer = ((BasicCaptureDevice) captureDevice).getConsumer();
+                TsHealthAnalyzer analyzer = consumer != null ? consumer.getStreamHealth() : null;
+
+                if (analyzer == null) {
+                    continue;
+                }
+
+                TsHealthAnalyzer.Status status = analyzer.getStatus();
+
+                JsonObject deviceObject = new JsonObject();
+                deviceObject.addProperty("id", captureDevice.getEncoderUniqueHash());
+                deviceObject.addProperty("name", captureDevice.getEncoderName());
+                deviceObject.addProperty("locked", captureDevice.isInternalLocked());
+                deviceObject.addProperty("startTime", status.START_TIME);
+                deviceObject.addProperty("packets", status.PACKETS);
+                deviceObject.addProperty("continuityErrors", status.CC_ERRORS);
+                deviceObject.addProperty("transportErrors", status.TEI_ERRORS);
+                deviceObject.addProperty("syncLosses", status.SYNC_LOSSES);
+                deviceObject.addProperty("bitrate", status.BITRATE);
+                deviceObject.addProperty("pcrPid", status.PCR_PID);
+                deviceObject.addProperty("pcrIntervalUs", status.PCR_INTERVAL_US);
+                deviceObject.addProperty("pcrMaxIntervalUs", status.PCR_MAX_INTERVAL_US);
+                deviceObject.addProperty("pcrJitterUs", status.PCR_JITTER_US);
+                deviceObject.addProperty("pcrMaxJitterUs", status.PCR_MAX_JITTER_US);
+
+                JsonArray pids = new JsonArray();
+                for (TsHealthAnalyzer.PidStatus pidStatus : status.PIDS) {
+                    JsonObject pidObject = new JsonObject();
+                    pidObject.addProperty("pid", pidStatus.PID);
+                    pidObject.addProperty("packets", pidStatus.PACKETS);
+                    pidObject.addProperty("continuityErrors", pidStatus.CC_ERRORS);
+                    pidObject.addProperty("transportErrors", pidStatus.TEI_ERRORS);
+                    pidObject.addProperty("bitrate", pidStatus.BITRATE);
+                    pids.add(pidObject);
+                }
+                deviceObject.add("pids", pids);
+
+                devices.add(deviceObject);
+            }
+
+            return gson.toJson(devices);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.video.ffmpeg.FFmpegTranscodeScheduler;
+
+import java.util.Map;
+
+public class TranscodeJsonServlet {
+    private static final GsonBuilder gsonBuilder = new GsonBuilder();
+    private static final Gson gson;
+
+    static {
+        gsonBuilder.setPrettyPrinting();
+        gson = gsonBuilder.create();
+    }
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            FFmpegTranscodeScheduler.Status status = FFmpegTranscodeScheduler.getStatus();
+            JsonObject newObject = new JsonObject();
+
+            newObject.addProperty("cores", status.CORES);
+            newObject.addProperty("headroom", status.HEADROOM);
+            newObject.addProperty("threadTarget", status.THREAD_TARGET);
+            newObject.addProperty("externalLoad", status.EXTERNAL_LOAD);
+            newObject.addProperty("capacity", status.CAPACITY);
+            newObject.addProperty("committed", status.COMMITTED);
+
+            JsonArray jobs = new JsonArray();
+            for (FFmpegTranscodeScheduler.JobStatus job : status.JOBS) {
+                JsonObject jobObject = new JsonObject();
+                jobObject.addProperty("name", job.NAME);
+                jobObject.addProperty("costKey", job.COST_KEY);
+                jobObject.addProperty("priority", job.PRIORITY);
+                jobObject.addProperty("cost", job.COST);
+                jobObject.addProperty("decision", job.DECISION);
+                jobObject.addProperty("demoted", job.DEMOTED);
+                jobObject.addProperty("runningMs", job.RUNNING_MS);
+                jobObject.addProperty("threads", job.THREADS);
+                jobObject.addProperty("threadType", job.THREAD_TYPE);
+                jobs.add(jobObject);
+            }
+            newObject.add("jobs", jobs);
+
+            JsonArray decisions = new JsonArray();
+            for (FFmpegTranscodeScheduler.DecisionRecord decision : status.DECISIONS) {
+                JsonObject decisionObject = new JsonObject();
+                decisionObject.addProperty("time", decision.TIME);
+                decisionObject.addProperty("name", decision.NAME);
+                decisionObject.addProperty("costKey", decision.COST_KEY);
+                decisionObject.addProperty("priority", decision.PRIORITY);
+                decisionObject.addProperty("cost", decision.COST);
+                decisionObject.addProperty("decision", decision.DECISION);
+                decisionObject.addProperty("reason", decision.REASON);
+                decisions.add(decisionObject);
+            }
+            newObject.add("decisions", decisions);
+
+            JsonObject costs = new JsonObject();
+            for (Map.Entry<String, Integer> cost : status.MEASURED_COSTS.entrySet()) {
+                costs.addProperty(cost.getKey(), cost.getValue());
+            }
+            newObject.add("measuredCosts", costs);
+
+            return gson.toJson(newObject);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
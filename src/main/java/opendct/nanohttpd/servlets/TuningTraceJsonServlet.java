@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.nanohttpd.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.router.RouterNanoHTTPD;
+import opendct.sagetv.TuningTrace;
+import opendct.util.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TuningTraceJsonServlet {
+    private static final GsonBuilder gsonBuilder = new GsonBuilder();
+    private static final Gson gson;
+
+    static {
+        gsonBuilder.setPrettyPrinting();
+        gson = gsonBuilder.create();
+    }
+
+    public static class List extends RouterNanoHTTPD.DefaultHandler {
+        @Override
+        public String getText() {
+            JsonObject returnObject = new JsonObject();
+
+            JsonArray traces = new JsonArray();
+            for (TuningTrace trace : TuningTrace.getHistory()) {
+                JsonObject traceObject = new JsonObject();
+                traceObject.addProperty("startTime", trace.getStartTime());
+                traceObject.addProperty("channel", trace.getChannel());
+                traceObject.addProperty("filename", trace.getFilename());
+                traceObject.addProperty("encoder", trace.getEncoderName());
+                traceObject.addProperty("deviceType", trace.getDeviceType());
+                traceObject.addProperty("success", trace.isSuccess());
+                traceObject.addProperty("totalMs", trace.getTotalNanos() / 1000000);
+
+                JsonArray steps = new JsonArray();
+                for (TuningTrace.Step step : trace.getSteps()) {
+                    JsonObject stepObject = new JsonObject();
+                    stepObject.addProperty("name", step.NAME);
+                    stepObject.addProperty("elapsedMs", step.ELAPSED_NS / 1000000);
+                    stepObject.addProperty("durationMs", step.DURATION_NS / 1000000);
+                    steps.add(stepObject);
+                }
+                traceObject.add("steps", steps);
+
+                traces.add(traceObject);
+            }
+            returnObject.add("recent", traces);
+
+            JsonArray devices = new JsonArray();
+            for (Map.Entry<String, Map<String, LatencyHistogram>> deviceEntry :
+                    TuningTrace.getStepTimes().entrySet()) {
+
+                Map<String, LatencyHistogram> deviceSteps;
+                synchronized (deviceEntry.getValue()) {
+                    deviceSteps = new LinkedHashMap<>(deviceEntry.getValue());
+                }
+
+                JsonArray steps = new JsonArray();
+                for (Map.Entry<String, LatencyHistogram> stepEntry : deviceSteps.entrySet()) {
+                    JsonObject stepObject = new JsonObject();
+                    stepObject.addProperty("name", stepEntry.getKey());
+                    SageTVCommandsJsonServlet.addLatencyProperties(
+                            stepObject, stepEntry.getValue().getSnapshot());
+                    steps.add(stepObject);
+                }
+
+                JsonObject deviceObject = new JsonObject();
+                deviceObject.addProperty("deviceType", deviceEntry.getKey());
+                deviceObject.add("steps", steps);
+                devices.add(deviceObject);
+            }
+            returnObject.add("deviceTypes", devices);
+
+            return gson.toJson(returnObject);
+        }
+
+        @Override
+        public String getMimeType() {
+            return "application/json";
+        }
+
+        @Override
+        public NanoHTTPD.Response.IStatus getStatus() {
+            return NanoHTTPD.Response.Status.OK;
+        }
+    }
+}
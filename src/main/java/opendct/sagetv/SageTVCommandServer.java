@@ -0,0 +1,501 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts and reads SageTV connections on every listening port from one thread.
+ * <p/>
+ * Requests that can always be answered quickly are answered on the selector thread. Requests that
+ * can tune a capture device are handed to one pool of worker threads and all other requests to
+ * another, so a STOP never waits behind STARTs that are still tuning. Worker threads are created
+ * as needed and exit when they have been idle for a while. Only one request per connection is
+ * processed at a time and reading from a connection is paused until the request is answered, so
+ * SageTV always gets the responses in the order the requests were sent. This also means there are
+ * never more busy workers than open connections.
+ */
+public class SageTVCommandServer implements Runnable {
+    private static final Logger logger = LogManager.getLogger(SageTVCommandServer.class);
+
+    // Each encoder has its own connection, so this is the most encoders that can be tuning at the
+    // same time before a request needs to wait for a worker.
+    private static final int WORKER_THREADS =
+            Math.max(1, Config.getInteger("sagetv.server.worker_threads", 256));
+    private static final long WORKER_IDLE_MS = 60000;
+
+    // The longest request is a START with a full path to the recording.
+    private static final int MAX_REQUEST_LENGTH = 8192;
+
+    // BufferedReader in the original implementation used the default character set.
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private static final Object serverLock = new Object();
+    private static SageTVCommandServer server;
+
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final ExecutorService tuningWorkers;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, ServerSocketChannel> listeners = new HashMap<>();
+
+    private SageTVCommandServer() throws IOException {
+        selector = Selector.open();
+
+        tuningWorkers = newWorkerPool("SageTVTuningWorker");
+        workers = newWorkerPool("SageTVCommandWorker");
+
+        selectorThread = new Thread(this);
+        selectorThread.setName("SageTVCommandServer-" + selectorThread.getId());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    private static ExecutorService newWorkerPool(final String name) {
+        final AtomicInteger workerCount = new AtomicInteger(0);
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                WORKER_THREADS, WORKER_THREADS, WORKER_IDLE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setName(name + "-" + thread.getId() + ":" +
+                        workerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Threads are only kept while there are requests for them.
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    private static SageTVCommandServer getServer() throws IOException {
+        synchronized (serverLock) {
+            if (server == null) {
+                server = new SageTVCommandServer();
+            }
+
+            return server;
+        }
+    }
+
+    /**
+     * Start accepting SageTV connections on a port.
+     *
+     * @param listenPort The port to accept connections on.
+     * @param captureDevice The default capture device for V1.0 requests or <i>null</i>.
+     * @throws IOException Thrown if the port could not be opened.
+     */
+    public static void startListening(final int listenPort, final CaptureDevice captureDevice)
+            throws IOException {
+
+        final SageTVCommandServer server = getServer();
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        try {
+            serverChannel.socket().bind(new InetSocketAddress(listenPort));
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        server.runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serverChannel.register(server.selector, SelectionKey.OP_ACCEPT, captureDevice);
+                    server.listeners.put(listenPort, serverChannel);
+                    logger.info("Started listening on port {}...", listenPort);
+                } catch (IOException e) {
+                    logger.error("Unable to accept connections on port {} => ", listenPort, e);
+                    closeQuietly(serverChannel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop accepting SageTV connections on a port.
+     * <p/>
+     * Connections that are already open are not closed.
+     *
+     * @param listenPort The port to stop accepting connections on.
+     */
+    public static void stopListening(final int listenPort) {
+        final SageTVCommandServer server;
+
+        synchronized (serverLock) {
+            server = SageTVCommandServer.server;
+        }
+
+        if (server == null) {
+            return;
+        }
+
+        server.runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                ServerSocketChannel serverChannel = server.listeners.remove(listenPort);
+
+                if (serverChannel != null) {
+                    closeQuietly(serverChannel);
+                    logger.info("Stopped listening on port {}...", listenPort);
+                }
+            }
+        });
+    }
+
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    public void run() {
+        logger.info("SageTV command server started with up to {} worker threads per pool.",
+                WORKER_THREADS);
+
+        String threadName = Thread.currentThread().getName();
+
+        while (true) {
+            try {
+                selector.select();
+
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isWritable()) {
+                            connection.writePending();
+                        }
+
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        logger.debug("The SageTV server has disconnected ungracefully => ", e);
+                        connection.close();
+                    }
+                }
+
+                // Quick requests may have renamed this thread to the capture device they used.
+                Thread.currentThread().setName(threadName);
+            } catch (Throwable e) {
+                // Nothing can be allowed to stop this thread or SageTV can no longer use any
+                // capture device.
+                logger.error("Unexpected exception in the SageTV command server => ", e);
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        SocketChannel channel;
+
+        try {
+            channel = serverChannel.accept();
+
+            if (channel == null) {
+                return;
+            }
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            logger.error("Unable to accept connections on port {} => ",
+                    serverChannel.socket().getLocalPort(), e);
+            return;
+        }
+
+        try {
+            SelectionKey connectionKey = channel.register(selector, SelectionKey.OP_READ);
+            connectionKey.attach(
+                    new Connection(channel, connectionKey, (CaptureDevice) key.attachment()));
+        } catch (IOException e) {
+            logger.error("Unable to read from the connection on port {} => ",
+                    serverChannel.socket().getLocalPort(), e);
+            closeQuietly(channel);
+            return;
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("Accepted connection from {} on port {}",
+                    channel.socket().getInetAddress(), channel.socket().getLocalPort());
+        }
+
+        SageTVSocketServer.registerRemoteAddress(channel.socket().getInetAddress());
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.trace("Failed to close channel => ", e);
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SageTVRequestHandler requestHandler;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MAX_REQUEST_LENGTH);
+        private final ArrayDeque<String> requests = new ArrayDeque<>();
+
+        // Only changed on the selector thread.
+        private boolean busy = false;
+        private boolean closed = false;
+
+        // Responses that could not be written immediately. Synchronized on this connection.
+        private ByteBuffer pendingWrite = null;
+
+        private Connection(SocketChannel channel, SelectionKey key, CaptureDevice captureDevice) {
+            this.channel = channel;
+            this.key = key;
+            requestHandler = new SageTVRequestHandler(
+                    channel.socket(), captureDevice, new ResponseWriter());
+        }
+
+        private void read() throws IOException {
+            int bytesRead = channel.read(readBuffer);
+
+            if (bytesRead < 0) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Closing connection to {} on port {}",
+                            channel.socket().getInetAddress(), channel.socket().getPort());
+                }
+
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            int lineStart = readBuffer.position();
+
+            for (int i = lineStart; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) != '\n') {
+                    continue;
+                }
+
+                int lineEnd = i;
+                if (lineEnd > lineStart && readBuffer.get(lineEnd - 1) == '\r') {
+                    lineEnd -= 1;
+                }
+
+                byte line[] = new byte[lineEnd - lineStart];
+                readBuffer.position(lineStart);
+                readBuffer.get(line);
+                requests.add(new String(line, CHARSET));
+
+                lineStart = i + 1;
+            }
+
+            readBuffer.position(lineStart);
+            readBuffer.compact();
+
+            if (!readBuffer.hasRemaining()) {
+                logger.error("SageTV sent a request longer than {} bytes. Closing connection.",
+                        MAX_REQUEST_LENGTH);
+                close();
+                return;
+            }
+
+            processRequests();
+        }
+
+        private void processRequests() {
+            while (!busy && !closed && !requests.isEmpty()) {
+                final String request = requests.poll();
+
+                if (SageTVRequestHandler.isQuickRequest(request)) {
+                    if (!process(request)) {
+                        close();
+                    }
+
+                    continue;
+                }
+
+                busy = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+                ExecutorService pool = SageTVRequestHandler.isTuningRequest(request) ?
+                        tuningWorkers : workers;
+
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final boolean keepOpen = process(request);
+
+                        runOnSelector(new Runnable() {
+                            @Override
+                            public void run() {
+                                busy = false;
+
+                                if (!keepOpen) {
+                                    close();
+                                    return;
+                                }
+
+                                if (key.isValid()) {
+                                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                                }
+
+                                processRequests();
+                            }
+                        });
+                    }
+                });
+            }
+        }
+
+        private boolean process(String request) {
+            try {
+                return requestHandler.processRequest(request);
+            } catch (IOException e) {
+                logger.error("The SageTV server has disconnected ungracefully => ", e);
+            } catch (Throwable e) {
+                logger.error("An unhandled throwable was created => ", e);
+            }
+
+            return false;
+        }
+
+        private synchronized void write(ByteBuffer response) throws IOException {
+            if (pendingWrite == null) {
+                channel.write(response);
+
+                if (!response.hasRemaining()) {
+                    return;
+                }
+
+                pendingWrite = ByteBuffer.allocate(response.remaining());
+            } else {
+                ByteBuffer newPendingWrite =
+                        ByteBuffer.allocate(pendingWrite.remaining() + response.remaining());
+                newPendingWrite.put(pendingWrite);
+                pendingWrite = newPendingWrite;
+            }
+
+            pendingWrite.put(response);
+            pendingWrite.flip();
+
+            runOnSelector(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+
+        private synchronized void writePending() throws IOException {
+            if (pendingWrite != null) {
+                channel.write(pendingWrite);
+
+                if (pendingWrite.hasRemaining()) {
+                    return;
+                }
+
+                pendingWrite = null;
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            requests.clear();
+            key.cancel();
+            closeQuietly(channel);
+        }
+
+        private class ResponseWriter extends Writer {
+            private final StringBuilder response = new StringBuilder();
+
+            @Override
+            public void write(char[] buffer, int offset, int length) throws IOException {
+                response.append(buffer, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (response.length() == 0) {
+                    return;
+                }
+
+                ByteBuffer encoded = CHARSET.encode(CharBuffer.wrap(response));
+                response.setLength(0);
+                Connection.this.write(encoded);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }
+    }
+}
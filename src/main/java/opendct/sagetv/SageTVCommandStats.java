@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.util.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks how long it takes to answer each kind of request from SageTV.
+ */
+public class SageTVCommandStats {
+    private static final String COMMANDS[] = new String[] {
+            "START", "BUFFER", "STOP", "SWITCH", "BUFFER_SWITCH", "GET_START", "GET_SIZE",
+            "GET_FILE_SIZE", "NOOP", "VERSION", "TUNE", "AUTOTUNE", "AUTOSCAN", "AUTOINFOSCAN",
+            "PROPERTIES"
+    };
+
+    private static final Map<String, LatencyHistogram> histograms;
+
+    static {
+        Map<String, LatencyHistogram> newHistograms = new LinkedHashMap<>();
+
+        for (String command : COMMANDS) {
+            newHistograms.put(command, new LatencyHistogram());
+        }
+
+        // This is never modified after this point, so it's safe to read without a lock.
+        histograms = Collections.unmodifiableMap(newHistograms);
+    }
+
+    /**
+     * Record how long it took to answer a request.
+     * <p/>
+     * Requests that are not a known command are ignored.
+     *
+     * @param request The request as received from SageTV.
+     * @param nanos The time it took to answer in nanoseconds.
+     */
+    public static void record(String request, long nanos) {
+        if (request == null) {
+            return;
+        }
+
+        int space = request.indexOf(' ');
+        LatencyHistogram histogram =
+                histograms.get(space < 0 ? request : request.substring(0, space));
+
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    /**
+     * Get the times for every known command in the order they are usually of interest.
+     *
+     * @return A read-only map of command names to their times.
+     */
+    public static Map<String, LatencyHistogram> getHistograms() {
+        return histograms;
+    }
+}
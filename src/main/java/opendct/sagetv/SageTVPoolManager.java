@@ -23,6 +23,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class SageTVPoolManager  {
@@ -39,13 +40,24 @@ public class SageTVPoolManager  {
     // The SageTVPoolManager should be the only class that will swap things around if needed.
 
     private static final ReentrantReadWriteLock captureDeviceMappingLock = new ReentrantReadWriteLock();
-    private static final ReentrantReadWriteLock poolNameToPoolCaptureDevicesLock = new ReentrantReadWriteLock();
-    private static final ReentrantReadWriteLock vCaptureDeviceToPoolNameLock = new ReentrantReadWriteLock();
 
     private static final Map<String, String> vCaptureDeviceToPoolCaptureDevice = new HashMap<>();
     private static final Map<String, String> poolCaptureDeviceToVCaptureDevice = new HashMap<>();
-    private static final Map<String, ArrayList<String>> poolNameToPoolCaptureDevices = new HashMap<>();
-    private static final Map<String, String> vCaptureDeviceToPoolName = new HashMap<>();
+
+    // Pools and the pool each capture device is in are read without locking when selecting a
+    // capture device. Anything that changes which devices are in which pools must hold this lock
+    // so the two maps stay consistent with each other.
+    private static final Object poolChangeLock = new Object();
+    private static final ConcurrentHashMap<String, Pool> poolNameToPool = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> vCaptureDeviceToPoolName = new ConcurrentHashMap<>();
+
+    // The last known external lock state for each pool capture device. Asking a device if it's
+    // externally locked can mean a network request, so this is refreshed in the background and
+    // selecting a capture device only ever looks here.
+    private static final ConcurrentHashMap<String, Boolean> externalLocks = new ConcurrentHashMap<>();
+    private static final long EXTERNAL_LOCK_REFRESH_MS =
+            Math.max(500, Config.getLong("pool.external_lock_refresh_ms", 5000));
+    private static Thread externalLockThread;
 
     private static boolean usePools = Config.getBoolean("pool.enabled", false);
 
@@ -56,13 +68,19 @@ public class SageTVPoolManager  {
      * If the capture device is not in a pool, it is mapped directly to itself. If the mapping has
      * not been removed for the capture device (usually done on STOP), the last mapping will be
      * returned.
+     * <p/>
+     * This can be called by any number of threads at the same time. Capture devices are tried in
+     * order of merit and claimed by locking them, so if another request gets to a device first,
+     * the next device is tried. The external lock state used to skip devices is the last state
+     * seen by the background refresh, so nothing here waits on a device unless every available
+     * device in the pool is externally locked.
      *
      * @param vCaptureDevice The name of the virtual capture device.
      * @return The name of the pool capture device or <i>null</i> if no device is available.
      */
-    public static synchronized String getAndLockBestCaptureDevice(String vCaptureDevice) {
+    public static String getAndLockBestCaptureDevice(String vCaptureDevice) {
 
-        long startTime = System.currentTimeMillis();
+        long startTime = System.nanoTime();
 
         final String pCaptureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice);
 
@@ -71,8 +89,16 @@ public class SageTVPoolManager  {
         }
 
         final String poolName = getVCaptureDeviceToPoolName(vCaptureDevice);
+        final Pool pool = poolName != null ? poolNameToPool.get(poolName) : null;
+
+        if (poolName == null || !usePools || pool == null) {
+            if (poolName != null && usePools) {
+                // This device is not associated with any pool so it will just be mapped to itself,
+                // but claimed it did in the previous step. Displaying warning so we know something
+                // odd has happened, but not strange enough to prevent us from proceeding.
+                logger.warn("'{}' claims to be a part of the pool named '{}' but the pool does not exist.", vCaptureDevice, poolName);
+            }
 
-        if (poolName == null || !usePools) {
             // This device is not associated with any pool so it will just be mapped to itself.
             setCaptureDeviceMapping(vCaptureDevice, vCaptureDevice);
 
@@ -85,8 +111,7 @@ public class SageTVPoolManager  {
             captureDevice.setLocked(true);
 
             if (logger.isDebugEnabled()) {
-                long endTime = System.currentTimeMillis();
-                logger.debug("'{}' capture device selected in {}ms.", vCaptureDevice, endTime - startTime);
+                logger.debug("'{}' capture device selected in {}us.", vCaptureDevice, (System.nanoTime() - startTime) / 1000);
             } else {
                 logger.info("'{}' capture device selected.", vCaptureDevice);
             }
@@ -94,142 +119,97 @@ public class SageTVPoolManager  {
             return vCaptureDevice;
         }
 
-        final ArrayList<String> poolCaptureDevices = getPoolNameToPoolCaptureDevices(poolName);
+        // Temporarily Store all of the capture devices we might come back to so we don't need
+        // to look them up twice.
+        ArrayList<CaptureDevice> externalLocked = new ArrayList<>();
 
-        if (poolCaptureDevices == null) {
-            // This device is not associated with any pool so it will just be mapped to itself, but
-            // claimed it did in the previous step. Displaying warning so we know something odd has
-            // happened, but not strange enough to prevent us from proceeding.
-            logger.warn("'{}' claims to be a part of the pool named '{}' but the pool does not exist.", vCaptureDevice, poolName);
+        // This is already in order of merit and is replaced, never modified, when the pool changes.
+        for (String poolCaptureDevice : pool.getMeritOrder()) {
+            CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(poolCaptureDevice, false);
 
-            setCaptureDeviceMapping(vCaptureDevice, vCaptureDevice);
+            if (captureDevice == null) {
+                continue;
+            }
 
-            CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(vCaptureDevice, false);
+            if (captureDevice.isInternalLocked()) {
+                continue;
+            }
 
-            if (captureDevice == null) {
-                return null;
+            if (Boolean.TRUE.equals(externalLocks.get(poolCaptureDevice))) {
+                externalLocked.add(captureDevice);
+                continue;
             }
 
-            captureDevice.setLocked(true);
+            // Another request got to this device first.
+            if (!captureDevice.setLocked(true)) {
+                continue;
+            }
+
+            // Map device so we can find it later by the name SageTV uses.
+            setCaptureDeviceMapping(vCaptureDevice, poolCaptureDevice);
 
             if (logger.isDebugEnabled()) {
-                long endTime = System.currentTimeMillis();
-                logger.debug("'{}' capture device selected in {}ms.", vCaptureDevice, endTime - startTime);
+                logger.debug("'{}' pool capture device selected for virtual capture device '{}' in {}us.", poolCaptureDevice, vCaptureDevice, (System.nanoTime() - startTime) / 1000);
             } else {
-                logger.info("'{}' capture device selected.", vCaptureDevice);
+                logger.info("'{}' pool capture device selected for virtual capture device '{}'.", poolCaptureDevice, vCaptureDevice);
             }
 
-            return vCaptureDevice;
+            return poolCaptureDevice;
         }
 
-        boolean tryAgain = true;
-
-        while (tryAgain && !Thread.currentThread().isInterrupted()) {
-            tryAgain = false;
-
-            // Temporarily Store all of the capture devices we might come back to so we don't need
-            // to look them up twice.
-            ArrayList<CaptureDevice> externalLocked = new ArrayList<>();
-
-            // These are already in their order of merit since every time a new device is added,
-            // they are re-sorted by merit.
-            for (String poolCaptureDevice : poolCaptureDevices) {
-                CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(poolCaptureDevice, false);
+        if (Thread.currentThread().isInterrupted()) {
+            logger.warn("The thread was interrupted before a pool capture device could be found.");
+            return null;
+        }
 
-                if (captureDevice == null) {
-                    continue;
-                }
+        // If we can't find a device that's not locked, then we need to use one that is. The device
+        // is claimed before trying to remove the external lock, so other requests are not held up
+        // while we wait on the device.
+        CaptureDevice fallbackDevice = null;
 
-                if (captureDevice.isInternalLocked()) {
-                    continue;
-                }
+        for (CaptureDevice captureDevice : externalLocked) {
+            if (!captureDevice.setLocked(true)) {
+                continue;
+            }
 
-                if (captureDevice.isExternalLocked()) {
-                    externalLocked.add(captureDevice);
-                    continue;
-                }
+            if (captureDevice.setExternalLock(false)) {
+                externalLocks.put(captureDevice.getEncoderName(), false);
 
-                if (!captureDevice.setLocked(true)) {
-                    continue;
+                if (fallbackDevice != null) {
+                    fallbackDevice.setLocked(false);
                 }
 
                 // Map device so we can find it later by the name SageTV uses.
-                setCaptureDeviceMapping(vCaptureDevice, poolCaptureDevice);
+                setCaptureDeviceMapping(vCaptureDevice, captureDevice.getEncoderName());
 
                 if (logger.isDebugEnabled()) {
-                    long endTime = System.currentTimeMillis();
-                    logger.debug("'{}' pool capture device selected for virtual capture device '{}' in {}ms.", poolCaptureDevice, vCaptureDevice, endTime - startTime);
+                    logger.debug("'{}' pool capture device was externally locked and was selected for virtual capture device '{}' in {}us.", captureDevice.getEncoderName(), vCaptureDevice, (System.nanoTime() - startTime) / 1000);
                 } else {
-                    logger.info("'{}' pool capture device selected for virtual capture device '{}'.", poolCaptureDevice, vCaptureDevice);
+                    logger.info("'{}' pool capture device was externally locked and was selected for virtual capture device '{}'.", captureDevice.getEncoderName(), vCaptureDevice);
                 }
 
-                return poolCaptureDevice;
+                return captureDevice.getEncoderName();
             }
 
-            if (Thread.currentThread().isInterrupted()) {
-                logger.warn("The thread was interrupted before a pool capture device could be found.");
-                return null;
+            // If we can't find a device that's online, we will use the first internally unlocked
+            // tuner, so hang onto that one and let the others go.
+            if (fallbackDevice == null) {
+                fallbackDevice = captureDevice;
+            } else {
+                captureDevice.setLocked(false);
             }
+        }
 
-            // If we can't find a device that's not locked, then we need to use one that is.
-            for (CaptureDevice captureDevice : externalLocked) {
-                if (captureDevice.isInternalLocked()) {
-                    // If suddenly a capture device has become locked and all of the other
-                    // devices are externally locked, go back to see if anything else is now
-                    // unlocked and doesn't have an external lock.
-                    tryAgain = true;
-                    continue;
-                }
-
-                if (captureDevice.setExternalLock(false)) {
-
-                    // Map device so we can find it later by the name SageTV uses.
-                    setCaptureDeviceMapping(vCaptureDevice, captureDevice.getEncoderName());
-
-                    if (!captureDevice.setLocked(true)) {
-                        continue;
-                    }
-
-                    if (logger.isDebugEnabled()) {
-                        long endTime = System.currentTimeMillis();
-                        logger.debug("'{}' pool capture device was externally locked and was selected for virtual capture device '{}' in {}ms.", captureDevice.getEncoderName(), vCaptureDevice, endTime - startTime);
-                    } else {
-                        logger.info("'{}' pool capture device was externally locked and was selected for virtual capture device '{}'.", captureDevice.getEncoderName(), vCaptureDevice);
-                    }
+        if (fallbackDevice != null) {
+            setCaptureDeviceMapping(vCaptureDevice, fallbackDevice.getEncoderName());
 
-                    return captureDevice.getEncoderName();
-                }
+            if (logger.isDebugEnabled()) {
+                logger.warn("'{}' pool capture device was unable to be externally unlocked, but we have no other options so it was selected for virtual capture device '{}' in {}us.", fallbackDevice.getEncoderName(), vCaptureDevice, (System.nanoTime() - startTime) / 1000);
+            } else {
+                logger.warn("'{}' pool capture device was unable to be externally unlocked, but we have no other options so it was selected for virtual capture device '{}'.", fallbackDevice.getEncoderName(), vCaptureDevice);
             }
 
-            // If we can't find a device that's online, let's try to tune the first internally
-            // unlocked tuner.
-            // If we can't find a device that's not locked, then we need to use one that is.
-            for (CaptureDevice captureDevice : externalLocked) {
-                if (captureDevice.isInternalLocked()) {
-                    // If suddenly a capture device has become locked and all of the other
-                    // devices are externally locked, go back to see if anything else is now
-                    // unlocked and doesn't have an external lock.
-                    tryAgain = true;
-                    continue;
-                }
-
-                if (!captureDevice.setLocked(true)) {
-                    continue;
-                }
-
-                captureDevice.setExternalLock(false);
-
-                setCaptureDeviceMapping(vCaptureDevice, captureDevice.getEncoderName());
-
-                if (logger.isDebugEnabled()) {
-                    long endTime = System.currentTimeMillis();
-                    logger.warn("'{}' pool capture device was unable to be externally unlocked, but we have no other options so it was selected for virtual capture device '{}' in {}ms.", captureDevice.getEncoderName(), vCaptureDevice, endTime - startTime);
-                } else {
-                    logger.warn("'{}' pool capture device was unable to be externally unlocked, but we have no other options so it was selected for virtual capture device '{}'.", captureDevice.getEncoderName(), vCaptureDevice);
-                }
-
-                return captureDevice.getEncoderName();
-            }
+            return fallbackDevice.getEncoderName();
         }
 
         logger.error("Unable to locate a free pool capture device for '{}'.", vCaptureDevice);
@@ -293,54 +273,29 @@ public class SageTVPoolManager  {
      * @param vCaptureDevice The name of the virtual capture device.
      */
     public static void removePoolCaptureDevice(String vCaptureDevice) {
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
-
-        try {
-            ArrayList<String> removePools = new ArrayList<>();
-
-            for (Map.Entry<String, ArrayList<String>> poolCaptureDeviceKVP :
-                    poolNameToPoolCaptureDevices.entrySet()) {
-
-                ArrayList<String> poolCaptureDevices = poolCaptureDeviceKVP.getValue();
-                ArrayList<String> removePoolCaptureDevices = new ArrayList<>();
-
-                for (String poolCaptureDevice : poolCaptureDevices) {
-                    if (poolCaptureDevice.equals(vCaptureDevice)) {
-                        removePoolCaptureDevices.add(poolCaptureDevice);
-                    }
-                }
-
-                for (String removeDevice : removePoolCaptureDevices) {
-                    poolCaptureDevices.remove(removeDevice);
-                }
-
-                if (poolCaptureDevices.size() == 0) {
-                    removePools.add(poolCaptureDeviceKVP.getKey());
+        synchronized (poolChangeLock) {
+            for (Pool pool : poolNameToPool.values()) {
+                if (!pool.remove(vCaptureDevice)) {
+                    continue;
                 }
 
                 logger.info("The capture device '{}' has been removed from the '{}' pool.",
-                        vCaptureDevice, poolCaptureDeviceKVP.getKey());
-            }
+                        vCaptureDevice, pool.name);
 
-            for (String removePool : removePools) {
-                logger.info("Removed the pool '{}' since it no longer contains any" +
-                        " capture devices.", removePool);
+                if (pool.isEmpty()) {
+                    logger.info("Removed the pool '{}' since it no longer contains any" +
+                            " capture devices.", pool.name);
 
-                poolNameToPoolCaptureDevices.remove(removePool);
+                    poolNameToPool.remove(pool.name);
+                }
             }
 
             vCaptureDeviceToPoolName.remove(vCaptureDevice);
+            externalLocks.remove(vCaptureDevice);
 
             // Don't clear the mapping since the device might still be in use and we won't be able
             // to find it again. This will clean itself up when SageTV sends a STOP command.
             //vCaptureDeviceToPoolCaptureDevice.remove(vCaptureDevice);
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ",
-                    e);
-        } finally {
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
         }
     }
 
@@ -364,10 +319,7 @@ public class SageTVPoolManager  {
             return;
         }
 
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
-
-        try {
+        synchronized (poolChangeLock) {
             String oldPool = vCaptureDeviceToPoolName.get(captureDevice);
 
             if (oldPool != null && oldPool.equals(poolName)) {
@@ -375,44 +327,36 @@ public class SageTVPoolManager  {
                         captureDevice, poolName);
 
                 return;
-            } else if (oldPool != null && !oldPool.equals(poolName)) {
-                ArrayList<String> poolCaptureDevices = poolNameToPoolCaptureDevices.get(poolName);
-                ArrayList<String> removePoolCaptureDevices = new ArrayList<>();
+            } else if (oldPool != null) {
+                Pool pool = poolNameToPool.get(oldPool);
 
-                for (String poolCaptureDevice : poolCaptureDevices) {
-                    if (poolCaptureDevice.equals(captureDevice)) {
-                        removePoolCaptureDevices.add(poolCaptureDevice);
-                    }
-                }
+                if (pool != null) {
+                    pool.remove(captureDevice);
 
-                for (String removeDevice : removePoolCaptureDevices) {
-                    poolCaptureDevices.remove(removeDevice);
+                    if (pool.isEmpty()) {
+                        poolNameToPool.remove(oldPool);
+                    }
                 }
 
                 logger.info("The capture device '{}' has been moved from the" +
                         " '{}' pool to the '{}' pool.", captureDevice, oldPool, poolName);
             }
 
-            vCaptureDeviceToPoolName.put(captureDevice, poolName);
-            ArrayList<String> poolCaptureDevices = poolNameToPoolCaptureDevices.get(poolName);
+            Pool pool = poolNameToPool.get(poolName);
 
-            if (poolCaptureDevices == null) {
-                poolCaptureDevices = new ArrayList<>();
-                poolNameToPoolCaptureDevices.put(poolName, poolCaptureDevices);
+            if (pool == null) {
+                pool = new Pool(poolName);
+                poolNameToPool.put(poolName, pool);
                 logger.info("The pool '{}' has been created.", poolName);
             }
 
-            poolCaptureDevices.add(captureDevice);
+            pool.add(captureDevice);
+            vCaptureDeviceToPoolName.put(captureDevice, poolName);
 
             logger.info("The capture device '{}' has been added to the '{}' pool.",
                     captureDevice, poolName);
 
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ",
-                    e);
-        } finally {
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
+            startExternalLockRefresh();
         }
     }
 
@@ -423,51 +367,8 @@ public class SageTVPoolManager  {
      * Otherwise, use the method that lets you specify the pool to be sorted.
      */
     public static void resortAllMerits() {
-        captureDeviceMappingLock.writeLock().lock();
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
-
-        try {
-            for (Map.Entry<String, ArrayList<String>> poolKeyValue:
-                    poolNameToPoolCaptureDevices.entrySet()) {
-
-                if (poolKeyValue.getValue() != null) {
-
-                    Collections.sort(poolKeyValue.getValue(), new Comparator<String>() {
-                        @Override
-                        public int compare(String o1, String o2) {
-                            CaptureDevice c1 = SageTVManager.getSageTVCaptureDevice(o1, false);
-                            CaptureDevice c2 = SageTVManager.getSageTVCaptureDevice(o2, false);
-
-                            if (c1 == null && c2 == null) {
-                                logger.warn("'{}' and '{}' don't exist.", o1, o2);
-                                return 0;
-                            } else if (c1 == null) {
-                                logger.warn("'{}' doesn't exist.", o1);
-                                return -1;
-                            } else if (c2 == null) {
-                                logger.warn("'{}' doesn't exist.", o2);
-                                return 1;
-                            }
-
-                            if (c1.getPoolMerit() > c2.getPoolMerit()) {
-                                return -1;
-                            } else if (c1.getPoolMerit() < c2.getPoolMerit()) {
-                                return 1;
-                            }
-
-                            return 0;
-                        }
-                    });
-                }
-            }
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ",
-                    e);
-        } finally {
-            captureDeviceMappingLock.writeLock().unlock();
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
+        for (Pool pool : poolNameToPool.values()) {
+            pool.resort();
         }
     }
 
@@ -482,50 +383,75 @@ public class SageTVPoolManager  {
      * @param poolName The pool name to sort.
      */
     public static void resortMerits(String poolName) {
-        ArrayList<String> encoders = poolNameToPoolCaptureDevices.get(poolName);
-
-        if (encoders == null) {
+        if (poolName == null) {
             return;
         }
 
-        captureDeviceMappingLock.writeLock().lock();
-        poolNameToPoolCaptureDevicesLock.writeLock().lock();
-        vCaptureDeviceToPoolNameLock.writeLock().lock();
+        Pool pool = poolNameToPool.get(poolName);
 
-        try {
-                Collections.sort(encoders, new Comparator<String>() {
-                    @Override
-                    public int compare(String o1, String o2) {
-                        CaptureDevice c1 = SageTVManager.getSageTVCaptureDevice(o1, false);
-                        CaptureDevice c2 = SageTVManager.getSageTVCaptureDevice(o2, false);
-
-                        if (c1 == null && c2 == null) {
-                            logger.warn("'{}' and '{}' don't exist.", o1, o2);
-                            return 0;
-                        } else if (c1 == null) {
-                            logger.warn("'{}' doesn't exist.", o1);
-                            return -1;
-                        } else if (c2 == null) {
-                            logger.warn("'{}' doesn't exist.", o2);
-                            return 1;
-                        }
+        if (pool != null) {
+            pool.resort();
+        }
+    }
 
-                        if (c1.getPoolMerit() > c2.getPoolMerit()) {
-                            return -1;
-                        } else if (c1.getPoolMerit() < c2.getPoolMerit()) {
-                            return 1;
-                        }
+    private static void startExternalLockRefresh() {
+        synchronized (poolChangeLock) {
+            if (externalLockThread != null) {
+                return;
+            }
 
-                        return 0;
+            externalLockThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    logger.info("Pool external lock refresh thread has started.");
+
+                    while (!Thread.currentThread().isInterrupted()) {
+                        refreshExternalLocks();
+
+                        try {
+                            Thread.sleep(EXTERNAL_LOCK_REFRESH_MS);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
                     }
-                });
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ",
-                    e);
-        } finally {
-            captureDeviceMappingLock.writeLock().unlock();
-            poolNameToPoolCaptureDevicesLock.writeLock().unlock();
-            vCaptureDeviceToPoolNameLock.writeLock().unlock();
+
+                    logger.info("Pool external lock refresh thread has stopped.");
+                }
+            });
+
+            externalLockThread.setName("PoolExternalLockRefresh-" + externalLockThread.getId());
+            externalLockThread.setDaemon(true);
+            externalLockThread.start();
+        }
+    }
+
+    /**
+     * Updates the last known external lock state of every pool capture device that isn't in use.
+     * <p/>
+     * Devices that are in use are skipped since they can't be selected anyway and asking could
+     * interfere with the recording.
+     */
+    private static void refreshExternalLocks() {
+        for (Pool pool : poolNameToPool.values()) {
+            for (String poolCaptureDevice : pool.getMeritOrder()) {
+                CaptureDevice captureDevice = SageTVManager.getSageTVCaptureDevice(poolCaptureDevice, false);
+
+                if (captureDevice == null) {
+                    externalLocks.remove(poolCaptureDevice);
+                    continue;
+                }
+
+                if (captureDevice.isInternalLocked()) {
+                    continue;
+                }
+
+                try {
+                    externalLocks.put(poolCaptureDevice, captureDevice.isExternalLocked());
+                } catch (Exception e) {
+                    logger.warn("Unable to refresh the external lock state of '{}' => ",
+                            poolCaptureDevice, e);
+                }
+            }
         }
     }
 
@@ -540,21 +466,7 @@ public class SageTVPoolManager  {
      *         associated <i>null</i> will be returned.
      */
     public static String getVCaptureDeviceToPoolName(String vCaptureDevice) {
-
-        String returnValue = null;
-
-        vCaptureDeviceToPoolNameLock.readLock().lock();
-
-        try {
-            returnValue = vCaptureDeviceToPoolName.get(vCaptureDevice);
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ",
-                    e);
-        } finally {
-            vCaptureDeviceToPoolNameLock.readLock().unlock();
-        }
-
-        return returnValue;
+        return vCaptureDeviceToPoolName.get(vCaptureDevice);
     }
 
     /**
@@ -620,26 +532,14 @@ public class SageTVPoolManager  {
      * @return An array of the devices associated with the pool or 'null' if the pool doesn't exist.
      */
     public static ArrayList<String> getPoolNameToPoolCaptureDevices(String poolName) {
+        Pool pool = poolNameToPool.get(poolName);
 
-        ArrayList<String> returnValue = null;
-
-        poolNameToPoolCaptureDevicesLock.readLock().lock();
-
-        try {
-            returnValue = poolNameToPoolCaptureDevices.get(poolName);
-
-            if (returnValue != null) {
-                // Create a new array so we don't accidentally modify it outside of this class.
-                returnValue = new ArrayList<String>(returnValue);
-            }
-        } catch (Exception e) {
-            logger.warn("There was an unhandled exception while using a ReentrantReadWriteLock => ",
-                    e);
-        } finally {
-            poolNameToPoolCaptureDevicesLock.readLock().unlock();
+        if (pool == null) {
+            return null;
         }
 
-        return returnValue;
+        // Create a new array so we don't accidentally modify it outside of this class.
+        return new ArrayList<>(Arrays.asList(pool.getMeritOrder()));
     }
 
     /**
@@ -662,4 +562,77 @@ public class SageTVPoolManager  {
     public static void canUsePools(boolean enabled) {
         Config.setBoolean("pool.enabled", enabled);
     }
+
+    private static class Pool {
+        private final String name;
+
+        // All changes are made while holding the lock on the pool.
+        private final ArrayList<String> captureDevices = new ArrayList<>();
+
+        // This array is never modified after it's assigned, so it can be iterated without a lock.
+        private volatile String meritOrder[] = new String[0];
+
+        private Pool(String name) {
+            this.name = name;
+        }
+
+        private String[] getMeritOrder() {
+            return meritOrder;
+        }
+
+        private synchronized void add(String captureDevice) {
+            if (!captureDevices.contains(captureDevice)) {
+                captureDevices.add(captureDevice);
+            }
+
+            resort();
+        }
+
+        private synchronized boolean remove(String captureDevice) {
+            if (!captureDevices.remove(captureDevice)) {
+                return false;
+            }
+
+            resort();
+            return true;
+        }
+
+        private synchronized boolean isEmpty() {
+            return captureDevices.isEmpty();
+        }
+
+        /**
+         * Creates a new merit order for this pool.
+         * <p/>
+         * The merits are looked up once before sorting so a merit changing during the sort can't
+         * confuse it. Devices that no longer exist are placed at the end.
+         */
+        private synchronized void resort() {
+            final Map<String, Integer> merits = new HashMap<>();
+
+            for (String captureDeviceName : captureDevices) {
+                CaptureDevice captureDevice =
+                        SageTVManager.getSageTVCaptureDevice(captureDeviceName, false);
+
+                if (captureDevice == null) {
+                    logger.warn("'{}' doesn't exist.", captureDeviceName);
+                    merits.put(captureDeviceName, Integer.MIN_VALUE);
+                } else {
+                    merits.put(captureDeviceName, captureDevice.getPoolMerit());
+                }
+            }
+
+            ArrayList<String> newOrder = new ArrayList<>(captureDevices);
+
+            // This sort is stable, so devices with the same merit stay in the order they were added.
+            Collections.sort(newOrder, new Comparator<String>() {
+                @Override
+                public int compare(String o1, String o2) {
+                    return Integer.compare(merits.get(o2), merits.get(o1));
+                }
+            });
+
+            meritOrder = newOrder.toArray(new String[newOrder.size()]);
+        }
+    }
 }
@@ -26,6 +26,7 @@ package opendct.sagetv;
 
 import opendct.capture.CaptureDevice;
 import opendct.config.Config;
+import opendct.consumer.RecordingSizeRegistry;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,6 +35,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
 import java.util.StringTokenizer;
 
@@ -46,9 +48,12 @@ public class SageTVRequestHandler implements Runnable {
     private CaptureDevice captureDevice = null;
     private String currentRecordFile = null;
     private BufferedReader in = null;
-    private OutputStreamWriter out = null;
+    private Writer out = null;
     private String lastRequest = null;
 
+    // Guarantee that we don't change the size of this array.
+    private final int crossbarIndex[] = new int[] { 0 };
+
     public SageTVRequestHandler(Socket socket) {
         this.socket = socket;
     }
@@ -58,6 +63,59 @@ public class SageTVRequestHandler implements Runnable {
         this.captureDevice = captureDevice;
     }
 
+    /**
+     * Create a request handler for a connection that is read by something else.
+     * <p/>
+     * Do not use {@link #run()} with a handler created this way. Each request is provided to
+     * {@link #processRequest(String)} instead and every response is written to the provided writer
+     * followed by a flush.
+     *
+     * @param socket The socket of the connection.
+     * @param captureDevice The default capture device for V1.0 requests or <i>null</i>.
+     * @param out The writer to send responses to SageTV.
+     */
+    public SageTVRequestHandler(Socket socket, CaptureDevice captureDevice, Writer out) {
+        this.socket = socket;
+        this.captureDevice = captureDevice;
+        this.out = out;
+    }
+
+    /**
+     * Is this a request that can always be answered quickly?
+     * <p/>
+     * These requests do not tune or wait on a capture device, so they can be answered without
+     * handing them off to another thread. The size of a file is only quick if it's a recording in
+     * progress.
+     *
+     * @param request The request without the line terminator.
+     * @return <i>true</i> if the request will be answered quickly.
+     */
+    public static boolean isQuickRequest(String request) {
+        return request.equals("NOOP") ||
+                request.equals("VERSION") ||
+                (request.startsWith("GET_FILE_SIZE ") && RecordingSizeRegistry.getSize(
+                        request.substring("GET_FILE_SIZE ".length())) >= 0);
+    }
+
+    /**
+     * Is this a request that can tune a capture device?
+     * <p/>
+     * These requests can take several seconds to answer.
+     *
+     * @param request The request without the line terminator.
+     * @return <i>true</i> if the request can tune a capture device.
+     */
+    public static boolean isTuningRequest(String request) {
+        return request.startsWith("START ") ||
+                request.startsWith("BUFFER ") ||
+                request.startsWith("BUFFER_SWITCH ") ||
+                request.startsWith("SWITCH ") ||
+                request.startsWith("TUNE ") ||
+                request.startsWith("AUTOTUNE ") ||
+                request.startsWith("AUTOSCAN ") ||
+                request.startsWith("AUTOINFOSCAN ");
+    }
+
     public int getRemotePort() {
         if (socket != null) {
             return socket.getPort();
@@ -119,604 +177,663 @@ public class SageTVRequestHandler implements Runnable {
             // EncodingServer.java
             lastRequest = null;
 
-            // Guarantee that we don't change the size of this array.
-            final int crossbarIndex[] = new int[] { 0 };
-
             while (!Thread.currentThread().isInterrupted()) {
-
-                lastRequest = in.readLine();
-
-                if (lastRequest == null || lastRequest.equals("")) {
+                try {
+                    if (!processRequest(in.readLine())) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    logger.error("The SageTV server has disconnected ungracefully => ", e);
                     break;
                 }
+            }
+
+            if (logger.isTraceEnabled()) {
+                logger.trace("Closing connection to {} on port {}",
+                        socket.getInetAddress().getHostAddress(), socket.getPort());
+            }
+        } catch (Exception e) {
+            // This kind of exception appears to mostly happen when stopping the SageTV server.
+            logger.debug("An unhandled exception was created => ", e);
+        } catch (Throwable e) {
+            // This exception usually catches issues like a buffer could not be allocated. If this
+            // exception is being thrown, we have a problem that must be fixed.
+            logger.error("An unhandled throwable was created => ", e);
+        } finally {
 
-                if (!lastRequest.equals("NOOP") && !lastRequest.startsWith("GET_FILE_SIZE ")) {
-                    logger.debug("SageTV sent: '{}'", lastRequest);
-                } else if (LOG_TRACE) {
-                    logger.trace("SageTV sent: '{}'", lastRequest);
+            try {
+                if (in != null) {
+                    in.close();
                 }
+            } catch (Exception e) {
+                logger.trace("Failed to close BufferedReader => ", e);
+            }
 
-                try {
-                    //=============================================================================================
-                    // VERSION
-                    //=============================================================================================
-                    if (lastRequest.equals("VERSION")) {
-                        // We are all version 3.0 capture devices. There doesn't appear to be any
-                        // value in distinguishing.
-                        sendResponse("3.0");
-                    } else if (lastRequest.startsWith("STOP")) {
-                        if (lastRequest.contains(" ")) {
-                            //It appears we can have more than one tuner on the same port.
-                            String deviceName = lastRequest.substring(lastRequest.indexOf(' ') + 1);
-
-                            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(deviceName, crossbarIndex);
-                            deviceName = SageTVDeviceCrossbar.trimToName(deviceName, deviceType, crossbarIndex[0]);
-
-                            //This is not a mistake.
-                            CaptureDevice captureDevice = getVCaptureDeviceToPoolCaptureDevice(deviceName, true);
-
-                            if (captureDevice != null) {
-                                setThreadName(deviceName, captureDevice.getEncoderName());
-
-                                SageTVTuningMonitor.stopMonitorRecording(captureDevice);
-
-                                captureDevice.stopEncoding();
-                                unlockEncoder(captureDevice);
-                            } else {
-                                logger.error("SageTV requested the tuner '{}' and it does not exist at this time.", deviceName);
-                            }
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (Exception e) {
+                logger.trace("Failed to close OutputStreamWriter => ", e);
+            }
 
-                            removeVCaptureDeviceToPoolCaptureDevice(deviceName);
+            try {
+                if (socket != null && socket.isConnected()) {
+                    socket.close();
+                }
+            } catch (Exception e) {
+                logger.trace("Failed to close socket => ", e);
+            }
+        }
 
-                            setThreadName(deviceName, deviceName);
+        logger.exit();
+    }
 
-                            sendResponse("OK");
-                        } else {
-                            if (captureDevice != null) {
-                                captureDevice.stopEncoding();
-                                unlockEncoder(captureDevice);
-                            }
-                        }
-                        //=============================================================================================
-                        // START
-                        //                                Device Name                                UploadID  Chn 2*Sage.time()                        Filename                            Quality
-                        // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1295665805|502|2890245964968|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
-                        // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 2 Digital TV Tuner|1496210288|502|2890247883508|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
-                        // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1723577771|502|2890248518360|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("START ")) {
-                        currentRecordFile = null;
-                        // Same for V3/V2 encoders because the input name is specified
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
-                        int uploadID = 0;
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 6) {
-                            // V3 has upload file ID
-                            vCaptureDevice = tokens.nextToken();
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else {
-                            vCaptureDevice = tokens.nextToken();
-                        }
+    /**
+     * Process one request from SageTV and send the response.
+     * <p/>
+     * Requests on the same connection must be processed one at a time and in the order they were
+     * received.
+     *
+     * @param request The request without the line terminator.
+     * @return <i>false</i> if the connection should be closed.
+     * @throws IOException Thrown if the response could not be sent.
+     */
+    public boolean processRequest(String request) throws IOException {
+        long startTime = System.nanoTime();
 
-                        SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
-                        vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                        captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-
-                        String channel = tokens.nextToken();
-                        // I guess this is to synchronize time with the server.
-                        String stvTimeSync = tokens.nextToken();
-                        String filename = tokens.nextToken();
-                        String encoding = tokens.nextToken();
-
-                        if (captureDevice != null) {
-                            boolean success;
-
-                            try {
-                                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                                lockEncoder(captureDevice);
-
-                                // This is done to prevent a potential race condition if a
-                                // re-tune happens at the same time we are trying to tune into a
-                                // new channel.
-                                SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
-
-                                if (captureDevice.isReady()) {
-                                    logger.debug("Starting network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                    success = captureDevice.startEncoding(
-                                            channel, filename, encoding, 0, deviceType, crossbarIndex[0],
-                                            uploadID, socket.getInetAddress());
-
-                                    if (success) {
-                                        currentRecordFile = filename;
-                                        SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
-
-                                        if (uploadID != 0) {
-                                            SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                        }
-
-                                        sendResponse("OK");
-
-                                        SageTVTuningMonitor.monitorRecording(
-                                                captureDevice, channel, encoding, 0,
-                                                deviceType, crossbarIndex[0],
-                                                uploadID, socket.getInetAddress());
-                                    } else {
-                                        sendResponse("ERROR Device Start Failed");
-                                        logger.error("Encoder device is unable to start.");
-                                    }
-                                } else {
-                                    sendResponse("ERROR Device Not Ready");
-                                    logger.error("Encoder device is not ready.");
-                                }
-                            } catch (Exception e) {
-                                sendResponse("ERROR Device Start Failed");
-                                logger.error("Unexpected exception while starting network encoder to filename '{}' => ", filename, e);
-                            }
-                        } else {
-                            sendResponse("ERROR Invalid Input");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // BUFFER
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("BUFFER ")) {
-                        currentRecordFile = null;
-                        // Same for V3/V2 encoders because the input name is specified
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
-                        Integer uploadID = 0;
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 6) {
-                            // V3 has upload file ID
-                            vCaptureDevice = tokens.nextToken();
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else {
-                            vCaptureDevice = tokens.nextToken();
-                        }
+        try {
+            return handleRequest(request);
+        } finally {
+            SageTVCommandStats.record(request, System.nanoTime() - startTime);
+            TuningTrace.detach();
+        }
+    }
 
-                        SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
-                        vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                        captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-
-                        String channel = tokens.nextToken();
-                        long bufferSize = Long.parseLong(tokens.nextToken());
-                        String filename = tokens.nextToken();
-                        String encoding = tokens.nextToken();
-
-                        if (captureDevice != null) {
-                            boolean success;
-
-                            try {
-                                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                                lockEncoder(captureDevice);
-
-                                // This is done to prevent a potential race condition if a
-                                // re-tune happens at the same time we are trying to tune into a
-                                // new channel.
-                                SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
-
-                                if (captureDevice.isReady()) {
-                                    logger.debug("Starting buffered network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                    success = captureDevice.startEncoding(
-                                            channel, filename, encoding, bufferSize,
-                                            deviceType, crossbarIndex[0],
-                                            uploadID, socket.getInetAddress());
-
-                                    if (success) {
-                                        currentRecordFile = filename;
-                                        SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
-
-                                        if (uploadID != 0) {
-                                            SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                        }
-
-                                        sendResponse("OK");
-
-                                        SageTVTuningMonitor.monitorRecording(
-                                                captureDevice, channel, encoding, bufferSize,
-                                                deviceType, crossbarIndex[0],
-                                                uploadID, socket.getInetAddress());
-                                    } else {
-                                        sendResponse("ERROR Device Start Failed");
-                                        logger.error("Encoder device is unable to start.");
-                                    }
-                                } else {
-                                    sendResponse("ERROR Device Not Ready");
-                                    logger.error("Encoder device is not ready.");
-                                }
-                            } catch (Exception e) {
-                                sendResponse("ERROR Device Start Failed");
-                                logger.error("Unexpected exception while starting buffered network encoder to filename '{}' => ", filename, e);
-                            }
-                        } else {
-                            sendResponse("ERROR Invalid Input");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // BUFFER_SWITCH
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("BUFFER_SWITCH ")) {
-                        currentRecordFile = null;
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
-                        Integer uploadID = 0;
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 4) {
-                            vCaptureDevice = tokens.nextToken();
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else if (tokens.countTokens() == 3) {
-                            vCaptureDevice = tokens.nextToken();
-                        }
+    private boolean handleRequest(String request) throws IOException {
+        lastRequest = request;
 
-                        SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
-                        vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                        captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
-
-                        String channel = tokens.nextToken();
-                        long bufferSize = Long.parseLong(tokens.nextToken());
-                        String filename = tokens.nextToken();
-
-                        if (captureDevice != null) {
-                            boolean success;
-
-                            try {
-                                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                                lockEncoder(captureDevice);
-
-                                // This is done to prevent a potential race condition if a
-                                // re-tune happens at the same time we are trying to change the
-                                // file.
-                                SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
-
-                                logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                success = captureDevice.switchEncoding(
-                                        channel, filename, bufferSize,
-                                        deviceType, crossbarIndex[0],
-                                        uploadID, socket.getInetAddress());
-                            } catch (Exception e) {
-                                success = false;
-                                logger.error("Unexpected exception while switching network encoder to filename '{}' => ", filename, e);
-                            }
+        if (lastRequest == null || lastRequest.equals("")) {
+            return false;
+        }
 
-                            if (success) {
-                                currentRecordFile = filename;
-                                SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
+        if (!lastRequest.equals("NOOP") && !lastRequest.startsWith("GET_FILE_SIZE ")) {
+            logger.debug("SageTV sent: '{}'", lastRequest);
+        } else if (LOG_TRACE) {
+            logger.trace("SageTV sent: '{}'", lastRequest);
+        }
 
-                                if (uploadID != 0) {
-                                    SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                }
+        //=============================================================================================
+        // VERSION
+        //=============================================================================================
+        if (lastRequest.equals("VERSION")) {
+            // We are all version 3.0 capture devices. There doesn't appear to be any
+            // value in distinguishing.
+            sendResponse("3.0");
+        } else if (lastRequest.startsWith("STOP")) {
+            if (lastRequest.contains(" ")) {
+                //It appears we can have more than one tuner on the same port.
+                String deviceName = lastRequest.substring(lastRequest.indexOf(' ') + 1);
+
+                SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(deviceName, crossbarIndex);
+                deviceName = SageTVDeviceCrossbar.trimToName(deviceName, deviceType, crossbarIndex[0]);
+
+                //This is not a mistake.
+                CaptureDevice captureDevice = getVCaptureDeviceToPoolCaptureDevice(deviceName, true);
+
+                if (captureDevice != null) {
+                    setThreadName(deviceName, captureDevice.getEncoderName());
+
+                    SageTVTuningMonitor.stopMonitorRecording(captureDevice);
+
+                    captureDevice.stopEncoding();
+                    unlockEncoder(captureDevice);
+                } else {
+                    logger.error("SageTV requested the tuner '{}' and it does not exist at this time.", deviceName);
+                }
 
-                                sendResponse("OK");
+                removeVCaptureDeviceToPoolCaptureDevice(deviceName);
 
-                                SageTVTuningMonitor.resumeMonitorRecording(captureDevice,
-                                        uploadID, socket.getInetAddress());
-                            } else {
-                                sendResponse("ERROR Device Switch Failed");
-                                logger.error("Encoder device is unable to switch.");
-                            }
-                        } else {
-                            sendResponse("ERROR Invalid Input");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // SWITCH
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("SWITCH ")) {
-                        currentRecordFile = null;
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
-                        Integer uploadID = 0;
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 4) {
-                            vCaptureDevice = tokens.nextToken();
-                            uploadID = Integer.parseInt(tokens.nextToken());
-                        } else if (tokens.countTokens() == 3) {
-                            vCaptureDevice = tokens.nextToken();
-                        }
+                setThreadName(deviceName, deviceName);
 
-                        SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
-                        vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                        captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+                sendResponse("OK");
+            } else {
+                if (captureDevice != null) {
+                    captureDevice.stopEncoding();
+                    unlockEncoder(captureDevice);
+                }
+            }
+            //=============================================================================================
+            // START
+            //                                Device Name                                UploadID  Chn 2*Sage.time()                        Filename                            Quality
+            // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1295665805|502|2890245964968|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
+            // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 2 Digital TV Tuner|1496210288|502|2890247883508|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
+            // V3: START DCT-Ceton InfiniTV PCIe (xx-xx-xx-xx) Tuner 4 Digital TV Tuner|1723577771|502|2890248518360|R:\Recordings\WheelofFortune-AmericasGameWeek-1968967-0.ts|Great
+            //=============================================================================================
+        } else if (lastRequest.startsWith("START ")) {
+            currentRecordFile = null;
+            // Same for V3/V2 encoders because the input name is specified
+            StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
+            int uploadID = 0;
+
+            String vCaptureDevice = null;
+            if (tokens.countTokens() == 6) {
+                // V3 has upload file ID
+                vCaptureDevice = tokens.nextToken();
+                uploadID = Integer.parseInt(tokens.nextToken());
+            } else {
+                vCaptureDevice = tokens.nextToken();
+            }
 
-                        String channel = tokens.nextToken();
-                        String filename = tokens.nextToken();
+            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
+            vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
 
-                        if (captureDevice != null) {
-                            boolean success;
+            String channel = tokens.nextToken();
+            // I guess this is to synchronize time with the server.
+            String stvTimeSync = tokens.nextToken();
+            String filename = tokens.nextToken();
+            String encoding = tokens.nextToken();
 
-                            try {
-                                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                                lockEncoder(captureDevice);
+            TuningTrace trace = TuningTrace.start(channel, filename);
+            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+            trace.mark("device_allocated");
 
-                                // This is done to prevent a potential race condition if a
-                                // re-tune happens at the same time we are trying to change the
-                                // file.
-                                SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
+            if (captureDevice != null) {
+                boolean success;
 
-                                logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
-                                success = captureDevice.switchEncoding(channel, filename, 0,
-                                        deviceType, crossbarIndex[0],
-                                        uploadID, socket.getInetAddress());
-                            } catch (Exception e) {
-                                success = false;
-                                logger.error("Unexpected exception while switching network encoder to filename '{}' => ", filename, e);
+                try {
+                    trace.setCaptureDevice(captureDevice);
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+                    trace.mark("device_locked");
+
+                    // This is done to prevent a potential race condition if a
+                    // re-tune happens at the same time we are trying to tune into a
+                    // new channel.
+                    SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
+
+                    if (captureDevice.isReady()) {
+                        logger.debug("Starting network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                        success = captureDevice.startEncoding(
+                                channel, filename, encoding, 0, deviceType, crossbarIndex[0],
+                                uploadID, socket.getInetAddress());
+                        trace.mark("encoding_started");
+
+                        if (success) {
+                            currentRecordFile = filename;
+                            SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
+
+                            if (uploadID != 0) {
+                                SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
                             }
 
-                            if (success) {
-                                currentRecordFile = filename;
-                                SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
-
-                                if (uploadID != 0) {
-                                    SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
-                                }
-
-                                sendResponse("OK");
+                            sendResponse("OK");
 
-                                SageTVTuningMonitor.resumeMonitorRecording(captureDevice,
-                                        uploadID, socket.getInetAddress());
-                            } else {
-                                sendResponse("ERROR Device Switch Failed");
-                                logger.error("Encoder device is unable to switch.");
+                            // The consumer completes the trace when it writes the first bytes.
+                            if (!trace.isAttached()) {
+                                trace.complete("responded", true);
                             }
-                        } else {
-                            sendResponse("ERROR Invalid Input");
-                            logger.error("Encoder device does not exist.");
-                        }
-                        //=============================================================================================
-                        // GET_START (return time in milliseconds since start of recording)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("GET_START")) {
-
-                        String vCaptureDevice = null;
-                        if (lastRequest.indexOf(' ') != -1) {
-                            // V3 encoder
-                            vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
-
-                            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
-                            vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
-                        }
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            captureDevice.getRecordStart();
+                            SageTVTuningMonitor.monitorRecording(
+                                    captureDevice, channel, encoding, 0,
+                                    deviceType, crossbarIndex[0],
+                                    uploadID, socket.getInetAddress());
+                        } else {
+                            trace.complete("start_failed", false);
+                            sendResponse("ERROR Device Start Failed");
+                            logger.error("Encoder device is unable to start.");
                         }
+                    } else {
+                        trace.complete("not_ready", false);
+                        sendResponse("ERROR Device Not Ready");
+                        logger.error("Encoder device is not ready.");
+                    }
+                } catch (Exception e) {
+                    trace.complete("start_failed", false);
+                    sendResponse("ERROR Device Start Failed");
+                    logger.error("Unexpected exception while starting network encoder to filename '{}' => ", filename, e);
+                }
+            } else {
+                trace.complete("no_device", false);
+                sendResponse("ERROR Invalid Input");
+                logger.error("Encoder device does not exist.");
+            }
+            //=============================================================================================
+            // BUFFER
+            //=============================================================================================
+        } else if (lastRequest.startsWith("BUFFER ")) {
+            currentRecordFile = null;
+            // Same for V3/V2 encoders because the input name is specified
+            StringTokenizer tokens = new StringTokenizer(lastRequest.substring(6), "|");
+            Integer uploadID = 0;
+
+            String vCaptureDevice = null;
+            if (tokens.countTokens() == 6) {
+                // V3 has upload file ID
+                vCaptureDevice = tokens.nextToken();
+                uploadID = Integer.parseInt(tokens.nextToken());
+            } else {
+                vCaptureDevice = tokens.nextToken();
+            }
 
-                        //=============================================================================================
-                        // GET_SIZE (return the size of a recording as the encoder sees it)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("GET_SIZE")) {
+            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
+            vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
 
-                        String vCaptureDevice = null;
-                        if (lastRequest.indexOf(' ') != -1) {
-                            // V3 encoder
-                            vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
+            String channel = tokens.nextToken();
+            long bufferSize = Long.parseLong(tokens.nextToken());
+            String filename = tokens.nextToken();
+            String encoding = tokens.nextToken();
 
-                            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
-                            vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
-                        }
+            TuningTrace trace = TuningTrace.start(channel, filename);
+            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+            trace.mark("device_allocated");
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            sendResponse(String.valueOf(captureDevice.getRecordedBytes()));
-                        }
+            if (captureDevice != null) {
+                boolean success;
 
-                        //=============================================================================================
-                        // GET_FILE_SIZE (return the size of a file that might not currently be recording)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("GET_FILE_SIZE ")) {
-                        String getFilename = lastRequest.substring("GET_FILE_SIZE ".length());
+                try {
+                    trace.setCaptureDevice(captureDevice);
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+                    trace.mark("device_locked");
+
+                    // This is done to prevent a potential race condition if a
+                    // re-tune happens at the same time we are trying to tune into a
+                    // new channel.
+                    SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
+
+                    if (captureDevice.isReady()) {
+                        logger.debug("Starting buffered network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                        success = captureDevice.startEncoding(
+                                channel, filename, encoding, bufferSize,
+                                deviceType, crossbarIndex[0],
+                                uploadID, socket.getInetAddress());
+                        trace.mark("encoding_started");
+
+                        if (success) {
+                            currentRecordFile = filename;
+                            SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
+
+                            if (uploadID != 0) {
+                                SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
+                            }
 
-                        // Find the device capturing this file.
-                        captureDevice = SageTVManager.getCaptureDeviceByFilename(getFilename);
+                            sendResponse("OK");
 
-                        if (captureDevice != null) {
-                            setThreadName(null, captureDevice.getEncoderName());
+                            // The consumer completes the trace when it writes the first bytes.
+                            if (!trace.isAttached()) {
+                                trace.complete("responded", true);
+                            }
 
-                            sendTraceResponse(String.valueOf(captureDevice.getRecordedBytes()));
+                            SageTVTuningMonitor.monitorRecording(
+                                    captureDevice, channel, encoding, bufferSize,
+                                    deviceType, crossbarIndex[0],
+                                    uploadID, socket.getInetAddress());
                         } else {
-                            try {
-                                sendTraceResponse(String.valueOf(new java.io.File(getFilename).length()));
-                            } catch (Exception e) {
-                                logger.error("Unable to get the file size of '{}'.", getFilename);
-                                sendTraceResponse("0");
-                            }
+                            trace.complete("start_failed", false);
+                            sendResponse("ERROR Device Start Failed");
+                            logger.error("Encoder device is unable to start.");
                         }
+                    } else {
+                        trace.complete("not_ready", false);
+                        sendResponse("ERROR Device Not Ready");
+                        logger.error("Encoder device is not ready.");
+                    }
+                } catch (Exception e) {
+                    trace.complete("start_failed", false);
+                    sendResponse("ERROR Device Start Failed");
+                    logger.error("Unexpected exception while starting buffered network encoder to filename '{}' => ", filename, e);
+                }
+            } else {
+                trace.complete("no_device", false);
+                sendResponse("ERROR Invalid Input");
+                logger.error("Encoder device does not exist.");
+            }
+            //=============================================================================================
+            // BUFFER_SWITCH
+            //=============================================================================================
+        } else if (lastRequest.startsWith("BUFFER_SWITCH ")) {
+            currentRecordFile = null;
+            StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
+            Integer uploadID = 0;
+
+            String vCaptureDevice = null;
+            if (tokens.countTokens() == 4) {
+                vCaptureDevice = tokens.nextToken();
+                uploadID = Integer.parseInt(tokens.nextToken());
+            } else if (tokens.countTokens() == 3) {
+                vCaptureDevice = tokens.nextToken();
+            }
 
-                        //=============================================================================================
-                        // NOOP
-                        //=============================================================================================
-                    } else if (lastRequest.equals("NOOP")) {
-                        sendTraceResponse("OK");
-
-                        //=============================================================================================
-                        // TUNE (tunes a channel)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("TUNE ")) {
-                        /*StringTokenizer tokens = new StringTokenizer(lastRequest.substring(5), "|");
-
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            vCaptureDevice = tokens.nextToken();
-
-                            SageTVDeviceType deviceType = SageTVDeviceType.getTypeForName(vCaptureDevice);
-                            vCaptureDevice = SageTVDeviceType.trimToName(vCaptureDevice, deviceType);
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
+            vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
+            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
 
-                        String chanString = tokens.nextToken();
+            String channel = tokens.nextToken();
+            long bufferSize = Long.parseLong(tokens.nextToken());
+            String filename = tokens.nextToken();
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            captureDevice.tuneToChannel(chanString);
-                        }*/
+            if (captureDevice != null) {
+                boolean success;
 
-                        logger.warn("SageTV requested '{}'.", lastRequest);
-                        sendResponse("OK");
+                try {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+
+                    // This is done to prevent a potential race condition if a
+                    // re-tune happens at the same time we are trying to change the
+                    // file.
+                    SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
+
+                    logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                    success = captureDevice.switchEncoding(
+                            channel, filename, bufferSize,
+                            deviceType, crossbarIndex[0],
+                            uploadID, socket.getInetAddress());
+                } catch (Exception e) {
+                    success = false;
+                    logger.error("Unexpected exception while switching network encoder to filename '{}' => ", filename, e);
+                }
 
+                if (success) {
+                    currentRecordFile = filename;
+                    SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
 
-                        //=============================================================================================
-                        // AUTOTUNE (checks if channel is tunable or not)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("AUTOTUNE ")) {
-                        /*StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
+                    if (uploadID != 0) {
+                        SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
+                    }
 
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            vCaptureDevice = tokens.nextToken();
+                    sendResponse("OK");
 
-                            SageTVDeviceType deviceType = SageTVDeviceType.getTypeForName(vCaptureDevice);
-                            vCaptureDevice = SageTVDeviceType.trimToName(vCaptureDevice, deviceType);
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+                    SageTVTuningMonitor.resumeMonitorRecording(captureDevice,
+                            uploadID, socket.getInetAddress());
+                } else {
+                    sendResponse("ERROR Device Switch Failed");
+                    logger.error("Encoder device is unable to switch.");
+                }
+            } else {
+                sendResponse("ERROR Invalid Input");
+                logger.error("Encoder device does not exist.");
+            }
+            //=============================================================================================
+            // SWITCH
+            //=============================================================================================
+        } else if (lastRequest.startsWith("SWITCH ")) {
+            currentRecordFile = null;
+            StringTokenizer tokens = new StringTokenizer(lastRequest.substring(7), "|");
+            Integer uploadID = 0;
+
+            String vCaptureDevice = null;
+            if (tokens.countTokens() == 4) {
+                vCaptureDevice = tokens.nextToken();
+                uploadID = Integer.parseInt(tokens.nextToken());
+            } else if (tokens.countTokens() == 3) {
+                vCaptureDevice = tokens.nextToken();
+            }
 
-                        String chanString = tokens.nextToken();
-                        Boolean returnValue = false;
+            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
+            vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
+            captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            returnValue = captureDevice.autoTuneChannel(chanString);
-                        }
+            String channel = tokens.nextToken();
+            String filename = tokens.nextToken();
 
-                        sendResponse((returnValue ? "OK" : "NO_SIGNAL"));*/
+            if (captureDevice != null) {
+                boolean success;
 
-                        logger.warn("SageTV requested '{}'.", lastRequest);
-                        sendResponse("OK");
+                try {
+                    setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                    lockEncoder(captureDevice);
+
+                    // This is done to prevent a potential race condition if a
+                    // re-tune happens at the same time we are trying to change the
+                    // file.
+                    SageTVTuningMonitor.pauseMonitorRecording(captureDevice);
+
+                    logger.debug("Switching network encoder via upload ID '{}' to file name '{}'.", uploadID, filename);
+                    success = captureDevice.switchEncoding(channel, filename, 0,
+                            deviceType, crossbarIndex[0],
+                            uploadID, socket.getInetAddress());
+                } catch (Exception e) {
+                    success = false;
+                    logger.error("Unexpected exception while switching network encoder to filename '{}' => ", filename, e);
+                }
 
-                        //=============================================================================================
-                        // AUTOSCAN (checks if channel is tunable or not)
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("AUTOSCAN ")) {
-                        /*StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
+                if (success) {
+                    currentRecordFile = filename;
+                    SageTVManager.setFilesByCaptureDevice(captureDevice, currentRecordFile);
 
-                        String vCaptureDevice = null;
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            vCaptureDevice = tokens.nextToken();
+                    if (uploadID != 0) {
+                        SageTVManager.setUploadIDByFilename(currentRecordFile, uploadID);
+                    }
 
-                            SageTVDeviceType deviceType = SageTVDeviceType.getTypeForName(vCaptureDevice);
-                            vCaptureDevice = SageTVDeviceType.trimToName(vCaptureDevice, deviceType);
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+                    sendResponse("OK");
 
-                        String chanString = tokens.nextToken();
-                        boolean returnValue = false;
+                    SageTVTuningMonitor.resumeMonitorRecording(captureDevice,
+                            uploadID, socket.getInetAddress());
+                } else {
+                    sendResponse("ERROR Device Switch Failed");
+                    logger.error("Encoder device is unable to switch.");
+                }
+            } else {
+                sendResponse("ERROR Invalid Input");
+                logger.error("Encoder device does not exist.");
+            }
+            //=============================================================================================
+            // GET_START (return time in milliseconds since start of recording)
+            //=============================================================================================
+        } else if (lastRequest.startsWith("GET_START")) {
+
+            String vCaptureDevice = null;
+            if (lastRequest.indexOf(' ') != -1) {
+                // V3 encoder
+                vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
+
+                SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
+                vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
+                captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+            }
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            returnValue = captureDevice.autoScanChannel(chanString);
-                        }
+            if (captureDevice != null) {
+                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                captureDevice.getRecordStart();
+            }
 
-                        sendResponse((returnValue ? "OK" : "NO_SIGNAL"));*/
+            //=============================================================================================
+            // GET_SIZE (return the size of a recording as the encoder sees it)
+            //=============================================================================================
+        } else if (lastRequest.startsWith("GET_SIZE")) {
 
-                        logger.warn("SageTV requested '{}'.", lastRequest);
-                        sendResponse("OK");
+            String vCaptureDevice = null;
+            if (lastRequest.indexOf(' ') != -1) {
+                // V3 encoder
+                vCaptureDevice = lastRequest.substring(lastRequest.indexOf(' ') + 1);
 
-                        //=============================================================================================
-                        // AUTOINFOSCAN
-                        //=============================================================================================
-                    } else if (lastRequest.startsWith("AUTOINFOSCAN ")) {
-                        StringTokenizer tokens = new StringTokenizer(lastRequest.substring("AUTOINFOSCAN ".length()), "|");
+                SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
+                vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
+                captureDevice = getVCaptureDeviceToPoolCaptureDevice(vCaptureDevice, true);
+            }
 
-                        String vCaptureDevice = tokens.nextToken();
-                        if (tokens.countTokens() == 2) {
-                            // V3 encoder
-                            SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
-                            vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
-                            captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
-                        }
+            if (captureDevice != null) {
+                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                sendResponse(String.valueOf(captureDevice.getRecordedBytes()));
+            }
 
-                        String chanString = tokens.nextToken();
-                        String returnValue = "ERROR";
+            //=============================================================================================
+            // GET_FILE_SIZE (return the size of a file that might not currently be recording)
+            //=============================================================================================
+        } else if (lastRequest.startsWith("GET_FILE_SIZE ")) {
+            String getFilename = lastRequest.substring("GET_FILE_SIZE ".length());
+
+            // Recordings in progress are updated by the consumer writing them.
+            long size = RecordingSizeRegistry.getSize(getFilename);
+
+            if (size >= 0) {
+                sendTraceResponse(String.valueOf(size));
+            } else {
+                // Find the device capturing this file.
+                captureDevice = SageTVManager.getCaptureDeviceByFilename(getFilename);
+
+                if (captureDevice != null) {
+                    setThreadName(null, captureDevice.getEncoderName());
+
+                    sendTraceResponse(String.valueOf(captureDevice.getRecordedBytes()));
+                } else {
+                    try {
+                        sendTraceResponse(String.valueOf(new java.io.File(getFilename).length()));
+                    } catch (Exception e) {
+                        logger.error("Unable to get the file size of '{}'.", getFilename);
+                        sendTraceResponse("0");
+                    }
+                }
+            }
 
-                        if (captureDevice != null) {
-                            setThreadName(vCaptureDevice, captureDevice.getEncoderName());
-                            lockEncoder(captureDevice);
-                            returnValue = captureDevice.scanChannelInfo(chanString);
-                        }
+            //=============================================================================================
+            // NOOP
+            //=============================================================================================
+        } else if (lastRequest.equals("NOOP")) {
+            sendTraceResponse("OK");
+
+            //=============================================================================================
+            // TUNE (tunes a channel)
+            //=============================================================================================
+        } else if (lastRequest.startsWith("TUNE ")) {
+            /*StringTokenizer tokens = new StringTokenizer(lastRequest.substring(5), "|");
+
+            String vCaptureDevice = null;
+            if (tokens.countTokens() == 2) {
+                // V3 encoder
+                vCaptureDevice = tokens.nextToken();
+
+                SageTVDeviceType deviceType = SageTVDeviceType.getTypeForName(vCaptureDevice);
+                vCaptureDevice = SageTVDeviceType.trimToName(vCaptureDevice, deviceType);
+                captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+            }
 
-                        sendResponse(returnValue);
+            String chanString = tokens.nextToken();
 
-                        //=============================================================================================
-                        // PROPERTIES
-                        //=============================================================================================
-                    } else if (lastRequest.equals("PROPERTIES")) {
+            if (captureDevice != null) {
+                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                lockEncoder(captureDevice);
+                captureDevice.tuneToChannel(chanString);
+            }*/
 
-                        String properties = SageTVManager.getAllTunerProperties(this);
+            logger.warn("SageTV requested '{}'.", lastRequest);
+            sendResponse("OK");
 
-                        int size = 0;
 
-                        for (char letter : properties.toCharArray()) {
-                            if (letter == '\r') {
-                                size += 1;
-                            }
-                        }
+            //=============================================================================================
+            // AUTOTUNE (checks if channel is tunable or not)
+            //=============================================================================================
+        } else if (lastRequest.startsWith("AUTOTUNE ")) {
+            /*StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
 
-                        out.write(String.valueOf(size) + "\r\n");
-                        out.write(properties);
-                        out.flush();
+            String vCaptureDevice = null;
+            if (tokens.countTokens() == 2) {
+                // V3 encoder
+                vCaptureDevice = tokens.nextToken();
 
-                        logger.info("Sent PROPERTIES.");
-                    } else if (lastRequest.equals("QUIT")) {
-                        break;
-                    } else {
-                        logger.error("Unknown command: {}", lastRequest);
-                    }
+                SageTVDeviceType deviceType = SageTVDeviceType.getTypeForName(vCaptureDevice);
+                vCaptureDevice = SageTVDeviceType.trimToName(vCaptureDevice, deviceType);
+                captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
+            }
 
-                } catch (IOException e) {
-                    logger.error("The SageTV server has disconnected ungracefully => ", e);
-                    break;
-                }
+            String chanString = tokens.nextToken();
+            Boolean returnValue = false;
 
-                //out.flush();
+            if (captureDevice != null) {
+                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                lockEncoder(captureDevice);
+                returnValue = captureDevice.autoTuneChannel(chanString);
             }
 
-            if (logger.isTraceEnabled()) {
-                logger.trace("Closing connection to {} on port {}",
-                        socket.getInetAddress().getHostAddress(), socket.getPort());
+            sendResponse((returnValue ? "OK" : "NO_SIGNAL"));*/
+
+            logger.warn("SageTV requested '{}'.", lastRequest);
+            sendResponse("OK");
+
+            //=============================================================================================
+            // AUTOSCAN (checks if channel is tunable or not)
+            //=============================================================================================
+        } else if (lastRequest.startsWith("AUTOSCAN ")) {
+            /*StringTokenizer tokens = new StringTokenizer(lastRequest.substring(9), "|");
+
+            String vCaptureDevice = null;
+            if (tokens.countTokens() == 2) {
+                // V3 encoder
+                vCaptureDevice = tokens.nextToken();
+
+                SageTVDeviceType deviceType = SageTVDeviceType.getTypeForName(vCaptureDevice);
+                vCaptureDevice = SageTVDeviceType.trimToName(vCaptureDevice, deviceType);
+                captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
             }
-        } catch (Exception e) {
-            // This kind of exception appears to mostly happen when stopping the SageTV server.
-            logger.debug("An unhandled exception was created => ", e);
-        } catch (Throwable e) {
-            // This exception usually catches issues like a buffer could not be allocated. If this
-            // exception is being thrown, we have a problem that must be fixed.
-            logger.error("An unhandled throwable was created => ", e);
-        } finally {
 
-            try {
-                if (in != null) {
-                    in.close();
-                }
-            } catch (Exception e) {
-                logger.trace("Failed to close BufferedReader => ", e);
+            String chanString = tokens.nextToken();
+            boolean returnValue = false;
+
+            if (captureDevice != null) {
+                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                lockEncoder(captureDevice);
+                returnValue = captureDevice.autoScanChannel(chanString);
             }
 
-            try {
-                if (out != null) {
-                    out.close();
-                }
-            } catch (Exception e) {
-                logger.trace("Failed to close OutputStreamWriter => ", e);
+            sendResponse((returnValue ? "OK" : "NO_SIGNAL"));*/
+
+            logger.warn("SageTV requested '{}'.", lastRequest);
+            sendResponse("OK");
+
+            //=============================================================================================
+            // AUTOINFOSCAN
+            //=============================================================================================
+        } else if (lastRequest.startsWith("AUTOINFOSCAN ")) {
+            StringTokenizer tokens = new StringTokenizer(lastRequest.substring("AUTOINFOSCAN ".length()), "|");
+
+            String vCaptureDevice = tokens.nextToken();
+            if (tokens.countTokens() == 2) {
+                // V3 encoder
+                SageTVDeviceCrossbar deviceType = SageTVDeviceCrossbar.getTypeForName(vCaptureDevice, crossbarIndex);
+                vCaptureDevice = SageTVDeviceCrossbar.trimToName(vCaptureDevice, deviceType, crossbarIndex[0]);
+                captureDevice = getAndLockCaptureDevice(vCaptureDevice, true);
             }
 
-            try {
-                if (socket != null && socket.isConnected()) {
-                    socket.close();
+            String chanString = tokens.nextToken();
+            String returnValue = "ERROR";
+
+            if (captureDevice != null) {
+                setThreadName(vCaptureDevice, captureDevice.getEncoderName());
+                lockEncoder(captureDevice);
+                returnValue = captureDevice.scanChannelInfo(chanString);
+            }
+
+            sendResponse(returnValue);
+
+            //=============================================================================================
+            // PROPERTIES
+            //=============================================================================================
+        } else if (lastRequest.equals("PROPERTIES")) {
+
+            String properties = SageTVManager.getAllTunerProperties(this);
+
+            int size = 0;
+
+            for (char letter : properties.toCharArray()) {
+                if (letter == '\r') {
+                    size += 1;
                 }
-            } catch (Exception e) {
-                logger.trace("Failed to close socket => ", e);
             }
+
+            out.write(String.valueOf(size) + "\r\n");
+            out.write(properties);
+            out.flush();
+
+            logger.info("Sent PROPERTIES.");
+        } else if (lastRequest.equals("QUIT")) {
+            return false;
+        } else {
+            logger.error("Unknown command: {}", lastRequest);
         }
 
-        logger.exit();
+        return true;
     }
 
     private void setThreadName(String virtualDevice, String poolDevice) {
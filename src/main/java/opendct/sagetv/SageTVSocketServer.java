@@ -17,6 +17,7 @@
 package opendct.sagetv;
 
 import opendct.capture.CaptureDevice;
+import opendct.config.Config;
 import opendct.config.ExitCode;
 import opendct.power.NetworkPowerEventManger;
 import opendct.util.ThreadPool;
@@ -28,7 +29,11 @@ import java.net.*;
 import java.util.HashSet;
 
 public class SageTVSocketServer implements Runnable {
-    private final Logger logger = LogManager.getLogger(SageTVSocketServer.class);
+    private static final Logger logger = LogManager.getLogger(SageTVSocketServer.class);
+
+    // When enabled, all ports are handled by one selector thread instead of a thread per port and
+    // a thread per connection.
+    private static final boolean USE_SELECTOR = Config.getBoolean("sagetv.server.selector", true);
 
     private volatile boolean listening = false;
     private Thread socketServerThread;
@@ -36,7 +41,7 @@ public class SageTVSocketServer implements Runnable {
 
     // Every unique IP address that connects to this program is placed in this list for one time
     // operations.
-    private static HashSet<InetAddress> registeredRemoteIps = new HashSet<>();
+    private static final HashSet<InetAddress> registeredRemoteIps = new HashSet<>();
     private ServerSocket serverSocket = null;
 
     // This is to support V1.0 capture devices. This will not always be the actual capture device
@@ -76,20 +81,31 @@ public class SageTVSocketServer implements Runnable {
                 return logger.exit(false);
             }
 
-            socketServerThread = new Thread(this);
-
-            logger.info("Opening ServerSocket on port {}...", listenPort);
-            try {
-                serverSocket = new ServerSocket(listenPort);
-                serverSocket.setSoTimeout(30000);
-            } catch (IOException e) {
-                logger.error("Unable to open SocketServer on port {} => {}", listenPort, e);
-                error = true;
-            }
+            if (USE_SELECTOR) {
+                logger.info("Opening ServerSocketChannel on port {}...", listenPort);
+                try {
+                    SageTVCommandServer.startListening(listenPort, captureDevice);
+                    listening = true;
+                } catch (IOException e) {
+                    logger.error("Unable to open ServerSocketChannel on port {} => {}", listenPort, e);
+                    error = true;
+                }
+            } else {
+                socketServerThread = new Thread(this);
+
+                logger.info("Opening ServerSocket on port {}...", listenPort);
+                try {
+                    serverSocket = new ServerSocket(listenPort);
+                    serverSocket.setSoTimeout(30000);
+                } catch (IOException e) {
+                    logger.error("Unable to open SocketServer on port {} => {}", listenPort, e);
+                    error = true;
+                }
 
-            if (!error) {
-                socketServerThread.setName("SageTVSocketServer-" + socketServerThread.getId() + ":" + listenPort);
-                socketServerThread.start();
+                if (!error) {
+                    socketServerThread.setName("SageTVSocketServer-" + socketServerThread.getId() + ":" + listenPort);
+                    socketServerThread.start();
+                }
             }
         }
 
@@ -119,6 +135,12 @@ public class SageTVSocketServer implements Runnable {
             }
             listening = false;
 
+            if (USE_SELECTOR) {
+                SageTVCommandServer.stopListening(listenPort);
+                logger.exit();
+                return;
+            }
+
             try {
                 serverSocket.close();
             } catch (IOException e) {
@@ -162,6 +184,38 @@ public class SageTVSocketServer implements Runnable {
         return listenPort;
     }
 
+    /**
+     * Registers the local interface used to reach a SageTV server the first time it connects.
+     *
+     * @param remoteAddress The address of the SageTV server.
+     */
+    protected static void registerRemoteAddress(InetAddress remoteAddress) {
+        synchronized (registeredRemoteIps) {
+            // This will keep this task from being performed constantly on connection. It only
+            // needs to be done once.
+            if (registeredRemoteIps.contains(remoteAddress)) {
+                return;
+            }
+
+            if (remoteAddress instanceof Inet4Address &&
+                    !remoteAddress.isLoopbackAddress()) {
+                try {
+                    NetworkPowerEventManger.POWER_EVENT_LISTENER.addDependentInterface(
+                            remoteAddress);
+
+                } catch (Exception e) {
+                    logger.debug("Unable to register a local interface for the" +
+                                    " external IP address {}. Will not try again => ",
+                            remoteAddress, e);
+                }
+            } else {
+                logger.warn("IPv6 connection detected. This is an untested configuration.");
+            }
+
+            registeredRemoteIps.add(remoteAddress);
+        }
+    }
+
     public void run() {
         logger.entry();
         logger.info("Started listening on port {}...", listenPort);
@@ -180,28 +234,7 @@ public class SageTVSocketServer implements Runnable {
 
                 ThreadPool.submit(new SageTVRequestHandler(socket, captureDevice),  Thread.NORM_PRIORITY, "SageTVRequestHandler", "Unknown-" + listenPort);
 
-                InetAddress remoteAddress = socket.getInetAddress();
-
-                // This will keep this task from being performed constantly on connection. It only
-                // needs to be done once.
-                if (!registeredRemoteIps.contains(remoteAddress)) {
-                    if (remoteAddress instanceof Inet4Address &&
-                            !remoteAddress.isLoopbackAddress()) {
-                        try {
-                            NetworkPowerEventManger.POWER_EVENT_LISTENER.addDependentInterface(
-                                    remoteAddress);
-
-                        } catch (Exception e) {
-                            logger.debug("Unable to register a local interface for the" +
-                                            " external IP address {}. Will not try again => ",
-                                    socket.getInetAddress(), e);
-                        }
-                    } else {
-                        logger.warn("IPv6 connection detected. This is an untested configuration.");
-                    }
-
-                    registeredRemoteIps.add(socket.getInetAddress());
-                }
+                registerRemoteAddress(socket.getInetAddress());
             } catch (SocketTimeoutException e) {
                 if (listening) {
                     try {
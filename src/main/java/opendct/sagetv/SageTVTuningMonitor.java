@@ -22,6 +22,7 @@ import opendct.capture.InfiniTVCaptureDevice;
 import opendct.channel.CopyProtection;
 import opendct.config.Config;
 import opendct.consumer.MediaServerConsumerImpl;
+import opendct.util.SlidingRateWindow;
 import opendct.util.Util;
 import opendct.video.java.VideoUtil;
 import org.apache.logging.log4j.LogManager;
@@ -30,42 +31,89 @@ import org.apache.logging.log4j.Logger;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches recordings for streams that have stopped and re-tunes them.
+ * <p/>
+ * Each recording has its own check that runs on a shared scheduler. A check samples how many
+ * bytes have been recorded and how many packets have been produced, and a recording is
+ * considered stalled when the recorded byte rate over the last window falls below a small
+ * percentage of the rate the recording has been running at. Re-tunes run as tasks on a small
+ * fixed pool so they can be cancelled and never hold up the checks.
+ */
 public class SageTVTuningMonitor {
     private final static Logger logger = LogManager.getLogger(SageTVTuningMonitor.class);
     private final static boolean retuneEnabled = Config.getBoolean("retune_enable", true);
     private final static boolean retuneCetonOnly = Config.getBoolean("retune_ceton_only", true);
 
-    private static final ReentrantReadWriteLock queueLock = new ReentrantReadWriteLock(true);
-
-    private static Thread monitorThread;
-    private static final Map<String, MonitoredRecording> recordingQueue = new HashMap<>();
+    private final static int CHECK_THREADS =
+            Math.max(1, Config.getInteger("sagetv.tuning_monitor.check_threads", 2));
+    private final static int RETUNE_THREADS =
+            Math.max(1, Config.getInteger("sagetv.tuning_monitor.retune_threads", 4));
+    private final static long CHECK_INTERVAL_MS =
+            Math.max(50, Config.getLong("sagetv.tuning_monitor.check_interval_ms", 250));
+    private final static long STALL_WINDOW_MS =
+            Math.max(CHECK_INTERVAL_MS * 2, Config.getLong("sagetv.tuning_monitor.stall_window_ms", 1000));
+    private final static int STALL_PERCENT =
+            Math.max(0, Math.min(100, Config.getInteger("sagetv.tuning_monitor.stall_percent", 5)));
+    private final static long START_GRACE_MS =
+            Math.max(0, Config.getLong("sagetv.tuning_monitor.start_grace_ms", 20000));
+
+    // How often to ask the capture device for the copy protection of the channel. This can be a
+    // network request, so it's not done on every check.
+    private final static long COPY_PROTECTION_UNKNOWN_MS = 1000;
+    private final static long COPY_PROTECTION_NONE_MS = 16000;
+
+    private static final Object monitorLock = new Object();
+    private static ScheduledExecutorService checkScheduler;
+    private static ExecutorService retunePool;
+
+    private static final ConcurrentHashMap<String, MonitoredRecording> recordingQueue =
+            new ConcurrentHashMap<>();
+
+    public static void startMonitor() {
+        synchronized (monitorLock) {
+            if (checkScheduler != null && !checkScheduler.isShutdown()) {
+                return;
+            }
 
+            checkScheduler = Executors.newScheduledThreadPool(CHECK_THREADS,
+                    new MonitorThreadFactory("SageTVTuningMonitor-"));
+            retunePool = Executors.newFixedThreadPool(RETUNE_THREADS,
+                    new MonitorThreadFactory("Retune-"));
 
-    public synchronized static void startMonitor() {
-        if (monitorThread != null && monitorThread.isAlive()) {
-            return;
+            logger.info("Tuning monitor started.");
         }
-
-        monitorThread = new Thread(new MonitorThread());
-        monitorThread.setName("SageTVTuningMonitor-" + monitorThread.getId());
-        monitorThread.start();
     }
 
-    public synchronized static void stopMonitor() {
-        if (monitorThread != null) {
-            monitorThread.interrupt();
+    public static void stopMonitor() {
+        synchronized (monitorLock) {
+            if (checkScheduler != null) {
+                checkScheduler.shutdownNow();
+                retunePool.shutdownNow();
+                checkScheduler = null;
+                retunePool = null;
+
+                logger.info("Tuning monitor stopped.");
+            }
         }
 
         clearQueue();
     }
 
     public static void pauseMonitorRecording(CaptureDevice captureDevice) {
-        queueLock.readLock().lock();
-
         try {
             MonitoredRecording monitoredRecording = recordingQueue.get(captureDevice.getEncoderName());
 
@@ -75,34 +123,34 @@ public class SageTVTuningMonitor {
                 return;
             }
 
-            monitoredRecording.active = false;
+            RetuneTask retuneTask;
 
-            // If a re-tune is currently in progress, unfortunately we just have to wait it out.
-            if (monitoredRecording.retuneThread != null && monitoredRecording.retuneThread.isAlive()) {
-                monitoredRecording.retuneThread.interrupt();
-                monitoredRecording.retuneThread.join(15000);
+            synchronized (monitoredRecording) {
+                monitoredRecording.active = false;
+                retuneTask = monitoredRecording.retuneTask;
+            }
 
-                if (monitoredRecording.retuneThread.isAlive()) {
-                    logger.warn("Waited over 15 seconds for the re-tune thread to stop.");
+            // If a re-tune is currently in progress, unfortunately we just have to wait it out.
+            if (retuneTask != null && !retuneTask.cancel()) {
+                if (!retuneTask.awaitFinished(15000)) {
+                    logger.warn("Waited over 15 seconds for the re-tune to stop.");
 
-                    monitoredRecording.retuneThread.interrupt();
-                    monitoredRecording.retuneThread.join(30000);
-                    if (monitoredRecording.retuneThread.isAlive()) {
-                        logger.warn("Waited over 45 seconds for the re-tune thread to stop. It is still running.");
+                    retuneTask.cancel();
+                    if (!retuneTask.awaitFinished(30000)) {
+                        logger.warn("Waited over 45 seconds for the re-tune to stop. It is still running.");
                     }
                 }
             }
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted while waiting for the re-tune of '{}' to stop.",
+                    captureDevice.getEncoderName());
         } catch (Throwable e) {
             logger.error("Unexpected exception while pausing '{}' => ",
                     captureDevice.getEncoderName(), e);
-        } finally {
-            queueLock.readLock().unlock();
         }
     }
 
     public static void resumeMonitorRecording(CaptureDevice captureDevice, int uploadID, InetAddress remoteAddress) {
-        queueLock.readLock().lock();
-
         try {
             MonitoredRecording monitoredRecording = recordingQueue.get(captureDevice.getEncoderName());
 
@@ -112,14 +160,14 @@ public class SageTVTuningMonitor {
                 return;
             }
 
-            monitoredRecording.uploadID = uploadID;
-            monitoredRecording.remoteAddress = remoteAddress;
-            monitoredRecording.active = true;
+            synchronized (monitoredRecording) {
+                monitoredRecording.uploadID = uploadID;
+                monitoredRecording.remoteAddress = remoteAddress;
+                monitoredRecording.active = true;
+            }
         } catch (Throwable e) {
             logger.error("Unexpected exception while pausing '{}' => ",
                     captureDevice.getEncoderName(), e);
-        } finally {
-            queueLock.readLock().unlock();
         }
     }
 
@@ -128,74 +176,111 @@ public class SageTVTuningMonitor {
                                         SageTVDeviceCrossbar deviceType, int crossbarIndex,
                                         int uploadID, InetAddress remoteAddress) {
 
-        Thread checkThread = monitorThread;
-        if (checkThread == null || !checkThread.isAlive()) {
-            logger.debug("Tuning monitor is not running." +
-                    " This recording will not re-tune automatically.");
-            return;
-        }
+        try {
+            synchronized (monitorLock) {
+                if (checkScheduler == null || checkScheduler.isShutdown()) {
+                    logger.debug("Tuning monitor is not running." +
+                            " This recording will not re-tune automatically.");
+                    return;
+                }
 
-        queueLock.writeLock().lock();
+                MonitoredRecording newRecording = new MonitoredRecording(
+                        captureDevice, channel, encodingQuality, bufferSize, deviceType, crossbarIndex,
+                        uploadID, remoteAddress);
 
-        try {
-            MonitoredRecording newRecording = new MonitoredRecording(
-                    captureDevice, channel, encodingQuality, bufferSize, deviceType, crossbarIndex,
-                    uploadID, remoteAddress);
+                MonitoredRecording oldRecording =
+                        recordingQueue.put(captureDevice.getEncoderName(), newRecording);
 
-            recordingQueue.put(captureDevice.getEncoderName(), newRecording);
+                if (oldRecording != null) {
+                    oldRecording.cancel();
+                }
+
+                newRecording.checkTask = checkScheduler.scheduleWithFixedDelay(
+                        new CheckTask(newRecording), CHECK_INTERVAL_MS, CHECK_INTERVAL_MS,
+                        TimeUnit.MILLISECONDS);
+            }
         } catch (Throwable e) {
             logger.error("Unexpected exception while tuning '{}' => ",
                     captureDevice.getEncoderName(), e);
-        } finally {
-            queueLock.writeLock().unlock();
         }
     }
 
     public static void stopMonitorRecording(CaptureDevice captureDevice) {
-        queueLock.writeLock().lock();
-
         try {
-            recordingQueue.remove(captureDevice.getEncoderName());
+            MonitoredRecording recording = recordingQueue.remove(captureDevice.getEncoderName());
+
+            if (recording != null) {
+                recording.cancel();
+            }
         } catch (Throwable e) {
             logger.error("Unexpected exception while stopping '{}' => ",
                     captureDevice.getEncoderName(), e);
-        } finally {
-            queueLock.writeLock().unlock();
         }
     }
 
     public static void clearQueue() {
-        queueLock.writeLock().lock();
+        for (MonitoredRecording recording : recordingQueue.values()) {
+            recording.cancel();
+        }
+
+        recordingQueue.clear();
+    }
+
+    /**
+     * Stop monitoring a specific recording.
+     * <p/>
+     * This will not remove a newer recording on the same capture device.
+     */
+    private static void removeRecording(MonitoredRecording recording) {
+        recordingQueue.remove(recording.captureDevice.getEncoderName(), recording);
+        recording.cancel();
+    }
+
+    private static boolean submitRetune(Runnable runnable) {
+        ExecutorService pool = retunePool;
+
+        if (pool == null) {
+            return false;
+        }
 
         try {
-            recordingQueue.clear();
-        } finally {
-            queueLock.writeLock().unlock();
+            pool.submit(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.debug("Tuning monitor is stopping. Task was not started.");
+            return false;
         }
     }
 
     public static class MonitoredRecording {
+        // These can be changed by SageTV requests. Everything else is only used by the check task.
         protected volatile boolean active = true;
-        protected Thread retuneThread = null;
-        protected String filename = null;
-        protected long lessThanRecordedBytes = 0;
-        protected long lessThanProducedPackets = 0;
-        protected CopyProtection copyProtection = CopyProtection.UNKNOWN;
+        protected volatile int uploadID;
+        protected volatile InetAddress remoteAddress;
+        protected volatile RetuneTask retuneTask = null;
+        protected volatile ScheduledFuture checkTask = null;
+        protected volatile String filename = null;
 
-        protected int checkDelay = 16000;
-        // Wait a little longer than usual for the first tuning.
-        protected long nextCheck = System.currentTimeMillis() + checkDelay + 4000;
+        protected CopyProtection copyProtection = CopyProtection.UNKNOWN;
+        protected long nextCopyProtectionCheck = 0;
         protected long lastRecordedBytes = -1;
         protected long lastProducedPackets = -1;
-        protected int noRecordedBytes = 0;
+
+        // Wait a little longer for the first tuning.
+        protected long graceUntil = System.currentTimeMillis() + START_GRACE_MS;
+        protected boolean streaming = false;
+        protected long averageRate = 0;
+        protected long consumerStalledSince = 0;
+        protected final long stallWindowMs;
+        protected final SlidingRateWindow recordedRate;
+        protected final SlidingRateWindow producedRate;
+
         protected final CaptureDevice captureDevice;
         protected final String channel;
         protected final String encodingQuality;
         protected final long bufferSize;
         protected final SageTVDeviceCrossbar deviceType;
         protected final int crossbarIndex;
-        protected int uploadID;
-        protected InetAddress remoteAddress;
 
         public MonitoredRecording(CaptureDevice captureDevice, String channel,
                                   String encodingQuality, long bufferSize,
@@ -211,349 +296,426 @@ public class SageTVTuningMonitor {
             this.uploadID = uploadID;
             this.remoteAddress = remoteAddress;
             this.filename = captureDevice.getRecordFilename();
-            // If we know we are working with a network share, increase the delay before we assume
-            // there's a problem.
-            if (filename.startsWith("\\\\")) {
-                this.checkDelay *= 2;
+
+            // If we know we are working with a network share, writes can be delayed for longer,
+            // so increase the window before we assume there's a problem.
+            if (filename != null && filename.startsWith("\\\\")) {
+                stallWindowMs = STALL_WINDOW_MS * 2;
+            } else {
+                stallWindowMs = STALL_WINDOW_MS;
+            }
+
+            recordedRate = new SlidingRateWindow(stallWindowMs);
+            producedRate = new SlidingRateWindow(stallWindowMs);
+        }
+
+        /**
+         * Forget the current rates and wait for the stream to start again.
+         */
+        protected void restart(long currentTime) {
+            recordedRate.clear();
+            producedRate.clear();
+            streaming = false;
+            consumerStalledSince = 0;
+            graceUntil = currentTime + START_GRACE_MS;
+        }
+
+        /**
+         * Stop checking this recording and cancel any re-tune that hasn't started yet.
+         */
+        protected void cancel() {
+            ScheduledFuture check = checkTask;
+            if (check != null) {
+                check.cancel(false);
+            }
+
+            RetuneTask retune = retuneTask;
+            if (retune != null) {
+                retune.cancel();
             }
         }
     }
 
-    public static class MonitorThread implements Runnable {
+    private static class CheckTask implements Runnable {
+        private final MonitoredRecording recording;
+
+        private CheckTask(MonitoredRecording recording) {
+            this.recording = recording;
+        }
 
         @Override
         public void run() {
-            logger.info("Tuning monitor thread started.");
+            try {
+                check();
+            } catch (Throwable e) {
+                // An exception would cancel all future checks for this recording.
+                logger.error("Unexpected exception while monitoring '{}' => ",
+                        recording.captureDevice.getEncoderName(), e);
+            }
+        }
+
+        private void check() {
+            long currentTime = System.currentTimeMillis();
+
+            if (!recording.active) {
+                recording.restart(currentTime);
+                return;
+            }
 
-            while(!Thread.currentThread().isInterrupted()) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    logger.info("Tuning monitor thread interrupted.");
+            RetuneTask retuneTask = recording.retuneTask;
+            if (retuneTask != null) {
+                // The last re-tune request is still in progress.
+                if (!retuneTask.isFinished()) {
                     return;
                 }
 
-                queueLock.writeLock().lock();
+                recording.retuneTask = null;
+                recording.restart(System.currentTimeMillis());
+            }
 
-                try {
-                    if (recordingQueue.size() == 0) {
-                        continue;
-                    }
+            if (checkCopyProtection(currentTime)) {
+                return;
+            }
 
-                    long currentTime = System.currentTimeMillis();
-
-                    for (Map.Entry<String, MonitoredRecording> entry : recordingQueue.entrySet()) {
-                        final MonitoredRecording recording = entry.getValue();
-
-                        // This keeps the monitoring from holding up new tuning requests.
-                        if (queueLock.hasQueuedThreads()) {
-                            break;
-                        }
-
-                        if (recording == null) {
-                            continue;
-                        } else if (!recording.active) {
-                            recording.nextCheck = System.currentTimeMillis() + recording.checkDelay;
-                            continue;
-                        }
-
-                        if (recording.copyProtection == CopyProtection.UNKNOWN) {
-
-                            recording.copyProtection = recording.captureDevice.getCopyProtection();
-
-                            if (recording.copyProtection == CopyProtection.COPY_NEVER ||
-                                    recording.copyProtection == CopyProtection.COPY_ONCE) {
-
-                                logger.info("The capture device has reported that the tuned" +
-                                                " channel is {}, stopping monitoring immediately.",
-                                        recording.copyProtection);
-
-                                recordingQueue.remove(recording.captureDevice.getEncoderName());
-
-                                Thread execute = new Thread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        // The capture device needs to stream the message because the user
-                                        // will not see anything if the bytes streamed doesn't increment.
-                                        if (recording.copyProtection == CopyProtection.COPY_ONCE) {
-                                            recording.captureDevice.streamError(VideoUtil.COPY_ONCE_TS,
-                                                    new InetSocketAddress(
-                                                            recording.remoteAddress,
-                                                            Config.getInteger(
-                                                                    "consumer.ffmpeg.upload_id_port", 7818)
-                                                    ), recording.uploadID);
-                                        } else {
-                                            recording.captureDevice.streamError(VideoUtil.COPY_NEVER_TS,
-                                                    new InetSocketAddress(
-                                                            recording.remoteAddress,
-                                                            Config.getInteger(
-                                                                    "consumer.ffmpeg.upload_id_port", 7818)
-                                                    ), recording.uploadID);
-                                        }
-                                        logger.debug("Error stream finished.");
-                                    }
-                                });
-                                execute.setName("AsyncError-" + execute.getId());
-                                execute.start();
-
-                                // We need to break here or the next iteration might fail. The
-                                // alternative is to collect what needs to be removed and remove it
-                                // after iterating over all of the content, but that may leave a
-                                // window open for this action to remove a new tuning request which
-                                // we really don't want to happen.
-                                break;
-                            }
-                        }
-
-                        if (recording.nextCheck > currentTime || recording.bufferSize > 0) {
-                            continue;
-                        }
-
-                        if (recording.copyProtection == CopyProtection.UNKNOWN ||
-                                (recording.copyProtection == CopyProtection.NONE &&
-                                        recording.lastRecordedBytes < 104857600)) {
-
-                            recording.copyProtection = recording.captureDevice.getCopyProtection();
-
-                            if (recording.copyProtection == CopyProtection.COPY_NEVER ||
-                                    recording.copyProtection == CopyProtection.COPY_ONCE) {
-
-                                logger.info("The capture device has reported that the tuned" +
-                                                " channel is {}, stopping monitoring immediately.",
-                                        recording.copyProtection);
-
-                                recordingQueue.remove(recording.captureDevice.getEncoderName());
-
-                                Thread execute = new Thread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        // The capture device needs to stream the message because
-                                        // the user will not see anything if the bytes streamed
-                                        // doesn't increment.
-                                        if (recording.copyProtection == CopyProtection.COPY_ONCE) {
-                                            recording.captureDevice.streamError(
-                                                    VideoUtil.COPY_ONCE_TS,
-                                                    new InetSocketAddress(
-                                                            recording.remoteAddress,
-                                                            Config.getInteger(
-                                                                    "consumer.ffmpeg.upload_id_port", 7818)
-                                                    ), recording.uploadID);
-                                        } else {
-                                            recording.captureDevice.streamError(
-                                                    VideoUtil.COPY_NEVER_TS,
-                                                    new InetSocketAddress(
-                                                            recording.remoteAddress,
-                                                            Config.getInteger(
-                                                                    "consumer.ffmpeg.upload_id_port", 7818)
-                                                    ), recording.uploadID);
-                                        }
-                                        logger.debug("Error stream finished.");
-                                    }
-                                });
-                                execute.setName("AsyncError-" + execute.getId());
-                                execute.start();
-
-                                // We need to break here or the next iteration might fail. The
-                                // alternative is to collect what needs to be removed and remove it
-                                // after iterating over all of the content, but that may leave a
-                                // window open for this action to remove a new tuning request which
-                                // we really don't want to happen.
-                                break;
-                            }
-                        }
-
-                        long producedPackets = recording.captureDevice.getProducedPackets();
-                        long recordedBytes = recording.captureDevice.getRecordedBytes();
-
-                        if (recording.lastRecordedBytes == recordedBytes) {
-                            recording.filename = recording.captureDevice.getRecordFilename();
-                            recording.copyProtection = recording.captureDevice.getCopyProtection();
-
-                            logger.debug("The consumer appears to be stuck at {}," +
-                                    " file system length {}, file name '{}', copy protection {}.",
-                                    recording.lastRecordedBytes,
-                                    recording.filename != null ?
-                                            new File(recording.filename).length() : -1,
-                                    recording.filename != null ?
-                                            recording.filename : "",
-                                    recording.copyProtection);
-
-                            if (recording.lastRecordedBytes != 0) {
-                                recording.noRecordedBytes += 1;
-                            }
-                        } else {
-                            recording.noRecordedBytes = 0;
-                        }
-
-                        if (recording.lastProducedPackets == producedPackets) {
-                            logger.debug("The producer appears to be stuck at {}.",
-                                    recording.lastProducedPackets);
-                        }
-
-                        // If both of these appear to be stuck, re-tune.
-                        if ((recording.lastProducedPackets == producedPackets &&
-                                recording.lastRecordedBytes == recordedBytes) ||
-                                recording.noRecordedBytes > 2) {
-
-                            // The last re-tune request is still in progress.
-                            if (recording.retuneThread != null &&
-                                    recording.retuneThread.isAlive()) {
-
-                                recording.nextCheck = System.currentTimeMillis() + recording.checkDelay;
-                                continue;
-                            }
-
-                            final boolean consumerStuck = recording.noRecordedBytes > 2;
-                            final CaptureDevice captureDevice = recording.captureDevice;
-                            final String channel = recording.channel;
-                            final String encodingQuality = recording.encodingQuality;
-                            final long bufferSize = recording.bufferSize;
-                            final SageTVDeviceCrossbar deviceType = recording.deviceType;
-                            final int crossbarIndex = recording.crossbarIndex;
-                            final int uploadID = recording.uploadID;
-                            final InetAddress remoteAddress = recording.remoteAddress;
-                            recording.noRecordedBytes = 0;
-
-                            // Don't try to re-tune when using the media server. You could end up
-                            // overwriting what we do have. Let SageTV handle this situation. Also
-                            // by default we are only re-tuning Ceton devices because this is a
-                            // function that SageTV should really be handling, not the network
-                            // encoder.
-                            boolean noRetune = (retuneCetonOnly && !(captureDevice instanceof InfiniTVCaptureDevice)) ||
-                                    captureDevice instanceof BasicCaptureDevice &&
-                                            ((BasicCaptureDevice) captureDevice).getConsumer() instanceof MediaServerConsumerImpl;
-
-                            // This keeps the monitoring from holding up new tuning request and
-                            // potentially re-tuning when a tuner is changing channels anyway.
-                            if (queueLock.hasQueuedThreads()) {
-                                break;
-                            }
-
-                            // If we have decided not to try to re-tune when there is a problem and
-                            // instead wait for SageTV to restart the stream if it thinks there's a
-                            // problem.
-                            if (retuneEnabled && !noRetune) {
-                                recording.retuneThread = new Thread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        boolean tuned = false;
-                                        String localFilename = captureDevice.getRecordFilename();
-
-                                        logger.info("Current copy protection {}.",
-                                                captureDevice.getCopyProtection());
-
-                                        if (Util.isNullOrEmpty(localFilename) && recording.filename == null) {
-                                            logger.error(
-                                                    "Unable to re-tune because there isn't a filename." +
-                                                            " Stopping device monitoring."
-                                            );
-
-                                            stopMonitorRecording(captureDevice);
-
-                                            return;
-                                        }
-
-                                        if (!Util.isNullOrEmpty(localFilename)) {
-                                            recording.filename = localFilename;
-                                        }
-
-                                        if (!consumerStuck) {
-                                            if (captureDevice.isInternalLocked()) {
-                                                tuned = captureDevice.startEncoding(
-                                                        channel, recording.filename,
-                                                        encodingQuality, bufferSize,
-                                                        deviceType, crossbarIndex,
-                                                        uploadID, remoteAddress);
-                                            } else {
-                                                logger.info("Re-tune was cancelled because the" +
-                                                        " capture device is no longer internally" +
-                                                        " locked. Stopping device monitoring.");
-
-                                                stopMonitorRecording(captureDevice);
-                                                return;
-                                            }
-                                        }
-
-                                        // If the channel still won't tune in, start over.
-                                        if (!tuned) {
-                                            localFilename = captureDevice.getRecordFilename();
-
-                                            if (Util.isNullOrEmpty(localFilename) &&
-                                                    recording.filename == null) {
-
-                                                logger.error("Unable to tune because there isn't a" +
-                                                        " filename. Stopping device monitoring.");
-
-                                                stopMonitorRecording(captureDevice);
-                                                return;
-                                            }
-
-                                            if (!Util.isNullOrEmpty(localFilename)) {
-                                                recording.filename = localFilename;
-                                            }
-
-                                            captureDevice.stopEncoding();
-
-                                            if (captureDevice.isInternalLocked()) {
-                                                captureDevice.startEncoding(
-                                                        channel, recording.filename,
-                                                        encodingQuality, bufferSize,
-                                                        deviceType, crossbarIndex,
-                                                        uploadID, remoteAddress);
-                                            }
-                                        }
-                                    }
-                                });
-
-                                recording.retuneThread.setName("Retune-" +
-                                        recording.retuneThread.getId() + ":" +
-                                        captureDevice.getEncoderName());
-
-                                // This keeps the monitoring from holding up new tuning request and
-                                // potentially re-tuning when a tuner is changing channels anyway.
-                                if (queueLock.hasQueuedThreads()) {
-                                    recording.retuneThread = null;
-                                    break;
-                                }
-
-                                // Setting these to the current value will ensure that a log entry is
-                                // created if data starts streaming again.
-                                recording.lastProducedPackets = producedPackets;
-                                recording.lessThanRecordedBytes = recordedBytes;
-
-                                recording.retuneThread.start();
-                            }
-                        }
-
-                        if (recording.lastProducedPackets <= recording.lessThanProducedPackets &&
-                                producedPackets > 0) {
-
-                            recording.lastProducedPackets = 0;
-                            logger.info("'{}' produced first {} packets.",
-                                    recording.captureDevice.getEncoderName(), producedPackets);
-                        }
-
-                        if (recording.lastRecordedBytes <= recording.lessThanRecordedBytes &&
-                                recordedBytes > 0) {
-
-                            recording.lessThanRecordedBytes = 0;
-                            logger.info("'{}' recorded first {} bytes.",
-                                    recording.captureDevice.getEncoderName(), recordedBytes);
-                        }
-
-                        recording.lastProducedPackets = producedPackets;
-                        recording.lastRecordedBytes = recordedBytes;
-
-                        recording.nextCheck = System.currentTimeMillis() + recording.checkDelay;
-                    }
-                } catch (Throwable e) {
-                    logger.error("Unexpected exception while monitoring => ", e);
-                } finally {
-                    queueLock.writeLock().unlock();
+            if (recording.bufferSize > 0) {
+                return;
+            }
+
+            long producedPackets = recording.captureDevice.getProducedPackets();
+            long recordedBytes = recording.captureDevice.getRecordedBytes();
+
+            if (recording.lastProducedPackets <= 0 && producedPackets > 0) {
+                logger.info("'{}' produced first {} packets.",
+                        recording.captureDevice.getEncoderName(), producedPackets);
+            }
+
+            if (recording.lastRecordedBytes <= 0 && recordedBytes > 0) {
+                logger.info("'{}' recorded first {} bytes.",
+                        recording.captureDevice.getEncoderName(), recordedBytes);
+            }
+
+            recording.lastProducedPackets = producedPackets;
+            recording.lastRecordedBytes = recordedBytes;
+
+            recording.producedRate.add(currentTime, producedPackets);
+            recording.recordedRate.add(currentTime, recordedBytes);
+
+            long recordedRate = recording.recordedRate.getRatePerSecond();
+            long producedRate = recording.producedRate.getRatePerSecond();
+
+            if (recordedRate < 0) {
+                return;
+            }
+
+            if (!recording.streaming) {
+                if (recordedRate > 0) {
+                    recording.streaming = true;
+                    recording.averageRate = recordedRate;
+                    return;
+                }
+
+                // Nothing has been recorded yet. Give the capture device time to get going, but if
+                // the producer isn't getting anything either, something is wrong.
+                if (currentTime < recording.graceUntil || producedRate > 0) {
+                    return;
+                }
+
+                logger.info("'{}' has not recorded anything in {}ms and the producer appears to" +
+                                " be stuck.", recording.captureDevice.getEncoderName(),
+                        START_GRACE_MS);
+
+                retune(false, producedPackets, recordedBytes);
+                return;
+            }
+
+            long stallRate = Math.max(1, recording.averageRate * STALL_PERCENT / 100);
+
+            if (recordedRate >= stallRate) {
+                // This moves slowly so a short burst or dip doesn't change what's normal.
+                recording.averageRate = (recording.averageRate * 7 + recordedRate) / 8;
+                recording.consumerStalledSince = 0;
+                return;
+            }
+
+            if (recording.consumerStalledSince == 0) {
+                recording.consumerStalledSince = currentTime;
+                recording.filename = recording.captureDevice.getRecordFilename();
+
+                logger.debug("The consumer appears to be stuck at {} bytes/s over {}ms" +
+                                " (normally {} bytes/s), recorded {}, file system length {}," +
+                                " file name '{}', copy protection {}.",
+                        recordedRate,
+                        recording.stallWindowMs,
+                        recording.averageRate,
+                        recordedBytes,
+                        recording.filename != null ?
+                                new File(recording.filename).length() : -1,
+                        recording.filename != null ?
+                                recording.filename : "",
+                        recording.copyProtection);
+
+                if (producedRate == 0) {
+                    logger.debug("The producer appears to be stuck at {}.", producedPackets);
+                }
+            }
+
+            // If both of these appear to be stuck, re-tune. If only the consumer is stuck, give it
+            // a few windows to recover before starting over.
+            if (producedRate == 0) {
+                retune(false, producedPackets, recordedBytes);
+            } else if (currentTime - recording.consumerStalledSince >= recording.stallWindowMs * 3) {
+                retune(true, producedPackets, recordedBytes);
+            }
+        }
+
+        /**
+         * Checks if the channel is copy protected and stops monitoring if it is.
+         *
+         * @return <i>true</i> if this recording is no longer monitored.
+         */
+        private boolean checkCopyProtection(long currentTime) {
+            boolean check = recording.copyProtection == CopyProtection.UNKNOWN ||
+                    (recording.copyProtection == CopyProtection.NONE &&
+                            recording.lastRecordedBytes < 104857600);
+
+            if (!check || currentTime < recording.nextCopyProtectionCheck) {
+                return false;
+            }
+
+            recording.copyProtection = recording.captureDevice.getCopyProtection();
+            recording.nextCopyProtectionCheck = currentTime +
+                    (recording.copyProtection == CopyProtection.UNKNOWN ?
+                            COPY_PROTECTION_UNKNOWN_MS : COPY_PROTECTION_NONE_MS);
+
+            if (recording.copyProtection != CopyProtection.COPY_NEVER &&
+                    recording.copyProtection != CopyProtection.COPY_ONCE) {
+
+                return false;
+            }
+
+            logger.info("The capture device has reported that the tuned" +
+                            " channel is {}, stopping monitoring immediately.",
+                    recording.copyProtection);
+
+            removeRecording(recording);
+
+            final CopyProtection copyProtection = recording.copyProtection;
+            final InetAddress remoteAddress = recording.remoteAddress;
+            final int uploadID = recording.uploadID;
+
+            submitRetune(new Runnable() {
+                @Override
+                public void run() {
+                    // The capture device needs to stream the message because the user
+                    // will not see anything if the bytes streamed doesn't increment.
+                    recording.captureDevice.streamError(
+                            copyProtection == CopyProtection.COPY_ONCE ?
+                                    VideoUtil.COPY_ONCE_TS : VideoUtil.COPY_NEVER_TS,
+                            new InetSocketAddress(
+                                    remoteAddress,
+                                    Config.getInteger(
+                                            "consumer.ffmpeg.upload_id_port", 7818)
+                            ), uploadID);
+
+                    logger.debug("Error stream finished.");
                 }
+            });
+
+            return true;
+        }
+
+        private void retune(boolean consumerStuck, long producedPackets, long recordedBytes) {
+            CaptureDevice captureDevice = recording.captureDevice;
+
+            // Don't try to re-tune when using the media server. You could end up
+            // overwriting what we do have. Let SageTV handle this situation. Also
+            // by default we are only re-tuning Ceton devices because this is a
+            // function that SageTV should really be handling, not the network
+            // encoder.
+            boolean noRetune = (retuneCetonOnly && !(captureDevice instanceof InfiniTVCaptureDevice)) ||
+                    captureDevice instanceof BasicCaptureDevice &&
+                            ((BasicCaptureDevice) captureDevice).getConsumer() instanceof MediaServerConsumerImpl;
+
+            // Either way, wait for the stream to start again before judging it again.
+            recording.restart(System.currentTimeMillis());
+
+            // If we have decided not to try to re-tune when there is a problem, wait for SageTV to
+            // restart the stream if it thinks there's a problem.
+            if (!retuneEnabled || noRetune) {
+                return;
             }
 
-            logger.info("Tuning monitor thread stopped.");
+            synchronized (recording) {
+                // SageTV is changing this recording, so don't get in the way.
+                if (!recording.active) {
+                    return;
+                }
+
+                RetuneTask retuneTask = new RetuneTask(recording, consumerStuck);
+
+                if (submitRetune(retuneTask)) {
+                    logger.info("Re-tuning '{}' at {} packets produced and {} bytes recorded.",
+                            captureDevice.getEncoderName(), producedPackets, recordedBytes);
+
+                    recording.retuneTask = retuneTask;
+                }
+            }
+        }
+    }
+
+    private static class RetuneTask implements Runnable {
+        private final MonitoredRecording recording;
+        private final boolean consumerStuck;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile Thread thread;
+
+        private RetuneTask(MonitoredRecording recording, boolean consumerStuck) {
+            this.recording = recording;
+            this.consumerStuck = consumerStuck;
+        }
+
+        /**
+         * Cancel this re-tune.
+         *
+         * @return <i>true</i> if the re-tune never started. If it did start, the thread running it
+         *         is interrupted and {@link #awaitFinished(long)} can be used to wait for it.
+         */
+        public boolean cancel() {
+            if (started.compareAndSet(false, true)) {
+                finished.countDown();
+                return true;
+            }
+
+            Thread runningThread = thread;
+            if (runningThread != null) {
+                runningThread.interrupt();
+            }
+
+            return isFinished();
+        }
+
+        public boolean isFinished() {
+            return finished.getCount() == 0;
+        }
+
+        public boolean awaitFinished(long timeoutMs) throws InterruptedException {
+            return finished.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+
+            thread = Thread.currentThread();
+            String oldName = thread.getName();
+            thread.setName(oldName + ":" + recording.captureDevice.getEncoderName());
+
+            try {
+                retune();
+            } catch (Throwable e) {
+                logger.error("Unexpected exception while re-tuning '{}' => ",
+                        recording.captureDevice.getEncoderName(), e);
+            } finally {
+                thread.setName(oldName);
+                thread = null;
+                // Don't leave an interrupt behind for the next task on this thread.
+                Thread.interrupted();
+                finished.countDown();
+            }
+        }
+
+        private void retune() {
+            final CaptureDevice captureDevice = recording.captureDevice;
+            boolean tuned = false;
+            String localFilename = captureDevice.getRecordFilename();
+
+            logger.info("Current copy protection {}.",
+                    captureDevice.getCopyProtection());
+
+            if (Util.isNullOrEmpty(localFilename) && recording.filename == null) {
+                logger.error(
+                        "Unable to re-tune because there isn't a filename." +
+                                " Stopping device monitoring."
+                );
+
+                removeRecording(recording);
+                return;
+            }
+
+            if (!Util.isNullOrEmpty(localFilename)) {
+                recording.filename = localFilename;
+            }
+
+            if (!consumerStuck) {
+                if (captureDevice.isInternalLocked()) {
+                    tuned = captureDevice.startEncoding(
+                            recording.channel, recording.filename,
+                            recording.encodingQuality, recording.bufferSize,
+                            recording.deviceType, recording.crossbarIndex,
+                            recording.uploadID, recording.remoteAddress);
+                } else {
+                    logger.info("Re-tune was cancelled because the" +
+                            " capture device is no longer internally" +
+                            " locked. Stopping device monitoring.");
+
+                    removeRecording(recording);
+                    return;
+                }
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                logger.info("Re-tune was cancelled.");
+                return;
+            }
+
+            // If the channel still won't tune in, start over.
+            if (!tuned) {
+                localFilename = captureDevice.getRecordFilename();
+
+                if (Util.isNullOrEmpty(localFilename) &&
+                        recording.filename == null) {
+
+                    logger.error("Unable to tune because there isn't a" +
+                            " filename. Stopping device monitoring.");
+
+                    removeRecording(recording);
+                    return;
+                }
+
+                if (!Util.isNullOrEmpty(localFilename)) {
+                    recording.filename = localFilename;
+                }
+
+                captureDevice.stopEncoding();
+
+                if (captureDevice.isInternalLocked() && !Thread.currentThread().isInterrupted()) {
+                    captureDevice.startEncoding(
+                            recording.channel, recording.filename,
+                            recording.encodingQuality, recording.bufferSize,
+                            recording.deviceType, recording.crossbarIndex,
+                            recording.uploadID, recording.remoteAddress);
+                }
+            }
+        }
+    }
+
+    private static class MonitorThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        private MonitorThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setName(prefix + thread.getId() + ":" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
         }
     }
 }
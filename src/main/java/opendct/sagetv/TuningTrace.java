@@ -0,0 +1,330 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.sagetv;
+
+import opendct.capture.CaptureDevice;
+import opendct.config.Config;
+import opendct.util.LatencyHistogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A timeline of everything that happens between SageTV asking for a recording to start and the
+ * first byte of the recording being written.
+ * <p/>
+ * A trace is started on the thread handling the request and that thread can add steps with
+ * {@link #markCurrent(String)} without having a reference to the trace. The consumer picks up the trace
+ * with {@link #current()} when it's given the recording, so it can add the steps that happen on
+ * its own thread. Each step records the time since the step before it. When the trace completes,
+ * the timeline is logged, kept for the web interface and the step times are added to the
+ * percentiles for the type of capture device.
+ */
+public class TuningTrace {
+    private static final Logger logger = LogManager.getLogger(TuningTrace.class);
+
+    private static final int HISTORY =
+            Math.max(0, Config.getInteger("sagetv.tuning_trace.history", 20));
+
+    private static final ThreadLocal<TuningTrace> currentTrace = new ThreadLocal<>();
+
+    private static final ArrayDeque<TuningTrace> history = new ArrayDeque<>();
+
+    // Device type > step name > time since the step before it.
+    private static final ConcurrentHashMap<String, Map<String, LatencyHistogram>> stepTimes =
+            new ConcurrentHashMap<>();
+
+    public static final String TOTAL = "total";
+
+    private final long startTime;
+    private final long startNanos;
+    private final String channel;
+    private final String filename;
+    private final ArrayList<Step> steps = new ArrayList<>();
+
+    private String encoderName;
+    private String deviceType;
+    private long lastNanos;
+    private boolean attached;
+    private boolean complete;
+    private boolean success;
+
+    private TuningTrace(String channel, String filename) {
+        this.channel = channel;
+        this.filename = filename;
+        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        lastNanos = startNanos;
+    }
+
+    /**
+     * Start a new trace for the current thread.
+     * <p/>
+     * Any trace already started on this thread is replaced.
+     *
+     * @param channel The channel being tuned.
+     * @param filename The recording being started.
+     * @return The new trace.
+     */
+    public static TuningTrace start(String channel, String filename) {
+        TuningTrace trace = new TuningTrace(channel, filename);
+        currentTrace.set(trace);
+        return trace;
+    }
+
+    /**
+     * Get the trace started on the current thread.
+     *
+     * @return The trace or <i>null</i> if one isn't in progress on this thread.
+     */
+    public static TuningTrace current() {
+        return currentTrace.get();
+    }
+
+    /**
+     * Add a step to the trace started on the current thread.
+     * <p/>
+     * Nothing happens if there isn't a trace in progress on this thread.
+     *
+     * @param step The name of what just finished.
+     */
+    public static void markCurrent(String step) {
+        TuningTrace trace = currentTrace.get();
+
+        if (trace != null) {
+            trace.mark(step);
+        }
+    }
+
+    /**
+     * Stop adding steps from the current thread to its trace.
+     * <p/>
+     * This does not complete the trace. It may still be completed by the consumer.
+     */
+    public static void detach() {
+        currentTrace.remove();
+    }
+
+    /**
+     * Get the most recently completed traces.
+     *
+     * @return The traces with the most recent first.
+     */
+    public static TuningTrace[] getHistory() {
+        synchronized (history) {
+            return history.toArray(new TuningTrace[history.size()]);
+        }
+    }
+
+    /**
+     * Get the times of each step for every type of capture device that has completed a trace.
+     *
+     * @return A read-only map of device types to maps of step names to their times.
+     */
+    public static Map<String, Map<String, LatencyHistogram>> getStepTimes() {
+        return Collections.unmodifiableMap(stepTimes);
+    }
+
+    /**
+     * Set the capture device that was chosen for the recording.
+     *
+     * @param captureDevice The capture device.
+     */
+    public synchronized void setCaptureDevice(CaptureDevice captureDevice) {
+        encoderName = captureDevice.getEncoderName();
+        deviceType = String.valueOf(captureDevice.getEncoderDeviceType());
+    }
+
+    /**
+     * Note that a consumer will complete this trace.
+     * <p/>
+     * If no consumer attaches, the trace is completed when the request is answered.
+     */
+    public synchronized void attach() {
+        attached = true;
+    }
+
+    public synchronized boolean isAttached() {
+        return attached;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Add a step to this trace.
+     * <p/>
+     * Steps added after the trace is complete are ignored.
+     *
+     * @param step The name of what just finished.
+     */
+    public synchronized void mark(String step) {
+        if (complete) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        steps.add(new Step(step, now - startNanos, now - lastNanos));
+        lastNanos = now;
+    }
+
+    /**
+     * Add a step to this trace if it hasn't been added already.
+     * <p/>
+     * This is for steps that are checked for repeatedly such as the first data being received.
+     *
+     * @param step The name of what just finished.
+     */
+    public synchronized void markOnce(String step) {
+        for (Step existing : steps) {
+            if (existing.NAME.equals(step)) {
+                return;
+            }
+        }
+
+        mark(step);
+    }
+
+    /**
+     * Add the last step and complete this trace.
+     *
+     * @param step The name of what just finished.
+     * @param success <i>false</i> if the recording failed to start. The times of failed traces
+     *                are not added to the percentiles.
+     */
+    public void complete(String step, boolean success) {
+        synchronized (this) {
+            if (complete) {
+                return;
+            }
+
+            mark(step);
+            complete = true;
+            this.success = success;
+        }
+
+        logger.info("{} to '{}' on '{}' in {}ms: {}",
+                success ? "Started" : "Failed to start", filename, encoderName,
+                getTotalNanos() / 1000000, getTimeline());
+
+        if (HISTORY > 0) {
+            synchronized (history) {
+                history.addFirst(this);
+
+                while (history.size() > HISTORY) {
+                    history.removeLast();
+                }
+            }
+        }
+
+        if (success && deviceType != null) {
+            Map<String, LatencyHistogram> deviceSteps = stepTimes.get(deviceType);
+
+            if (deviceSteps == null) {
+                deviceSteps = Collections.synchronizedMap(new LinkedHashMap<String, LatencyHistogram>());
+                Map<String, LatencyHistogram> existing = stepTimes.putIfAbsent(deviceType, deviceSteps);
+                if (existing != null) {
+                    deviceSteps = existing;
+                }
+            }
+
+            synchronized (deviceSteps) {
+                for (Step completedStep : getSteps()) {
+                    getHistogram(deviceSteps, completedStep.NAME).record(completedStep.DURATION_NS);
+                }
+
+                getHistogram(deviceSteps, TOTAL).record(getTotalNanos());
+            }
+        }
+    }
+
+    private static LatencyHistogram getHistogram(Map<String, LatencyHistogram> deviceSteps, String name) {
+        LatencyHistogram histogram = deviceSteps.get(name);
+
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            deviceSteps.put(name, histogram);
+        }
+
+        return histogram;
+    }
+
+    private String getTimeline() {
+        StringBuilder timeline = new StringBuilder();
+
+        for (Step step : getSteps()) {
+            if (timeline.length() > 0) {
+                timeline.append(", ");
+            }
+
+            timeline.append(step.NAME).append(" +").append(step.DURATION_NS / 1000000).append("ms");
+        }
+
+        return timeline.toString();
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public synchronized String getEncoderName() {
+        return encoderName;
+    }
+
+    public synchronized String getDeviceType() {
+        return deviceType;
+    }
+
+    public synchronized boolean isSuccess() {
+        return success;
+    }
+
+    public synchronized long getTotalNanos() {
+        return lastNanos - startNanos;
+    }
+
+    public synchronized Step[] getSteps() {
+        return steps.toArray(new Step[steps.size()]);
+    }
+
+    public static class Step {
+        public final String NAME;
+        public final long ELAPSED_NS;
+        public final long DURATION_NS;
+
+        public Step(String name, long elapsedNs, long durationNs) {
+            NAME = name;
+            ELAPSED_NS = elapsedNs;
+            DURATION_NS = durationNs;
+        }
+    }
+}
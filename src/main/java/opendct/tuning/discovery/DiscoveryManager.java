@@ -29,6 +29,7 @@ import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -37,12 +38,16 @@ public class DiscoveryManager implements PowerEventListener {
     public static final PowerEventListener POWER_EVENT_LISTENER = new DiscoveryManager();
     private final AtomicBoolean suspend = new AtomicBoolean(false);
 
-    // If using both locks, always use discoverLock first.
+    // If using both locks, always use discoverLock first. startStopLock is always used before
+    // either of them.
     private final static ReentrantReadWriteLock discoverLock = new ReentrantReadWriteLock();
     private final static ReentrantReadWriteLock permitLock = new ReentrantReadWriteLock();
 
     public static final DeviceLoader DEVICE_LOADER = new DeviceLoaderImpl();
+    private static final DiscoveryScheduler scheduler = new DiscoveryScheduler(DEVICE_LOADER);
     private static final AtomicBoolean running = new AtomicBoolean(false);
+    // Starting and stopping discovery never overlap.
+    private static final Object startStopLock = new Object();
     private static final ArrayList<DeviceDiscoverer> deviceDiscoveries = new ArrayList<>();
     private static final HashSet<Integer> permittedDevices = new HashSet<>();
 
@@ -189,19 +194,10 @@ public class DiscoveryManager implements PowerEventListener {
             return;
         }
 
-        discoverLock.writeLock().lock();
-
-        try {
+        synchronized (startStopLock) {
             if (running.get()) {
-                // This will throw an exception if there is a problem starting.
-                newDiscoverer.startDetection(DEVICE_LOADER);
-                logger.info("{} discovery started.", newDiscoverer.getName());
+                scheduler.startAll(Collections.singletonList(newDiscoverer));
             }
-        } catch (Exception e) {
-            logger.error("addDiscoverer created an unexpected exception while using second" +
-                    " discoverLock => ", e);
-        } finally {
-            discoverLock.writeLock().unlock();
         }
     }
 
@@ -253,29 +249,34 @@ public class DiscoveryManager implements PowerEventListener {
 
     /**
      * Start device discovery for all currently available discovery methods.
+     * <p/>
+     * All of the discovery methods are started at the same time. This returns when they have all
+     * started or the start deadline has passed. Anything that hasn't started by then will keep
+     * starting in the background.
      */
     public static void startDeviceDiscovery() {
-        if (running.getAndSet(true)) {
-            logger.debug("Device discovery is already running.");
-            return;
-        }
+        synchronized (startStopLock) {
+            if (running.getAndSet(true)) {
+                logger.debug("Device discovery is already running.");
+                return;
+            }
 
-        discoverLock.writeLock().lock();
+            List<DeviceDiscoverer> discoverers = new ArrayList<>();
 
-        try {
-            for (DeviceDiscoverer deviceDiscoverer : deviceDiscoveries) {
-                try {
-                    deviceDiscoverer.startDetection(DEVICE_LOADER);
-                } catch (DiscoveryException e) {
-                    logger.warn("Unable to start capture device discovery for {} => {}",
-                            deviceDiscoverer.getName(), e.getMessage());
-                }
+            discoverLock.readLock().lock();
+
+            try {
+                discoverers.addAll(deviceDiscoveries);
+            } catch (Exception e) {
+                logger.error("startDeviceDiscovery created an unexpected exception while using" +
+                        " discoverLock => ", e);
+            } finally {
+                discoverLock.readLock().unlock();
             }
-        } catch (Exception e) {
-            logger.error("startDeviceDiscovery created an unexpected exception while using" +
-                    " discoverLock => ", e);
-        } finally {
-            discoverLock.writeLock().unlock();
+
+            // discoverLock is not held while starting, so discoverers that call back into this
+            // class while they are starting don't need to wait for the others to start.
+            scheduler.startAll(discoverers);
         }
     }
 
@@ -288,11 +289,23 @@ public class DiscoveryManager implements PowerEventListener {
      *                              discovery methods to stop running.
      */
     public static void stopDeviceDiscovery() throws InterruptedException {
-        if (!running.getAndSet(false)) {
-            logger.debug("Device discovery is already stopped.");
-            return;
+        synchronized (startStopLock) {
+            if (!running.getAndSet(false)) {
+                logger.debug("Device discovery is already stopped.");
+                return;
+            }
+
+            // Discoverers that missed the start deadline are still starting. They must finish
+            // before they are stopped or they will be running again when they do. This is done
+            // before taking discoverLock so starting discoverers can still call back into this
+            // class.
+            scheduler.waitForStarts();
+
+            stopDiscoverers();
         }
+    }
 
+    private static void stopDiscoverers() throws InterruptedException {
         InterruptedException interruptedException = null;
 
         discoverLock.writeLock().lock();
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.discovery;
+
+import opendct.config.Config;
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts device discoverers at the same time and keeps track of how long each one takes.
+ * <p/>
+ * Every discoverer is started on the shared thread pool, so one discoverer that is slow to start
+ * doesn't hold up the others. Starting is given a deadline. Anything that hasn't started by then
+ * keeps starting in the background and is reported, so the caller is never blocked for longer
+ * than the deadline. Those starts are still tracked, so stopping discovery can wait for them
+ * instead of stopping a discoverer that is about to finish starting.
+ * <p/>
+ * Each discoverer is given its own device loader that publishes devices straight through to the
+ * real device loader as soon as they are advertised, while recording when they were advertised.
+ * After the discovery deadline, how long each discoverer took to start and to publish its devices
+ * is logged.
+ */
+public class DiscoveryScheduler {
+    private static final Logger logger = LogManager.getLogger(DiscoveryScheduler.class);
+
+    private static final long START_TIMEOUT_MS =
+            Math.max(1000, Config.getLong("discovery.start_timeout_ms", 10000));
+    private static final long REPORT_AFTER_MS =
+            Math.max(START_TIMEOUT_MS, Config.getLong("discovery.report_after_ms", 60000));
+
+    private final DeviceLoader deviceLoader;
+    private final Map<String, DiscovererTimes> times = new ConcurrentHashMap<>();
+    private final Map<String, Future> starts = new ConcurrentHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger(0);
+
+    public DiscoveryScheduler(DeviceLoader deviceLoader) {
+        this.deviceLoader = deviceLoader;
+    }
+
+    /**
+     * Start discovery for all of the provided discoverers at the same time.
+     * <p/>
+     * This returns when all of the discoverers have started or the start deadline has passed,
+     * whichever is first.
+     *
+     * @param discoverers The discoverers to start. Discoverers that are not enabled are skipped.
+     */
+    public void startAll(List<DeviceDiscoverer> discoverers) {
+        final int currentGeneration = generation.incrementAndGet();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+
+        List<DiscovererTimes> starting = new ArrayList<>();
+        List<Future> futures = new ArrayList<>();
+
+        for (final DeviceDiscoverer discoverer : discoverers) {
+            if (!discoverer.isEnabled()) {
+                continue;
+            }
+
+            final DiscovererTimes discovererTimes = new DiscovererTimes(discoverer.getName());
+            times.put(discoverer.getName(), discovererTimes);
+
+            starting.add(discovererTimes);
+            Future future = ThreadPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        discoverer.startDetection(new TimedDeviceLoader(discovererTimes));
+                        discovererTimes.started = System.currentTimeMillis();
+
+                        logger.info("{} discovery started in {}ms.",
+                                discovererTimes.name, discovererTimes.getStartMs());
+                    } catch (DiscoveryException e) {
+                        discovererTimes.error = e.getMessage();
+
+                        logger.warn("Unable to start capture device discovery for {} => {}",
+                                discovererTimes.name, e.getMessage());
+                    }
+                }
+            }, Thread.NORM_PRIORITY, "DiscoveryStart", discoverer.getName());
+
+            starts.put(discoverer.getName(), future);
+            futures.add(future);
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get(
+                        Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("{} discovery did not start within {}ms. It will continue starting" +
+                        " in the background.", starting.get(i).name, START_TIMEOUT_MS);
+            } catch (ExecutionException e) {
+                logger.error("Unexpected exception while starting {} discovery => ",
+                        starting.get(i).name, e.getCause());
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted while waiting for discovery to start.");
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        ThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(REPORT_AFTER_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                // Discovery was restarted, so the new start will report instead.
+                if (currentGeneration == generation.get()) {
+                    report();
+                }
+            }
+        }, Thread.MIN_PRIORITY, "DiscoveryReport", String.valueOf(currentGeneration));
+    }
+
+    /**
+     * Wait for every discoverer that is still starting to finish starting.
+     * <p/>
+     * Discoverers that have not begun starting yet are not started at all. This must be called
+     * before stopping discovery, otherwise a discoverer that missed the start deadline could finish
+     * starting after it was stopped and keep running.
+     *
+     * @throws InterruptedException Thrown if this thread is interrupted while waiting.
+     */
+    public void waitForStarts() throws InterruptedException {
+        // Any pending report would only be about discoverers that are being stopped.
+        generation.incrementAndGet();
+
+        for (Map.Entry<String, Future> entry : starts.entrySet()) {
+            Future future = entry.getValue();
+            starts.remove(entry.getKey(), future);
+
+            if (future.cancel(false)) {
+                logger.info("{} discovery was stopped before it started.", entry.getKey());
+                continue;
+            }
+
+            try {
+                future.get();
+            } catch (CancellationException e) {
+                logger.debug("{} discovery start was already cancelled.", entry.getKey());
+            } catch (ExecutionException e) {
+                logger.error("Unexpected exception while starting {} discovery => ",
+                        entry.getKey(), e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Log how long each discoverer took to start and to publish its devices.
+     */
+    public void report() {
+        for (DiscovererTimes discovererTimes : times.values()) {
+            if (discovererTimes.error != null) {
+                logger.info("{} discovery did not start: {}",
+                        discovererTimes.name, discovererTimes.error);
+            } else if (discovererTimes.started == 0) {
+                logger.info("{} discovery has not started after {}ms.",
+                        discovererTimes.name, System.currentTimeMillis() - discovererTimes.starting);
+            } else if (discovererTimes.devices.get() == 0) {
+                logger.info("{} discovery started in {}ms and has not published any capture" +
+                        " devices.", discovererTimes.name, discovererTimes.getStartMs());
+            } else {
+                logger.info("{} discovery started in {}ms and published {} capture devices. The" +
+                                " first was published after {}ms and the last after {}ms.",
+                        discovererTimes.name, discovererTimes.getStartMs(),
+                        discovererTimes.devices.get(),
+                        discovererTimes.first - discovererTimes.starting,
+                        discovererTimes.last - discovererTimes.starting);
+            }
+        }
+    }
+
+    private class TimedDeviceLoader implements DeviceLoader {
+        private final DiscovererTimes discovererTimes;
+
+        private TimedDeviceLoader(DiscovererTimes discovererTimes) {
+            this.discovererTimes = discovererTimes;
+        }
+
+        @Override
+        public void advertiseDevice(DiscoveredDevice details, DeviceDiscoverer discovery) {
+            long now = System.currentTimeMillis();
+
+            if (discovererTimes.devices.getAndIncrement() == 0) {
+                discovererTimes.first = now;
+
+                logger.info("{} discovery published its first capture device after {}ms.",
+                        discovererTimes.name, now - discovererTimes.starting);
+            }
+
+            discovererTimes.last = now;
+
+            deviceLoader.advertiseDevice(details, discovery);
+        }
+
+        @Override
+        public boolean isWaitingForDevices() {
+            return deviceLoader.isWaitingForDevices();
+        }
+    }
+
+    private static class DiscovererTimes {
+        private final String name;
+        private final long starting = System.currentTimeMillis();
+        private final AtomicInteger devices = new AtomicInteger(0);
+
+        private volatile long started;
+        private volatile long first;
+        private volatile long last;
+        private volatile String error;
+
+        private DiscovererTimes(String name) {
+            this.name = name;
+        }
+
+        private long getStartMs() {
+            return started - starting;
+        }
+    }
+}
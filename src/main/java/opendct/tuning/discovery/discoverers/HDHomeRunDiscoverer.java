@@ -31,7 +31,9 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -68,6 +70,7 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
     private static BooleanDeviceOption qamAlwaysRemapLookup;
     private static IntegerDeviceOption offlineDetectionSeconds;
     private static IntegerDeviceOption offlineDetectionMinBytes;
+    private static LongDeviceOption warmRetuneMs;
 
     // Detection configuration and state
     private static boolean enabled;
@@ -76,6 +79,9 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
     private DeviceLoader deviceLoader;
 
     private final HDHomeRunDiscovery discovery = new HDHomeRunDiscovery(HDHomeRunDiscovery.getBroadcast());
+    private final HDHomeRunDeviceRegistry registry = new HDHomeRunDeviceRegistry();
+    private final Object revalidateLock = new Object();
+    private long revalidateUntil = 0;
 
     private final ReentrantReadWriteLock discoveredDevicesLock = new ReentrantReadWriteLock();
     private final Map<Integer, HDHomeRunDiscoveredDevice> discoveredDevices = new HashMap<>();
@@ -281,6 +287,22 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                                 " considered tunable."
                 );
 
+                warmRetuneMs = new LongDeviceOption(
+                        Config.getLong("hdhr.warm_retune_ms", 0),
+                        false,
+                        "Warm Re-tune Milliseconds",
+                        "hdhr.warm_retune_ms",
+                        "This is the number of milliseconds to keep the producer and consumer" +
+                                " running after SageTV stops a recording. If SageTV starts a new" +
+                                " recording on the same tuner in that time, the running consumer" +
+                                " is switched to the new recording instead of starting over." +
+                                " This makes changing channels faster. This only applies to RTP" +
+                                " streaming and the raw and media server consumers. A value of" +
+                                " 0 disables this feature.",
+                        0,
+                        60000
+                );
+
                 Config.mapDeviceOptions(
                         deviceOptions,
                         streamingWait,
@@ -299,7 +321,8 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                         qamHttpTuningHack,
                         qamAlwaysRemapLookup,
                         offlineDetectionSeconds,
-                        offlineDetectionMinBytes
+                        offlineDetectionMinBytes,
+                        warmRetuneMs
                 );
             } catch (DeviceOptionException e) {
                 logger.error("Unable to configure device options for HDHomeRunDiscoverer." +
@@ -322,6 +345,7 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                 Config.setBoolean("hdhr.always_remap_lookup", false);
                 Config.setInteger("hdhr.wait_for_offline_detection_s", 8);
                 Config.setInteger("hdhr.offline_detection_min_bytes", 10528);
+                Config.setLong("hdhr.warm_retune_ms", 0);
 
                 continue;
             }
@@ -369,6 +393,88 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
         } catch (IOException e) {
             throw new DiscoveryException(e);
         }
+
+        loadRegisteredDevices();
+    }
+
+    /**
+     * Load the devices from the registry as if they were just discovered.
+     * <p/>
+     * This only uses local I/O, so the capture devices are available right away. Live discovery
+     * keeps looking for these devices until they are all found or the revalidation time runs out.
+     */
+    private void loadRegisteredDevices() {
+        if (!registry.isEnabled()) {
+            return;
+        }
+
+        List<HDHomeRunDevice> devices = registry.loadDevices();
+
+        if (devices.size() == 0) {
+            return;
+        }
+
+        synchronized (revalidateLock) {
+            revalidateUntil = System.currentTimeMillis() + registry.getRevalidateMs();
+        }
+
+        InetAddress defaultBroadcast = discovery.BROADCAST_ADDRESS.length > 0 ?
+                discovery.BROADCAST_ADDRESS[0] : null;
+
+        for (HDHomeRunDevice device : devices) {
+            logger.info("Loading HDHomeRun device {} from the registry. It will be revalidated in" +
+                    " the background.", device.getDeviceIdHex());
+
+            addCaptureDevice(device,
+                    registry.getBroadcastAddress(device.getDeviceId(), defaultBroadcast));
+        }
+    }
+
+    /**
+     * Are there still devices from the registry that haven't been found by live discovery?
+     * <p/>
+     * When the revalidation time runs out, the devices that were not found are removed from the
+     * registry. They stay loaded until the program is restarted, so they will be used right away
+     * if they come back online.
+     *
+     * @return <i>true</i> if live discovery should keep looking for devices.
+     */
+    private boolean isRevalidatingDevices() {
+        synchronized (revalidateLock) {
+            if (revalidateUntil == 0) {
+                return false;
+            }
+
+            List<HDHomeRunDevice> unrevalidated = new ArrayList<>();
+
+            discoveredDevicesLock.readLock().lock();
+
+            try {
+                for (HDHomeRunDevice device : hdHomeRunDevices.values()) {
+                    if (!device.isRevalidated()) {
+                        unrevalidated.add(device);
+                    }
+                }
+            } finally {
+                discoveredDevicesLock.readLock().unlock();
+            }
+
+            if (unrevalidated.size() > 0 && System.currentTimeMillis() < revalidateUntil) {
+                return true;
+            }
+
+            revalidateUntil = 0;
+
+            for (HDHomeRunDevice device : unrevalidated) {
+                logger.warn("HDHomeRun device {} was loaded from the registry, but was not found" +
+                        " on the network in {}ms. It will be removed from the registry.",
+                        device.getDeviceIdHex(), registry.getRevalidateMs());
+
+                registry.removeDevice(device.getDeviceId());
+            }
+
+            return false;
+        }
     }
 
     @Override
@@ -400,7 +506,8 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
     }
 
     public boolean isWaitingForDevices() {
-        return deviceLoader == null || deviceLoader.isWaitingForDevices();
+        return deviceLoader == null || deviceLoader.isWaitingForDevices() ||
+                isRevalidatingDevices();
     }
 
     /**
@@ -448,18 +555,34 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
             HDHomeRunDevice updateDevice = hdHomeRunDevices.get(discoveredDevice.getDeviceId());
 
             if (updateDevice != null) {
+                // Live discovery found this device before it could be loaded from the registry.
+                // The registry details are older, so they are not used.
+                if (!discoveredDevice.isRevalidated()) {
+                    return;
+                }
+
                 // This device has been detected before. We will only update the IP address.
+                boolean wasRevalidated = updateDevice.isRevalidated();
+                InetAddress lastAddress = updateDevice.getIpAddress();
 
-                if (!(discoveredDevice.getIpAddress() == discoveredDevice.getIpAddress())) {
+                if (!updateDevice.update(discoveredDevice)) {
+                    return;
+                }
+
+                if (!lastAddress.equals(updateDevice.getIpAddress())) {
                     logger.info("HDHomeRun device '{}' changed its IP address from {} to {}.",
                             updateDevice.getUniqueDeviceName(),
-                            updateDevice.getIpAddress().getHostAddress(),
-                            discoveredDevice.getIpAddress().getHostAddress()
+                            lastAddress.getHostAddress(),
+                            updateDevice.getIpAddress().getHostAddress()
                     );
+                }
 
-                    updateDevice.update(discoveredDevice);
+                if (!wasRevalidated) {
+                    logger.info("HDHomeRun device '{}' from the registry was found on the network.",
+                            updateDevice.getUniqueDeviceName());
                 }
 
+                registry.saveDevice(updateDevice, broadcastAddress);
                 return;
             }
 
@@ -504,6 +627,11 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
 
             hdHomeRunDevices.put(discoveredDevice.getDeviceId(), discoveredDevice);
 
+            // Devices from the registry are saved when they are revalidated.
+            if (discoveredDevice.isRevalidated()) {
+                registry.saveDevice(discoveredDevice, broadcastAddress);
+            }
+
         } catch (IOException e) {
             logger.error("Unable to communicate with HDHomeRun device '{}' => ",
                     discoveredDevice, e);
@@ -688,7 +816,8 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
                 qamRemap,
                 qamAlwaysRemapLookup,
                 offlineDetectionSeconds,
-                offlineDetectionMinBytes
+                offlineDetectionMinBytes,
+                warmRetuneMs
         };
     }
 
@@ -781,6 +910,10 @@ public class HDHomeRunDiscoverer implements DeviceDiscoverer {
         return offlineDetectionMinBytes.getInteger();
     }
 
+    public static long getWarmRetuneMs() {
+        return warmRetuneMs.getLong();
+    }
+
     public static int getBroadcastPort() {
         int returnValue = broadcastPort.getInteger();
 
@@ -25,9 +25,8 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.util.List;
 
 public class HDHomeRunControl {
     private static final Logger logger = LogManager.getLogger(HDHomeRunControl.class);
@@ -37,20 +36,16 @@ public class HDHomeRunControl {
     public final static int HDHOMERUN_CONTROL_RECV_TIMEOUT = 5000;
     public final static int HDHOMERUN_CONTROL_UPGRADE_TIMEOUT = 30000;
 
-    private HDHomeRunPacket txPacket;
-    private HDHomeRunPacket rxPacket;
-    private SocketChannel socket;
-    private volatile int totalBytes = 0;
+    private volatile HDHomeRunControlConnection connection;
 
     /**
      * Create a new HDHomeRun controller.
      * <p/>
-     * Controllers are thread-safe and can be shared. It is recommended to only share between tuners
-     * on the same device so we don't need to keep changing IP addresses.
+     * Controllers are thread-safe and can be shared. All controllers talking to the same device
+     * share one persistent control connection, so requests from different tuners on the same
+     * device can be in flight at the same time.
      */
     public HDHomeRunControl() {
-        txPacket = new HDHomeRunPacket();
-        rxPacket = new HDHomeRunPacket();
     }
 
     /**
@@ -124,9 +119,81 @@ public class HDHomeRunControl {
      *                         at this time.
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
-    public synchronized String setVariable(InetAddress address, String key, String value, int lockkey, int receiveTimeout) throws GetSetException, IOException {
+    public String setVariable(InetAddress address, String key, String value, int lockkey, int receiveTimeout) throws GetSetException, IOException {
         logger.entry(address, key, value, lockkey);
 
+        ByteBuffer packet = createPacket(key, value, lockkey);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("key: '{}' value: '{}' lockKey: '{}' sendLength: {} address: {}",
+                    key, value, lockkey, packet.remaining(),
+                    address != null ? address.getHostAddress() : null);
+        }
+
+        ByteBuffer reply = sendReceive(address, receiveTimeout, packet)[0];
+        String returnValue = parseReply(new HDHomeRunPacket(reply), key, value, lockkey);
+
+        return logger.exit(returnValue);
+    }
+
+    /**
+     * Get several variables from a device at the same time.
+     * <p/>
+     * All of the requests are written before waiting for the first reply, so this only takes about
+     * as long as the slowest reply instead of the sum of all of them.
+     *
+     * @param address The address of the device to be controlled.
+     * @param keys    The keys to get.
+     * @return The values from the device in the same order as the keys. A value will be
+     *         <i>null</i> if the reply was invalid or the device returned an error for that key.
+     * @throws IOException Thrown if communication with the device is not possible.
+     */
+    public String[] getVariables(InetAddress address, String... keys) throws IOException {
+        return getVariables(address, keys, null);
+    }
+
+    /**
+     * Get several variables from a device at the same time.
+     *
+     * @param address The address of the device to be controlled.
+     * @param keys    The keys to get.
+     * @param errors  If this is not <i>null</i>, the error returned by the device for each key is
+     *                placed at the same index as the key. It must be at least as long as the keys.
+     * @return The values from the device in the same order as the keys. A value will be
+     *         <i>null</i> if the reply was invalid or the device returned an error for that key.
+     * @throws IOException Thrown if communication with the device is not possible.
+     */
+    public String[] getVariables(InetAddress address, String keys[], GetSetException errors[]) throws IOException {
+        logger.entry(address, keys);
+
+        ByteBuffer packets[] = new ByteBuffer[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            packets[i] = createPacket(keys[i], null, 0);
+        }
+
+        ByteBuffer replies[] = sendReceive(address, HDHOMERUN_CONTROL_RECV_TIMEOUT, packets);
+        String values[] = new String[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            try {
+                values[i] = parseReply(new HDHomeRunPacket(replies[i]), keys[i], null, 0);
+            } catch (GetSetException e) {
+                logger.debug("HDHomeRun device returned an error for key = '{}' => {}",
+                        keys[i], e.getMessage());
+
+                if (errors != null) {
+                    errors[i] = e;
+                }
+            }
+        }
+
+        return logger.exit(values);
+    }
+
+    private ByteBuffer createPacket(String key, String value, int lockkey) {
+        HDHomeRunPacket txPacket = new HDHomeRunPacket(ByteBuffer.allocate(3074));
+
         txPacket.startPacket(HDHomeRunPacketType.HDHOMERUN_TYPE_GETSET_REQ);
         txPacket.putTagLengthValue(HDHomeRunPacketTag.HDHOMERUN_TAG_GETSET_NAME, key);
 
@@ -140,61 +207,59 @@ public class HDHomeRunControl {
 
         txPacket.endPacket();
 
-        connectSocket(new InetSocketAddress(address,
-                HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT));
+        return txPacket.BUFFER;
+    }
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("key: '{}' value: '{}' lockKey: '{}' sendLength: {} address: {}",
-                    key, value, lockkey, txPacket.BUFFER.remaining(),
-                    address != null ? address.getHostAddress() : null);
-        }
+    private ByteBuffer[] sendReceive(InetAddress address, int receiveTimeout, ByteBuffer... packets) throws IOException {
+        HDHomeRunControlConnection currentConnection = getConnection(address);
 
         IOException errorMessage = null;
         int retryCount = 0;
         int retryLimit = HDHomeRunDiscoverer.getControlRetryCount();
-        boolean success = false;
 
-        while (!success && retryCount++ <= retryLimit && !Thread.currentThread().isInterrupted()) {
+        while (retryCount++ <= retryLimit && !Thread.currentThread().isInterrupted()) {
             try {
-                packetSendReceive(txPacket.BUFFER.slice(), receiveTimeout);
-                success = true;
+                ByteBuffer sendPackets[] = new ByteBuffer[packets.length];
+
+                for (int i = 0; i < packets.length; i++) {
+                    // A partial write on a failed attempt must not affect the next attempt.
+                    sendPackets[i] = packets[i].duplicate();
+                }
+
+                // If the connection needed to be re-opened after a failure, this will wait an
+                // increasing amount of time before connecting again.
+                List<HDHomeRunControlConnection.Request> requests =
+                        currentConnection.send(sendPackets);
+                ByteBuffer replies[] = new ByteBuffer[requests.size()];
+                long timeout = System.currentTimeMillis() + receiveTimeout;
+
+                for (int i = 0; i < replies.length; i++) {
+                    replies[i] = requests.get(i).awaitReply(
+                            Math.max(1, timeout - System.currentTimeMillis()));
+                }
+
+                return replies;
             } catch (IOException e) {
                 // Signal to the discoverer that we might need a new IP address.
                 HDHomeRunDiscoverer.needBroadcast();
 
                 errorMessage = e;
-                closeSocket();
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e0) {
-                    // This is intentional. We should have the reason we are waiting returned as the
-                    // exception since it is itself an exception.
-                    throw e;
-                }
-                connectSocket(new InetSocketAddress(address,
-                        HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT));
             }
         }
 
-        if (!success) {
-            // Signal to the discoverer that we might need a new IP address.
-            HDHomeRunDiscoverer.needBroadcast();
+        // Signal to the discoverer that we might need a new IP address.
+        HDHomeRunDiscoverer.needBroadcast();
 
-            if (errorMessage != null) {
-                logger.error("Unable to communicate with HDHomeRun after {} attempts.", retryLimit);
-                throw errorMessage;
-            } else {
-                if (Thread.currentThread().isInterrupted()) {
-                    logger.error("Data was not able to be sent because the thread has bee interrupted.");
-                    throw new IOException("Data was not able to be sent because the thread has bee interrupted.");
-                } else {
-                    // We really should not be seeing this, but it's here just in case it happens.
-                    logger.error("No error was reported, but data was not able to be sent.");
-                    throw new IOException("No error was reported, but data was not able to be sent.");
-                }
-            }
+        if (errorMessage != null) {
+            logger.error("Unable to communicate with HDHomeRun after {} attempts.", retryLimit);
+            throw errorMessage;
+        } else {
+            logger.error("Data was not able to be sent because the thread has bee interrupted.");
+            throw new IOException("Data was not able to be sent because the thread has bee interrupted.");
         }
+    }
 
+    private String parseReply(HDHomeRunPacket rxPacket, String key, String value, int lockkey) throws GetSetException {
         int bufferLimit = rxPacket.BUFFER.limit();
 
         if (bufferLimit > 4) {
@@ -213,7 +278,7 @@ public class HDHomeRunControl {
                             logger.debug("HDHomeRun device returned a length ({}) larger than the data returned. UTF-8: '{}'", length, returnValue);
                         }
 
-                        return logger.exit(null);
+                        return null;
                     }
 
                     if (tag == null) {
@@ -231,7 +296,7 @@ public class HDHomeRunControl {
                             break;
 
                         case HDHOMERUN_TAG_GETSET_VALUE:
-                            return logger.exit(rxPacket.getTLVString(length));
+                            return rxPacket.getTLVString(length);
 
                         case HDHOMERUN_TAG_ERROR_MESSAGE:
                             String returnError = rxPacket.getTLVString(length);
@@ -250,7 +315,6 @@ public class HDHomeRunControl {
             }
         } else {
             logger.warn("Message sent, HDHomeRun did not reply.");
-            closeSocket();
         }
 
         if (logger.isDebugEnabled()) {
@@ -261,144 +325,37 @@ public class HDHomeRunControl {
         }
 
         logger.error("HDHomeRun device did not reply with a valid message for key = '{}', value ='{}' and lockkey='{}'.", key, value, lockkey);
-        return logger.exit(null);
+        return null;
     }
 
-    private void connectSocket(SocketAddress address) throws IOException {
-        logger.entry(address);
-
-        try {
-            if (socket != null && socket.isConnected() && socket.getRemoteAddress().equals(address)) {
-                return;
-            }
+    private HDHomeRunControlConnection getConnection(InetAddress address) {
+        InetSocketAddress socketAddress =
+                new InetSocketAddress(address, HDHomeRunPacket.HDHOMERUN_CONTROL_TCP_PORT);
+        HDHomeRunControlConnection currentConnection = connection;
 
-            closeSocket();
-        } catch (Exception e) {
-            logger.debug("connectSocket created an unexpected exception => ", e);
-            closeSocket();
+        if (currentConnection == null || !currentConnection.getAddress().equals(socketAddress)) {
+            currentConnection = HDHomeRunControlConnection.getConnection(socketAddress);
+            connection = currentConnection;
         }
 
-        socket = SocketChannel.open(address);
-
-        logger.exit();
+        return currentConnection;
     }
 
-    public synchronized void closeSocket() {
+    /**
+     * Close the control connection last used by this controller.
+     * <p/>
+     * The connection is shared by every controller talking to the same device, so anything they
+     * are waiting on will fail too. The next request will reconnect.
+     */
+    public void closeSocket() {
         logger.entry();
 
-        if (socket != null) {
-            try {
-                // Allow the socket to be re-opened immediately.
-                socket.socket().setReuseAddress(true);
-                socket.close();
-                socket.socket().close();
-                socket = null;
-            } catch (Exception e) {
-                logger.debug("closeSocket created an unexpected exception => ", e);
-            }
-        }
+        HDHomeRunControlConnection currentConnection = connection;
 
-        logger.exit();
-    }
-
-    private void packetSendReceive(ByteBuffer packetSend, long timeout) throws IOException {
-        logger.entry(packetSend, timeout);
-
-        rxPacket.BUFFER.clear();
-        totalBytes = 0;
-        Thread receiveThread = new Thread(new ReceiveThread());
-        receiveThread.setName("HDHomeRunControlReceive-" + receiveThread.getId());
-
-        try {
-            while (packetSend.hasRemaining()) {
-                socket.write(packetSend);
-            }
-        } catch (IOException e) {
-            // Signal to the discoverer that we might need a new IP address.
-            HDHomeRunDiscoverer.needBroadcast();
-
-            closeSocket();
-            throw e;
-        }
-
-        receiveThread.start();
-
-        try {
-            receiveThread.join(timeout);
-
-            //Stop receiving.
-            receiveThread.interrupt();
-
-            // Wait for the thread to actually stop.
-            receiveThread.join();
-        } catch (InterruptedException e) {
-            receiveThread.interrupt();
-            closeSocket();
-            throw new IOException(e.getMessage());
-        }
-
-        rxPacket.BUFFER.flip();
-
-        if (rxPacket.BUFFER.remaining() == 0) {
-            // Signal to the discoverer that we might need a new IP address.
-            HDHomeRunDiscoverer.needBroadcast();
-
-            closeSocket();
-            throw new IOException("HDHomeRun did not reply with a message. Closing socket...");
+        if (currentConnection != null) {
+            currentConnection.close();
         }
 
         logger.exit();
     }
-
-    private class ReceiveThread implements Runnable {
-
-        public void run() {
-            logger.entry();
-
-            if (socket != null) {
-                try {
-                    boolean firstBytes = true;
-
-                    int bytesNeeded = rxPacket.BUFFER.limit();
-                    int readBytes = 0;
-
-                    while (!Thread.currentThread().isInterrupted()) {
-                        readBytes = socket.read(rxPacket.BUFFER);
-
-                        if (readBytes == -1) {
-                            logger.debug("socket returned -1");
-                            break;
-                        }
-
-                        totalBytes += readBytes;
-
-                        if (firstBytes && totalBytes > 4) {
-                            firstBytes = false;
-                            ByteBuffer slice = rxPacket.BUFFER.duplicate();
-                            slice.flip();
-
-                            // This makes sure we get everything in case the message gets broken up.
-                            slice.getShort();
-                            bytesNeeded = (slice.getShort() & 0xffff) + 8; // +8 to include header and CRC
-                        }
-
-                        if (bytesNeeded > totalBytes) {
-                            logger.debug("bytesNeeded: {} > returnBytes: {}", bytesNeeded, totalBytes);
-                        } else {
-                            break;
-                        }
-                    }
-                } catch (IOException e) {
-                    // Signal to the discoverer that we might need a new IP address.
-                    HDHomeRunDiscoverer.needBroadcast();
-
-                    logger.debug("ReceiveThread was unable to receive => ", e);
-                } catch (Exception e) {
-                    logger.warn("ReceiveThread experienced an unexpected exception => ", e);
-                }
-            }
-
-            logger.exit();
-        }
-    }
 }
@@ -0,0 +1,499 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent TCP control connection to one HDHomeRun device.
+ * <p/>
+ * The device answers control requests in the order they are received and the replies do not
+ * carry any kind of request id, so replies are matched to requests in the order the requests
+ * were written. This allows several requests to be written before the first reply arrives.
+ * <p/>
+ * All connections share one selector thread for reading and writing. The thread requesting a
+ * value only connects (when needed), queues the request and waits for the reply. If a reply
+ * doesn't arrive in time, the connection is closed and everything still waiting on it fails since
+ * there is no way to know which request a late reply would belong to. The next request will
+ * reconnect, backing off further each time connecting fails.
+ */
+public class HDHomeRunControlConnection {
+    private static final Logger logger = LogManager.getLogger(HDHomeRunControlConnection.class);
+
+    public final static int HDHOMERUN_CONTROL_BACKOFF_MIN = 250;
+    public final static int HDHOMERUN_CONTROL_BACKOFF_MAX = 4000;
+
+    // Large enough to hold a few of the largest possible replies.
+    private final static int READ_BUFFER_SIZE = 3074 * 4;
+
+    private static final ConcurrentHashMap<InetSocketAddress, HDHomeRunControlConnection> connections =
+            new ConcurrentHashMap<>();
+
+    private static final Object readerLock = new Object();
+    private static Reader reader;
+
+    private final InetSocketAddress address;
+    private final Object connectLock = new Object();
+
+    // Changed under connectLock.
+    private volatile Link link;
+    private int failures = 0;
+    private long nextConnectTime = 0;
+
+    private HDHomeRunControlConnection(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * Get the control connection for a device.
+     * <p/>
+     * There is only ever one connection per address, so all tuners on the same device share it.
+     *
+     * @param address The control address of the device.
+     * @return The connection for this address. It might not be connected yet.
+     */
+    public static HDHomeRunControlConnection getConnection(InetSocketAddress address) {
+        HDHomeRunControlConnection connection = connections.get(address);
+
+        if (connection == null) {
+            connection = new HDHomeRunControlConnection(address);
+            HDHomeRunControlConnection existing = connections.putIfAbsent(address, connection);
+
+            if (existing != null) {
+                connection = existing;
+            }
+        }
+
+        return connection;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Write packets to the device without waiting for the replies.
+     * <p/>
+     * The replies are returned in the same order as the packets through the returned requests.
+     *
+     * @param packets Complete packets ready to be written.
+     * @return One request per packet.
+     * @throws IOException Thrown if the device could not be connected or the thread was
+     *                     interrupted while waiting to reconnect.
+     */
+    public List<Request> send(ByteBuffer... packets) throws IOException {
+        final Link currentLink = connect();
+        List<Request> requests = new ArrayList<>(packets.length);
+
+        for (ByteBuffer packet : packets) {
+            Request request = new Request(currentLink, packet);
+            requests.add(request);
+            currentLink.writeQueue.add(request);
+        }
+
+        if (currentLink.closed) {
+            // The connection closed while the requests were being queued and might have missed
+            // them when it failed everything that was waiting.
+            currentLink.failAll(new IOException("The HDHomeRun control connection was closed."));
+        }
+
+        getReader().runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                currentLink.flush();
+            }
+        });
+
+        return requests;
+    }
+
+    /**
+     * Close the connection.
+     * <p/>
+     * Anything waiting on a reply will fail. The next request will reconnect.
+     */
+    public void close() {
+        Link currentLink = link;
+
+        if (currentLink != null) {
+            currentLink.close(new IOException("The HDHomeRun control connection was closed."), false);
+        }
+    }
+
+    private Link connect() throws IOException {
+        Link currentLink = link;
+
+        if (currentLink != null && !currentLink.closed) {
+            return currentLink;
+        }
+
+        synchronized (connectLock) {
+            currentLink = link;
+
+            if (currentLink != null && !currentLink.closed) {
+                return currentLink;
+            }
+
+            long wait = nextConnectTime - System.currentTimeMillis();
+
+            if (wait > 0) {
+                logger.debug("Waiting {}ms before reconnecting to {}.", wait, address);
+
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to reconnect to " + address);
+                }
+            }
+
+            SocketChannel channel = SocketChannel.open();
+
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().connect(address, HDHomeRunControl.HDHOMERUN_CONTROL_CONNECT_TIMEOUT);
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                connectFailed();
+                throw e;
+            }
+
+            final Link newLink = new Link(channel);
+            link = newLink;
+
+            getReader().runOnSelector(new Runnable() {
+                @Override
+                public void run() {
+                    newLink.register();
+                }
+            });
+
+            logger.debug("Connected to HDHomeRun control port at {}.", address);
+            return newLink;
+        }
+    }
+
+    private void connectFailed() {
+        synchronized (connectLock) {
+            failures = Math.min(failures + 1, 16);
+            long backoff = Math.min(HDHOMERUN_CONTROL_BACKOFF_MAX,
+                    (long) HDHOMERUN_CONTROL_BACKOFF_MIN << (failures - 1));
+            nextConnectTime = System.currentTimeMillis() + backoff;
+        }
+    }
+
+    private void connectSucceeded() {
+        synchronized (connectLock) {
+            failures = 0;
+            nextConnectTime = 0;
+        }
+    }
+
+    private static Reader getReader() throws IOException {
+        synchronized (readerLock) {
+            if (reader == null) {
+                reader = new Reader();
+            }
+
+            return reader;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.trace("Failed to close channel => ", e);
+        }
+    }
+
+    /**
+     * A request waiting for a reply.
+     */
+    public static class Request {
+        private final Link link;
+        private final ByteBuffer packet;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ByteBuffer reply;
+        private volatile IOException error;
+
+        private Request(Link link, ByteBuffer packet) {
+            this.link = link;
+            this.packet = packet;
+        }
+
+        private void complete(ByteBuffer reply) {
+            this.reply = reply;
+            done.countDown();
+        }
+
+        private void fail(IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * Wait for the reply to this request.
+         * <p/>
+         * If the reply doesn't arrive in time, the connection is closed because any later replies
+         * could no longer be matched to the right requests.
+         *
+         * @param timeout The amount of time in milliseconds to wait for a reply.
+         * @return The complete reply packet including the header and CRC.
+         * @throws IOException Thrown if the connection failed or there was no reply in time.
+         */
+        public ByteBuffer awaitReply(long timeout) throws IOException {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    IOException e = new IOException("HDHomeRun did not reply within " + timeout +
+                            "ms. Closing socket...");
+                    link.close(e, true);
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the HDHomeRun to reply.");
+            }
+
+            if (error != null) {
+                throw error;
+            }
+
+            return reply;
+        }
+    }
+
+    private class Link {
+        private final SocketChannel channel;
+        private final ConcurrentLinkedQueue<Request> writeQueue = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Request> replyQueue = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean closed = false;
+
+        // Only used on the selector thread.
+        private SelectionKey key;
+        private boolean replied = false;
+
+        private Link(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void register() {
+            if (closed) {
+                return;
+            }
+
+            try {
+                key = channel.register(reader.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close(e, true);
+            }
+        }
+
+        private void flush() {
+            if (closed || key == null) {
+                return;
+            }
+
+            try {
+                Request request;
+                while ((request = writeQueue.peek()) != null) {
+                    if (request.packet.position() == 0) {
+                        // Queue the reply before the first byte leaves, so the order of the
+                        // replies always matches the order of the requests on the wire.
+                        replyQueue.add(request);
+                    }
+
+                    channel.write(request.packet);
+
+                    if (request.packet.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+
+                    writeQueue.poll();
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close(e, true);
+            }
+        }
+
+        private void read() {
+            try {
+                int bytesRead = channel.read(readBuffer);
+
+                if (bytesRead < 0) {
+                    // The device closes idle connections. That's only a failure if something is
+                    // still waiting on a reply.
+                    close(new IOException("HDHomeRun closed the control connection."),
+                            !replyQueue.isEmpty());
+                    return;
+                }
+
+                readBuffer.flip();
+
+                while (readBuffer.remaining() >= HDHomeRunPacket.HDHOMERUN_MIN_PEEK_LENGTH) {
+                    // +8 to include the header and CRC.
+                    int packetLength =
+                            (readBuffer.getShort(readBuffer.position() + 2) & 0xffff) + 8;
+
+                    if (packetLength > readBuffer.capacity()) {
+                        throw new IOException("HDHomeRun replied with a packet length of " +
+                                packetLength + " bytes which is not possible.");
+                    }
+
+                    if (readBuffer.remaining() < packetLength) {
+                        break;
+                    }
+
+                    ByteBuffer reply = ByteBuffer.allocate(packetLength);
+                    ByteBuffer slice = readBuffer.duplicate();
+                    slice.limit(slice.position() + packetLength);
+                    reply.put(slice);
+                    reply.flip();
+                    readBuffer.position(readBuffer.position() + packetLength);
+
+                    Request request = replyQueue.poll();
+
+                    if (request == null) {
+                        logger.warn("HDHomeRun at {} sent a reply that was not requested.", address);
+                        continue;
+                    }
+
+                    if (!replied) {
+                        replied = true;
+                        connectSucceeded();
+                    }
+
+                    request.complete(reply);
+                }
+
+                readBuffer.compact();
+            } catch (IOException e) {
+                close(e, true);
+            }
+        }
+
+        private void close(IOException reason, boolean failed) {
+            synchronized (connectLock) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+
+                if (link == this) {
+                    link = null;
+                }
+            }
+
+            if (failed) {
+                logger.debug("HDHomeRun control connection to {} failed => ", address, reason);
+                connectFailed();
+            }
+
+            closeQuietly(channel);
+            failAll(reason);
+        }
+
+        private void failAll(IOException reason) {
+            Request request;
+            while ((request = writeQueue.poll()) != null) {
+                request.fail(reason);
+            }
+
+            while ((request = replyQueue.poll()) != null) {
+                request.fail(reason);
+            }
+        }
+    }
+
+    private static class Reader implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+
+        private Reader() throws IOException {
+            selector = Selector.open();
+
+            Thread thread = new Thread(this);
+            thread.setName("HDHomeRunControl-" + thread.getId());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void runOnSelector(Runnable task) {
+            selectorTasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = selectorTasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        Link link = (Link) key.attachment();
+
+                        if (key.isWritable()) {
+                            link.flush();
+                        }
+
+                        if (key.isValid() && key.isReadable()) {
+                            link.read();
+                        }
+                    }
+                } catch (Throwable e) {
+                    // Nothing can be allowed to stop this thread or no HDHomeRun device can be
+                    // controlled anymore.
+                    logger.error("Unexpected exception in the HDHomeRun control reader => ", e);
+                }
+            }
+        }
+    }
+}
@@ -17,13 +17,19 @@
 package opendct.tuning.hdhomerun;
 
 import opendct.tuning.hdhomerun.returns.HDHomeRunFeatures;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URL;
+import java.util.Arrays;
 
 public class HDHomeRunDevice {
+    private static final Logger logger = LogManager.getLogger(HDHomeRunDevice.class);
+
     public final HDHomeRunControl CONTROL;
+    public final HDHomeRunStatusPoller STATUS_POLLER;
 
     private String uniqueDeviceName;
     private String uniqueTunerPrefix;
@@ -50,12 +56,18 @@ public class HDHomeRunDevice {
     private String cardStatus;
     private Boolean isCable = null;
 
+    // These are only used while a device loaded from the registry hasn't been seen on the network.
+    private volatile boolean revalidated = true;
+    private String channelmaps[] = new String[0];
+    private String pendingChannelmaps[] = new String[0];
+
     public HDHomeRunDevice(InetAddress ipAddress) {
         this(ipAddress, -1, -1, 0, false, null, null);
     }
 
     public HDHomeRunDevice(InetAddress ipAddress, int deviceType, int deviceId, int tunerCount, boolean isLegacy, String deviceAuth, URL baseUrl) {
         CONTROL = new HDHomeRunControl();
+        STATUS_POLLER = new HDHomeRunStatusPoller(this);
 
         this.ipAddress = ipAddress;
         this.deviceType = deviceType;
@@ -90,10 +102,59 @@ public class HDHomeRunDevice {
                 '}';
     }
 
-    public void update(HDHomeRunDevice update) {
-        if (update != null && update.getIpAddress() != null) {
+    /**
+     * Update this device with the details from a newer discovery of the same device.
+     * <p/>
+     * If this device was loaded from the registry, it is now considered revalidated and any channel
+     * maps that were set while it wasn't available are set on the device.
+     *
+     * @param update The newly discovered device.
+     * @return <i>true</i> if the IP address changed or this device was just revalidated.
+     */
+    public boolean update(HDHomeRunDevice update) {
+        if (update == null || update.getIpAddress() == null) {
+            return false;
+        }
+
+        boolean changed = !update.getIpAddress().equals(ipAddress);
+
+        if (changed) {
             setIpAddress(update.getIpAddress());
         }
+
+        if (update.getDeviceAuth() != null) {
+            setDeviceAuth(update.getDeviceAuth());
+        }
+
+        if (update.getBaseUrl() != null) {
+            setBaseUrl(update.getBaseUrl());
+        }
+
+        if (!revalidated) {
+            revalidated = true;
+            changed = true;
+
+            setPendingChannelmaps();
+        }
+
+        return changed;
+    }
+
+    /**
+     * Has this device been seen on the network since it was created?
+     * <p/>
+     * Devices loaded from the registry at startup are not revalidated until live discovery finds
+     * them. Until then, anything that would normally need to ask the device for a value that
+     * doesn't change often should use the value from the registry instead.
+     *
+     * @return <i>false</i> if this device was loaded from the registry and hasn't been found yet.
+     */
+    public boolean isRevalidated() {
+        return revalidated;
+    }
+
+    void setRevalidated(boolean revalidated) {
+        this.revalidated = revalidated;
     }
 
     public InetAddress getIpAddress() {
@@ -134,7 +195,12 @@ public class HDHomeRunDevice {
         tuners = new HDHomeRunTuner[tunerCount];
 
         for (int i = 0; i < tunerCount; i++) {
-            tuners[i] = new HDHomeRunTuner(this, i);
+            tuners[i] = new HDHomeRunTuner(this, i, CONTROL);
+        }
+
+        synchronized (this) {
+            channelmaps = Arrays.copyOf(channelmaps, tunerCount);
+            pendingChannelmaps = Arrays.copyOf(pendingChannelmaps, tunerCount);
         }
     }
 
@@ -316,6 +382,133 @@ public class HDHomeRunDevice {
         return cardStatus;
     }
 
+    /**
+     * Get the status of the CableCARD, using the value from the registry if this device hasn't
+     * been revalidated yet.
+     *
+     * @return Returns the last known status of the CableCARD.
+     * @throws IOException Thrown if communication with the device was incomplete or is not possible
+     *                     at this time.
+     * @throws GetSetException Thrown if the device returns an error instead of a value.
+     */
+    public String getKnownCardStatus() throws IOException, GetSetException {
+        if (!revalidated && cardStatus != null) {
+            return cardStatus;
+        }
+
+        return getCardStatus();
+    }
+
+    /**
+     * Get the channel map of a tuner, using the value from the registry if this device hasn't been
+     * revalidated yet.
+     *
+     * @param tuner The tuner number.
+     * @return Returns the last known channel map of the tuner.
+     * @throws IOException Thrown if communication with the device was incomplete or is not possible
+     *                     at this time.
+     * @throws GetSetException Thrown if the device returns an error instead of a value.
+     */
+    public String getKnownChannelmap(int tuner) throws IOException, GetSetException {
+        synchronized (this) {
+            if (!revalidated && tuner >= 0 && tuner < channelmaps.length &&
+                    channelmaps[tuner] != null) {
+
+                return channelmaps[tuner];
+            }
+        }
+
+        String channelmap = getTuner(tuner).getChannelmap();
+        setLastChannelmap(tuner, channelmap);
+
+        return channelmap;
+    }
+
+    /**
+     * Set the channel map of a tuner.
+     * <p/>
+     * If this device hasn't been revalidated yet, the channel map is set on the device when it's
+     * revalidated.
+     *
+     * @param tuner The tuner number.
+     * @param channelmap The new channel map.
+     * @throws IOException Thrown if communication with the device was incomplete or is not possible
+     *                     at this time.
+     * @throws GetSetException Thrown if the device returns an error instead of a value.
+     */
+    public void setChannelmap(int tuner, String channelmap) throws IOException, GetSetException {
+        if (!revalidated) {
+            synchronized (this) {
+                if (tuner >= 0 && tuner < pendingChannelmaps.length) {
+                    pendingChannelmaps[tuner] = channelmap;
+                    channelmaps[tuner] = channelmap;
+                    return;
+                }
+            }
+        }
+
+        getTuner(tuner).setChannelmap(channelmap);
+        setLastChannelmap(tuner, channelmap);
+    }
+
+    private void setPendingChannelmaps() {
+        String setChannelmaps[];
+
+        synchronized (this) {
+            setChannelmaps = pendingChannelmaps;
+            pendingChannelmaps = new String[setChannelmaps.length];
+        }
+
+        for (int i = 0; i < setChannelmaps.length; i++) {
+            if (setChannelmaps[i] == null) {
+                continue;
+            }
+
+            try {
+                getTuner(i).setChannelmap(setChannelmaps[i]);
+            } catch (Exception e) {
+                logger.warn("Unable to set the channel map '{}' on tuner {} of {} => ",
+                        setChannelmaps[i], i, this, e);
+            }
+        }
+    }
+
+    // These are used by the registry to save and restore what is known about this device.
+
+    String getLastSysHwModel() {
+        return sysHwModel;
+    }
+
+    void setLastSysHwModel(String sysHwModel) {
+        this.sysHwModel = sysHwModel;
+    }
+
+    String getLastCardStatus() {
+        return cardStatus;
+    }
+
+    void setLastCardStatus(String cardStatus) {
+        this.cardStatus = cardStatus;
+    }
+
+    Boolean getLastIsCableCardTuner() {
+        return isCable;
+    }
+
+    void setLastIsCableCardTuner(Boolean isCable) {
+        this.isCable = isCable;
+    }
+
+    synchronized String getLastChannelmap(int tuner) {
+        return tuner >= 0 && tuner < channelmaps.length ? channelmaps[tuner] : null;
+    }
+
+    synchronized void setLastChannelmap(int tuner, String channelmap) {
+        if (tuner >= 0 && tuner < channelmaps.length) {
+            channelmaps[tuner] = channelmap;
+        }
+    }
+
     /**
      * Get the status of the most recent lineup scan.
      * <p/>
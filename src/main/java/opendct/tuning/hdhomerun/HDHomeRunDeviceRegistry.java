@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import opendct.config.Config;
+import opendct.config.ConfigBag;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Remembers the HDHomeRun devices that were discovered on previous runs.
+ * <p/>
+ * At startup, the devices in the registry are loaded immediately, so capture devices don't need to
+ * wait for live discovery. The registry includes everything capture devices need to know about a
+ * device when they are created, so nothing needs to be asked of a device until it's actually used.
+ * Live discovery then revalidates the devices in the background.
+ */
+public class HDHomeRunDeviceRegistry {
+    private static final Logger logger = LogManager.getLogger(HDHomeRunDeviceRegistry.class);
+
+    private static final boolean ENABLED = Config.getBoolean("hdhr.registry_enabled", true);
+    private static final long REVALIDATE_MS =
+            Math.max(10, Config.getInteger("hdhr.registry_revalidate_s", 120)) * 1000L;
+
+    private final ConfigBag configBag = new ConfigBag("hdhomerun", "registry", false);
+    private boolean loaded = false;
+
+    /**
+     * Is the registry enabled?
+     *
+     * @return <i>true</i> if devices should be loaded from and saved to the registry.
+     */
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Get how long live discovery has to find the devices loaded from the registry.
+     * <p/>
+     * Devices that are not found in this amount of time are removed from the registry.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getRevalidateMs() {
+        return REVALIDATE_MS;
+    }
+
+    /**
+     * Load all of the devices in the registry.
+     * <p/>
+     * The returned devices are not revalidated and will not communicate with the device for any
+     * of the values saved in the registry.
+     *
+     * @return The devices in the registry. This will be empty if the registry is disabled or could
+     *         not be read.
+     */
+    public synchronized List<HDHomeRunDevice> loadDevices() {
+        List<HDHomeRunDevice> devices = new ArrayList<>();
+
+        if (!ENABLED || !load()) {
+            return devices;
+        }
+
+        for (String deviceIdHex : configBag.getStringArray("devices")) {
+            String prefix = deviceIdHex + ".";
+
+            try {
+                int deviceId = (int) Long.parseLong(deviceIdHex, 16);
+                InetAddress address = InetAddress.getByName(
+                        configBag.getString(prefix + "address", ""));
+                String sysHwModel = configBag.getString(prefix + "hw_model", "");
+                int tunerCount = configBag.getInteger(prefix + "tuner_count", 0);
+
+                // Without these, the device can't even be named without asking it.
+                if (sysHwModel.equals("") || tunerCount <= 0 || address.isLoopbackAddress()) {
+                    logger.warn("The HDHomeRun device {} in the registry is incomplete.",
+                            deviceIdHex);
+                    continue;
+                }
+
+                String deviceAuth = configBag.getString(prefix + "device_auth", "");
+                String baseUrl = configBag.getString(prefix + "base_url", "");
+                URL url = null;
+
+                if (!baseUrl.equals("")) {
+                    try {
+                        url = new URL(baseUrl);
+                    } catch (MalformedURLException e) {
+                        logger.debug("The HDHomeRun device {} in the registry has a bad URL '{}'.",
+                                deviceIdHex, baseUrl);
+                    }
+                }
+
+                HDHomeRunDevice device = new HDHomeRunDevice(
+                        address,
+                        configBag.getInteger(prefix + "device_type", -1),
+                        deviceId,
+                        0,
+                        configBag.getBoolean(prefix + "legacy", false),
+                        deviceAuth.equals("") ? null : deviceAuth,
+                        url);
+
+                // This must be set before the tuners are created, so they don't try to communicate
+                // with the device.
+                device.setRevalidated(false);
+                device.setTunerCount(tunerCount);
+                device.setLastSysHwModel(sysHwModel);
+
+                String cableCard = configBag.getString(prefix + "cable_card", "");
+
+                if (!cableCard.equals("")) {
+                    device.setLastIsCableCardTuner(Boolean.valueOf(cableCard));
+                }
+
+                String cardStatus = configBag.getString(prefix + "card_status", "");
+
+                if (!cardStatus.equals("")) {
+                    device.setLastCardStatus(cardStatus);
+                }
+
+                for (int i = 0; i < tunerCount; i++) {
+                    String channelmap = configBag.getString(prefix + "tuner" + i + ".channelmap", "");
+
+                    if (!channelmap.equals("")) {
+                        device.setLastChannelmap(i, channelmap);
+                    }
+                }
+
+                devices.add(device);
+            } catch (Exception e) {
+                logger.warn("Unable to load the HDHomeRun device {} from the registry => ",
+                        deviceIdHex, e);
+            }
+        }
+
+        return devices;
+    }
+
+    /**
+     * Get the broadcast address the device was discovered on.
+     *
+     * @param deviceId The ID of the device.
+     * @param defaultValue The value to return if there isn't a saved address.
+     * @return The broadcast address.
+     */
+    public synchronized InetAddress getBroadcastAddress(int deviceId, InetAddress defaultValue) {
+        String address = configBag.getString(
+                Integer.toHexString(deviceId).toUpperCase() + ".broadcast_address", "");
+
+        if (address.equals("")) {
+            return defaultValue;
+        }
+
+        try {
+            return InetAddress.getByName(address);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Save a device to the registry.
+     * <p/>
+     * If the device has been revalidated, the values capture devices need when they are created are
+     * refreshed from the device first.
+     *
+     * @param device The device to save.
+     * @param broadcastAddress The broadcast address the device was discovered on.
+     */
+    public synchronized void saveDevice(HDHomeRunDevice device, InetAddress broadcastAddress) {
+        if (!ENABLED || !load()) {
+            return;
+        }
+
+        if (device.isRevalidated()) {
+            refresh(device);
+        }
+
+        String deviceIdHex = device.getDeviceIdHex();
+        String prefix = deviceIdHex + ".";
+
+        // The tuner count might have changed, so don't leave old tuner details behind.
+        configBag.removeAllByRootKey(prefix);
+
+        configBag.setString(prefix + "address", device.getIpAddress().getHostAddress());
+        configBag.setInteger(prefix + "device_type", device.getDeviceType());
+        configBag.setInteger(prefix + "tuner_count", device.getTunerCount());
+        configBag.setBoolean(prefix + "legacy", device.isLegacy());
+        configBag.setLong(prefix + "last_seen", System.currentTimeMillis());
+
+        if (broadcastAddress != null) {
+            configBag.setString(prefix + "broadcast_address", broadcastAddress.getHostAddress());
+        }
+
+        if (device.getDeviceAuth() != null) {
+            configBag.setString(prefix + "device_auth", device.getDeviceAuth());
+        }
+
+        if (device.getBaseUrl() != null) {
+            configBag.setString(prefix + "base_url", device.getBaseUrl().toString());
+        }
+
+        if (device.getLastSysHwModel() != null) {
+            configBag.setString(prefix + "hw_model", device.getLastSysHwModel());
+        }
+
+        if (device.getLastIsCableCardTuner() != null) {
+            configBag.setBoolean(prefix + "cable_card", device.getLastIsCableCardTuner());
+        }
+
+        if (device.getLastCardStatus() != null) {
+            configBag.setString(prefix + "card_status", device.getLastCardStatus());
+        }
+
+        for (int i = 0; i < device.getTunerCount(); i++) {
+            String channelmap = device.getLastChannelmap(i);
+
+            if (channelmap != null) {
+                configBag.setString(prefix + "tuner" + i + ".channelmap", channelmap);
+            }
+        }
+
+        List<String> deviceIds = new ArrayList<>(Arrays.asList(configBag.getStringArray("devices")));
+
+        if (!deviceIds.contains(deviceIdHex)) {
+            deviceIds.add(deviceIdHex);
+            configBag.setStringArray("devices", deviceIds.toArray(new String[deviceIds.size()]));
+        }
+
+        configBag.saveConfig();
+    }
+
+    /**
+     * Remove a device from the registry.
+     *
+     * @param deviceId The ID of the device.
+     */
+    public synchronized void removeDevice(int deviceId) {
+        if (!ENABLED || !load()) {
+            return;
+        }
+
+        String deviceIdHex = Integer.toHexString(deviceId).toUpperCase();
+        List<String> deviceIds = new ArrayList<>(Arrays.asList(configBag.getStringArray("devices")));
+
+        deviceIds.remove(deviceIdHex);
+        configBag.setStringArray("devices", deviceIds.toArray(new String[deviceIds.size()]));
+        configBag.removeAllByRootKey(deviceIdHex + ".");
+
+        configBag.saveConfig();
+    }
+
+    private void refresh(HDHomeRunDevice device) {
+        try {
+            device.getSysHwModel();
+
+            if (device.isCableCardTuner()) {
+                device.getCardStatus();
+            } else {
+                for (int i = 0; i < device.getTunerCount(); i++) {
+                    device.getKnownChannelmap(i);
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Unable to refresh the registry details for {}. Keeping the last known" +
+                    " values => {}", device, e.getMessage());
+        }
+    }
+
+    private boolean load() {
+        if (!loaded) {
+            loaded = configBag.loadConfig();
+        }
+
+        return loaded;
+    }
+}
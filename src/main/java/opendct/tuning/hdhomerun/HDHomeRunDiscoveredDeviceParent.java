@@ -36,6 +36,7 @@ public class HDHomeRunDiscoveredDeviceParent extends NetworkDiscoveredDevicePare
 
     Map<String, DeviceOption> deviceOptions;
     StringDeviceOption channelMap;
+    StringDeviceOption streamingMode;
 
     public HDHomeRunDiscoveredDeviceParent(String name, int parentId, InetAddress localAddress, HDHomeRunDevice hdHomeRunDevice) {
         super(name, parentId, localAddress);
@@ -62,14 +63,30 @@ public class HDHomeRunDiscoveredDeviceParent extends NetworkDiscoveredDevicePare
                         "au-bcast"
                 );
 
+                streamingMode = new StringDeviceOption(
+                        Config.getString(propertiesDeviceParent + "streaming_mode", "rtp"),
+                        false,
+                        "Streaming Mode",
+                        propertiesDeviceParent + "streaming_mode",
+                        "Change how the stream is received from this HDHomeRun device. 'rtp' has" +
+                                " the tuner send RTP over UDP. 'http' pulls the stream over TCP," +
+                                " which doesn't lose packets on congested networks. If the HTTP" +
+                                " stream can't be started, RTP is used. Legacy devices always use" +
+                                " RTP.",
+                        "rtp",
+                        "http"
+                );
+
                 Config.mapDeviceOptions(
                         deviceOptions,
-                        channelMap
+                        channelMap,
+                        streamingMode
                 );
             } catch (DeviceOptionException e) {
                 logger.warn("Invalid options. Reverting to defaults => ", e);
 
                 Config.setString(propertiesDeviceParent + "channel_map", "");
+                Config.setString(propertiesDeviceParent + "streaming_mode", "rtp");
 
                 continue;
             }
@@ -91,13 +108,14 @@ public class HDHomeRunDiscoveredDeviceParent extends NetworkDiscoveredDevicePare
     @Override
     public DeviceOption[] getOptions() {
         DeviceOption tempArray[] = super.getOptions();
-        DeviceOption returnArray[] = new DeviceOption[tempArray.length + 1];
+        DeviceOption returnArray[] = new DeviceOption[tempArray.length + 2];
 
         if (tempArray.length > 0) {
             System.arraycopy(tempArray, 0, returnArray, 0, tempArray.length);
         }
 
-        returnArray[returnArray.length - 1] = channelMap;
+        returnArray[returnArray.length - 2] = channelMap;
+        returnArray[returnArray.length - 1] = streamingMode;
 
         return returnArray;
     }
@@ -128,4 +146,8 @@ public class HDHomeRunDiscoveredDeviceParent extends NetworkDiscoveredDevicePare
     public String getChannelMap() {
         return channelMap.getValue();
     }
+
+    public boolean isHttpStreaming() {
+        return streamingMode.getValue().equalsIgnoreCase("http");
+    }
 }
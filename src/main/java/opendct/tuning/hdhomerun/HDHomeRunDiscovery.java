@@ -20,6 +20,7 @@ import opendct.power.NetworkPowerEventManger;
 import opendct.tuning.discovery.discoverers.HDHomeRunDiscoverer;
 import opendct.tuning.hdhomerun.types.HDHomeRunPacketTag;
 import opendct.tuning.hdhomerun.types.HDHomeRunPacketType;
+import opendct.util.ThreadPool;
 import opendct.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -29,9 +30,12 @@ import java.net.*;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class HDHomeRunDiscovery implements Runnable {
     private static final Logger logger = LogManager.getLogger(HDHomeRunDiscovery.class);
@@ -48,6 +52,10 @@ public class HDHomeRunDiscovery implements Runnable {
     private HDHomeRunPacket txPacket;
     private HDHomeRunPacket rxPackets[];
 
+    // The IDs of the devices currently having their tuners counted.
+    private final Set<Integer> countingDevices =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
     HDHomeRunDiscoverer discoverer;
 
     public HDHomeRunDiscovery(InetAddress... broadcastAddress) {
@@ -333,12 +341,13 @@ public class HDHomeRunDiscovery implements Runnable {
         protected int listenIndex = -1;
         protected Map<Integer, Integer> ignoreDevices = new HashMap<>();
 
-        private boolean ignoreDevice(Integer deviceId) {
+        // Tuners are counted on other threads, so these need to be synchronized.
+        private synchronized boolean ignoreDevice(Integer deviceId) {
             Integer failCount = ignoreDevices.get(deviceId);
             return failCount != null && failCount >= MAX_FAILS;
         }
 
-        private boolean incrementIgnoreDevice(Integer deviceId) {
+        private synchronized boolean incrementIgnoreDevice(Integer deviceId) {
             Integer failCount = ignoreDevices.get(deviceId);
             if (failCount == null) {
                 ignoreDevices.put(deviceId, 0);
@@ -348,6 +357,74 @@ public class HDHomeRunDiscovery implements Runnable {
             return ignoreDevice(deviceId);
         }
 
+        /**
+         * Count the tuners on a device and then add the device.
+         * <p/>
+         * This is done on the shared thread pool, so the tuners on several devices are counted at
+         * the same time and this thread can keep receiving. A device is only counted once at a
+         * time, even if it replies to several broadcasts while it's being counted.
+         *
+         * @param device The device to count.
+         */
+        private void countTuners(final HDHomeRunDevice device) {
+            if (!countingDevices.add(device.getDeviceId())) {
+                return;
+            }
+
+            try {
+                ThreadPool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // Attempt to auto-detect the tuner count.
+                            setTunerCount(device);
+                            // 2 is a safe bet for most HDHomeRun capture devices.
+                            if (device.getTunerCount() == 0) {
+                                device.setTunerCount(2);
+                            }
+                            try {
+                                logger.warn("The capture device '{}' did not respond" +
+                                                " with any tuners. Detected {}.",
+                                        device.getUniqueDeviceName(),
+                                        device.getTunerCount());
+                            } catch (Exception e) {
+                                // This will clear a rebroadcast so we don't loop endlessly
+                                // due to the error that just happened here.
+                                HDHomeRunDiscoverer.needBroadcast();
+
+                                if (!incrementIgnoreDevice(device.getDeviceId())) {
+                                    logger.warn("Ignoring non-capture device after" +
+                                                    " attempting to use it {} times => ",
+                                            MAX_FAILS, e);
+                                } else {
+                                    return;
+                                }
+                            }
+
+                            addCaptureDevice(device);
+                        } finally {
+                            countingDevices.remove(device.getDeviceId());
+                        }
+                    }
+                }, Thread.NORM_PRIORITY, "HDHomeRunTunerCount", device.getDeviceIdHex());
+            } catch (Exception e) {
+                countingDevices.remove(device.getDeviceId());
+                logger.error("Unable to count the tuners on {} => ", device.getDeviceIdHex(), e);
+            }
+        }
+
+        private void addCaptureDevice(HDHomeRunDevice device) {
+            try {
+                discoverer.addCaptureDevice(device, BROADCAST_SOCKET[listenIndex].getAddress());
+            } catch (Exception e) {
+                logger.error("Unable to add new HDHomeRun capture device => ", e);
+            }
+
+            if (discoverer.isWaitingForDevices()) {
+                logger.debug("Parsed discovery packet: {}", device);
+            }
+        }
+
         public void run() {
             logger.info("HDHomeRun discovery receive thread for {} broadcast started.", BROADCAST_SOCKET[listenIndex]);
 
@@ -496,43 +573,24 @@ public class HDHomeRunDiscovery implements Runnable {
                                     break;
 
                                 default:
-                                    // Attempt to auto-detect the tuner count.
-                                    setTunerCount(device);
-                                    // 2 is a safe bet for most HDHomeRun capture devices.
-                                    if (device.getTunerCount() == 0) {
-                                        device.setTunerCount(2);
-                                    }
-                                    try {
-                                        logger.warn("The capture device '{}' did not respond" +
-                                                        " with any tuners. Detected {}.",
-                                                device.getUniqueDeviceName(),
-                                                device.getTunerCount());
-                                    } catch (Exception e) {
-                                        // This will clear a rebroadcast so we don't loop endlessly
-                                        // due to the error that just happened here.
-                                        HDHomeRunDiscoverer.needBroadcast();
-
-                                        if (!incrementIgnoreDevice(device.getDeviceId())) {
-                                            logger.warn("Ignoring non-capture device after" +
-                                                            " attempting to use it {} times => ",
-                                                    MAX_FAILS, e);
-                                        } else {
-                                            continue;
-                                        }
+                                    HDHomeRunDevice knownDevice =
+                                            discoverer.getHDHomeRunDevice(device.getDeviceId());
+
+                                    // The tuners were already counted when this device was
+                                    // first discovered.
+                                    if (knownDevice != null && knownDevice.getTunerCount() > 0) {
+                                        device.setTunerCount(knownDevice.getTunerCount());
+                                        break;
                                     }
-                                    break;
-                            }
-                        }
 
-                        try {
-                            discoverer.addCaptureDevice(device, BROADCAST_SOCKET[listenIndex].getAddress());
-                        } catch (Exception e) {
-                            logger.error("Unable to add new HDHomeRun capture device => ", e);
+                                    // Counting the tuners can take up to a second, so it's done
+                                    // in the background and the device is added when it's done.
+                                    countTuners(device);
+                                    continue;
+                            }
                         }
 
-                        if (discoverer.isWaitingForDevices()) {
-                            logger.debug("Parsed discovery packet: {}", device);
-                        }
+                        addCaptureDevice(device);
                     }
                 }
             }
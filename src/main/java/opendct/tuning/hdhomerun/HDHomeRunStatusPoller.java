@@ -0,0 +1,399 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.hdhomerun;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls the status of every tuner on one HDHomeRun device in a single pipelined batch.
+ * <p/>
+ * Anything asking for status, virtual channel status or stream info is answered from the cache
+ * when it's fresh enough. When it isn't, the reader polls the whole device itself, but only one
+ * poll per device can be in progress, so everyone else waiting gets the result of that poll. This
+ * keeps the load on the control port bounded no matter how many things are asking.
+ * <p/>
+ * While the device is tuning, it's polled in the background at a fast interval so tuning loops
+ * don't need to wait on the device. Otherwise it's polled slowly and only while something has
+ * been reading from the cache recently. Setting any value on a tuner invalidates its cache.
+ * <p/>
+ * Every invalidation starts a new generation for that tuner. A poll remembers the generation of
+ * each tuner from before its requests were sent, so values from a poll that was already in flight
+ * when a tuner was changed are never treated as current.
+ */
+public class HDHomeRunStatusPoller {
+    private static final Logger logger = LogManager.getLogger(HDHomeRunStatusPoller.class);
+
+    private static final long FAST_INTERVAL_MS =
+            Math.max(50, Config.getLong("hdhr.status_poll_fast_ms", 250));
+    private static final long IDLE_INTERVAL_MS =
+            Math.max(FAST_INTERVAL_MS, Config.getLong("hdhr.status_poll_idle_ms", 5000));
+    private static final long CACHE_TTL_MS =
+            Math.max(FAST_INTERVAL_MS, Config.getLong("hdhr.status_cache_ttl_ms", 1000));
+
+    // Stop polling in the background when nothing has read from the cache for this long.
+    private static final long IDLE_STOP_MS = IDLE_INTERVAL_MS * 6;
+
+    // A reader will poll this many times at most when the tuner keeps being invalidated while
+    // polling.
+    private static final int MAX_POLL_ATTEMPTS = 3;
+
+    private static final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(2, new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("HDHomeRunStatusPoller-" + thread.getId() + ":" +
+                            threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final HDHomeRunDevice device;
+    private final Object pollLock = new Object();
+    private final Object scheduleLock = new Object();
+    private final Object generationLock = new Object();
+
+    // The invalidation generation of each tuner. Guarded by generationLock.
+    private long generations[] = new long[0];
+
+    // Replaced under pollLock.
+    private volatile TunerStatus statuses[] = new TunerStatus[0];
+
+    private volatile long lastRead = 0;
+    private volatile long fastUntil = 0;
+
+    // Changed under scheduleLock.
+    private boolean scheduled = false;
+
+    public HDHomeRunStatusPoller(HDHomeRunDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Poll in the background at the fast interval for a while.
+     * <p/>
+     * This should be called when a tuner on this device starts tuning.
+     *
+     * @param durationMs How long in milliseconds to keep polling quickly.
+     */
+    public void pollFaster(long durationMs) {
+        fastUntil = Math.max(fastUntil, System.currentTimeMillis() + durationMs);
+        lastRead = System.currentTimeMillis();
+        startPolling();
+    }
+
+    /**
+     * Discard the cached values for a tuner.
+     * <p/>
+     * The next read for this tuner will always poll the device and the results of any poll that
+     * was sent before this call are ignored for this tuner. This should be called after the change
+     * to the tuner has been accepted by the device.
+     *
+     * @param tuner The tuner number.
+     */
+    public void invalidate(int tuner) {
+        if (tuner < 0) {
+            return;
+        }
+
+        synchronized (generationLock) {
+            if (tuner >= generations.length) {
+                generations = Arrays.copyOf(generations, tuner + 1);
+            }
+
+            generations[tuner] += 1;
+        }
+
+        TunerStatus currentStatuses[] = statuses;
+
+        if (tuner >= 0 && tuner < currentStatuses.length && currentStatuses[tuner] != null) {
+            currentStatuses[tuner].time = 0;
+        }
+    }
+
+    /**
+     * Get the status of a tuner.
+     *
+     * @param tuner The tuner number.
+     * @return The raw status value.
+     * @throws IOException Thrown if the device could not be polled.
+     * @throws GetSetException Thrown if the device returned an error for this value.
+     */
+    public String getStatus(int tuner) throws IOException, GetSetException {
+        TunerStatus status = getTunerStatus(tuner);
+        return status.get(status.status, status.statusError);
+    }
+
+    /**
+     * Get the virtual channel status of a tuner.
+     *
+     * @param tuner The tuner number.
+     * @return The raw vstatus value.
+     * @throws IOException Thrown if the device could not be polled.
+     * @throws GetSetException Thrown if the device returned an error for this value.
+     */
+    public String getVirtualChannelStatus(int tuner) throws IOException, GetSetException {
+        TunerStatus status = getTunerStatus(tuner);
+        return status.get(status.vstatus, status.vstatusError);
+    }
+
+    /**
+     * Get the stream info of a tuner.
+     *
+     * @param tuner The tuner number.
+     * @return The raw streaminfo value.
+     * @throws IOException Thrown if the device could not be polled.
+     * @throws GetSetException Thrown if the device returned an error for this value.
+     */
+    public String getStreamInfo(int tuner) throws IOException, GetSetException {
+        TunerStatus status = getTunerStatus(tuner);
+        return status.get(status.streamInfo, status.streamInfoError);
+    }
+
+    private TunerStatus getTunerStatus(int tuner) throws IOException {
+        long now = System.currentTimeMillis();
+        lastRead = now;
+        startPolling();
+
+        TunerStatus status = getFresh(tuner, now);
+
+        if (status != null) {
+            return status;
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            synchronized (pollLock) {
+                // Another thread might have just finished polling while this one was waiting.
+                status = getFresh(tuner, System.currentTimeMillis());
+
+                if (status != null) {
+                    return status;
+                }
+
+                poll(tuner + 1);
+            }
+
+            TunerStatus currentStatuses[] = statuses;
+
+            if (tuner < 0 || tuner >= currentStatuses.length) {
+                throw new IOException("Tuner " + tuner + " does not exist on " + device + ".");
+            }
+
+            status = currentStatuses[tuner];
+
+            // The tuner was changed while the poll was in flight, so the values are from before
+            // the change.
+            if (status.generation == getGeneration(tuner) || attempt >= MAX_POLL_ATTEMPTS) {
+                return status;
+            }
+        }
+    }
+
+    private long getGeneration(int tuner) {
+        synchronized (generationLock) {
+            return tuner < generations.length ? generations[tuner] : 0;
+        }
+    }
+
+    private TunerStatus getFresh(int tuner, long now) {
+        TunerStatus currentStatuses[] = statuses;
+
+        if (tuner < 0 || tuner >= currentStatuses.length) {
+            return null;
+        }
+
+        long ttl = fastUntil > now ? FAST_INTERVAL_MS : CACHE_TTL_MS;
+        TunerStatus status = currentStatuses[tuner];
+
+        return now - status.time <= ttl && status.generation == getGeneration(tuner) ?
+                status : null;
+    }
+
+    // Must be called while holding pollLock.
+    private void poll(int minTuners) throws IOException {
+        TunerStatus lastStatuses[] = statuses;
+        int tunerCount = Math.max(device.getTunerCount(), Math.max(minTuners, lastStatuses.length));
+        List<String> keys = new ArrayList<>(tunerCount * 3);
+
+        for (int i = 0; i < tunerCount; i++) {
+            keys.add("/tuner" + i + "/status");
+            keys.add("/tuner" + i + "/streaminfo");
+
+            // Only CableCARD devices support vstatus. Once the device says it doesn't exist, stop
+            // asking for it.
+            if (i >= lastStatuses.length || !lastStatuses[i].vstatusUnsupported) {
+                keys.add("/tuner" + i + "/vstatus");
+            }
+        }
+
+        // Anything invalidated after this point will not match the generation of these results.
+        long pollGenerations[] = new long[tunerCount];
+        for (int i = 0; i < tunerCount; i++) {
+            pollGenerations[i] = getGeneration(i);
+        }
+
+        String keyArray[] = keys.toArray(new String[keys.size()]);
+        GetSetException errors[] = new GetSetException[keyArray.length];
+        String values[] = device.CONTROL.getVariables(device.getIpAddress(), keyArray, errors);
+
+        long now = System.currentTimeMillis();
+        TunerStatus newStatuses[] = new TunerStatus[tunerCount];
+        int index = 0;
+
+        for (int i = 0; i < tunerCount; i++) {
+            TunerStatus status = new TunerStatus(now, pollGenerations[i]);
+
+            status.status = values[index];
+            status.statusError = errors[index++];
+            status.streamInfo = values[index];
+            status.streamInfoError = errors[index++];
+
+            if (index < keyArray.length && keyArray[index].equals("/tuner" + i + "/vstatus")) {
+                status.vstatus = values[index];
+                status.vstatusError = errors[index++];
+                status.vstatusUnsupported = status.vstatusError != null &&
+                        status.vstatusError.getMessage() != null &&
+                        status.vstatusError.getMessage().contains("unknown");
+            } else {
+                status.vstatusError = lastStatuses[i].vstatusError;
+                status.vstatusUnsupported = true;
+            }
+
+            newStatuses[i] = status;
+        }
+
+        statuses = newStatuses;
+    }
+
+    private void startPolling() {
+        synchronized (scheduleLock) {
+            if (scheduled) {
+                return;
+            }
+
+            scheduled = true;
+        }
+
+        try {
+            scheduler.schedule(new PollTask(), 0, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.warn("Unable to start polling the status of {} => ", device, e);
+
+            synchronized (scheduleLock) {
+                scheduled = false;
+            }
+        }
+    }
+
+    private class PollTask implements Runnable {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            boolean fast = fastUntil > now;
+
+            if (!fast && now - lastRead > IDLE_STOP_MS) {
+                synchronized (scheduleLock) {
+                    scheduled = false;
+                }
+
+                logger.debug("Stopped polling {}; nothing has read its status recently.", device);
+                return;
+            }
+
+            // This wakes up at the fast interval, so it can start polling quickly as soon as a
+            // tuner starts tuning, but only polls at the idle interval when nothing is tuning. A
+            // reader might have already polled, so polling again is skipped until the oldest
+            // value is due.
+            long interval = fast ? FAST_INTERVAL_MS : IDLE_INTERVAL_MS;
+
+            if (getOldest(now) >= interval) {
+                try {
+                    synchronized (pollLock) {
+                        poll(0);
+                    }
+                } catch (Exception e) {
+                    logger.debug("Unable to poll the status of {} => ", device, e);
+                }
+            }
+
+            try {
+                scheduler.schedule(this, FAST_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                synchronized (scheduleLock) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+
+    private long getOldest(long now) {
+        TunerStatus currentStatuses[] = statuses;
+
+        if (currentStatuses.length == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long oldest = 0;
+
+        for (TunerStatus status : currentStatuses) {
+            oldest = Math.max(oldest, now - status.time);
+        }
+
+        return oldest;
+    }
+
+    private static class TunerStatus {
+        private volatile long time;
+        private final long generation;
+
+        private String status;
+        private GetSetException statusError;
+        private String streamInfo;
+        private GetSetException streamInfoError;
+        private String vstatus;
+        private GetSetException vstatusError;
+        private boolean vstatusUnsupported;
+
+        private TunerStatus(long time, long generation) {
+            this.time = time;
+            this.generation = generation;
+        }
+
+        private String get(String value, GetSetException error) throws GetSetException {
+            if (error != null) {
+                throw new GetSetException(error.getMessage());
+            }
+
+            return value;
+        }
+    }
+}
@@ -63,11 +63,15 @@ public class HDHomeRunTuner {
 
         currentLockkey = -1;
 
-        // This will attempt to set the lock key in the correct state.
-        try {
-            isLockedByThisComputer();
-        } catch (Exception e) {
-            // It doesn't really matter if this fails or not at this moment.
+        // This will attempt to set the lock key in the correct state. A device loaded from the
+        // registry might not be reachable yet, so don't wait on it. The lock key is checked again
+        // before it's set.
+        if (device.isRevalidated()) {
+            try {
+                isLockedByThisComputer();
+            } catch (Exception e) {
+                // It doesn't really matter if this fails or not at this moment.
+            }
         }
     }
 
@@ -148,11 +152,16 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public String set(String key, String value) throws IOException, GetSetException {
-        if (currentLockkey > -1) {
-            return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, currentLockkey);
-        }
+        try {
+            if (currentLockkey > -1) {
+                return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, currentLockkey);
+            }
 
-        return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value);
+            return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value);
+        } finally {
+            // Anything polled before the device accepted the new value is now out of date.
+            DEVICE.STATUS_POLLER.invalidate(TUNER_NUMBER);
+        }
     }
 
     /**
@@ -167,7 +176,11 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public String set(String key, String value, int lockkey) throws IOException, GetSetException {
-        return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, lockkey);
+        try {
+            return CONTROL.setVariable(DEVICE.getIpAddress(), getTunerGetString(key), value, lockkey);
+        } finally {
+            DEVICE.STATUS_POLLER.invalidate(TUNER_NUMBER);
+        }
     }
 
     /**
@@ -218,6 +231,9 @@ public class HDHomeRunTuner {
      * Get stream information.
      * <p/>
      * This includes a list of all currently available programs and the current tsid.
+     * <p/>
+     * This is answered from {@link HDHomeRunDevice#STATUS_POLLER} when its cached value is fresh
+     * enough.
      *
      * @return Stream info object.
      * @throws IOException     Thrown if communication with the device was incomplete or is not possible
@@ -225,7 +241,7 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public HDHomeRunStreamInfo getStreamInfo() throws IOException, GetSetException {
-        streamInfo = get("streaminfo");
+        streamInfo = DEVICE.STATUS_POLLER.getStreamInfo(TUNER_NUMBER);
 
         logger.debug("streaminfo returned: {}", streamInfo);
 
@@ -463,6 +479,9 @@ public class HDHomeRunTuner {
 
     /**
      * Get the current status of this tuner on the device.
+     * <p/>
+     * This is answered from {@link HDHomeRunDevice#STATUS_POLLER} when its cached value is fresh
+     * enough.
      *
      * @return The current status values.
      * @throws IOException Thrown if communication with the device was incomplete or is not possible
@@ -470,13 +489,16 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public HDHomeRunStatus getStatus() throws IOException, GetSetException {
-        status = CONTROL.getVariable(DEVICE.getIpAddress(), getTunerGetString("status"));
+        status = DEVICE.STATUS_POLLER.getStatus(TUNER_NUMBER);
 
         return new HDHomeRunStatus(status);
     }
 
     /**
      * Get the current virtual channel status of this tuner on the device.
+     * <p/>
+     * This is answered from {@link HDHomeRunDevice#STATUS_POLLER} when its cached value is fresh
+     * enough.
      *
      * @return The current vstatus values.
      * @throws IOException Thrown if communication with the device was incomplete or is not possible
@@ -484,7 +506,7 @@ public class HDHomeRunTuner {
      * @throws GetSetException Thrown if the device returns an error instead of a value.
      */
     public HDHomeRunVStatus getVirtualChannelStatus() throws IOException, GetSetException {
-        vstatus = CONTROL.getVariable(DEVICE.getIpAddress(), getTunerGetString("vstatus"));
+        vstatus = DEVICE.STATUS_POLLER.getVirtualChannelStatus(TUNER_NUMBER);
 
         return new HDHomeRunVStatus(vstatus);
     }
@@ -18,24 +18,19 @@ package opendct.tuning.http;
 
 import opendct.channel.BroadcastStandard;
 import opendct.channel.CopyProtection;
-import opendct.util.ThreadPool;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.Future;
 
 public class InfiniTVStatus {
     private static final Logger logger = LogManager.getLogger(InfiniTVStatus.class);
-    private static final String DATA_START = "<body class=\"get\">";
-    private static final String DATA_END = "</body></html>";
 
     /**
      * Get a parsed variable from an InfiniTV capture device with retry attempts.
+     * <p/>
+     * The value is always read from the capture device since this is used when waiting for a
+     * value to change.
      *
      * @param deviceAddress The IP/hostname of the capture device.
      * @param tunerNumber The tuner number to query.
@@ -47,16 +42,22 @@ public class InfiniTVStatus {
      */
     public static String getVar(String deviceAddress, int tunerNumber, String service, String value, int retry) throws IOException, InterruptedException {
         IOException e0 = new IOException();
+        InfiniTVStatusClient client = InfiniTVStatusClient.getClient(deviceAddress);
 
         retry = Math.abs(retry) + 1;
 
         for (int i = 0; i < retry; i++) {
             try {
-                return getVar(deviceAddress, tunerNumber, service, value);
+                return client.getVar(tunerNumber, service, value, 0);
             } catch (IOException e) {
                 e0 = e;
                 logger.error("Unable to access device '{}', attempt number {}", deviceAddress, i);
-                Thread.sleep(200);
+
+                // The first attempt might have only failed because a kept alive connection was
+                // closed by the device, so try again right away.
+                if (i > 0) {
+                    Thread.sleep(200);
+                }
             }
         }
 
@@ -65,6 +66,8 @@ public class InfiniTVStatus {
 
     /**
      * Get a parsed variable from an InfiniTV capture device.
+     * <p/>
+     * The last value read is returned if it's recent enough.
      *
      * @param deviceAddress The IP/hostname of the capture device.
      * @param tunerNumber The tuner number to query.
@@ -74,44 +77,21 @@ public class InfiniTVStatus {
      * @throws IOException Thrown if the capture device was unreachable.
      */
     public static String getVar(String deviceAddress, int tunerNumber, String service, String value) throws IOException {
-        logger.entry(deviceAddress, tunerNumber, service, value);
-
-        int tunerIndex = tunerNumber - 1;
-
-        URL url = new URL("http://" + deviceAddress + "/get_var?i=" + tunerIndex + "&s=" + service + "&v=" + value);
-        logger.debug("Connecting to InfiniTV tuner using the URL '{}'", url);
-
-        final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
-
-        Future httpTimeout = ThreadPool.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException e) {
-                    return;
-                }
-
-                httpURLConnection.disconnect();
-            }
-        }, Thread.MIN_PRIORITY, "HttpTimeout", deviceAddress);
-
-        InputStreamReader inputStreamReader = new InputStreamReader(httpURLConnection.getInputStream());
-        BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-        httpTimeout.cancel(true);
-
-        String line = bufferedReader.readLine();
-        logger.debug("InfiniTV DCT returned the value '{}'", line);
-
-        int start = line.indexOf(DATA_START);
-        int end = line.indexOf(DATA_END);
-
-        if (start > 0 && end > start) {
-            line = line.substring(start + DATA_START.length(), end);
-        }
-        logger.debug("The returned value was trimmed to '{}'", line);
+        return InfiniTVStatusClient.getClient(deviceAddress).getVar(tunerNumber, service, value);
+    }
 
-        return logger.exit(line);
+    /**
+     * Get several parsed variables from an InfiniTV capture device.
+     *
+     * @param deviceAddress The IP/hostname of the capture device.
+     * @param tunerNumber The tuner number to query.
+     * @param services The service name to query for each variable.
+     * @param values The value to query from the service for each variable.
+     * @return The current value for each variable in the same order they were requested.
+     * @throws IOException Thrown if the capture device was unreachable.
+     */
+    public static String[] getVars(String deviceAddress, int tunerNumber, String services[], String values[]) throws IOException {
+        return InfiniTVStatusClient.getClient(deviceAddress).getVars(tunerNumber, services, values);
     }
 
     /**
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.tuning.http;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads status variables from one InfiniTV device.
+ * <p/>
+ * Every variable read is kept for a short time, so the tuning and monitoring paths asking for the
+ * same variable at about the same time only ask the device once. Every reply is read completely
+ * and closed, so the connection to the device is kept alive and reused for the next request
+ * instead of opening a new connection for every variable. Posting anything to the device discards
+ * everything kept for that device.
+ */
+public class InfiniTVStatusClient {
+    private static final Logger logger = LogManager.getLogger(InfiniTVStatusClient.class);
+
+    private static final String DATA_START = "<body class=\"get\">";
+    private static final String DATA_END = "</body></html>";
+
+    private static final long CACHE_TTL_MS =
+            Math.max(0, Config.getLong("upnp.infinitv.status_cache_ttl_ms", 1000));
+    private static final int CONNECT_TIMEOUT_MS =
+            Math.max(250, Config.getInteger("upnp.infinitv.status_connect_timeout_ms", 2000));
+    private static final int READ_TIMEOUT_MS =
+            Math.max(250, Config.getInteger("upnp.infinitv.status_read_timeout_ms", 5000));
+
+    private static final Map<String, InfiniTVStatusClient> clients = new ConcurrentHashMap<>();
+
+    private final String deviceAddress;
+    private final Map<String, CachedValue> cache = new ConcurrentHashMap<>();
+
+    private InfiniTVStatusClient(String deviceAddress) {
+        this.deviceAddress = deviceAddress;
+    }
+
+    /**
+     * Get the client for an InfiniTV device.
+     *
+     * @param deviceAddress The IP/hostname of the capture device.
+     * @return The client shared by everything communicating with this device.
+     */
+    public static InfiniTVStatusClient getClient(String deviceAddress) {
+        InfiniTVStatusClient client = clients.get(deviceAddress);
+
+        if (client == null) {
+            synchronized (clients) {
+                client = clients.get(deviceAddress);
+
+                if (client == null) {
+                    client = new InfiniTVStatusClient(deviceAddress);
+                    clients.put(deviceAddress, client);
+                }
+            }
+        }
+
+        return client;
+    }
+
+    /**
+     * Discard every value kept for this device.
+     * <p/>
+     * This should be called any time something on the device is changed.
+     */
+    public void invalidate() {
+        cache.clear();
+    }
+
+    /**
+     * Get a parsed variable, using the last value read if it's recent enough.
+     *
+     * @param tunerNumber The tuner number to query.
+     * @param service The service name to query.
+     * @param value The value to query from the service.
+     * @return A string representation of the current value returned.
+     * @throws IOException Thrown if the capture device was unreachable.
+     */
+    public String getVar(int tunerNumber, String service, String value) throws IOException {
+        return getVar(tunerNumber, service, value, CACHE_TTL_MS);
+    }
+
+    /**
+     * Get a parsed variable.
+     *
+     * @param tunerNumber The tuner number to query.
+     * @param service The service name to query.
+     * @param value The value to query from the service.
+     * @param maxAgeMs The oldest a kept value can be in milliseconds to be returned instead of
+     *                 asking the device. 0 always asks the device.
+     * @return A string representation of the current value returned.
+     * @throws IOException Thrown if the capture device was unreachable.
+     */
+    public String getVar(int tunerNumber, String service, String value, long maxAgeMs) throws IOException {
+        String key = getKey(tunerNumber, service, value);
+
+        if (maxAgeMs > 0) {
+            CachedValue cachedValue = cache.get(key);
+
+            if (cachedValue != null &&
+                    System.currentTimeMillis() - cachedValue.time <= maxAgeMs) {
+
+                return cachedValue.value;
+            }
+        }
+
+        String returnValue = fetch(tunerNumber, service, value);
+        cache.put(key, new CachedValue(returnValue));
+
+        return returnValue;
+    }
+
+    /**
+     * Get several parsed variables from one tuner.
+     * <p/>
+     * The device only returns one variable per request, so any variables that are not recent enough
+     * are requested back to back over the same connection.
+     *
+     * @param tunerNumber The tuner number to query.
+     * @param services The service name to query for each variable.
+     * @param values The value to query from the service for each variable.
+     * @return The current value for each variable in the same order they were requested.
+     * @throws IOException Thrown if the capture device was unreachable.
+     */
+    public String[] getVars(int tunerNumber, String services[], String values[]) throws IOException {
+        if (services.length != values.length) {
+            throw new IllegalArgumentException("Every service must have a value.");
+        }
+
+        String returnValues[] = new String[services.length];
+
+        for (int i = 0; i < services.length; i++) {
+            returnValues[i] = getVar(tunerNumber, services[i], values[i], CACHE_TTL_MS);
+        }
+
+        return returnValues;
+    }
+
+    private String fetch(int tunerNumber, String service, String value) throws IOException {
+        logger.entry(deviceAddress, tunerNumber, service, value);
+
+        int tunerIndex = tunerNumber - 1;
+
+        URL url = new URL("http://" + deviceAddress + "/get_var?i=" + tunerIndex + "&s=" + service + "&v=" + value);
+        logger.debug("Connecting to InfiniTV tuner using the URL '{}'", url);
+
+        HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+        httpURLConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        httpURLConnection.setReadTimeout(READ_TIMEOUT_MS);
+
+        String reply;
+
+        try {
+            reply = readFully(httpURLConnection.getInputStream());
+        } catch (IOException e) {
+            // Reading the error reply allows the connection to be reused.
+            InputStream errorStream = httpURLConnection.getErrorStream();
+
+            if (errorStream != null) {
+                try {
+                    readFully(errorStream);
+                } catch (IOException e1) {
+                    logger.debug("Unable to read the error reply => {}", e1.getMessage());
+                }
+            }
+
+            throw e;
+        }
+
+        int newLine = reply.indexOf('\n');
+        String line = newLine >= 0 ? reply.substring(0, newLine) : reply;
+        logger.debug("InfiniTV DCT returned the value '{}'", line);
+
+        if (line.length() == 0) {
+            throw new IOException("The device '" + deviceAddress + "' returned an empty reply.");
+        }
+
+        int start = line.indexOf(DATA_START);
+        int end = line.indexOf(DATA_END);
+
+        if (start > 0 && end > start) {
+            line = line.substring(start + DATA_START.length(), end);
+        }
+        logger.debug("The returned value was trimmed to '{}'", line);
+
+        return logger.exit(line);
+    }
+
+    private static String readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(512);
+        byte buffer[] = new byte[512];
+
+        try {
+            int bytesRead;
+
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return new String(outputStream.toByteArray(), Config.STD_BYTE);
+    }
+
+    private static String getKey(int tunerNumber, String service, String value) {
+        return tunerNumber + "/" + service + "/" + value;
+    }
+
+    private static class CachedValue {
+        private final long time = System.currentTimeMillis();
+        private final String value;
+
+        private CachedValue(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -66,8 +66,9 @@ public class InfiniTVTuning {
         }
 
         try {
-            // Check if the frequency is already correct.
-            String currentFrequency = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Frequency") + "000";
+            // Check if the frequency is already correct. This must not be an old value or the
+            // frequency might not be tuned when it needs to be.
+            String currentFrequency = InfiniTVStatus.getVar(deviceAddress, tunerNumber, "tuner", "Frequency", 0) + "000";
 
             boolean frequencyTuned = currentFrequency.equals(String.valueOf(tvChannel.getFrequency()));
             int attempts = 20;
@@ -409,6 +410,9 @@ public class InfiniTVTuning {
                     e.getMessage());
         }
 
+        // Anything read from the device before this might not be true anymore.
+        InfiniTVStatusClient.getClient(deviceAddress).invalidate();
+
         return logger.exit(true);
     }
 }
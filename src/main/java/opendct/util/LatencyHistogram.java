@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took in buckets that double in size.
+ * <p/>
+ * Recording a time never locks, so this can be used on paths that must stay fast. The first
+ * bucket counts times under 1 microsecond and each following bucket counts times up to twice the
+ * limit of the one before it. Percentiles are reported as the limit of the bucket they fall into,
+ * so they are never lower than the real value and at most twice as high.
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 36;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong totalUs = new AtomicLong(0);
+    private final AtomicLong maxUs = new AtomicLong(0);
+
+    /**
+     * Add a time to the histogram.
+     *
+     * @param nanos The time in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+
+        buckets.incrementAndGet(getBucket(micros));
+        count.incrementAndGet();
+        totalUs.addAndGet(micros);
+
+        long currentMax = maxUs.get();
+        while (micros > currentMax && !maxUs.compareAndSet(currentMax, micros)) {
+            currentMax = maxUs.get();
+        }
+    }
+
+    /**
+     * Remove all recorded times.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+
+        count.set(0);
+        totalUs.set(0);
+        maxUs.set(0);
+    }
+
+    /**
+     * Get the bucket a time is counted in.
+     *
+     * @param micros The time in microseconds.
+     * @return The index of the bucket.
+     */
+    public static int getBucket(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Get the longest time counted in a bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The limit in microseconds or <i>Long.MAX_VALUE</i> for the last bucket.
+     */
+    public static long getBucketLimitUs(int bucket) {
+        if (bucket >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+
+        return (1L << bucket) - 1;
+    }
+
+    public Snapshot getSnapshot() {
+        long counts[] = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        long max = maxUs.get();
+
+        return new Snapshot(
+                total,
+                total == 0 ? 0 : totalUs.get() / total,
+                max,
+                getPercentile(counts, total, max, 50),
+                getPercentile(counts, total, max, 90),
+                getPercentile(counts, total, max, 99),
+                counts
+        );
+    }
+
+    private static long getPercentile(long counts[], long total, long max, int percentile) {
+        if (total == 0) {
+            return 0;
+        }
+
+        // The smallest number of times that must be at or under the percentile.
+        long needed = (total * percentile + 99) / 100;
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+
+            if (seen >= needed) {
+                return Math.min(getBucketLimitUs(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    public static class Snapshot {
+        public final long COUNT;
+        public final long AVERAGE_US;
+        public final long MAX_US;
+        public final long P50_US;
+        public final long P90_US;
+        public final long P99_US;
+        public final long BUCKETS[];
+
+        public Snapshot(long count, long averageUs, long maxUs, long p50Us, long p90Us,
+                        long p99Us, long buckets[]) {
+
+            COUNT = count;
+            AVERAGE_US = averageUs;
+            MAX_US = maxUs;
+            P50_US = p50Us;
+            P90_US = p90Us;
+            P99_US = p99Us;
+            BUCKETS = buckets;
+        }
+    }
+}
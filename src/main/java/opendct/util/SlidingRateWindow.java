@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Calculates how fast a counter is increasing over the most recent period of time.
+ * <p/>
+ * The counter is sampled with {@link #add(long, long)} and the rate is the change between the
+ * oldest sample still inside the window and the newest sample. This is not thread-safe. It is
+ * meant to be sampled and read by one task at a time.
+ */
+public class SlidingRateWindow {
+    private final long windowMs;
+    private final ArrayDeque<long[]> samples = new ArrayDeque<>();
+
+    /**
+     * Create a new window.
+     *
+     * @param windowMs The length of time in milliseconds the rate is calculated over.
+     */
+    public SlidingRateWindow(long windowMs) {
+        this.windowMs = Math.max(1, windowMs);
+    }
+
+    /**
+     * Add a sample of the counter.
+     *
+     * @param timeMs The time of the sample in milliseconds.
+     * @param value The value of the counter at that time.
+     */
+    public void add(long timeMs, long value) {
+        samples.addLast(new long[] { timeMs, value });
+
+        // Keep one sample at or before the start of the window, so the rate always covers the
+        // full window once there's enough history.
+        while (samples.size() > 2) {
+            long[] first = samples.removeFirst();
+
+            if (timeMs - samples.peekFirst()[0] < windowMs) {
+                samples.addFirst(first);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Has enough time been sampled to calculate the rate over the full window?
+     *
+     * @return <i>true</i> if {@link #getRatePerSecond()} covers the full window.
+     */
+    public boolean isFull() {
+        return samples.size() > 1 &&
+                samples.peekLast()[0] - samples.peekFirst()[0] >= windowMs;
+    }
+
+    /**
+     * Get how fast the counter increased over the window.
+     *
+     * @return The increase per second or <i>-1</i> if the window isn't full yet.
+     */
+    public long getRatePerSecond() {
+        if (!isFull()) {
+            return -1;
+        }
+
+        long[] first = samples.peekFirst();
+        long[] last = samples.peekLast();
+
+        return Math.max(0, (last[1] - first[1]) * 1000 / (last[0] - first[0]));
+    }
+
+    /**
+     * Remove all samples.
+     */
+    public void clear() {
+        samples.clear();
+    }
+}
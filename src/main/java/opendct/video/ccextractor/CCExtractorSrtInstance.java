@@ -22,19 +22,35 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static opendct.video.ccextractor.CCExtractorCommon.*;
 
 public class CCExtractorSrtInstance {
     private static final Logger logger = LogManager.getLogger(CCExtractorSrtInstance.class);
 
+    // The number of chunks that can be waiting for CCExtractor before new data is dropped.
+    private static final int QUEUE_CHUNKS =
+            Math.max(2, Config.getInteger("consumer.ffmpeg.ccextractor_queue_chunks", 32));
+
     private Process ccExtractor;
     private ReadOutput outputStdStream;
     private ReadOutput outputErrStream;
     private InputStream inputStdStream;
     private InputStream inputErrStream;
     private BufferedOutputStream outputStream;
-    private byte streamOutBuffer[];
+    private volatile DatagramChannel datagramChannel;
+
+    // Chunks are only ever taken from freeChunks by the writer and from pendingChunks by the feed
+    // thread, so the writer never waits on CCExtractor.
+    private final ArrayBlockingQueue<byte[]> freeChunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final ArrayBlockingQueue<byte[]> pendingChunks = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final ArrayBlockingQueue<Integer> pendingLengths = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private volatile boolean closed = false;
+    private long droppedBytes = 0;
+    private long lastDropWarning = 0;
 
     public CCExtractorSrtInstance(String parameters, String baseFilename) throws IOException {
         if (CC_BINARY.equals("")) {
@@ -78,11 +94,19 @@ public class CCExtractorSrtInstance {
             new File(baseFilename + ".CC2.srt").createNewFile();
         }
 
+        for (int i = 0; i < QUEUE_CHUNKS; i++) {
+            freeChunks.add(new byte[0]);
+        }
+
         startReadOutput(baseFilename);
+        startFeed(baseFilename);
     }
 
     /**
-     * Write data to be processed by CCExtractor.
+     * Queue data to be processed by CCExtractor.
+     * <p/>
+     * This never waits on CCExtractor. If CCExtractor has fallen behind and the queue is full, the
+     * data is dropped.
      *
      * @param data The incoming data needs to already be flipped. The parameter will return
      *             with nothing remaining.
@@ -94,21 +118,22 @@ public class CCExtractorSrtInstance {
             return;
         }
 
-        if (streamOutBuffer == null || streamOutBuffer.length < length) {
-            streamOutBuffer = new byte[length * 2];
-        }
+        byte chunk[] = takeChunk(length);
 
-        data.get(streamOutBuffer, 0, length);
-
-        try {
-            outputStream.write(streamOutBuffer, 0, length);
-        } catch (IOException e) {
-            logger.error("Unable to write to CCExtractor => ", e);
+        if (chunk == null) {
+            data.position(data.limit());
+            return;
         }
+
+        data.get(chunk, 0, length);
+        queueChunk(chunk, length);
     }
 
     /**
-     * Write data to be processed by CCExtractor.
+     * Queue data to be processed by CCExtractor.
+     * <p/>
+     * This never waits on CCExtractor. If CCExtractor has fallen behind and the queue is full, the
+     * data is dropped.
      *
      * @param data The incoming data needs to already be flipped.
      * @param position The position to start reading from the array.
@@ -119,17 +144,64 @@ public class CCExtractorSrtInstance {
             return;
         }
 
-        try {
-            outputStream.write(data, position, length);
-        } catch (IOException e) {
-            logger.error("Unable to write to CCExtractor => ", e);
+        byte chunk[] = takeChunk(length);
+
+        if (chunk == null) {
+            return;
         }
+
+        System.arraycopy(data, position, chunk, 0, length);
+        queueChunk(chunk, length);
+    }
+
+    private byte[] takeChunk(int length) {
+        if (closed) {
+            return null;
+        }
+
+        byte chunk[] = freeChunks.poll();
+
+        if (chunk == null) {
+            droppedBytes += length;
+            long now = System.currentTimeMillis();
+
+            if (now - lastDropWarning > 60000) {
+                lastDropWarning = now;
+                logger.warn("CCExtractor is not keeping up. {} bytes have been dropped.",
+                        droppedBytes);
+            }
+
+            return null;
+        }
+
+        if (chunk.length < length) {
+            chunk = new byte[length];
+        }
+
+        return chunk;
+    }
+
+    private void queueChunk(byte chunk[], int length) {
+        // Both queues have the same capacity as the number of chunks, so this will never block.
+        pendingLengths.add(length);
+        pendingChunks.add(chunk);
+    }
+
+    /**
+     * The number of bytes that were not sent to CCExtractor because it was not keeping up.
+     *
+     * @return The number of bytes dropped.
+     */
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
     }
 
     /**
      * Stops the current instance of CCExtractor and closes all open streams.
      */
     public synchronized void setClosed() {
+        closed = true;
+
         try {
             ccExtractor.destroy();
         } catch (Exception e) {
@@ -146,6 +218,94 @@ public class CCExtractorSrtInstance {
         outputErrStream.setClosed();
     }
 
+    private void startFeed(String baseFilename) {
+        Thread feed = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                logger.debug("CCExtractor feed thread started.");
+
+                try {
+                    while (!closed) {
+                        byte chunk[];
+
+                        try {
+                            chunk = pendingChunks.poll(500, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+
+                        if (chunk == null) {
+                            continue;
+                        }
+
+                        int length = pendingLengths.remove();
+
+                        try {
+                            DatagramChannel channel = datagramChannel;
+
+                            if (channel != null) {
+                                sendDatagrams(channel, chunk, length);
+                            } else {
+                                outputStream.write(chunk, 0, length);
+                                outputStream.flush();
+                            }
+                        } catch (IOException e) {
+                            if (!closed) {
+                                logger.error("Unable to write to CCExtractor => ", e);
+                            }
+                        } finally {
+                            freeChunks.add(chunk);
+                        }
+                    }
+                } finally {
+                    logger.debug("CCExtractor feed thread stopped.");
+                }
+            }
+        });
+
+        feed.setName("CCExtractorFeed-" + feed.getId() + ":" + new File(baseFilename).getName());
+        feed.setPriority(Thread.MIN_PRIORITY);
+        feed.setDaemon(true);
+        feed.start();
+    }
+
+    private static void sendDatagrams(DatagramChannel channel, byte chunk[], int length)
+            throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+
+        while (buffer.hasRemaining() && channel.isOpen()) {
+            ByteBuffer slice = buffer.slice();
+            slice.limit(Math.min(31960, buffer.remaining()));
+            buffer.position(buffer.position() + slice.limit());
+
+            while (slice.hasRemaining() && channel.isOpen()) {
+                channel.write(slice);
+            }
+
+            // Give CCExtractor a chance to read the datagram before the next one arrives.
+            if (buffer.hasRemaining()) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send queued data to CCExtractor over UDP instead of stdin.
+     * <p/>
+     * This is a work around for platforms where <b>-stdin</b> does not work. The channel must
+     * already be connected to the port CCExtractor is listening on.
+     *
+     * @param datagramChannel The connected channel.
+     */
+    public void setDatagramChannel(DatagramChannel datagramChannel) {
+        this.datagramChannel = datagramChannel;
+    }
+
     private void startReadOutput(String baseFilename) {
         baseFilename = new File(baseFilename).getName();
 
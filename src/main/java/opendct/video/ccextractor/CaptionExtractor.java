@@ -0,0 +1,460 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ccextractor;
+
+import opendct.video.java.TsPacketParser;
+import opendct.video.java.TsPsiParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static opendct.video.java.VideoUtil.MTS_PACKET_LEN;
+
+/**
+ * Extracts CEA-608 captions from a transport stream into .srt files without CCExtractor.
+ * <p/>
+ * The PAT and PMT are used to find the video PID. After that, every other PID is skipped with a
+ * single comparison. The video payload is only scanned for start codes. The bytes of a unit are
+ * only kept when the unit is MPEG-2 user data or an H.264 SEI message, which are the only places
+ * ATSC caption data can be found. Field 1 is written to <b>.CC1.srt</b> and field 2 is written to
+ * <b>.CC2.srt</b>, which is the same naming used when CCExtractor is run.
+ * <p/>
+ * CEA-708 services are not decoded. ATSC broadcasts carry the same captions as CEA-608 bytes
+ * alongside the CEA-708 data, and the CEA-608 bytes are all that is needed for .srt files.
+ */
+public class CaptionExtractor extends TsPacketParser {
+    private static final Logger logger = LogManager.getLogger(CaptionExtractor.class);
+
+    // Pictures are decoded in this order, but captions need to be in presentation order.
+    private static final int REORDER_DEPTH = 6;
+
+    // Caption SEI and user data are small. Anything larger is not what we are looking for.
+    private static final int MAX_UNIT_SIZE = 2048;
+
+    private static final int STREAM_MPEG2 = 0;
+    private static final int STREAM_H264 = 1;
+
+    private final TsPsiParser psiParser;
+    private final String baseFilename;
+    private final SrtWriter writers[];
+    private final Cea608Decoder decoders[];
+
+    private int videoPid = -1;
+    private int videoFormat = -1;
+
+    private long firstPts = -1;
+    private long currentTimeMs = 0;
+
+    // Start code scanning state. This continues across packets.
+    private int zeros = 0;
+    private boolean awaitingType = false;
+    private boolean capturing = false;
+    private final byte unit[] = new byte[MAX_UNIT_SIZE];
+    private final byte rbsp[] = new byte[MAX_UNIT_SIZE];
+    private int unitFill = 0;
+
+    private final List<CaptionPicture> reorder = new ArrayList<>();
+    private CaptionPicture currentPicture;
+
+    private long captionBytes = 0;
+
+    /**
+     * Create a new caption extractor.
+     * <p/>
+     * The .srt files are created immediately so they will already exist when SageTV checks for
+     * subtitles after the recording starts.
+     *
+     * @param baseFilename The full path and name of the recording without an extension.
+     * @param program The program to extract captions from. Use 0 for the first program.
+     * @param allFields If <i>true</i>, field 2 will be extracted to <b>.CC2.srt</b>.
+     * @throws IOException Thrown if any of the .srt files cannot be created.
+     */
+    public CaptionExtractor(String baseFilename, int program, boolean allFields) throws IOException {
+        this.baseFilename = baseFilename;
+        psiParser = new TsPsiParser(program);
+
+        writers = new SrtWriter[allFields ? 2 : 1];
+        decoders = new Cea608Decoder[writers.length];
+
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new SrtWriter(baseFilename + ".CC" + (i + 1) + ".srt");
+            decoders[i] = new Cea608Decoder(writers[i]);
+        }
+    }
+
+    @Override
+    protected void processPacket(byte[] packet, int offset, long streamOffset) {
+        if (videoPid < 0) {
+            psiParser.parse(packet, offset, MTS_PACKET_LEN);
+
+            if (psiParser.isComplete()) {
+                selectVideoPid();
+            }
+
+            return;
+        }
+
+        if (getPid(packet, offset) != videoPid || isTransportError(packet, offset)) {
+            return;
+        }
+
+        int payload = getPayloadOffset(packet, offset);
+
+        if (payload < 0) {
+            return;
+        }
+
+        int limit = offset + MTS_PACKET_LEN;
+
+        if (isPayloadStart(packet, offset)) {
+            // Anything being captured ends with the previous PES packet.
+            endUnit();
+            zeros = 0;
+            awaitingType = false;
+
+            payload = processPesHeader(packet, payload, limit);
+
+            if (payload < 0) {
+                return;
+            }
+        }
+
+        scan(packet, payload, limit);
+    }
+
+    private void selectVideoPid() {
+        int pids[] = psiParser.getStreamPids();
+        int types[] = psiParser.getStreamTypes();
+
+        for (int i = 0; i < pids.length; i++) {
+            switch (types[i]) {
+                case 0x01:
+                case 0x02:
+                case 0x80:
+                    videoFormat = STREAM_MPEG2;
+                    break;
+                case 0x1B:
+                    videoFormat = STREAM_H264;
+                    break;
+                default:
+                    continue;
+            }
+
+            videoPid = pids[i];
+            logger.debug("Extracting captions from PID {} into '{}'.", videoPid, baseFilename);
+            return;
+        }
+
+        // Look again in case a later PMT has a supported stream.
+        logger.debug("No supported video stream found for caption extraction.");
+        psiParser.reset();
+    }
+
+    /**
+     * Read the PTS from the PES header and return where the elementary stream begins.
+     *
+     * @return The offset of the first elementary stream byte or -1 if there is no data left.
+     */
+    private int processPesHeader(byte packet[], int payload, int limit) {
+        if (payload + 9 > limit ||
+                packet[payload] != 0 || packet[payload + 1] != 0 || packet[payload + 2] != 1) {
+
+            return -1;
+        }
+
+        int headerLength = packet[payload + 8] & 0xff;
+        long pts = getPesPts(packet, payload, limit);
+
+        if (pts >= 0) {
+            if (firstPts < 0) {
+                firstPts = pts;
+            }
+
+            // The PTS is 33 bits and will wrap after about 26 hours.
+            currentTimeMs = ((pts - firstPts) & 0x1FFFFFFFFL) / 90;
+        }
+
+        payload += 9 + headerLength;
+
+        return payload < limit ? payload : -1;
+    }
+
+    private void scan(byte data[], int index, int limit) {
+        for (; index < limit; index++) {
+            int value = data[index] & 0xff;
+
+            if (awaitingType) {
+                awaitingType = false;
+
+                if (isCaptionUnit(value)) {
+                    capturing = true;
+                    unitFill = 0;
+                }
+            }
+
+            if (capturing) {
+                if (unitFill < unit.length) {
+                    unit[unitFill++] = (byte) value;
+                } else {
+                    capturing = false;
+                }
+            }
+
+            if (value == 1 && zeros >= 2) {
+                if (capturing) {
+                    // Remove the start code that ended this unit.
+                    unitFill -= 1;
+                    endUnit();
+                }
+
+                awaitingType = true;
+            }
+
+            zeros = value == 0 ? zeros + 1 : 0;
+        }
+    }
+
+    private boolean isCaptionUnit(int value) {
+        if (videoFormat == STREAM_MPEG2) {
+            // User data start code.
+            return value == 0xB2;
+        }
+
+        // SEI NAL unit.
+        return (value & 0x9f) == 0x06;
+    }
+
+    private void endUnit() {
+        if (!capturing) {
+            return;
+        }
+
+        capturing = false;
+
+        // Trailing zero bytes before the next start code are not part of the unit.
+        while (unitFill > 0 && unit[unitFill - 1] == 0) {
+            unitFill -= 1;
+        }
+
+        if (videoFormat == STREAM_MPEG2) {
+            processUserData();
+        } else {
+            processSei();
+        }
+    }
+
+    private static boolean isAtsc(byte data[], int index) {
+        return data[index] == 'G' && data[index + 1] == 'A' &&
+                data[index + 2] == '9' && data[index + 3] == '4' &&
+                data[index + 4] == 0x03;
+    }
+
+    private void processUserData() {
+        // 0xB2, 'GA94', user_data_type_code 0x03, then cc_data.
+        if (unitFill < 8 || !isAtsc(unit, 1)) {
+            return;
+        }
+
+        processCcData(unit, 6, unitFill);
+    }
+
+    private void processSei() {
+        // Remove emulation prevention bytes after the NAL header.
+        int length = 0;
+        int rbspZeros = 0;
+
+        for (int i = 1; i < unitFill; i++) {
+            int value = unit[i] & 0xff;
+
+            if (rbspZeros >= 2 && value == 0x03) {
+                rbspZeros = 0;
+                continue;
+            }
+
+            rbsp[length++] = (byte) value;
+            rbspZeros = value == 0 ? rbspZeros + 1 : 0;
+        }
+
+        int index = 0;
+
+        // Stop at the RBSP trailing bits.
+        while (index < length && (rbsp[index] & 0xff) != 0x80) {
+            int payloadType = 0;
+            while (index < length && (rbsp[index] & 0xff) == 0xff) {
+                payloadType += 255;
+                index += 1;
+            }
+            if (index >= length) {
+                return;
+            }
+            payloadType += rbsp[index++] & 0xff;
+
+            int payloadSize = 0;
+            while (index < length && (rbsp[index] & 0xff) == 0xff) {
+                payloadSize += 255;
+                index += 1;
+            }
+            if (index >= length) {
+                return;
+            }
+            payloadSize += rbsp[index++] & 0xff;
+
+            int end = Math.min(length, index + payloadSize);
+
+            // user_data_registered_itu_t_t35: country code 0xB5, provider code 0x0031, then 'GA94'.
+            if (payloadType == 4 && end - index >= 10 &&
+                    (rbsp[index] & 0xff) == 0xB5 &&
+                    rbsp[index + 1] == 0x00 && rbsp[index + 2] == 0x31 &&
+                    isAtsc(rbsp, index + 3)) {
+
+                processCcData(rbsp, index + 8, end);
+            }
+
+            index = end;
+        }
+    }
+
+    private void processCcData(byte data[], int index, int limit) {
+        if (index + 2 > limit) {
+            return;
+        }
+
+        int flags = data[index] & 0xff;
+
+        // process_cc_data_flag
+        if ((flags & 0x40) == 0) {
+            return;
+        }
+
+        int count = flags & 0x1f;
+
+        // Skip the flags and em_data.
+        index += 2;
+
+        for (int i = 0; i < count && index + 3 <= limit; i++, index += 3) {
+            int header = data[index] & 0xff;
+            boolean valid = (header & 0x04) != 0;
+            int type = header & 0x03;
+
+            // Types 2 and 3 are CEA-708.
+            if (!valid || type > 1 || type >= decoders.length) {
+                continue;
+            }
+
+            if (currentPicture == null || currentPicture.timeMs != currentTimeMs) {
+                currentPicture = new CaptionPicture(currentTimeMs);
+                addPicture(currentPicture);
+            }
+
+            currentPicture.add(type, data[index + 1] & 0xff, data[index + 2] & 0xff);
+            captionBytes += 2;
+        }
+    }
+
+    private void addPicture(CaptionPicture picture) {
+        int insert = reorder.size();
+
+        while (insert > 0 && reorder.get(insert - 1).timeMs > picture.timeMs) {
+            insert -= 1;
+        }
+
+        reorder.add(insert, picture);
+
+        while (reorder.size() > REORDER_DEPTH) {
+            decodePicture(reorder.remove(0));
+        }
+    }
+
+    private void decodePicture(CaptionPicture picture) {
+        if (picture == currentPicture) {
+            currentPicture = null;
+        }
+
+        for (int i = 0; i < picture.count; i++) {
+            decoders[picture.fields[i]].decode(
+                    picture.data[i * 2], picture.data[i * 2 + 1], picture.timeMs);
+        }
+    }
+
+    /**
+     * Decode anything that is still waiting to be put in order, write anything currently displayed
+     * and close the .srt files.
+     */
+    public void close() {
+        endUnit();
+
+        while (reorder.size() > 0) {
+            decodePicture(reorder.remove(0));
+        }
+
+        for (int i = 0; i < decoders.length; i++) {
+            decoders[i].commit(currentTimeMs);
+            writers[i].close();
+        }
+
+        logger.debug("Caption extraction for '{}' found {} bytes of caption data.",
+                baseFilename, captionBytes);
+    }
+
+    /**
+     * The video PID captions are being extracted from.
+     *
+     * @return The PID or -1 if the PMT has not been found yet.
+     */
+    public int getVideoPid() {
+        return videoPid;
+    }
+
+    /**
+     * The number of CEA-608 bytes found so far.
+     *
+     * @return The number of bytes.
+     */
+    public long getCaptionBytes() {
+        return captionBytes;
+    }
+
+    private static class CaptionPicture {
+        private final long timeMs;
+        private int fields[] = new int[8];
+        private int data[] = new int[16];
+        private int count = 0;
+
+        private CaptionPicture(long timeMs) {
+            this.timeMs = timeMs;
+        }
+
+        private void add(int field, int cc1, int cc2) {
+            if (count == fields.length) {
+                int newFields[] = new int[count * 2];
+                int newData[] = new int[count * 4];
+                System.arraycopy(fields, 0, newFields, 0, count);
+                System.arraycopy(data, 0, newData, 0, count * 2);
+                fields = newFields;
+                data = newData;
+            }
+
+            fields[count] = field;
+            data[count * 2] = cc1;
+            data[count * 2 + 1] = cc2;
+            count += 1;
+        }
+    }
+}
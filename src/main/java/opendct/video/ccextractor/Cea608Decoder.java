@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ccextractor;
+
+/**
+ * Decodes the first data channel of one CEA-608 field into subtitle cues.
+ * <p/>
+ * Only what is needed to produce plain text cues is implemented. Colors, styles, indents and
+ * text mode are ignored. Pop-on captions are written when they are removed from the screen.
+ * Roll-up captions are written one row at a time as each row is completed. Paint-on captions
+ * are written every time a row is completed or the screen is erased.
+ */
+public class Cea608Decoder {
+    private static final int ROWS = 15;
+
+    private static final int MODE_NONE = 0;
+    private static final int MODE_POP_ON = 1;
+    private static final int MODE_ROLL_UP = 2;
+    private static final int MODE_PAINT_ON = 3;
+
+    // Row for each preamble address code first byte (without the channel bit).
+    private static final int PAC_ROWS[] = { 10, 0, 2, 11, 13, 4, 6, 8 };
+
+    private static final String SPECIAL_CHARS =
+            "\u00ae\u00b0\u00bd\u00bf\u2122\u00a2\u00a3\u266a\u00e0 \u00e8\u00e2\u00ea\u00ee\u00f4\u00fb";
+
+    private static final String EXTENDED_CHARS_1 =
+            "\u00c1\u00c9\u00d3\u00da\u00dc\u00fc\u2018\u00a1*'\u2014\u00a9\u2120\u2022\u201c\u201d" +
+            "\u00c0\u00c2\u00c7\u00c8\u00ca\u00cb\u00eb\u00ce\u00cf\u00ef\u00d4\u00d9\u00f9\u00db\u00ab\u00bb";
+
+    private static final String EXTENDED_CHARS_2 =
+            "\u00c3\u00e3\u00cd\u00cc\u00ec\u00d2\u00f2\u00d5\u00f5{}\\^_|~" +
+            "\u00c4\u00e4\u00d6\u00f6\u00df\u00a5\u00a4\u2502\u00c5\u00e5\u00d8\u00f8\u250c\u2510\u2514\u2518";
+
+    private final SrtWriter writer;
+
+    private StringBuilder displayed[] = newMemory();
+    private StringBuilder nonDisplayed[] = newMemory();
+    private long displayedStart = -1;
+
+    private int mode = MODE_NONE;
+    private int rollUpRows = 2;
+    private int cursorRow = ROWS - 1;
+
+    private int lastControl1 = -1;
+    private int lastControl2 = -1;
+    private boolean channelSelected = false;
+
+    /**
+     * Create a new decoder.
+     *
+     * @param writer The .srt file to write the decoded cues.
+     */
+    public Cea608Decoder(SrtWriter writer) {
+        this.writer = writer;
+    }
+
+    private static StringBuilder[] newMemory() {
+        StringBuilder memory[] = new StringBuilder[ROWS];
+
+        for (int i = 0; i < memory.length; i++) {
+            memory[i] = new StringBuilder(32);
+        }
+
+        return memory;
+    }
+
+    /**
+     * Decode one pair of bytes for this field.
+     *
+     * @param cc1 The first byte with parity.
+     * @param cc2 The second byte with parity.
+     * @param timeMs The presentation time of the picture that carried these bytes.
+     */
+    public void decode(int cc1, int cc2, long timeMs) {
+        cc1 &= 0x7f;
+        cc2 &= 0x7f;
+
+        if (cc1 == 0 && cc2 == 0) {
+            return;
+        }
+
+        if (cc1 >= 0x10 && cc1 <= 0x1f) {
+            // Control codes are sent twice for redundancy. Only the first one is used.
+            if (cc1 == lastControl1 && cc2 == lastControl2) {
+                lastControl1 = -1;
+                lastControl2 = -1;
+                return;
+            }
+
+            lastControl1 = cc1;
+            lastControl2 = cc2;
+
+            // Only data channel 1 is decoded.
+            channelSelected = (cc1 & 0x08) == 0;
+
+            if (channelSelected) {
+                decodeControl(cc1 & 0x77, cc2, timeMs);
+            }
+
+            return;
+        }
+
+        lastControl1 = -1;
+        lastControl2 = -1;
+
+        if (!channelSelected || mode == MODE_NONE) {
+            return;
+        }
+
+        if (cc1 >= 0x20) {
+            writeChar(getBasicChar(cc1), timeMs);
+        }
+
+        if (cc2 >= 0x20) {
+            writeChar(getBasicChar(cc2), timeMs);
+        }
+    }
+
+    private void decodeControl(int cc1, int cc2, long timeMs) {
+        if ((cc1 == 0x14 || cc1 == 0x15) && cc2 >= 0x20 && cc2 <= 0x2f) {
+            decodeCommand(cc2, timeMs);
+        } else if (cc1 == 0x11 && cc2 >= 0x30 && cc2 <= 0x3f) {
+            writeChar(SPECIAL_CHARS.charAt(cc2 - 0x30), timeMs);
+        } else if (cc1 == 0x11 && cc2 >= 0x20 && cc2 <= 0x2f) {
+            // Mid-row codes change the style and are displayed as a space.
+            writeChar(' ', timeMs);
+        } else if ((cc1 == 0x12 || cc1 == 0x13) && cc2 >= 0x20 && cc2 <= 0x3f) {
+            // Extended characters are always preceded by a basic character for older decoders.
+            backspace();
+            writeChar((cc1 == 0x12 ? EXTENDED_CHARS_1 : EXTENDED_CHARS_2).charAt(cc2 - 0x20), timeMs);
+        } else if (cc2 >= 0x40 && cc2 <= 0x7f) {
+            int row = PAC_ROWS[cc1 & 0x07];
+
+            if (cc1 != 0x10 && (cc2 & 0x20) != 0) {
+                row += 1;
+            }
+
+            // Roll-up captions always stay on the base row.
+            if (mode != MODE_ROLL_UP) {
+                cursorRow = row;
+            }
+
+            StringBuilder target = getTargetRow();
+            if (target.length() > 0 && target.charAt(target.length() - 1) != ' ') {
+                target.append(' ');
+            }
+        }
+    }
+
+    private void decodeCommand(int command, long timeMs) {
+        switch (command) {
+            case 0x20:
+                // Resume caption loading.
+                mode = MODE_POP_ON;
+                break;
+            case 0x21:
+                // Backspace.
+                backspace();
+                break;
+            case 0x25:
+            case 0x26:
+            case 0x27:
+                // Roll-up captions with 2, 3 or 4 rows.
+                if (mode != MODE_ROLL_UP) {
+                    commit(timeMs);
+                    clear(displayed);
+                    cursorRow = ROWS - 1;
+                }
+
+                mode = MODE_ROLL_UP;
+                rollUpRows = command - 0x23;
+                break;
+            case 0x29:
+                // Resume direct captioning.
+                mode = MODE_PAINT_ON;
+                break;
+            case 0x2c:
+                // Erase displayed memory.
+                commit(timeMs);
+                clear(displayed);
+                displayedStart = -1;
+                break;
+            case 0x2d:
+                // Carriage return.
+                carriageReturn(timeMs);
+                break;
+            case 0x2e:
+                // Erase non-displayed memory.
+                clear(nonDisplayed);
+                break;
+            case 0x2f:
+                // End of caption. The memories are swapped.
+                commit(timeMs);
+                StringBuilder swap[] = displayed;
+                displayed = nonDisplayed;
+                nonDisplayed = swap;
+                displayedStart = timeMs;
+                mode = MODE_POP_ON;
+                break;
+            default:
+                // Alarm codes, delete to end of row, flash and text mode are not used.
+                break;
+        }
+    }
+
+    private void carriageReturn(long timeMs) {
+        if (mode == MODE_ROLL_UP) {
+            commit(timeMs);
+
+            int top = Math.max(0, cursorRow - rollUpRows + 1);
+            for (int i = 0; i < top; i++) {
+                displayed[i].setLength(0);
+            }
+
+            for (int i = top; i < cursorRow; i++) {
+                displayed[i].setLength(0);
+                displayed[i].append(displayed[i + 1]);
+            }
+
+            displayed[cursorRow].setLength(0);
+
+            // The rows above were already written, so the next cue starts with the next character.
+            displayedStart = -1;
+        } else if (mode == MODE_PAINT_ON) {
+            commit(timeMs);
+            displayedStart = isEmpty(displayed) ? -1 : timeMs;
+
+            if (cursorRow < ROWS - 1) {
+                cursorRow += 1;
+            }
+        } else if (cursorRow < ROWS - 1) {
+            cursorRow += 1;
+        }
+    }
+
+    private StringBuilder getTargetRow() {
+        return mode == MODE_POP_ON ? nonDisplayed[cursorRow] : displayed[cursorRow];
+    }
+
+    private void writeChar(char character, long timeMs) {
+        if (mode == MODE_NONE) {
+            return;
+        }
+
+        if (mode != MODE_POP_ON && displayedStart < 0) {
+            displayedStart = timeMs;
+        }
+
+        getTargetRow().append(character);
+    }
+
+    private void backspace() {
+        StringBuilder row = getTargetRow();
+
+        if (row.length() > 0) {
+            row.setLength(row.length() - 1);
+        }
+    }
+
+    /**
+     * Write anything currently displayed as a cue ending at the provided time.
+     *
+     * @param timeMs The time the displayed text is removed or changed.
+     */
+    public void commit(long timeMs) {
+        if (displayedStart < 0) {
+            return;
+        }
+
+        StringBuilder text = new StringBuilder(128);
+
+        // Roll-up rows are written as they are completed, so only the base row is new.
+        StringBuilder rows[] = mode == MODE_ROLL_UP ?
+                new StringBuilder[] { displayed[cursorRow] } : displayed;
+
+        for (StringBuilder row : rows) {
+            String line = row.toString().trim();
+
+            if (line.length() == 0) {
+                continue;
+            }
+
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+
+            text.append(line);
+        }
+
+        if (text.length() > 0) {
+            writer.writeCue(displayedStart, timeMs, text.toString());
+        }
+
+        displayedStart = timeMs;
+    }
+
+    private static void clear(StringBuilder memory[]) {
+        for (StringBuilder row : memory) {
+            row.setLength(0);
+        }
+    }
+
+    private static boolean isEmpty(StringBuilder memory[]) {
+        for (StringBuilder row : memory) {
+            if (row.length() > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static char getBasicChar(int value) {
+        switch (value) {
+            case 0x2a:
+                return '\u00e1';
+            case 0x5c:
+                return '\u00e9';
+            case 0x5e:
+                return '\u00ed';
+            case 0x5f:
+                return '\u00f3';
+            case 0x60:
+                return '\u00fa';
+            case 0x7b:
+                return '\u00e7';
+            case 0x7c:
+                return '\u00f7';
+            case 0x7d:
+                return '\u00d1';
+            case 0x7e:
+                return '\u00f1';
+            case 0x7f:
+                return '\u2588';
+            default:
+                return (char) value;
+        }
+    }
+}
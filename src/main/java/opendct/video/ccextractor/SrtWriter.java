@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ccextractor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes subtitle cues to an .srt file as they are completed.
+ * <p/>
+ * Every cue is flushed immediately so the file can be read while the recording is in progress.
+ */
+public class SrtWriter {
+    private static final Logger logger = LogManager.getLogger(SrtWriter.class);
+
+    private final String filename;
+    private Writer writer;
+    private int cueNumber = 0;
+
+    /**
+     * Create a new .srt file. An existing file will be replaced.
+     *
+     * @param filename The full path and name of the .srt file.
+     * @throws IOException Thrown if the file cannot be created.
+     */
+    public SrtWriter(String filename) throws IOException {
+        this.filename = filename;
+
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(filename), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a cue.
+     *
+     * @param startMs The time in milliseconds the cue is first displayed.
+     * @param endMs The time in milliseconds the cue is removed.
+     * @param text The text to display. Lines are separated by <b>\n</b>.
+     */
+    public synchronized void writeCue(long startMs, long endMs, String text) {
+        if (writer == null || endMs <= startMs || text.length() == 0) {
+            return;
+        }
+
+        StringBuilder cue = new StringBuilder(text.length() + 48);
+        cue.append(++cueNumber).append("\r\n");
+        appendTime(cue, startMs);
+        cue.append(" --> ");
+        appendTime(cue, endMs);
+        cue.append("\r\n");
+        cue.append(text.replace("\n", "\r\n")).append("\r\n\r\n");
+
+        try {
+            writer.write(cue.toString());
+            writer.flush();
+        } catch (IOException e) {
+            logger.error("Unable to write to the file '{}' => ", filename, e);
+        }
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.debug("Error while closing the file '{}' => ", filename, e);
+        }
+
+        writer = null;
+    }
+
+    public int getCues() {
+        return cueNumber;
+    }
+
+    private static void appendTime(StringBuilder builder, long timeMs) {
+        long hours = timeMs / 3600000;
+        long minutes = (timeMs / 60000) % 60;
+        long seconds = (timeMs / 1000) % 60;
+        long millis = timeMs % 1000;
+
+        appendPadded(builder, hours, 2);
+        builder.append(':');
+        appendPadded(builder, minutes, 2);
+        builder.append(':');
+        appendPadded(builder, seconds, 2);
+        builder.append(',');
+        appendPadded(builder, millis, 3);
+    }
+
+    private static void appendPadded(StringBuilder builder, long value, int digits) {
+        String number = String.valueOf(value);
+
+        for (int i = number.length(); i < digits; i++) {
+            builder.append('0');
+        }
+
+        builder.append(number);
+    }
+}
@@ -45,6 +45,8 @@ public class FFmpegConfig {
     private static BooleanDeviceOption ccExtractor;
     private static BooleanDeviceOption ccExtractorAllStreams;
     private static StringDeviceOption ccExtractorCustomOptions;
+    private static BooleanDeviceOption ccExtractorBuiltIn;
+    private static BooleanDeviceOption streamCache;
 
     static {
         deviceOptions = new ConcurrentHashMap<>();
@@ -67,7 +69,9 @@ public class FFmpegConfig {
                 noProgramTimeout,
                 ccExtractor,
                 ccExtractorAllStreams,
-                ccExtractorCustomOptions
+                ccExtractorCustomOptions,
+                ccExtractorBuiltIn,
+                streamCache
         );
     }
 
@@ -249,6 +253,31 @@ public class FFmpegConfig {
                                 " verify that your changes work."
                 );
 
+                ccExtractorBuiltIn = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.ffmpeg.ccextractor_builtin", true),
+                        false,
+                        "Use Built-in Caption Extraction",
+                        "consumer.ffmpeg.ccextractor_builtin",
+                        "This enables extracting CEA-608 captions to .srt files inside OpenDCT" +
+                                " instead of running CCExtractor for every recording. The built-in" +
+                                " extraction only reads the video stream and does not support" +
+                                " the custom options for CCExtractor. CCExtractor will still be" +
+                                " used for recordings that are not transport streams."
+                );
+
+                streamCache = new BooleanDeviceOption(
+                        Config.getBoolean("consumer.ffmpeg.stream_cache_enabled", true),
+                        false,
+                        "Enable Stream Detection Cache",
+                        "consumer.ffmpeg.stream_cache_enabled",
+                        "This enables remembering the detected streams for each channel. When" +
+                                " the first PAT/PMT after tuning matches what was detected the" +
+                                " last time, stream detection will start with the amount of data" +
+                                " that was enough the last time instead of slowly increasing it." +
+                                " Disable this option if recordings on a channel are starting" +
+                                " with missing audio streams."
+                );
+
             } catch (DeviceOptionException e) {
                 logger.warn("Invalid option {}. Reverting to defaults => ", e.deviceOption, e);
 
@@ -268,6 +297,8 @@ public class FFmpegConfig {
                 Config.setBoolean("consumer.ffmpeg.ccextractor_enabled", false);
                 Config.setBoolean("consumer.ffmpeg.ccextractor_all_streams", true);
                 Config.setString("consumer.ffmpeg.ccextractor_custom_options", "");
+                Config.setBoolean("consumer.ffmpeg.ccextractor_builtin", true);
+                Config.setBoolean("consumer.ffmpeg.stream_cache_enabled", true);
 
                 continue;
             }
@@ -292,7 +323,9 @@ public class FFmpegConfig {
                 noProgramTimeout,
                 ccExtractor,
                 ccExtractorAllStreams,
-                ccExtractorCustomOptions
+                ccExtractorCustomOptions,
+                ccExtractorBuiltIn,
+                streamCache
         };
     }
 
@@ -382,6 +415,10 @@ public class FFmpegConfig {
         return ccExtractorCustomOptions.getValue();
     }
 
+    public static boolean getCcExtractorBuiltIn() {
+        return ccExtractorBuiltIn.getBoolean();
+    }
+
     public static boolean getUseCompatiblityTimebase() {
         return useCompatibilityTimebase.getBoolean();
     }
@@ -389,4 +426,8 @@ public class FFmpegConfig {
     public static int getNoProgramTimeout() {
         return noProgramTimeout.getInteger();
     }
+
+    public static boolean getStreamCache() {
+        return streamCache.getBoolean();
+    }
 }
@@ -17,6 +17,7 @@
 package opendct.video.ffmpeg;
 
 import opendct.consumer.buffers.FFmpegCircularBufferNIO;
+import opendct.video.java.TsPsiParser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bytedeco.javacpp.BytePointer;
@@ -100,6 +101,12 @@ public class FFmpegContext {
     OutputStreamMap streamMap[];
     OutputStreamMap streamMap2[];
 
+    // Used to skip most of the probing when the stream layout has not changed since the last time
+    // this channel was detected.
+    protected String streamCacheLineup;
+    protected String streamCacheChannel;
+    protected TsPsiParser psiParser;
+
     static {
         FFmpegUtil.initAll();
     }
@@ -172,6 +179,10 @@ public class FFmpegContext {
         streamMap2 = new OutputStreamMap[0];
         encodeProfile = null;
         videoEncodeSettings = new HashMap<>();
+
+        streamCacheLineup = null;
+        streamCacheChannel = null;
+        psiParser = null;
     }
 
     public static FFmpegContext getContext(Pointer opaque) {
@@ -1056,6 +1067,22 @@ public class FFmpegContext {
         return desiredProgram;
     }
 
+    /**
+     * Enables the stream detection cache for this context.
+     * <p/>
+     * The provided parser must be receiving the same data that is being written into the seek
+     * buffer. If the lineup or channel are <i>null</i> or empty, the cache will not be used.
+     *
+     * @param lineup The lineup of the channel being detected.
+     * @param channel The channel being detected.
+     * @param psiParser A parser that will contain the first PAT/PMT for this channel.
+     */
+    public void setStreamCache(String lineup, String channel, TsPsiParser psiParser) {
+        this.streamCacheLineup = lineup;
+        this.streamCacheChannel = channel;
+        this.psiParser = psiParser;
+    }
+
     public void setProgram(int desiredProgram) {
         this.desiredProgram = desiredProgram;
     }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+
+import static opendct.video.ffmpeg.FFmpegUtil.ENOMEM;
+import static org.bytedeco.javacpp.avcodec.*;
+import static org.bytedeco.javacpp.avutil.*;
+
+/**
+ * Reusable frames and packets for one transcoding context.
+ * <p/>
+ * Every decoded packet and every filtered frame used to allocate a new native frame and a new
+ * JavaCPP wrapper. Returning them to this pool only unreferences the data buffers, so once the
+ * pool has grown to what the filter graph and encoder need, steady state transcoding does not
+ * allocate any new frames or packets. This class is not thread-safe. It is only intended to be
+ * used by the thread running the transcoder.
+ */
+public class FFmpegFramePool {
+    private static final Logger logger = LogManager.getLogger(FFmpegFramePool.class);
+
+    private final ArrayDeque<AVFrame> frames = new ArrayDeque<>();
+    private final ArrayDeque<AVPacket> packets = new ArrayDeque<>();
+
+    private long frameAllocations = 0;
+    private long packetAllocations = 0;
+    private long frameRequests = 0;
+    private long packetRequests = 0;
+
+    private long lastRateTime = System.currentTimeMillis();
+    private long lastRateAllocations = 0;
+
+    /**
+     * Get a frame with no data referenced.
+     *
+     * @return A frame from the pool or a newly allocated frame if the pool is empty.
+     * @throws FFmpegException Thrown if a new frame could not be allocated.
+     */
+    public AVFrame getFrame() throws FFmpegException {
+        frameRequests += 1;
+        AVFrame frame = frames.pollLast();
+
+        if (frame != null) {
+            return frame;
+        }
+
+        frame = av_frame_alloc();
+
+        if (frame == null) {
+            throw new FFmpegException("av_frame_alloc: Unable to allocate frame.", ENOMEM);
+        }
+
+        frameAllocations += 1;
+        return frame;
+    }
+
+    /**
+     * Unreference the data in a frame and return it to the pool.
+     *
+     * @param frame The frame to return. <i>null</i> is ignored.
+     */
+    public void returnFrame(AVFrame frame) {
+        if (frame == null || frame.isNull()) {
+            return;
+        }
+
+        av_frame_unref(frame);
+        frames.addLast(frame);
+    }
+
+    /**
+     * Get a packet with no data referenced.
+     *
+     * @return A packet from the pool or a newly allocated packet if the pool is empty.
+     */
+    public AVPacket getPacket() {
+        packetRequests += 1;
+        AVPacket packet = packets.pollLast();
+
+        if (packet != null) {
+            return packet;
+        }
+
+        packet = new AVPacket();
+        av_init_packet(packet);
+        packet.data(null);
+        packet.size(0);
+
+        packetAllocations += 1;
+        return packet;
+    }
+
+    /**
+     * Unreference the data in a packet and return it to the pool.
+     *
+     * @param packet The packet to return. <i>null</i> is ignored.
+     */
+    public void returnPacket(AVPacket packet) {
+        if (packet == null || packet.isNull()) {
+            return;
+        }
+
+        av_packet_unref(packet);
+        packet.data(null);
+        packet.size(0);
+        packets.addLast(packet);
+    }
+
+    /**
+     * The total number of frames and packets allocated by this pool.
+     *
+     * @return The total number of allocations.
+     */
+    public long getAllocations() {
+        return frameAllocations + packetAllocations;
+    }
+
+    /**
+     * The total number of frames and packets requested from this pool.
+     *
+     * @return The total number of requests.
+     */
+    public long getRequests() {
+        return frameRequests + packetRequests;
+    }
+
+    /**
+     * The number of allocations per second since the last time this method was called.
+     * <p/>
+     * Once the pool has warmed up, this should be zero.
+     *
+     * @return The allocations per second.
+     */
+    public double getAllocationRate() {
+        long now = System.currentTimeMillis();
+        long allocations = getAllocations();
+        long elapsed = now - lastRateTime;
+
+        double returnValue = elapsed <= 0 ? 0 :
+                (double) (allocations - lastRateAllocations) * 1000d / (double) elapsed;
+
+        lastRateTime = now;
+        lastRateAllocations = allocations;
+
+        return returnValue;
+    }
+
+    /**
+     * Free everything in the pool.
+     * <p/>
+     * Anything that is currently checked out of the pool will not be freed.
+     */
+    public void dispose() {
+        AVFrame frame;
+        while ((frame = frames.pollLast()) != null) {
+            av_frame_free(frame);
+        }
+
+        AVPacket packet;
+        while ((packet = packets.pollLast()) != null) {
+            packet.deallocate();
+        }
+
+        logger.debug("Frame pool disposed. {} frames and {} packets were allocated for {} requests.",
+                frameAllocations, packetAllocations, getRequests());
+    }
+}
@@ -26,12 +26,26 @@ import org.bytedeco.javacpp.avutil.Callback_Pointer_int_String_Pointer;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.bytedeco.javacpp.avutil.av_log_format_line;
 
+/**
+ * Receives all log messages from FFmpeg.
+ * <p/>
+ * This is called from native code on whatever thread is logging, which is usually the thread
+ * doing the actual transcoding or remuxing. To keep that thread from ever waiting on logging,
+ * the only work done on the calling thread is a level check, a per-context rate limit check and
+ * formatting the raw message into a pooled buffer. The buffer is then handed off to a background
+ * thread through a lock-free queue where everything else is done. If the queue is full, the
+ * message is dropped and counted instead.
+ */
 public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
     private final static String FFMPEG = "ffmpeg";
     private static final Logger defaultLogger = LogManager.getLogger(FFMPEG);
@@ -44,27 +58,196 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
     public static final boolean limitLogging = Config.getBoolean("consumer.ffmpeg.limit_logging", true);
     public static final boolean threadRename = Config.getBoolean("consumer.ffmpeg.thread_rename_logging", false);
     public static final boolean enhancedLogging = Config.getBoolean("consumer.ffmpeg.enhanced_logging", true);
+    public static final int queueLimit = Config.getInteger("consumer.ffmpeg.log_queue_limit", 1024);
+    public static final int contextRateLimit = Config.getInteger("consumer.ffmpeg.log_rate_limit", 50);
+
+    private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final long DROPPED_REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+    private static final int RATE_CONTEXT_LIMIT = 1024;
+
+    private static final AtomicLong droppedMessages = new AtomicLong(0);
+    private static final AtomicLong suppressedMessages = new AtomicLong(0);
+
+    private final int nativeLevel = getNativeLogLevel();
 
-    private final Object repeatLock = new Object();
     private int repeated = 0;
-    private volatile String lastMessage;
+    private String lastMessage;
+    private Level lastLevel;
+    private Logger lastLogger;
+    private long lastDroppedReport = 0;
+    private long reportedDropped = 0;
 
     private final int addressSize = System.getProperty("sun.arch.data.model").equals("64") ? 16 : 8;
     private final int addressSize2 = addressSize + 2;
     private final int addressSize4 = addressSize + 4;
     private final int addressSize5 = addressSize + 5;
 
-    private BlockingQueue<FFmpegLoggerObject> buffers = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<FFmpegLoggerObject> buffers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<FFmpegLoggerObject> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingSize = new AtomicInteger(0);
+    private final Map<Long, RateLimit> rateLimits = new ConcurrentHashMap<>();
+    private final Thread formatThread;
+
+    public FFmpegLogger() {
+        formatThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                formatLoop();
+            }
+        });
+
+        formatThread.setName("FFmpegLogger-" + formatThread.getId());
+        formatThread.setPriority(Thread.MIN_PRIORITY);
+        formatThread.setDaemon(true);
+        formatThread.start();
+    }
+
+    /**
+     * Get the FFmpeg log level that matches the log4j level of the <i>ffmpeg</i> logger.
+     * <p/>
+     * This is intended to be provided to <b>av_log_set_level()</b> so FFmpeg can skip generating
+     * messages that would be discarded anyway.
+     *
+     * @return The FFmpeg log level.
+     */
+    public static int getNativeLogLevel() {
+        Level level = defaultLogger.getLevel();
+
+        if (level.intLevel() <= Level.OFF.intLevel()) {
+            return avutil.AV_LOG_QUIET;
+        } else if (level.intLevel() <= Level.FATAL.intLevel()) {
+            return avutil.AV_LOG_FATAL;
+        } else if (level.intLevel() <= Level.ERROR.intLevel()) {
+            return avutil.AV_LOG_ERROR;
+        } else if (level.intLevel() <= Level.WARN.intLevel()) {
+            return avutil.AV_LOG_WARNING;
+        } else if (level.intLevel() <= Level.INFO.intLevel()) {
+            return avutil.AV_LOG_INFO;
+        } else if (level.intLevel() <= Level.DEBUG.intLevel()) {
+            return avutil.AV_LOG_DEBUG;
+        }
+
+        return avutil.AV_LOG_TRACE;
+    }
+
+    /**
+     * The number of messages that were dropped because the formatting thread was too far behind.
+     *
+     * @return The total number of dropped messages.
+     */
+    public static long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * The number of messages that were not logged because a context exceeded the rate limit.
+     *
+     * @return The total number of suppressed messages.
+     */
+    public static long getSuppressedMessages() {
+        return suppressedMessages.get();
+    }
 
     @Override
     public void call(Pointer source, int level, String formatStr, Pointer params) {
-        if (Config.IS_LINUX && !linuxLogging) {
+        // FFmpeg calls this for every message regardless of the level set with
+        // av_log_set_level(), so this needs to be the first check.
+        if (level > nativeLevel || (Config.IS_LINUX && !linuxLogging)) {
             return;
         }
 
+        int suppressed = 0;
+
+        if (contextRateLimit > 0) {
+            long key = source == null ? 0 : source.address();
+            RateLimit rateLimit = rateLimits.get(key);
+
+            if (rateLimit == null) {
+                // Contexts are not removed when they are freed, so this keeps the map from
+                // growing forever.
+                if (rateLimits.size() >= RATE_CONTEXT_LIMIT) {
+                    rateLimits.clear();
+                }
+
+                rateLimit = new RateLimit();
+                rateLimits.put(key, rateLimit);
+            }
+
+            long now = System.nanoTime();
+
+            if (now - rateLimit.windowStart > RATE_WINDOW) {
+                rateLimit.windowStart = now;
+                rateLimit.count.set(0);
+                suppressed = rateLimit.suppressed.getAndSet(0);
+            }
+
+            if (rateLimit.count.incrementAndGet() > contextRateLimit) {
+                rateLimit.suppressed.incrementAndGet();
+                suppressedMessages.incrementAndGet();
+                return;
+            }
+        }
+
+        if (pendingSize.incrementAndGet() > queueLimit) {
+            pendingSize.decrementAndGet();
+            droppedMessages.incrementAndGet();
+            return;
+        }
+
+        FFmpegLoggerObject loggerObject = buffers.poll();
+
+        if (loggerObject == null) {
+            loggerObject = new FFmpegLoggerObject();
+        } else {
+            loggerObject.reset();
+        }
+
+        // The parameters are only valid for the duration of this call, so the message must be
+        // formatted here.
+        av_log_format_line(source, level, formatStr, params, loggerObject.messageBytes, loggerObject.messageBytes.length, loggerObject.printPrefix);
+
+        loggerObject.level = level;
+        loggerObject.suppressed = suppressed;
+        loggerObject.sourceThread = threadRename ? Thread.currentThread() : null;
+
+        pending.offer(loggerObject);
+    }
+
+    private void formatLoop() {
+        while (true) {
+            FFmpegLoggerObject loggerObject = pending.poll();
+
+            if (loggerObject == null) {
+                flushRepeated();
+                reportDropped();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+
+            pendingSize.decrementAndGet();
+
+            try {
+                format(loggerObject);
+            } catch (Throwable e) {
+                defaultLogger.error("There was a problem processing a log entry => ", e);
+            }
+
+            loggerObject.sourceThread = null;
+            buffers.offer(loggerObject);
+        }
+    }
+
+    private void format(FFmpegLoggerObject loggerObject) {
+        if (loggerObject.suppressed > 0) {
+            defaultLogger.warn("Suppressed {} message{} from one context over the rate limit of {}/s.",
+                    loggerObject.suppressed,
+                    loggerObject.suppressed > 1 ? PLURAL : BLANK,
+                    contextRateLimit);
+        }
+
         Level callLogLevel;
 
-        switch (level) {
+        switch (loggerObject.level) {
             case avutil.AV_LOG_QUIET:
 
                 callLogLevel = Level.OFF;
@@ -113,27 +296,7 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
             return;
         }
 
-        FFmpegLoggerObject loggerObject;
-
-        try {
-            loggerObject = buffers.poll(1, TimeUnit.MILLISECONDS);
-
-            if (loggerObject == null) {
-                loggerObject = new FFmpegLoggerObject();
-            } else {
-                loggerObject.reset();
-            }
-        } catch (InterruptedException e) {
-            loggerObject = new FFmpegLoggerObject();
-        }
-
-        av_log_format_line(source, level, formatStr, params, loggerObject.messageBytes, loggerObject.messageBytes.length, loggerObject.printPrefix);
-
-        try {
-            trim(loggerObject);
-        } catch (Exception e) {
-            defaultLogger.error("There was a problem processing a log entry => ", e);
-        }
+        trim(loggerObject);
 
         Logger logger;
 
@@ -141,7 +304,6 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
             logger = LogManager.getLogger(loggerObject.className);
 
             if (logger.getLevel().intLevel() < callLogLevel.intLevel()) {
-                buffers.offer(loggerObject);
                 return;
             }
         } else {
@@ -151,7 +313,7 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
         String message = loggerObject.stringBuilder.toString();
 
         // Clean up logging. Everything ignored here is expected and does not need to be logged.
-        if (limitLogging && message != null && (
+        if (limitLogging && (
                 // This is because FFmpeg 3.0 started using AVCodecParameter. Because this new
                 // feature is still very much being developed and the examples are not yet updated
                 // on how to use this properly, I am not going to waste time updating the code.
@@ -189,31 +351,49 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
                 // potentially not play on a hardware DVD player which is not really a concern.
                 message.contains(" buffer underflow st="))) {
 
-            buffers.offer(loggerObject);
             return;
         }
 
-        synchronized (repeatLock) {
-            if (message.equals(lastMessage)) {
-                repeated += 1;
-                buffers.offer(loggerObject);
-                return;
-            }
+        if (message.equals(lastMessage)) {
+            repeated += 1;
+            return;
+        }
 
-            if (repeated > 0) {
-                logger.log(callLogLevel, "Repeated {} time{}: {}.",
-                        repeated,
-                        repeated > 1 ? PLURAL : BLANK,
-                        lastMessage);
+        flushRepeated();
 
-                repeated = 0;
-            }
+        lastMessage = message;
+        lastLevel = callLogLevel;
+        lastLogger = logger;
+
+        logger.log(callLogLevel, message);
+    }
+
+    private void flushRepeated() {
+        if (repeated > 0) {
+            lastLogger.log(lastLevel, "Repeated {} time{}: {}.",
+                    repeated,
+                    repeated > 1 ? PLURAL : BLANK,
+                    lastMessage);
 
-            lastMessage = message;
+            repeated = 0;
         }
+    }
 
-        logger.log(callLogLevel, message);
-        buffers.offer(loggerObject);
+    private void reportDropped() {
+        long now = System.nanoTime();
+
+        if (now - lastDroppedReport < DROPPED_REPORT_INTERVAL) {
+            return;
+        }
+
+        lastDroppedReport = now;
+        long dropped = droppedMessages.get();
+
+        if (dropped > reportedDropped) {
+            defaultLogger.warn("{} FFmpeg log messages were dropped because logging could not" +
+                    " keep up. {} total dropped.", dropped - reportedDropped, dropped);
+            reportedDropped = dropped;
+        }
     }
 
     private void trim(FFmpegLoggerObject loggerObject) {
@@ -256,11 +436,11 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
                         loggerObject.threadNameLen = loggerObject.threadEnd - loggerObject.threadStart;
                         loggerObject.noThreadName = false;
 
-                        String currentThreadName = Thread.currentThread().getName();
+                        String currentThreadName = loggerObject.sourceThread.getName();
                         loggerObject.threadName = new String(loggerObject.messageBytes, loggerObject.threadStart, loggerObject.threadNameLen, StandardCharsets.UTF_8);
 
                         if (currentThreadName.startsWith("Thread-")) {
-                            Thread.currentThread().setName(loggerObject.threadName);
+                            loggerObject.sourceThread.setName(loggerObject.threadName);
                             loggerObject.index = loggerObject.index + addressSize4;
                         } else if (currentThreadName.equals(loggerObject.threadName)) {
                             loggerObject.index = loggerObject.index + addressSize4;
@@ -301,6 +481,9 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
         int classEnd = 0;
         int threadStart = 0;
         int threadEnd = 0;
+        int level = 0;
+        int suppressed = 0;
+        Thread sourceThread = null;
 
         private void reset() {
             Arrays.fill(messageBytes, (byte) 0);
@@ -318,6 +501,15 @@ public final class FFmpegLogger extends Callback_Pointer_int_String_Pointer {
             classEnd = 0;
             threadStart = 0;
             threadEnd = 0;
+            level = 0;
+            suppressed = 0;
+            sourceThread = null;
         }
     }
+
+    private static class RateLimit {
+        private volatile long windowStart = System.nanoTime();
+        private final AtomicInteger count = new AtomicInteger(0);
+        private final AtomicInteger suppressed = new AtomicInteger(0);
+    }
 }
\ No newline at end of file
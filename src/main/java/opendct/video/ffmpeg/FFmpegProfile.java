@@ -45,6 +45,7 @@ public class FFmpegProfile extends ConfigBag {
     private String friendlyName;
     private String description;
     private boolean profileDisabled;
+    private int priority;
 
     private boolean interlacedOnly;
     private boolean progressiveOnly;
@@ -92,6 +93,7 @@ public class FFmpegProfile extends ConfigBag {
         friendlyName = getString(generalConf + "friendly_name", friendlyName);
         profileDisabled = getBoolean(generalConf + "disable", true);
         description = getString(generalConf + "description", friendlyName);
+        priority = getInteger(generalConf + "priority", 0);
 
         gtHeight = getInteger(videoConf + "t.allow_gt_h", 0);
         gtWidth = getInteger(videoConf + "t.allow_gt_w", 0);
@@ -147,6 +149,18 @@ public class FFmpegProfile extends ConfigBag {
                 (eqHeight == 0 || eqHeight == height) && (eqWidth == 0 || eqWidth == width);
     }
 
+    /**
+     * The priority used when there isn't enough capacity for every stream to be transcoded.
+     * <p/>
+     * Streams using a profile with a higher priority can cause streams using a profile with a
+     * lower priority to stop transcoding.
+     *
+     * @return The priority of this profile.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
     public boolean canTranscodeVideo(boolean interlaced, String decoderCodec, int height, int width) {
         if (profileDisabled) {
             logger.debug("canTranscodeVideo: Profile disabled." +
@@ -132,6 +132,9 @@ public class FFmpegProfileManager {
                     case "deinterlace_filter":
                     case "progressive_filter":
                     case "encode_weight":
+                    case "downgrade_deinterlace_filter":
+                    case "downgrade_progressive_filter":
+                    case "downgrade_weight":
                         break;
                     default:
                         if (key.startsWith("dict") && key.length() > 4) {
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.config.ConfigBag;
+import opendct.util.ThreadPool;
+import opendct.util.Util;
+import opendct.video.java.TsPsiParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the stream layout that was detected for each channel on each lineup.
+ * <p/>
+ * Most channels keep the same program, PIDs and codecs for months at a time. When the layout in
+ * the first PAT/PMT of a new tuning matches what is cached, stream detection can start with the
+ * probe size that was enough the last time instead of growing it from the minimum. The cache is
+ * persisted per lineup in the <i>streams</i> configuration directory so it survives restarts.
+ */
+public class FFmpegStreamCache {
+    private static final Logger logger = LogManager.getLogger(FFmpegStreamCache.class);
+
+    private static final Object lock = new Object();
+    private static final Map<String, ConfigBag> lineups = new HashMap<>();
+    private static final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Get the cached stream layout for a channel.
+     *
+     * @param lineup The name of the lineup the channel belongs to.
+     * @param channel The channel.
+     * @return The cached layout or <i>null</i> if nothing has been cached for this channel.
+     */
+    public static Entry getEntry(String lineup, String channel) {
+        if (Util.isNullOrEmpty(lineup) || Util.isNullOrEmpty(channel)) {
+            return null;
+        }
+
+        String key = getKey(lineup, channel);
+
+        synchronized (lock) {
+            Entry entry = entries.get(key);
+
+            if (entry != null) {
+                return entry;
+            }
+
+            ConfigBag configBag = getLineupBag(lineup);
+            entry = Entry.load(configBag, channel);
+
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+
+            return entry;
+        }
+    }
+
+    /**
+     * Add or replace the cached stream layout for a channel.
+     * <p/>
+     * The lineup file is written out on a separate thread so this can be called from the consumer
+     * without waiting on the disk.
+     *
+     * @param lineup The name of the lineup the channel belongs to.
+     * @param channel The channel.
+     * @param entry The stream layout to be cached.
+     */
+    public static void putEntry(final String lineup, String channel, Entry entry) {
+        if (Util.isNullOrEmpty(lineup) || Util.isNullOrEmpty(channel) || entry == null) {
+            return;
+        }
+
+        synchronized (lock) {
+            Entry existing = entries.get(getKey(lineup, channel));
+
+            if (entry.equals(existing)) {
+                return;
+            }
+
+            entries.put(getKey(lineup, channel), entry);
+            entry.save(getLineupBag(lineup), channel);
+        }
+
+        ThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    ConfigBag configBag = lineups.get(lineup);
+
+                    if (configBag != null) {
+                        configBag.saveConfig();
+                    }
+                }
+            }
+        }, Thread.MIN_PRIORITY, "FFmpegStreamCache", lineup);
+    }
+
+    /**
+     * Remove the cached stream layout for a channel.
+     * <p/>
+     * This is used when a cached layout turned out to be wrong so the next tuning will do a full
+     * detection.
+     *
+     * @param lineup The name of the lineup the channel belongs to.
+     * @param channel The channel.
+     */
+    public static void removeEntry(String lineup, String channel) {
+        if (Util.isNullOrEmpty(lineup) || Util.isNullOrEmpty(channel)) {
+            return;
+        }
+
+        synchronized (lock) {
+            if (entries.remove(getKey(lineup, channel)) != null) {
+                ConfigBag configBag = getLineupBag(lineup);
+                Entry.remove(configBag, channel);
+                configBag.saveConfig();
+            }
+        }
+    }
+
+    private static String getKey(String lineup, String channel) {
+        return lineup + "/" + channel;
+    }
+
+    private static ConfigBag getLineupBag(String lineup) {
+        ConfigBag configBag = lineups.get(lineup);
+
+        if (configBag == null) {
+            configBag = new ConfigBag(lineup, "streams", false);
+            configBag.loadConfig();
+            lineups.put(lineup, configBag);
+        }
+
+        return configBag;
+    }
+
+    /**
+     * A detected stream layout for one channel.
+     */
+    public static class Entry {
+        public final int PROGRAM;
+        public final int PMT_PID;
+        public final int PCR_PID;
+        public final int STREAM_PIDS[];
+        public final int STREAM_TYPES[];
+        public final long PROBE_SIZE;
+        public final long ANALYZE_DURATION;
+        public final int VIDEO_PID;
+        public final int VIDEO_CODEC_ID;
+        public final int VIDEO_WIDTH;
+        public final int VIDEO_HEIGHT;
+        public final int AUDIO_PID;
+        public final int AUDIO_CODEC_ID;
+        public final int AUDIO_CHANNELS;
+
+        private static final String KEYS[] = new String[] {
+                "program", "pmt_pid", "pcr_pid", "stream_pids", "stream_types", "probe_size",
+                "analyze_duration", "video_pid", "video_codec_id", "video_width", "video_height",
+                "audio_pid", "audio_codec_id", "audio_channels"
+        };
+
+        public Entry(int program, int pmtPid, int pcrPid, int streamPids[], int streamTypes[],
+                     long probeSize, long analyzeDuration,
+                     int videoPid, int videoCodecId, int videoWidth, int videoHeight,
+                     int audioPid, int audioCodecId, int audioChannels) {
+
+            PROGRAM = program;
+            PMT_PID = pmtPid;
+            PCR_PID = pcrPid;
+            STREAM_PIDS = streamPids;
+            STREAM_TYPES = streamTypes;
+            PROBE_SIZE = probeSize;
+            ANALYZE_DURATION = analyzeDuration;
+            VIDEO_PID = videoPid;
+            VIDEO_CODEC_ID = videoCodecId;
+            VIDEO_WIDTH = videoWidth;
+            VIDEO_HEIGHT = videoHeight;
+            AUDIO_PID = audioPid;
+            AUDIO_CODEC_ID = audioCodecId;
+            AUDIO_CHANNELS = audioChannels;
+        }
+
+        /**
+         * Does the layout in the provided PMT match this cached layout?
+         *
+         * @param parser A parser that has completed parsing a PMT.
+         * @return <i>true</i> if the program, PMT PID, PCR PID and every elementary stream PID and
+         *         type are the same.
+         */
+        public boolean matches(TsPsiParser parser) {
+            return parser.isComplete() &&
+                    parser.getProgram() == PROGRAM &&
+                    parser.getPmtPid() == PMT_PID &&
+                    parser.getPcrPid() == PCR_PID &&
+                    Arrays.equals(parser.getStreamPids(), STREAM_PIDS) &&
+                    Arrays.equals(parser.getStreamTypes(), STREAM_TYPES);
+        }
+
+        protected static Entry load(ConfigBag configBag, String channel) {
+            String prefix = channel + ".";
+
+            int program = configBag.getInteger(prefix + "program", -1);
+
+            if (program <= 0) {
+                return null;
+            }
+
+            try {
+                return new Entry(
+                        program,
+                        configBag.getInteger(prefix + "pmt_pid", -1),
+                        configBag.getInteger(prefix + "pcr_pid", -1),
+                        parseIntegers(configBag.getStringArray(prefix + "stream_pids", "")),
+                        parseIntegers(configBag.getStringArray(prefix + "stream_types", "")),
+                        configBag.getLong(prefix + "probe_size", 0),
+                        configBag.getLong(prefix + "analyze_duration", 0),
+                        configBag.getInteger(prefix + "video_pid", -1),
+                        configBag.getInteger(prefix + "video_codec_id", 0),
+                        configBag.getInteger(prefix + "video_width", 0),
+                        configBag.getInteger(prefix + "video_height", 0),
+                        configBag.getInteger(prefix + "audio_pid", -1),
+                        configBag.getInteger(prefix + "audio_codec_id", 0),
+                        configBag.getInteger(prefix + "audio_channels", 0)
+                );
+            } catch (NumberFormatException e) {
+                logger.warn("Cached streams for channel {} are corrupt => ", channel, e);
+            }
+
+            return null;
+        }
+
+        protected void save(ConfigBag configBag, String channel) {
+            String prefix = channel + ".";
+
+            configBag.setInteger(prefix + "program", PROGRAM);
+            configBag.setInteger(prefix + "pmt_pid", PMT_PID);
+            configBag.setInteger(prefix + "pcr_pid", PCR_PID);
+            configBag.setIntegerArray(prefix + "stream_pids", STREAM_PIDS);
+            configBag.setIntegerArray(prefix + "stream_types", STREAM_TYPES);
+            configBag.setLong(prefix + "probe_size", PROBE_SIZE);
+            configBag.setLong(prefix + "analyze_duration", ANALYZE_DURATION);
+            configBag.setInteger(prefix + "video_pid", VIDEO_PID);
+            configBag.setInteger(prefix + "video_codec_id", VIDEO_CODEC_ID);
+            configBag.setInteger(prefix + "video_width", VIDEO_WIDTH);
+            configBag.setInteger(prefix + "video_height", VIDEO_HEIGHT);
+            configBag.setInteger(prefix + "audio_pid", AUDIO_PID);
+            configBag.setInteger(prefix + "audio_codec_id", AUDIO_CODEC_ID);
+            configBag.setInteger(prefix + "audio_channels", AUDIO_CHANNELS);
+        }
+
+        protected static void remove(ConfigBag configBag, String channel) {
+            String prefix = channel + ".";
+
+            // Channels can contain periods, so each key is removed individually to avoid removing
+            // a sub-channel of this channel.
+            for (String key : KEYS) {
+                configBag.removeAllByRootKey(prefix + key);
+            }
+        }
+
+        private static int[] parseIntegers(String values[]) throws NumberFormatException {
+            int returnValue[] = new int[values.length];
+
+            for (int i = 0; i < values.length; i++) {
+                returnValue[i] = Integer.parseInt(values[i]);
+            }
+
+            return returnValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Entry entry = (Entry) o;
+
+            return PROGRAM == entry.PROGRAM &&
+                    PMT_PID == entry.PMT_PID &&
+                    PCR_PID == entry.PCR_PID &&
+                    PROBE_SIZE == entry.PROBE_SIZE &&
+                    ANALYZE_DURATION == entry.ANALYZE_DURATION &&
+                    VIDEO_PID == entry.VIDEO_PID &&
+                    VIDEO_CODEC_ID == entry.VIDEO_CODEC_ID &&
+                    VIDEO_WIDTH == entry.VIDEO_WIDTH &&
+                    VIDEO_HEIGHT == entry.VIDEO_HEIGHT &&
+                    AUDIO_PID == entry.AUDIO_PID &&
+                    AUDIO_CODEC_ID == entry.AUDIO_CODEC_ID &&
+                    AUDIO_CHANNELS == entry.AUDIO_CHANNELS &&
+                    Arrays.equals(STREAM_PIDS, entry.STREAM_PIDS) &&
+                    Arrays.equals(STREAM_TYPES, entry.STREAM_TYPES);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = PROGRAM;
+            result = 31 * result + PMT_PID;
+            result = 31 * result + Arrays.hashCode(STREAM_PIDS);
+            result = 31 * result + VIDEO_CODEC_ID;
+            result = 31 * result + AUDIO_CODEC_ID;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "PROGRAM=" + PROGRAM +
+                    ", PMT_PID=" + PMT_PID +
+                    ", PCR_PID=" + PCR_PID +
+                    ", STREAM_PIDS=" + Arrays.toString(STREAM_PIDS) +
+                    ", STREAM_TYPES=" + Arrays.toString(STREAM_TYPES) +
+                    ", PROBE_SIZE=" + PROBE_SIZE +
+                    ", ANALYZE_DURATION=" + ANALYZE_DURATION +
+                    ", VIDEO_PID=" + VIDEO_PID +
+                    ", VIDEO_CODEC_ID=" + VIDEO_CODEC_ID +
+                    ", VIDEO_WIDTH=" + VIDEO_WIDTH +
+                    ", VIDEO_HEIGHT=" + VIDEO_HEIGHT +
+                    ", AUDIO_PID=" + AUDIO_PID +
+                    ", AUDIO_CODEC_ID=" + AUDIO_CODEC_ID +
+                    ", AUDIO_CHANNELS=" + AUDIO_CHANNELS +
+                    '}';
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package opendct.video.ffmpeg;
 
+import opendct.video.java.TsPsiParser;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bytedeco.javacpp.IntPointer;
@@ -51,6 +52,50 @@ public class FFmpegStreamDetection {
      */
     public static boolean detectStreams(FFmpegContext ctx, String nativeFilename, String error[]) throws FFmpegException {
 
+        if (error == null || error.length == 0) {
+            // Nothing will return in this case, but this also means we don't need to check for this
+            // condition throughout the detection process.
+            error = new String[1];
+        }
+
+        // Nothing can be discarded while waiting for the PMT or it will not be there for a full
+        // probe if the cached layout is wrong.
+        ctx.SEEK_BUFFER.setNoWrap(true);
+
+        // If this channel has been detected before and the first PMT still matches what was
+        // detected, start with the amount of data that was enough the last time.
+        FFmpegStreamCache.Entry cachedStreams = getCachedStreams(ctx);
+
+        if (cachedStreams == null) {
+            return detectStreams(ctx, nativeFilename, error, null);
+        }
+
+        int desiredProgram = ctx.desiredProgram;
+
+        if (detectStreams(ctx, nativeFilename, error, cachedStreams)) {
+            return true;
+        }
+
+        if (ctx.isInterrupted()) {
+            return false;
+        }
+
+        // The cached layout was wrong, so it must not be used again. Start over from the beginning
+        // of the buffered data with a full probe.
+        logger.info("Stream detection using the cached streams for channel {} failed: {}" +
+                " Removing the cached streams and trying again with a full probe.",
+                ctx.streamCacheChannel, error[0]);
+
+        FFmpegStreamCache.removeEntry(ctx.streamCacheLineup, ctx.streamCacheChannel);
+        ctx.deallocInputContext();
+        ctx.desiredProgram = desiredProgram;
+
+        return detectStreams(ctx, nativeFilename, error, null);
+    }
+
+    private static boolean detectStreams(FFmpegContext ctx, String nativeFilename, String error[],
+                                         FFmpegStreamCache.Entry cachedStreams) throws FFmpegException {
+
         long startTime = System.currentTimeMillis();
         boolean bypassProgram = false;
 
@@ -63,12 +108,6 @@ public class FFmpegStreamDetection {
         // This is the largest analyze duration allowed. 5,000,000 is the minimum allowed value.
         final long maxAnalyzeDuration = FFmpegConfig.getMaxAnalyseDuration();
 
-        if (error == null || error.length == 0) {
-            // Nothing will return in this case, but this also means we don't need to check for this
-            // condition throughout the detection process.
-            error = new String[1];
-        }
-
         ctx.setProbeData(nativeFilename);
 
         //boolean finalCheck = false;
@@ -78,6 +117,22 @@ public class FFmpegStreamDetection {
 
         ctx.SEEK_BUFFER.setNoWrap(true);
 
+        if (cachedStreams != null) {
+            if (ctx.desiredProgram <= 0) {
+                ctx.desiredProgram = cachedStreams.PROGRAM;
+            }
+
+            // 188 is added back at the start of each pass.
+            dynamicProbeSize = Math.min(
+                    Math.max(minProbeSize, cachedStreams.PROBE_SIZE - 188), probeSizeLimit);
+
+            if (cachedStreams.ANALYZE_DURATION > 0) {
+                dynamicAnalyzeDuration = cachedStreams.ANALYZE_DURATION;
+            }
+        }
+
+        long usedAnalyzeDuration = dynamicAnalyzeDuration;
+
         long startNanoTime = System.nanoTime();
 
         while (true) {
@@ -105,6 +160,7 @@ public class FFmpegStreamDetection {
 
                         av_opt_set_int(ctx.avfCtxInput, "probesize", dynamicProbeSize, 0); // Must be set before avformat_open_input
                         av_opt_set_int(ctx.avfCtxInput, "analyzeduration", dynamicAnalyzeDuration, 0); // Must be set before avformat_find_stream_info
+                        usedAnalyzeDuration = dynamicAnalyzeDuration;
 
                         logger.debug("Calling avformat_open_input");
 
@@ -305,9 +361,118 @@ public class FFmpegStreamDetection {
 
         ctx.SEEK_BUFFER.setNoWrap(false);
 
+        updateCachedStreams(ctx, cachedStreams, dynamicProbeSize, usedAnalyzeDuration);
+
         long endTime = System.currentTimeMillis();
         logger.debug("FFmpeg stream detection done in {}ms,", endTime - startTime);
 
         return true;
     }
+
+    /**
+     * Get the cached stream layout for the channel in this context if it matches the first PMT.
+     * <p/>
+     * This will wait up to 2 seconds for the PMT to arrive. The PAT and PMT are normally repeated
+     * several times per second, so this only waits for any length of time when the tuner has not
+     * started streaming yet, in which case detection would be waiting anyway.
+     *
+     * @param ctx The FFmpeg context to be used for the stream detection.
+     * @return The matching cached layout or <i>null</i> if there isn't a usable cached layout.
+     */
+    private static FFmpegStreamCache.Entry getCachedStreams(FFmpegContext ctx) {
+        if (ctx.inputFileMode != FFmpegContext.FILE_MODE_MPEGTS ||
+                ctx.psiParser == null ||
+                !FFmpegConfig.getStreamCache()) {
+
+            return null;
+        }
+
+        FFmpegStreamCache.Entry entry =
+                FFmpegStreamCache.getEntry(ctx.streamCacheLineup, ctx.streamCacheChannel);
+
+        if (entry == null) {
+            logger.debug("No cached streams for channel {} on lineup {}.",
+                    ctx.streamCacheChannel, ctx.streamCacheLineup);
+            return null;
+        }
+
+        int passes = 80;
+
+        while (!ctx.psiParser.isComplete() && passes-- > 0 && !ctx.isInterrupted()) {
+            try {
+                Thread.sleep(25);
+            } catch (InterruptedException e) {
+                ctx.interrupt();
+                return null;
+            }
+        }
+
+        if (entry.matches(ctx.psiParser)) {
+            logger.info("Cached streams for channel {} match the current PMT. Starting with a" +
+                    " probe size of {}.", ctx.streamCacheChannel, entry.PROBE_SIZE);
+            return entry;
+        }
+
+        if (ctx.psiParser.isComplete()) {
+            logger.info("Cached streams for channel {} do not match the current PMT.",
+                    ctx.streamCacheChannel);
+        } else {
+            logger.info("A PMT was not found for channel {}. Not using cached streams.",
+                    ctx.streamCacheChannel);
+        }
+
+        return null;
+    }
+
+    /**
+     * Update the cached stream layout for the channel in this context after a successful
+     * detection.
+     *
+     * @param ctx The FFmpeg context that was used for stream detection.
+     * @param cachedStreams The cached layout that was used for this detection or <i>null</i> if
+     *                      a cached layout was not used.
+     * @param probeSize The probe size of the successful detection.
+     * @param analyzeDuration The analyze duration of the successful detection.
+     */
+    private static void updateCachedStreams(FFmpegContext ctx, FFmpegStreamCache.Entry cachedStreams,
+                                            long probeSize, long analyzeDuration) {
+
+        TsPsiParser parser = ctx.psiParser;
+
+        if (ctx.inputFileMode != FFmpegContext.FILE_MODE_MPEGTS ||
+                parser == null ||
+                !parser.isComplete() ||
+                parser.getProgram() != ctx.desiredProgram ||
+                ctx.videoInCodecCtx == null ||
+                ctx.audioInCodecCtx == null ||
+                !FFmpegConfig.getStreamCache()) {
+
+            return;
+        }
+
+        FFmpegStreamCache.Entry entry = new FFmpegStreamCache.Entry(
+                parser.getProgram(),
+                parser.getPmtPid(),
+                parser.getPcrPid(),
+                parser.getStreamPids(),
+                parser.getStreamTypes(),
+                probeSize,
+                analyzeDuration,
+                ctx.avfCtxInput.streams(ctx.preferredVideo).id(),
+                ctx.videoInCodecCtx.codec_id(),
+                ctx.videoInCodecCtx.width(),
+                ctx.videoInCodecCtx.height(),
+                ctx.avfCtxInput.streams(ctx.preferredAudio).id(),
+                ctx.audioInCodecCtx.codec_id(),
+                ctx.audioInCodecCtx.channels());
+
+        if (cachedStreams != null && (cachedStreams.VIDEO_CODEC_ID != entry.VIDEO_CODEC_ID ||
+                cachedStreams.AUDIO_CODEC_ID != entry.AUDIO_CODEC_ID)) {
+
+            logger.info("Codecs on channel {} have changed since they were cached.",
+                    ctx.streamCacheChannel);
+        }
+
+        FFmpegStreamCache.putEntry(ctx.streamCacheLineup, ctx.streamCacheChannel, entry);
+    }
 }
@@ -0,0 +1,680 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.ffmpeg;
+
+import opendct.config.Config;
+import opendct.config.ConfigBag;
+import opendct.util.ThreadPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.avcodec.AVCodecContext;
+import org.bytedeco.javacpp.avutil.AVDictionary;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.avcodec.FF_THREAD_FRAME;
+import static org.bytedeco.javacpp.avcodec.FF_THREAD_SLICE;
+import static org.bytedeco.javacpp.avutil.av_dict_set;
+
+/**
+ * Decides which streams are allowed to be transcoded based on the number of available cores and
+ * how much CPU each profile and resolution has actually used in the past.
+ * <p/>
+ * All costs are expressed in hundredths of a core, so a cost of 100 is one completely busy core.
+ * Until a profile and resolution has been measured, the <i>encode_weight</i> from the profile is
+ * used as the estimate. Codec worker threads are started by FFmpeg, not the JVM, so the CPU time of
+ * the whole process is sampled while transcoding. What the process uses beyond what it used while
+ * nothing was transcoding is split between the active jobs by their current cost. A measured cost
+ * never goes below the profile's estimate, so a bad sample can't open up capacity that isn't
+ * there. The measured costs are persisted so they are available immediately after a restart.
+ * <p/>
+ * Only a stream that is actually going to have its video transcoded reserves any capacity. The
+ * total capacity is also never more than <i>consumer.ffmpeg.transcode_limit</i> when it is set.
+ * <p/>
+ * When a new job does not fit, it will be downgraded to the profile's downgrade filters if they
+ * are defined and that fits. If that also doesn't fit, the new job is remuxed and lower priority
+ * jobs are demoted to free up capacity for later requests. A demoted job keeps transcoding until
+ * its next output switch since the codec can't change in the middle of a file, so its cost stays
+ * committed until it's released.
+ * <p/>
+ * The encoder and decoder thread counts are also assigned here so the available cores are split
+ * between the active jobs instead of every job using what the profile hardcodes. Codecs can't
+ * change their thread count once they are open, so when a job starts or stops, the other jobs
+ * pick up their new thread count when their encoders are re-opened at their next switch.
+ */
+public class FFmpegTranscodeScheduler {
+    private static final Logger logger = LogManager.getLogger(FFmpegTranscodeScheduler.class);
+
+    public static final int CORE_COST = 100;
+
+    // An encode weight of 2 was one core under the old transcode limit of (cores - 1) * 2.
+    public static final int WEIGHT_COST = CORE_COST / 2;
+
+    public static final String DOWNGRADE_SUFFIX = "/downgrade";
+
+    private static final int DECISION_HISTORY = 50;
+    private static final float COST_SMOOTHING = 0.25f;
+
+    public enum Decision {
+        TRANSCODE,
+        DOWNGRADE,
+        REMUX
+    }
+
+    private static final int cores = Runtime.getRuntime().availableProcessors();
+    private static final int headroom =
+            Config.getInteger("consumer.ffmpeg.transcode_headroom", CORE_COST);
+    // This was the old limit by encode weight. The default is the same as the default headroom.
+    private static final int transcodeLimit =
+            Config.getInteger("consumer.ffmpeg.transcode_limit", (cores - 1) * 2) * WEIGHT_COST;
+    private static final long sampleInterval =
+            Config.getInteger("consumer.ffmpeg.transcode_sample_interval_ms", 5000) * 1000000L;
+    private static final boolean dynamicThreading =
+            Config.getBoolean("consumer.ffmpeg.dynamic_threading", true);
+    private static final int frameThreadingMinimum =
+            Config.getInteger("consumer.ffmpeg.frame_threading_min_threads", 4);
+
+    private static final OperatingSystemMXBean osBean =
+            ManagementFactory.getOperatingSystemMXBean();
+
+    private static final ConfigBag costBag = new ConfigBag("transcode", "costs", false);
+    private static final Map<String, Integer> measuredCosts = new HashMap<>();
+    private static final Map<Pointer, Job> jobs = new LinkedHashMap<>();
+    private static final Deque<DecisionRecord> decisions = new ArrayDeque<>();
+
+    private static int committedCost = 0;
+    private static int externalLoad = 0;
+    private static long lastSampleTime = 0;
+    private static long lastProcessCpuTime = -1;
+    private static int idleProcessLoad = -1;
+    private static boolean jobsChanged = false;
+    private static volatile long nextSampleTime = 0;
+
+    static {
+        costBag.loadConfig();
+
+        for (Map.Entry<String, String> entry : costBag.getAllByRootKey("").entrySet()) {
+            try {
+                measuredCosts.put(entry.getKey(), Integer.parseInt(entry.getValue()));
+            } catch (NumberFormatException e) {
+                logger.warn("Unable to parse the cost '{}' for '{}'.",
+                        entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Request to transcode a stream.
+     * <p/>
+     * If the context already has an active job, it is released before the new request is
+     * evaluated. This should only be called once it's certain the video will be transcoded if the
+     * request is granted.
+     *
+     * @param opaque A unique pointer for the requesting FFmpeg context.
+     * @param name A friendly name to identify this job in the status.
+     * @param profile The profile that will be used to transcode.
+     * @param width The width in pixels of the incoming video.
+     * @param height The height in pixels of the incoming video.
+     * @param settings The encoder settings for this profile and resolution.
+     * @return The decision. If the decision is <i>DOWNGRADE</i>, the downgrade filters have
+     *         already been swapped into the provided settings.
+     */
+    public static synchronized Decision requestTranscode(Pointer opaque, String name,
+                                                         FFmpegProfile profile, int width,
+                                                         int height, Map<String, String> settings) {
+
+        if (opaque == null || profile == null) {
+            return Decision.REMUX;
+        }
+
+        release(opaque);
+        sample(System.nanoTime());
+
+        String costKey = profile.CONFIG_NAME + "/" + width + "x" + height;
+        int priority = profile.getPriority();
+        int estimate = getEstimate(costKey, settings.get("encode_weight"), 2);
+        int cost = getCost(costKey, estimate);
+
+        boolean canDowngrade = settings.containsKey("downgrade_deinterlace_filter") ||
+                settings.containsKey("downgrade_progressive_filter");
+        int downgradeEstimate = canDowngrade ?
+                getEstimate(costKey + DOWNGRADE_SUFFIX, settings.get("downgrade_weight"), 1) : 0;
+        int downgradeCost = canDowngrade ?
+                getCost(costKey + DOWNGRADE_SUFFIX, downgradeEstimate) : 0;
+
+        int available = getCapacity() - committedCost;
+        Decision decision;
+        String reason;
+
+        if (cost <= available) {
+            decision = Decision.TRANSCODE;
+            reason = "Cost " + cost + " fits in " + available + ".";
+        } else if (canDowngrade && downgradeCost <= available) {
+            decision = Decision.DOWNGRADE;
+            reason = "Cost " + cost + " does not fit in " + available + "." +
+                    " Downgraded cost " + downgradeCost + " fits.";
+        } else {
+            // Demote as few lower priority jobs as possible. Prefer to demote the lowest priority
+            // and then the most recently started jobs.
+            List<Job> candidates = new ArrayList<>();
+            for (Job job : jobs.values()) {
+                if (!job.demoted && job.priority < priority) {
+                    candidates.add(job);
+                }
+            }
+
+            Collections.sort(candidates, new Comparator<Job>() {
+                @Override
+                public int compare(Job o1, Job o2) {
+                    if (o1.priority != o2.priority) {
+                        return o1.priority < o2.priority ? -1 : 1;
+                    }
+
+                    return o1.started > o2.started ? -1 : (o1.started == o2.started ? 0 : 1);
+                }
+            });
+
+            int needed = canDowngrade ? Math.min(cost, downgradeCost) : cost;
+            int freed = 0;
+            int demote = 0;
+
+            while (available + freed < needed && demote < candidates.size()) {
+                freed += candidates.get(demote++).cost;
+            }
+
+            if (available + freed >= needed) {
+                StringBuilder demotedNames = new StringBuilder();
+
+                // The demoted jobs keep using what they have committed until they actually stop
+                // transcoding, so nothing is available to this job yet.
+                for (int i = 0; i < demote; i++) {
+                    Job job = candidates.get(i);
+                    job.demoted = true;
+
+                    if (demotedNames.length() > 0) {
+                        demotedNames.append(", ");
+                    }
+                    demotedNames.append(job.name);
+
+                    addDecision(job.name, job.costKey, job.priority, job.cost, "DEMOTED",
+                            "Priority " + job.priority + " is lower than " + priority +
+                                    " for " + name + ".");
+                }
+
+                decision = Decision.REMUX;
+                reason = "Cost " + cost + (canDowngrade ? " (" + downgradeCost + " downgraded)" : "") +
+                        " does not fit in " + available + ". Demoted " + demotedNames + " to free " +
+                        freed + " when they stop transcoding.";
+            } else {
+                decision = Decision.REMUX;
+                reason = "Cost " + cost + (canDowngrade ? " (" + downgradeCost + " downgraded)" : "") +
+                        " does not fit in " + available + " and not enough lower priority jobs" +
+                        " can be demoted.";
+            }
+        }
+
+        if (decision == Decision.DOWNGRADE) {
+            costKey += DOWNGRADE_SUFFIX;
+            cost = downgradeCost;
+            estimate = downgradeEstimate;
+
+            String filter = settings.get("downgrade_deinterlace_filter");
+            if (filter != null) {
+                settings.put("deinterlace_filter", filter);
+            }
+
+            filter = settings.get("downgrade_progressive_filter");
+            if (filter != null) {
+                settings.put("progressive_filter", filter);
+            }
+        }
+
+        if (decision != Decision.REMUX) {
+            Job job = new Job(name, costKey, priority, cost, estimate, decision);
+            jobs.put(opaque, job);
+            committedCost += cost;
+            jobsChanged = true;
+        }
+
+        addDecision(name, costKey, priority, cost, decision.toString(), reason);
+        logger.info("Transcode {} for '{}' priority {}. {}", decision, name, priority, reason);
+        logRebalance();
+
+        return decision;
+    }
+
+    /**
+     * Return transcoding resources.
+     *
+     * @param opaque A unique pointer for the requesting FFmpeg context.
+     */
+    public static synchronized void release(Pointer opaque) {
+        if (opaque == null) {
+            return;
+        }
+
+        Job job = jobs.remove(opaque);
+
+        if (job != null) {
+            committedCost -= job.cost;
+            jobsChanged = true;
+            logRebalance();
+        }
+    }
+
+    /**
+     * The number of threads each active job should be using right now.
+     *
+     * @return The number of threads per job.
+     */
+    public static synchronized int getThreadTarget() {
+        int activeJobs = 0;
+
+        for (Job job : jobs.values()) {
+            if (!job.demoted) {
+                activeJobs += 1;
+            }
+        }
+
+        int usableCores = Math.max(1, (cores * CORE_COST - headroom) / CORE_COST);
+
+        return Math.max(1, usableCores / Math.max(1, activeJobs));
+    }
+
+    /**
+     * Assign the encoder thread count and threading type based on the active jobs.
+     * <p/>
+     * Frame threading has better throughput, but it delays the output by one frame per thread,
+     * so it's only used when a job can have several threads. Otherwise slice threading is used.
+     * This must be called before the encoder is opened and will replace any threading options in
+     * the provided dictionary.
+     *
+     * @param opaque A unique pointer for the requesting FFmpeg context.
+     * @param encoderContext The codec context for the encoder.
+     * @param dict The dictionary that will be used to open the encoder.
+     */
+    public static synchronized void applyEncoderThreading(Pointer opaque,
+                                                          AVCodecContext encoderContext,
+                                                          AVDictionary dict) {
+        if (!dynamicThreading) {
+            return;
+        }
+
+        int threads = getThreadTarget();
+        int threadType = threads >= frameThreadingMinimum ? FF_THREAD_FRAME : FF_THREAD_SLICE;
+
+        // These would override the values set on the codec context.
+        av_dict_set(dict, "threads", (String) null, 0);
+        av_dict_set(dict, "sliced_threads", (String) null, 0);
+        av_dict_set(dict, "sliced-threads", (String) null, 0);
+
+        encoderContext.thread_count(threads);
+        encoderContext.thread_type(threadType);
+
+        Job job = jobs.get(opaque);
+        if (job != null) {
+            job.threads = threads;
+            job.threadType = threadType;
+        }
+
+        logger.info("Encoder is using {} {} threads.",
+                threads, threadType == FF_THREAD_FRAME ? "frame" : "slice");
+    }
+
+    /**
+     * Assign the decoder thread count based on the active jobs.
+     * <p/>
+     * Decoding is a small part of the cost of transcoding, so the decoder only gets a second slice
+     * thread when the encoder is getting enough threads to use frame threading. This must be
+     * called before the decoder is opened.
+     *
+     * @param decoderContext The codec context for the decoder.
+     */
+    public static synchronized void applyDecoderThreading(AVCodecContext decoderContext) {
+        if (!dynamicThreading) {
+            return;
+        }
+
+        decoderContext.thread_count(getThreadTarget() >= frameThreadingMinimum ? 2 : 1);
+        decoderContext.thread_type(FF_THREAD_SLICE);
+    }
+
+    private static void logRebalance() {
+        if (!dynamicThreading) {
+            return;
+        }
+
+        int threads = getThreadTarget();
+
+        for (Job job : jobs.values()) {
+            if (!job.demoted && job.threads != 0 && job.threads != threads) {
+                logger.debug("'{}' is using {} threads and will use {} threads after the next" +
+                        " switch.", job.name, job.threads, threads);
+            }
+        }
+    }
+
+    /**
+     * Has this job been demoted to make room for a higher priority job?
+     * <p/>
+     * A demoted job should stop transcoding at the next opportunity.
+     *
+     * @param opaque A unique pointer for the requesting FFmpeg context.
+     * @return <i>true</i> if the job has been demoted.
+     */
+    public static synchronized boolean isDemoted(Pointer opaque) {
+        Job job = jobs.get(opaque);
+        return job != null && job.demoted;
+    }
+
+    /**
+     * Measure the CPU used by transcoding if the sample interval has passed.
+     * <p/>
+     * This is intended to be called from the transcoding loop, so it returns immediately when it's
+     * not time to sample yet.
+     */
+    public static void sample() {
+        long now = System.nanoTime();
+
+        if (now < nextSampleTime) {
+            return;
+        }
+
+        synchronized (FFmpegTranscodeScheduler.class) {
+            sample(now);
+        }
+    }
+
+    private static void sample(long now) {
+        if (lastSampleTime != 0 && now - lastSampleTime < sampleInterval) {
+            return;
+        }
+
+        nextSampleTime = now + sampleInterval;
+
+        int processLoad = sampleProcessLoad(now);
+        boolean changedJobs = jobsChanged;
+        jobsChanged = false;
+
+        if (processLoad < 0) {
+            return;
+        }
+
+        if (jobs.isEmpty()) {
+            // This is what remuxing, streaming and writing recordings use without transcoding.
+            idleProcessLoad = idleProcessLoad < 0 ? processLoad :
+                    idleProcessLoad + (int) ((processLoad - idleProcessLoad) * COST_SMOOTHING);
+            return;
+        }
+
+        // A job started or stopped during this sample, so it can't be split correctly.
+        if (changedJobs) {
+            return;
+        }
+
+        int transcodeLoad = Math.max(0, processLoad - Math.max(0, idleProcessLoad));
+        long totalCost = 0;
+
+        for (Job job : jobs.values()) {
+            totalCost += job.cost;
+        }
+
+        if (totalCost <= 0) {
+            return;
+        }
+
+        for (Job job : jobs.values()) {
+            int load = (int) (transcodeLoad * (long) job.cost / totalCost);
+            Integer lastCost = measuredCosts.get(job.costKey);
+            int newCost = lastCost == null ?
+                    load : lastCost + (int) ((load - lastCost) * COST_SMOOTHING);
+            newCost = Math.max(job.estimate, newCost);
+
+            measuredCosts.put(job.costKey, newCost);
+            costBag.setInteger(job.costKey, newCost);
+
+            committedCost += newCost - job.cost;
+            job.cost = newCost;
+        }
+
+        ThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FFmpegTranscodeScheduler.class) {
+                    costBag.saveConfig();
+                }
+            }
+        }, Thread.MIN_PRIORITY, "FFmpegTranscodeScheduler", "Save");
+    }
+
+    /**
+     * Measure the CPU load of this process and update the CPU load from everything else.
+     *
+     * @param now The current nano time.
+     * @return The CPU load of this process since the last sample or -1 if it can't be measured.
+     */
+    private static int sampleProcessLoad(long now) {
+        if (!(osBean instanceof com.sun.management.OperatingSystemMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.OperatingSystemMXBean sunBean =
+                (com.sun.management.OperatingSystemMXBean) osBean;
+
+        long processCpuTime = sunBean.getProcessCpuTime();
+        long elapsed = now - lastSampleTime;
+        long lastCpuTime = lastProcessCpuTime;
+
+        lastSampleTime = now;
+        lastProcessCpuTime = processCpuTime;
+
+        if (lastCpuTime < 0 || processCpuTime < 0 || elapsed <= 0) {
+            return -1;
+        }
+
+        int processLoad = (int) ((processCpuTime - lastCpuTime) * CORE_COST / elapsed);
+        double systemCpuLoad = sunBean.getSystemCpuLoad();
+
+        if (systemCpuLoad >= 0) {
+            int systemLoad = (int) (systemCpuLoad * cores * CORE_COST);
+            int newExternalLoad = Math.max(0, systemLoad - processLoad);
+            externalLoad += (int) ((newExternalLoad - externalLoad) * COST_SMOOTHING);
+        }
+
+        return processLoad;
+    }
+
+    private static int getCost(String costKey, int estimate) {
+        Integer cost = measuredCosts.get(costKey);
+
+        return cost == null ? estimate : Math.max(estimate, cost);
+    }
+
+    private static int getEstimate(String costKey, String weightStr, int defaultWeight) {
+        int weight = defaultWeight;
+
+        if (weightStr != null) {
+            try {
+                weight = Integer.parseInt(weightStr);
+            } catch (NumberFormatException e) {
+                logger.error("Unable to parse '{}' into an integer, using the default {}.",
+                        weightStr, weight);
+            }
+        } else {
+            logger.warn("No weight is set for '{}'. Using default {}.", costKey, weight);
+        }
+
+        return weight * WEIGHT_COST;
+    }
+
+    private static int getCapacity() {
+        int capacity = cores * CORE_COST - headroom - externalLoad;
+
+        if (transcodeLimit > 0) {
+            capacity = Math.min(capacity, transcodeLimit);
+        }
+
+        return Math.max(0, capacity);
+    }
+
+    private static void addDecision(String name, String costKey, int priority, int cost,
+                                    String decision, String reason) {
+
+        if (decisions.size() >= DECISION_HISTORY) {
+            decisions.removeFirst();
+        }
+
+        decisions.addLast(new DecisionRecord(name, costKey, priority, cost, decision, reason));
+    }
+
+    /**
+     * Get the current state of the scheduler.
+     *
+     * @return A snapshot of the current state.
+     */
+    public static synchronized Status getStatus() {
+        List<JobStatus> jobStatuses = new ArrayList<>(jobs.size());
+
+        for (Job job : jobs.values()) {
+            jobStatuses.add(new JobStatus(job));
+        }
+
+        return new Status(
+                cores,
+                headroom,
+                getThreadTarget(),
+                externalLoad,
+                getCapacity(),
+                committedCost,
+                jobStatuses.toArray(new JobStatus[jobStatuses.size()]),
+                decisions.toArray(new DecisionRecord[decisions.size()]),
+                new HashMap<>(measuredCosts));
+    }
+
+    private static class Job {
+        private final String name;
+        private final String costKey;
+        private final int priority;
+        private final Decision decision;
+        private final long started;
+        private final int estimate;
+        private int cost;
+        private boolean demoted;
+        private int threads;
+        private int threadType;
+
+        private Job(String name, String costKey, int priority, int cost, int estimate,
+                    Decision decision) {
+            this.name = name;
+            this.costKey = costKey;
+            this.priority = priority;
+            this.cost = cost;
+            this.estimate = estimate;
+            this.decision = decision;
+            started = System.nanoTime();
+            demoted = false;
+            threads = 0;
+            threadType = 0;
+        }
+    }
+
+    public static class JobStatus {
+        public final String NAME;
+        public final String COST_KEY;
+        public final int PRIORITY;
+        public final int COST;
+        public final String DECISION;
+        public final boolean DEMOTED;
+        public final long RUNNING_MS;
+        public final int THREADS;
+        public final String THREAD_TYPE;
+
+        private JobStatus(Job job) {
+            NAME = job.name;
+            COST_KEY = job.costKey;
+            PRIORITY = job.priority;
+            COST = job.cost;
+            DECISION = job.decision.toString();
+            DEMOTED = job.demoted;
+            RUNNING_MS = (System.nanoTime() - job.started) / 1000000L;
+            THREADS = job.threads;
+            THREAD_TYPE = job.threadType == FF_THREAD_FRAME ? "frame" :
+                    job.threadType == FF_THREAD_SLICE ? "slice" : "profile";
+        }
+    }
+
+    public static class DecisionRecord {
+        public final long TIME;
+        public final String NAME;
+        public final String COST_KEY;
+        public final int PRIORITY;
+        public final int COST;
+        public final String DECISION;
+        public final String REASON;
+
+        private DecisionRecord(String name, String costKey, int priority, int cost,
+                               String decision, String reason) {
+
+            TIME = System.currentTimeMillis();
+            NAME = name;
+            COST_KEY = costKey;
+            PRIORITY = priority;
+            COST = cost;
+            DECISION = decision;
+            REASON = reason;
+        }
+    }
+
+    public static class Status {
+        public final int CORES;
+        public final int HEADROOM;
+        public final int THREAD_TARGET;
+        public final int EXTERNAL_LOAD;
+        public final int CAPACITY;
+        public final int COMMITTED;
+        public final JobStatus JOBS[];
+        public final DecisionRecord DECISIONS[];
+        public final Map<String, Integer> MEASURED_COSTS;
+
+        private Status(int cores, int headroom, int threadTarget, int externalLoad, int capacity,
+                       int committed,
+                       JobStatus jobs[], DecisionRecord decisions[],
+                       Map<String, Integer> measuredCosts) {
+
+            CORES = cores;
+            HEADROOM = headroom;
+            THREAD_TARGET = threadTarget;
+            EXTERNAL_LOAD = externalLoad;
+            CAPACITY = capacity;
+            COMMITTED = committed;
+            JOBS = jobs;
+            DECISIONS = decisions;
+            MEASURED_COSTS = measuredCosts;
+        }
+    }
+}
@@ -40,14 +40,11 @@
 
 package opendct.video.ffmpeg;
 
-import opendct.config.Config;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bytedeco.javacpp.*;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static opendct.video.ffmpeg.FFmpegUtil.*;
@@ -74,12 +71,6 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
     private String newFilename = null;
     private final Object switchLock = new Object();
 
-    private static Map<Pointer, Integer> permissionMap = new HashMap<>();
-    private static int permissionWeight = 0;
-    private static int transcodeLimit =
-            Config.getInteger("consumer.ffmpeg.transcode_limit",
-                    (Runtime.getRuntime().availableProcessors() - 1) * 2);
-
     private static final float dts_delta_threshold = 10;
     private long firstDtsByStreamIndex[] = new long[0];
     private long firstPtsByStreamIndex[] = new long[0];
@@ -91,6 +82,8 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
     private FFmpegContext ctx = null;
     private boolean interlaced = false;
+    private final FFmpegFramePool pool = new FFmpegFramePool();
+    private final int encodeGotFrame[] = new int[] { 0 };
     private FilteringContext filter_ctx[] = new FilteringContext[0];
 
     private class FilteringContext {
@@ -99,50 +92,6 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         private AVFilterGraph filter_graph;
     }
 
-    /**
-     * Request permission to use transcoding resources.
-     *
-     * @param opaque A unique pointer for the requesting FFmpeg context.
-     * @param weight The assigned weight to the transcoding job.
-     * @return <i>true</i> if the transcoding is allowed to proceed.
-     */
-    public static synchronized boolean getTranscodePermission(Pointer opaque, int weight) {
-        if (opaque == null) {
-            return false;
-        }
-
-        Integer checkWeight = permissionMap.get(opaque);
-
-        // The capture device is asking for permission, but the transcode limit has been reached.
-        // The stream can only be remuxed now.
-        if (checkWeight == null && permissionWeight + weight > transcodeLimit) {
-            return false;
-        } else if (checkWeight != null) {
-            returnTranscodePermission(opaque);
-
-            if (permissionWeight + weight > transcodeLimit) {
-                return false;
-            }
-        }
-
-        permissionWeight += weight;
-        permissionMap.put(opaque, weight);
-        return true;
-    }
-
-    public static synchronized void returnTranscodePermission(Pointer opaque) {
-        if (opaque == null) {
-            return;
-        }
-
-        Integer weight = permissionMap.get(opaque);
-
-        if (weight != null) {
-            permissionWeight -= weight;
-            permissionMap.remove(opaque);
-        }
-    }
-
     @Override
     public boolean switchOutput(String newFilename, FFmpegWriter writer, FFmpegWriter writer2) {
         synchronized (switchLock) {
@@ -293,27 +242,6 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                         videoHeight,
                         ctx.encodeProfile.getVideoEncoderCodec(
                                 videoCodec));
-
-                // Remove the encoder profile if we cannot get permission to transcode. This will
-                // prevent any possible future attempts.
-                String weightStr = ctx.videoEncodeSettings.get("encode_weight");
-
-                int weight = 2;
-
-                if (weightStr != null) {
-                    try {
-                        weight = Integer.parseInt(weightStr);
-                    } catch (NumberFormatException e) {
-                        logger.error("Unable to parse '{}' into an integer, using the default {}.",
-                                weightStr, weight);
-                    }
-                } else {
-                    logger.warn("encode_weight is not set. Using default {}.", weight);
-                }
-
-                if (!getTranscodePermission(ctx.OPAQUE, weight)) {
-                    ctx.encodeProfile = null;
-                }
             } else {
                 if (ctx.encodeProfile != null) {
                     // Everything needed to make a correct decision is not available. Remux only.
@@ -332,12 +260,38 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
             throw new InterruptedException(FFMPEG_INIT_INTERRUPTED);
         }
 
-        if (ctx.encodeProfile != null &&
+        boolean transcodeVideo = ctx.encodeProfile != null &&
                 ctx.encodeProfile.canTranscodeVideo(
                         interlaced,
                         avcodec_get_name(ctx.videoInCodecCtx.codec_id()).getString(),
                         videoHeight,
-                        videoWidth)) {
+                        videoWidth);
+
+        if (transcodeVideo && firstRun) {
+            // Remove the encoder profile if we cannot get permission to transcode. This will
+            // prevent any possible future attempts. A downgrade replaces the filters in the
+            // encoder settings. This is only asked once it's known the video will be transcoded so
+            // streams that are only copied never hold any transcoding capacity.
+            FFmpegTranscodeScheduler.Decision decision =
+                    FFmpegTranscodeScheduler.requestTranscode(
+                            ctx.OPAQUE,
+                            ctx.outputFilename,
+                            ctx.encodeProfile,
+                            videoWidth,
+                            videoHeight,
+                            ctx.videoEncodeSettings);
+
+            if (decision == FFmpegTranscodeScheduler.Decision.REMUX) {
+                ctx.encodeProfile = null;
+                transcodeVideo = false;
+            }
+        }
+
+        if (transcodeVideo) {
+
+            if (firstRun) {
+                FFmpegTranscodeScheduler.applyDecoderThreading(ctx.videoInCodecCtx);
+            }
 
             ret = avcodec_open2(ctx.videoInCodecCtx,
                     avcodec_find_decoder(ctx.videoInCodecCtx.codec_id()), (PointerPointer<AVDictionary>) null);
@@ -350,6 +304,8 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
                 // If transcoding is not possible, we will just copy it.
                 logger.warn("Unable to set up transcoding. The stream will be copied.");
+                FFmpegTranscodeScheduler.release(ctx.OPAQUE);
+                ctx.encodeProfile = null;
                 if ((ctx.videoOutStream = addCopyStreamToContext(ctx.avfCtxOutput, ctx.avfCtxInput.streams(ctx.preferredVideo))) == null) {
                     throw new FFmpegException("Could not find a video stream", -1);
                 }
@@ -357,6 +313,9 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                 ctx.streamMap[ctx.preferredVideo].transcode = true;
             }
         } else {
+            // Copying doesn't need any transcoding capacity.
+            FFmpegTranscodeScheduler.release(ctx.OPAQUE);
+
             if ((ctx.videoOutStream = addCopyStreamToContext(ctx.avfCtxOutput, ctx.avfCtxInput.streams(ctx.preferredVideo))) == null) {
                 throw new FFmpegException("Could not find a video stream", -1);
             }
@@ -565,10 +524,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     continue;
                 }
 
-                frame = av_frame_alloc();
-                if (frame == null) {
-                    throw new FFmpegException("av_frame_alloc: Unable to allocate frame.", -1);
-                }
+                frame = pool.getFrame();
 
                 av_packet_rescale_ts(packet,
                         stream.time_base(),
@@ -584,7 +540,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                         stream.time_base());
 
                 if (ret < 0) {
-                    av_frame_free(frame);
+                    pool.returnFrame(frame);
                     //av_packet_unref(packet);
                     logger.error("Decoding failed");
                     continue;
@@ -598,7 +554,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     // Do not retain decoded packets. The RAM usage will get insane very quickly.
                 }
 
-                av_frame_free(frame);
+                pool.returnFrame(frame);
                 av_packet_unref(packet);
 
                 if (interFrames >= interThresh) {
@@ -694,9 +650,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         packet.data(null);
         packet.size(0);
 
-        AVPacket copyPacket = new AVPacket();
-        copyPacket.data(null);
-        packet.size(0);
+        AVPacket copyPacket = pool.getPacket();
 
         //AVStream iavStream;
         //AVCodecContext iavCodecContext;
@@ -983,8 +937,8 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                 lastPtsByStreamIndex[inputStreamIndex] = pts;
 
                 if (ctx.secondaryStream && inputStreamIndex == ctx.preferredVideo) {
-                    av_copy_packet(copyPacket, packet);
-                    av_packet_copy_props(copyPacket, packet);
+                    // This only adds a reference to the packet data. The data is not copied.
+                    av_packet_ref(copyPacket, packet);
 
                     //logPacket(ctx.avfCtxInput, copyPacket, "copy2-in");
 
@@ -998,6 +952,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     copyPacket.stream_index(ctx.streamMap2[inputStreamIndex].outStreamIndex);
 
                     ret = av_interleaved_write_frame(ctx.avfCtxOutput2, copyPacket);
+                    av_packet_unref(copyPacket);
 
                     if (ret < 0) {
                         logger.error("Error from av_interleaved_write_frame output 2: {}", ret);
@@ -1010,11 +965,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
                     //logger.trace("Going to re-encode & filter the frame");
 
-                    frame = av_frame_alloc();
-                    if (frame == null) {
-                        throw new FFmpegException("av_frame_alloc: Unable to allocate frame.",
-                                ENOMEM);
-                    }
+                    frame = pool.getFrame();
 
                     //logPacket(ctx.avfCtxInput, packet, "trans-dec-in");
 
@@ -1035,24 +986,28 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     }
 
                     if (ret < 0) {
-                        av_frame_free(frame);
+                        pool.returnFrame(frame);
+                        frame = null;
                         av_packet_unref(packet);
                         logger.error("Decoding failed");
                         continue;
                     }
 
                     if (got_frame[0] != 0) {
+                        // This returns immediately unless it's time to measure the CPU usage.
+                        FFmpegTranscodeScheduler.sample();
+
                         frame.pts(av_frame_get_best_effort_timestamp(frame));
                         ret = filterEncodeWriteFrame(frame, inputStreamIndex);
-                        av_frame_free(frame);
 
                         if (ret < 0) {
                             logger.error("Error from filterEncodeWriteFrame: {}", ret);
                             //throw new FFmpegException("Error from filterEncodeWriteFrame.", ret);
                         }
-                    } else {
-                        av_frame_free(frame);
                     }
+
+                    pool.returnFrame(frame);
+                    frame = null;
                 } else {
                     //logPacket(ctx.avfCtxInput, packet, "copy-in");
 
@@ -1103,9 +1058,10 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
             ret = av_write_trailer(ctx.avfCtxOutput);
         } finally {
-            returnTranscodePermission(ctx.OPAQUE);
+            FFmpegTranscodeScheduler.release(ctx.OPAQUE);
 
             // Cleanup.
+            pool.returnPacket(copyPacket);
             endStreamOutput(packet, frame);
             logger.info("FFmpeg transcoder ended with code {}", ret);
         }
@@ -1151,14 +1107,26 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
             return;
         }
 
+        // The codec can only change when a new file is started, so this is when a demoted job
+        // stops transcoding.
+        if (ctx.encodeProfile != null && FFmpegTranscodeScheduler.isDemoted(ctx.OPAQUE)) {
+            logger.info("Transcoding was demoted for a higher priority stream. Remuxing instead.");
+            FFmpegTranscodeScheduler.release(ctx.OPAQUE);
+            ctx.encodeProfile = null;
+        }
+
         initStreamOutput(ctx, newFilename, newWriter, newWriter2, false);
     }
 
     private void endStreamOutput(AVPacket packet, AVFrame frame) {
         av_packet_unref(packet);
-        av_frame_free(frame);
+        pool.returnFrame(frame);
 
         deallocFilterGraphs();
+
+        logger.info("Frame pool made {} allocations for {} requests.",
+                pool.getAllocations(), pool.getRequests());
+        pool.dispose();
     }
 
     private int initFilter(FilteringContext fctx, AVCodecContext dec_ctx,
@@ -1458,7 +1426,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
     private int encodeWriteFrame(AVFrame filt_frame, int stream_index, int got_frame[]) {
         int ret = 0;
-        avcodec.AVPacket enc_pkt = new avcodec.AVPacket();
+        AVPacket enc_pkt = pool.getPacket();
 
         if (got_frame == null || got_frame.length == 0) {
             logger.warn("got_frame will not be able to be used ByRef.");
@@ -1467,9 +1435,6 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
         //logger.trace("Encoding frame");
         // encode filtered frame
-        enc_pkt.data(null);
-        enc_pkt.size(0);
-        av_init_packet(enc_pkt);
 
         if (ctx.streamMap[stream_index].iCodecType == AVMEDIA_TYPE_VIDEO) {
             ret = avcodec_encode_video2(ctx.streamMap[stream_index].oCodecContext, enc_pkt,
@@ -1479,14 +1444,9 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     filt_frame, got_frame);
         }
 
-        av_frame_free(filt_frame);
-
-        if (ret < 0) {
-            return ret;
-        }
-
-        if (got_frame[0] == 0) {
-            return 0;
+        if (ret < 0 || got_frame[0] == 0) {
+            pool.returnPacket(enc_pkt);
+            return Math.min(ret, 0);
         }
 
         //logPacket(ctx.avfCtxOutput, enc_pkt, "trans-enc-in");
@@ -1503,11 +1463,14 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
 
         // mux encoded frame
         ret = av_interleaved_write_frame(ctx.avfCtxOutput, enc_pkt);
+        pool.returnPacket(enc_pkt);
 
         if (encodedFrames[stream_index].addAndGet(1) == 1000) {
             long endTime = System.currentTimeMillis();
             if (startTime != endTime) {
-                logger.debug("FPS: {}", (double)encodedFrames[stream_index].get() / (double)((endTime - startTime) / 1000));
+                logger.debug("FPS: {}, frame pool allocations/s: {}",
+                        (double)encodedFrames[stream_index].get() / (double)((endTime - startTime) / 1000),
+                        pool.getAllocationRate());
             }
             encodedFrames[stream_index].set(0);
             startTime = endTime;
@@ -1518,7 +1481,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
     private int filterEncodeWriteFrame(AVFrame frame, int stream_index) {
         int ret;
         AVFrame filt_frame;
-        int got_frame[] = new int[] { 0 };
+        int got_frame[] = encodeGotFrame;
 
         //logger.trace("Pushing decoded frame to filters");
         // push the decoded frame into the filtergraph
@@ -1529,15 +1492,14 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
             return ret;
         }
 
+        try {
+            filt_frame = pool.getFrame();
+        } catch (FFmpegException e) {
+            return ENOMEM;
+        }
+
         // pull filtered frames from the filtergraph
         while (true) {
-            filt_frame = av_frame_alloc();
-
-            if (filt_frame == null) {
-                ret = ENOMEM;
-                break;
-            }
-
             //logger.trace("Pulling filtered frame from filters");
             ret = av_buffersink_get_frame(filter_ctx[stream_index].buffersink_ctx,
                     filt_frame);
@@ -1551,18 +1513,19 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
                     ret = 0;
                 }
 
-                av_frame_free(filt_frame);
                 break;
             }
 
             filt_frame.pict_type(AV_PICTURE_TYPE_NONE);
             ret = encodeWriteFrame(filt_frame, stream_index, got_frame);
+            av_frame_unref(filt_frame);
 
             if (ret < 0) {
                 break;
             }
         }
 
+        pool.returnFrame(filt_frame);
         return ret;
     }
 
@@ -1575,7 +1538,7 @@ public class FFmpegTranscoder implements FFmpegStreamProcessor {
         }
 
         int ret;
-        int got_frame[] = new int[] { 0 };
+        int got_frame[] = encodeGotFrame;
 
         if ((ctx.avfCtxOutput.streams(ctx.streamMap[stream_index].outStreamIndex).codec().codec().capabilities() &
                 AV_CODEC_CAP_DELAY) == 0) {
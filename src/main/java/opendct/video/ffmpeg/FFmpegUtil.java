@@ -49,6 +49,9 @@ public class FFmpegUtil {
         logger.debug("Calling av_log_set_callback...");
         av_log_set_callback(logCallback);
 
+        logger.debug("Calling av_log_set_level...");
+        av_log_set_level(FFmpegLogger.getNativeLogLevel());
+
         logger.debug("Calling avcodec_register_all...");
         avcodec_register_all();
 
@@ -366,6 +369,7 @@ public class FFmpegUtil {
 
             ctx.videoEncodeSettings = profile.getVideoEncoderMap(w, h, encoder);*/
             FFmpegProfileManager.confVideoEncoder(ctx.videoEncodeSettings, enc_ctx, dict);
+            FFmpegTranscodeScheduler.applyEncoderThreading(ctx.OPAQUE, enc_ctx, dict);
         } else {
             encoder = ctx.streamMap[stream_id].iCodec = avcodec_find_encoder(dec_ctx.codec_id());
 
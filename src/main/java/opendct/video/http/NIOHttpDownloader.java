@@ -23,6 +23,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -43,6 +44,13 @@ public class NIOHttpDownloader {
             "Authorization: Basic ";
     private static final String HTTP_11_HEADER = "HTTP/1.1 ";
 
+    // A larger receive buffer lets TCP keep a full window in flight, so short stalls on our side
+    // don't slow down the sender. 0 uses the OS default.
+    private static final int RECEIVE_BUFFER_SIZE =
+            Math.max(0, Config.getInteger("producer.http.nio.receive_buffer_size", 2097152));
+    private static final int CONNECT_TIMEOUT_MS =
+            Math.max(0, Config.getInteger("producer.http.nio.connect_timeout_ms", 5000));
+
     private boolean closed = false;
     private SocketChannel socketChannel;
     private URL address;
@@ -51,7 +59,23 @@ public class NIOHttpDownloader {
     private String mimeType;
 
     public NIOHttpDownloader() throws IOException {
-        socketChannel = SocketChannel.open();
+        socketChannel = openChannel();
+    }
+
+    private static SocketChannel openChannel() throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+
+        // This must be set before connecting or the larger window can't be used.
+        if (RECEIVE_BUFFER_SIZE > 0) {
+            try {
+                socketChannel.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+            } catch (SocketException e) {
+                logger.debug("Unable to set the receive buffer size to {} => {}",
+                        RECEIVE_BUFFER_SIZE, e.getMessage());
+            }
+        }
+
+        return socketChannel;
     }
 
     /**
@@ -85,7 +109,9 @@ public class NIOHttpDownloader {
             port = 80;
         }
 
-        socketChannel.connect(new InetSocketAddress(address.getHost(), port));
+        // A device that can't be reached should fail quickly so something else can be tried.
+        socketChannel.socket().connect(
+                new InetSocketAddress(address.getHost(), port), CONNECT_TIMEOUT_MS);
 
         tempBuffer.clear();
         if (credentials == null) {
@@ -122,7 +148,10 @@ public class NIOHttpDownloader {
 
         while (!startStreaming) {
             tempBuffer.clear();
-            socketChannel.read(tempBuffer);
+            if (socketChannel.read(tempBuffer) == -1) {
+                throw new IOException("The connection was closed before the response was" +
+                        " received.");
+            }
             tempBuffer.flip();
 
             while (tempBuffer.hasRemaining()) {
@@ -181,7 +210,7 @@ public class NIOHttpDownloader {
                 socketChannel.close();
                 socketChannel.socket().close();
             } catch (Exception e) {}
-            socketChannel = SocketChannel.open();
+            socketChannel = openChannel();
             connect(new URL(redirectUrl), credentials);
             return;
         }
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tracks the health of a transport stream as it is received.
+ * <p/>
+ * Continuity counter errors and transport error indicators are counted per PID. Continuity
+ * errors usually mean packets were lost between the tuner and this program. Transport errors are
+ * set by the tuner when it could not correct the received data, so they usually mean poor signal.
+ * The PCR interval and the jitter between the PCR and the time the packets actually arrived are
+ * tracked for the first PID found carrying a PCR. The bitrate of each PID is updated about once
+ * per second.
+ * <p/>
+ * Analysis can be sampled so only one in every few writes is analyzed. Continuity is not checked
+ * across the writes that are skipped.
+ */
+public class TsHealthAnalyzer extends TsPacketParser {
+    private static final Logger logger = LogManager.getLogger(TsHealthAnalyzer.class);
+
+    private static final boolean ENABLED =
+            Config.getBoolean("consumer.ts_analyzer.enabled", true);
+
+    private static final int SAMPLE_INTERVAL =
+            Math.max(1, Config.getInteger("consumer.ts_analyzer.sample_interval", 1));
+
+    private static final long BITRATE_WINDOW_NS = 1000000000L;
+
+    // The PCR runs at 27MHz. Anything further apart than this is a discontinuity.
+    private static final long PCR_MAX_DELTA = 27000000L;
+    private static final long PCR_WRAP = (1L << 33) * 300;
+
+    private static final int MAX_PID = TsPsiParser.NULL_PID;
+
+    private final long packets[] = new long[MAX_PID + 1];
+    private final long ccErrors[] = new long[MAX_PID + 1];
+    private final long teiErrors[] = new long[MAX_PID + 1];
+    private final long windowBytes[] = new long[MAX_PID + 1];
+    private final long bitrates[] = new long[MAX_PID + 1];
+    private final byte lastCc[] = new byte[MAX_PID + 1];
+    private final int seenPids[] = new int[MAX_PID + 1];
+    private int seenPidCount;
+
+    private long totalCcErrors;
+    private long totalTeiErrors;
+    private long totalWindowBytes;
+    private long totalBitrate;
+    private long windowStartNs;
+
+    private int pcrPid;
+    private long lastPcr;
+    private long lastPcrArrivalNs;
+    private long pcrIntervalNs;
+    private long pcrMaxIntervalNs;
+    private long pcrJitterNs;
+    private long pcrMaxJitterNs;
+
+    private long arrivalNs;
+    private long writes;
+    private long startTime;
+
+    public TsHealthAnalyzer() {
+        reset();
+    }
+
+    /**
+     * Analyze data as it is received. If analysis is disabled or this write is not being sampled,
+     * this returns immediately.
+     *
+     * @param data The array containing the data.
+     * @param offset The offset of the data within the array.
+     * @param length The length of the data.
+     */
+    public synchronized void analyze(byte data[], int offset, int length) {
+        if (isSampled()) {
+            parse(data, offset, length);
+        }
+    }
+
+    /**
+     * Analyze data as it is received. If analysis is disabled or this write is not being sampled,
+     * this returns immediately.
+     * <p/>
+     * The position of the buffer is not changed.
+     *
+     * @param buffer The data to be analyzed.
+     */
+    public synchronized void analyze(ByteBuffer buffer) {
+        if (isSampled()) {
+            parse(buffer);
+        }
+    }
+
+    private boolean isSampled() {
+        if (!ENABLED) {
+            return false;
+        }
+
+        if (writes++ % SAMPLE_INTERVAL != 0) {
+            // The next sampled write will not continue from the last one.
+            discardPartial();
+            Arrays.fill(lastCc, (byte) -1);
+            lastPcr = -1;
+            return false;
+        }
+
+        arrivalNs = System.nanoTime();
+
+        if (arrivalNs - windowStartNs >= BITRATE_WINDOW_NS) {
+            updateBitrates();
+        }
+
+        return true;
+    }
+
+    private void updateBitrates() {
+        long elapsedNs = arrivalNs - windowStartNs;
+
+        for (int i = 0; i < seenPidCount; i++) {
+            int pid = seenPids[i];
+            bitrates[pid] = windowBytes[pid] * 8 * 1000000000L / elapsedNs * SAMPLE_INTERVAL;
+            windowBytes[pid] = 0;
+        }
+
+        totalBitrate = totalWindowBytes * 8 * 1000000000L / elapsedNs * SAMPLE_INTERVAL;
+        totalWindowBytes = 0;
+        windowStartNs = arrivalNs;
+    }
+
+    @Override
+    protected void processPacket(byte[] packet, int offset, long streamOffset) {
+        int pid = getPid(packet, offset);
+
+        if (packets[pid]++ == 0) {
+            seenPids[seenPidCount++] = pid;
+        }
+
+        windowBytes[pid] += VideoUtil.MTS_PACKET_LEN;
+        totalWindowBytes += VideoUtil.MTS_PACKET_LEN;
+
+        if (isTransportError(packet, offset)) {
+            // Nothing else in this packet can be trusted, including the PID.
+            teiErrors[pid] += 1;
+            totalTeiErrors += 1;
+            lastCc[pid] = -1;
+            return;
+        }
+
+        if (pid == TsPsiParser.NULL_PID) {
+            return;
+        }
+
+        int adaptationControl = (packet[offset + 3] >> 4) & 0x03;
+        int cc = packet[offset + 3] & 0x0f;
+        boolean discontinuity = false;
+
+        if ((adaptationControl & 0x02) != 0 && (packet[offset + 4] & 0xff) > 0) {
+            int flags = packet[offset + 5] & 0xff;
+            discontinuity = (flags & 0x80) != 0;
+
+            if ((flags & 0x10) != 0 && (packet[offset + 4] & 0xff) >= 7) {
+                processPcr(pid, packet, offset + 6, discontinuity);
+            }
+        }
+
+        int last = lastCc[pid];
+
+        // The counter only increments on packets with a payload and a packet may be sent twice.
+        if (last >= 0 && !discontinuity) {
+            int expected = (adaptationControl & 0x01) != 0 ? (last + 1) & 0x0f : last;
+
+            if (cc != expected && cc != last) {
+                ccErrors[pid] += 1;
+                totalCcErrors += 1;
+            }
+        }
+
+        lastCc[pid] = (byte) cc;
+    }
+
+    private void processPcr(int pid, byte packet[], int offset, boolean discontinuity) {
+        if (pcrPid < 0) {
+            pcrPid = pid;
+        } else if (pcrPid != pid) {
+            return;
+        }
+
+        long base = ((long) (packet[offset] & 0xff) << 25) |
+                ((packet[offset + 1] & 0xff) << 17) |
+                ((packet[offset + 2] & 0xff) << 9) |
+                ((packet[offset + 3] & 0xff) << 1) |
+                ((packet[offset + 4] & 0x80) >> 7);
+
+        long extension = ((packet[offset + 4] & 0x01) << 8) | (packet[offset + 5] & 0xff);
+        long pcr = base * 300 + extension;
+
+        if (lastPcr >= 0 && !discontinuity) {
+            long delta = pcr - lastPcr;
+
+            if (delta < 0) {
+                delta += PCR_WRAP;
+            }
+
+            if (delta > 0 && delta <= PCR_MAX_DELTA) {
+                long deltaNs = delta * 1000 / 27;
+                long arrivalDeltaNs = arrivalNs - lastPcrArrivalNs;
+                long deviationNs = Math.abs(arrivalDeltaNs - deltaNs);
+
+                pcrIntervalNs = deltaNs;
+                pcrMaxIntervalNs = Math.max(pcrMaxIntervalNs, deltaNs);
+
+                // Smoothed the same way RTP interarrival jitter is.
+                pcrJitterNs += (deviationNs - pcrJitterNs) / 16;
+                pcrMaxJitterNs = Math.max(pcrMaxJitterNs, deviationNs);
+            }
+        }
+
+        lastPcr = pcr;
+        lastPcrArrivalNs = arrivalNs;
+    }
+
+    /**
+     * Clear all statistics. This should be done when a new recording is started.
+     */
+    @Override
+    public synchronized void reset() {
+        super.reset();
+
+        for (int i = 0; i < seenPidCount; i++) {
+            int pid = seenPids[i];
+            packets[pid] = 0;
+            ccErrors[pid] = 0;
+            teiErrors[pid] = 0;
+            windowBytes[pid] = 0;
+            bitrates[pid] = 0;
+        }
+
+        Arrays.fill(lastCc, (byte) -1);
+        seenPidCount = 0;
+
+        totalCcErrors = 0;
+        totalTeiErrors = 0;
+        totalWindowBytes = 0;
+        totalBitrate = 0;
+        windowStartNs = System.nanoTime();
+
+        pcrPid = -1;
+        lastPcr = -1;
+        lastPcrArrivalNs = 0;
+        pcrIntervalNs = 0;
+        pcrMaxIntervalNs = 0;
+        pcrJitterNs = 0;
+        pcrMaxJitterNs = 0;
+
+        writes = 0;
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the current statistics.
+     *
+     * @return A copy of the current statistics.
+     */
+    public synchronized Status getStatus() {
+        int pids[] = Arrays.copyOf(seenPids, seenPidCount);
+        Arrays.sort(pids);
+
+        PidStatus pidStatus[] = new PidStatus[pids.length];
+
+        for (int i = 0; i < pids.length; i++) {
+            int pid = pids[i];
+            pidStatus[i] = new PidStatus(
+                    pid, packets[pid], ccErrors[pid], teiErrors[pid], bitrates[pid]);
+        }
+
+        return new Status(
+                startTime,
+                getPacketsParsed(),
+                totalCcErrors,
+                totalTeiErrors,
+                getSyncLosses(),
+                totalBitrate,
+                pcrPid,
+                pcrIntervalNs / 1000,
+                pcrMaxIntervalNs / 1000,
+                pcrJitterNs / 1000,
+                pcrMaxJitterNs / 1000,
+                pidStatus);
+    }
+
+    /**
+     * Log a summary of the statistics.
+     *
+     * @param name The name of the recording or device to include in the summary.
+     */
+    public void logSummary(String name) {
+        if (!ENABLED) {
+            return;
+        }
+
+        Status status = getStatus();
+
+        if (status.PACKETS == 0) {
+            return;
+        }
+
+        logger.info("Stream health for '{}': {} packets, {} continuity errors, {} transport" +
+                        " errors, {} sync losses, PCR PID {} max interval {}ms jitter {}us max" +
+                        " jitter {}us.",
+                name, status.PACKETS, status.CC_ERRORS, status.TEI_ERRORS, status.SYNC_LOSSES,
+                status.PCR_PID, status.PCR_MAX_INTERVAL_US / 1000, status.PCR_JITTER_US,
+                status.PCR_MAX_JITTER_US);
+
+        if (logger.isDebugEnabled()) {
+            for (PidStatus pidStatus : status.PIDS) {
+                logger.debug("PID 0x{}: {} packets, {} continuity errors, {} transport errors.",
+                        Integer.toHexString(pidStatus.PID), pidStatus.PACKETS,
+                        pidStatus.CC_ERRORS, pidStatus.TEI_ERRORS);
+            }
+        }
+    }
+
+    public static class Status {
+        public final long START_TIME;
+        public final long PACKETS;
+        public final long CC_ERRORS;
+        public final long TEI_ERRORS;
+        public final long SYNC_LOSSES;
+        public final long BITRATE;
+        public final int PCR_PID;
+        public final long PCR_INTERVAL_US;
+        public final long PCR_MAX_INTERVAL_US;
+        public final long PCR_JITTER_US;
+        public final long PCR_MAX_JITTER_US;
+        public final PidStatus PIDS[];
+
+        public Status(long startTime, long packets, long ccErrors, long teiErrors,
+                      long syncLosses, long bitrate, int pcrPid, long pcrIntervalUs,
+                      long pcrMaxIntervalUs, long pcrJitterUs, long pcrMaxJitterUs,
+                      PidStatus pids[]) {
+
+            START_TIME = startTime;
+            PACKETS = packets;
+            CC_ERRORS = ccErrors;
+            TEI_ERRORS = teiErrors;
+            SYNC_LOSSES = syncLosses;
+            BITRATE = bitrate;
+            PCR_PID = pcrPid;
+            PCR_INTERVAL_US = pcrIntervalUs;
+            PCR_MAX_INTERVAL_US = pcrMaxIntervalUs;
+            PCR_JITTER_US = pcrJitterUs;
+            PCR_MAX_JITTER_US = pcrMaxJitterUs;
+            PIDS = pids;
+        }
+    }
+
+    public static class PidStatus {
+        public final int PID;
+        public final long PACKETS;
+        public final long CC_ERRORS;
+        public final long TEI_ERRORS;
+        public final long BITRATE;
+
+        public PidStatus(int pid, long packets, long ccErrors, long teiErrors, long bitrate) {
+            PID = pid;
+            PACKETS = packets;
+            CC_ERRORS = ccErrors;
+            TEI_ERRORS = teiErrors;
+            BITRATE = bitrate;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * A loaded sidecar index of seek points for a transport stream recording.
+ * <p/>
+ * The index starts with a 16 byte header containing the magic number and the size the recording
+ * wraps at (0 if it does not wrap). Each seek point that follows is 16 bytes containing the PTS
+ * in 90kHz units and the number of bytes written to the recording before the packet. The PTS is
+ * extended past 33 bits, so it only increases. When the recording wraps, the byte count keeps
+ * increasing and the position in the file is the byte count modulo the wrap size. All values are
+ * big endian. The index may end with a partial seek point while the recording is in progress.
+ */
+public class TsIndex {
+    public static final String EXTENSION = ".idx";
+    public static final long MAGIC = 0x4f44435449580001L;
+    public static final int HEADER_LENGTH = 16;
+    public static final int ENTRY_LENGTH = 16;
+
+    private final long wrapSize;
+    private final long pts[];
+    private final long offsets[];
+
+    // Seek points before this index have been overwritten by a wrapping recording.
+    private final int firstValid;
+
+    /**
+     * Create an index from seek points already in memory.
+     *
+     * @param wrapSize The size the recording wraps at or 0 if it does not wrap.
+     * @param pts The PTS of each seek point in increasing order.
+     * @param offsets The number of bytes written before each seek point in increasing order.
+     */
+    public TsIndex(long wrapSize, long pts[], long offsets[]) {
+        this.wrapSize = wrapSize;
+        this.pts = pts;
+        this.offsets = offsets;
+
+        int valid = 0;
+
+        if (wrapSize > 0 && offsets.length > 0) {
+            long oldest = offsets[offsets.length - 1] - wrapSize;
+
+            while (valid < offsets.length && offsets[valid] < oldest) {
+                valid += 1;
+            }
+        }
+
+        firstValid = valid;
+    }
+
+    /**
+     * Load the index for a recording.
+     *
+     * @param recordingFilename The full path and name of the recording. The index extension is
+     *                          added to this name.
+     * @return The loaded index.
+     * @throws IOException Thrown if the index could not be read or is not an index.
+     */
+    public static TsIndex read(String recordingFilename) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(
+                Files.readAllBytes(Paths.get(recordingFilename + EXTENSION)));
+
+        if (data.remaining() < HEADER_LENGTH || data.getLong() != MAGIC) {
+            throw new IOException("'" + recordingFilename + EXTENSION + "' is not an index.");
+        }
+
+        long wrapSize = data.getLong();
+        int count = data.remaining() / ENTRY_LENGTH;
+        long pts[] = new long[count];
+        long offsets[] = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            pts[i] = data.getLong();
+            offsets[i] = data.getLong();
+        }
+
+        return new TsIndex(wrapSize, pts, offsets);
+    }
+
+    /**
+     * The number of seek points still in the recording.
+     *
+     * @return The number of seek points.
+     */
+    public int size() {
+        return pts.length - firstValid;
+    }
+
+    /**
+     * The PTS of the first seek point still in the recording.
+     *
+     * @return The PTS in 90kHz units or -1 if there are no seek points.
+     */
+    public long getFirstPts() {
+        return size() > 0 ? pts[firstValid] : -1;
+    }
+
+    /**
+     * The PTS of the last seek point in the recording.
+     *
+     * @return The PTS in 90kHz units or -1 if there are no seek points.
+     */
+    public long getLastPts() {
+        return size() > 0 ? pts[pts.length - 1] : -1;
+    }
+
+    /**
+     * Find the position in the recording to start reading from to display a PTS.
+     * <p/>
+     * This is the last seek point at or before the PTS. If the PTS is before the first seek
+     * point, the first seek point is used.
+     *
+     * @param findPts The PTS in 90kHz units as stored in this index.
+     * @return The byte position in the recording file or -1 if there are no seek points.
+     */
+    public long getPosition(long findPts) {
+        if (size() == 0) {
+            return -1;
+        }
+
+        int low = firstValid;
+        int high = pts.length - 1;
+
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+
+            if (pts[mid] <= findPts) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return wrapSize > 0 ? offsets[low] % wrapSize : offsets[low];
+    }
+
+    /**
+     * Find the position in the recording to start reading from to display a time.
+     *
+     * @param timeMs The time in milliseconds after the first seek point still in the recording.
+     * @return The byte position in the recording file or -1 if there are no seek points.
+     */
+    public long getPositionAtTime(long timeMs) {
+        if (size() == 0) {
+            return -1;
+        }
+
+        return getPosition(getFirstPts() + timeMs * 90);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import opendct.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a sidecar index of seek points for a transport stream recording as it is written.
+ * <p/>
+ * The data must be provided to this parser in the same order it is written to the recording,
+ * starting from the first byte. A seek point is added for every video packet with the random
+ * access indicator set. If the stream never sets the indicator, a video PES start is added about
+ * once per second instead. Each seek point is appended to the index immediately, so the index can
+ * be read while the recording is in progress. See {@link TsIndex} for the format.
+ */
+public class TsIndexWriter extends TsPacketParser {
+    private static final Logger logger = LogManager.getLogger(TsIndexWriter.class);
+
+    private static final boolean ENABLED = Config.getBoolean("consumer.index.enabled", true);
+
+    // PES starts are only added this often when the stream has no random access indicators.
+    private static final long FALLBACK_INTERVAL = 90000;
+
+    private final String indexFilename;
+    private final TsPsiParser psiParser;
+    private FileChannel indexChannel;
+    private final ByteBuffer entry = ByteBuffer.allocate(TsIndex.ENTRY_LENGTH);
+
+    private int videoPid = -1;
+    private boolean randomAccessSeen = false;
+    private long lastPts = -1;
+    private long ptsWraps = 0;
+    private long lastIndexedPts = -1;
+    private int entries = 0;
+
+    /**
+     * Create a new index for a recording.
+     *
+     * @param recordingFilename The full path and name of the recording.
+     * @param wrapSize The size the recording will wrap back to the beginning or 0 if it will not
+     *                 wrap.
+     * @param program The program being recorded. Use 0 for the first program.
+     * @throws IOException Thrown if the index could not be created.
+     */
+    public TsIndexWriter(String recordingFilename, long wrapSize, int program) throws IOException {
+        indexFilename = recordingFilename + TsIndex.EXTENSION;
+        psiParser = new TsPsiParser(program);
+
+        indexChannel = new FileOutputStream(indexFilename).getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(TsIndex.HEADER_LENGTH);
+        header.putLong(TsIndex.MAGIC);
+        header.putLong(wrapSize);
+        header.flip();
+
+        while (header.hasRemaining()) {
+            indexChannel.write(header);
+        }
+    }
+
+    /**
+     * Create a new index for a recording if indexing is enabled.
+     * <p/>
+     * Problems creating the index are logged and never stop the recording.
+     *
+     * @param recordingFilename The full path and name of the recording.
+     * @param wrapSize The size the recording will wrap back to the beginning or 0 if it will not
+     *                 wrap.
+     * @param program The program being recorded. Use 0 for the first program.
+     * @return The new index or <i>null</i> if indexing is disabled or the index could not be
+     *         created.
+     */
+    public static TsIndexWriter open(String recordingFilename, long wrapSize, int program) {
+        if (!ENABLED || recordingFilename == null || recordingFilename.endsWith(".mpg")) {
+            return null;
+        }
+
+        try {
+            return new TsIndexWriter(recordingFilename, wrapSize, program);
+        } catch (IOException e) {
+            logger.warn("Unable to create the index for '{}' => ", recordingFilename, e);
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void processPacket(byte[] packet, int offset, long streamOffset) {
+        if (videoPid < 0) {
+            findVideoPid(packet, offset);
+            return;
+        }
+
+        if (getPid(packet, offset) != videoPid || !isPayloadStart(packet, offset)) {
+            return;
+        }
+
+        int payload = getPayloadOffset(packet, offset);
+
+        if (payload < 0) {
+            return;
+        }
+
+        long pts = getPesPts(packet, payload, offset + VideoUtil.MTS_PACKET_LEN);
+
+        if (pts < 0) {
+            return;
+        }
+
+        // The PTS is 33 bits and will wrap after about 26 hours. The index never wraps.
+        if (lastPts >= 0 && pts < lastPts - (1L << 32)) {
+            ptsWraps += 1;
+        }
+        lastPts = pts;
+        pts += ptsWraps << 33;
+
+        if (isRandomAccess(packet, offset)) {
+            randomAccessSeen = true;
+        } else if (randomAccessSeen ||
+                (lastIndexedPts >= 0 && pts - lastIndexedPts < FALLBACK_INTERVAL)) {
+
+            return;
+        }
+
+        addEntry(pts, streamOffset);
+    }
+
+    private void findVideoPid(byte packet[], int offset) {
+        psiParser.parse(packet, offset, VideoUtil.MTS_PACKET_LEN);
+
+        if (!psiParser.isComplete()) {
+            return;
+        }
+
+        int pids[] = psiParser.getStreamPids();
+        int types[] = psiParser.getStreamTypes();
+
+        for (int i = 0; i < pids.length; i++) {
+            if (TsPsiParser.isVideoStreamType(types[i])) {
+                videoPid = pids[i];
+                return;
+            }
+        }
+
+        logger.debug("No video stream found to index.");
+        psiParser.reset();
+    }
+
+    private synchronized void addEntry(long pts, long streamOffset) {
+        if (indexChannel == null) {
+            return;
+        }
+
+        entry.clear();
+        entry.putLong(pts);
+        entry.putLong(streamOffset);
+        entry.flip();
+
+        try {
+            while (entry.hasRemaining()) {
+                indexChannel.write(entry);
+            }
+
+            entries += 1;
+            lastIndexedPts = pts;
+        } catch (IOException e) {
+            logger.warn("Unable to write to the index '{}'. Indexing has stopped => ",
+                    indexFilename, e);
+            close();
+        }
+    }
+
+    /**
+     * Close the index. Any data provided after the index is closed is ignored.
+     */
+    public synchronized void close() {
+        if (indexChannel == null) {
+            return;
+        }
+
+        try {
+            indexChannel.close();
+        } catch (IOException e) {
+            logger.debug("Error while closing the index '{}' => ", indexFilename, e);
+        }
+
+        indexChannel = null;
+        logger.debug("Closed the index '{}' with {} entries.", indexFilename, entries);
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+}
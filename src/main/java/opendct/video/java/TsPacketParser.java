@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import java.nio.ByteBuffer;
+
+import static opendct.video.java.VideoUtil.MTS_PACKET_LEN;
+import static opendct.video.java.VideoUtil.MTS_SYNC_BYTE;
+
+/**
+ * Splits an arbitrarily chunked MPEG-TS stream into complete 188 byte packets.
+ * <p/>
+ * Producers do not deliver data aligned to packet boundaries, so anything left over at the end of
+ * a write is retained and completed on the next write. If the sync byte is lost, the parser will
+ * search for the next sync byte and resume from there. The data provided to the parser is never
+ * modified and the position of provided buffers is never changed.
+ */
+public abstract class TsPacketParser {
+    private final byte packet[] = new byte[MTS_PACKET_LEN];
+    private int packetFill = 0;
+
+    // Direct buffers are copied through this array in packet aligned chunks.
+    private final byte chunkBuffer[] = new byte[MTS_PACKET_LEN * 64];
+
+    private long bytesParsed = 0;
+    private long packetsParsed = 0;
+    private long syncLosses = 0;
+
+    /**
+     * Process one complete transport stream packet.
+     *
+     * @param packet The array containing the packet.
+     * @param offset The offset of the sync byte for this packet within the array.
+     * @param streamOffset The number of bytes that preceded this packet in the stream since the
+     *                     last reset.
+     */
+    protected abstract void processPacket(byte packet[], int offset, long streamOffset);
+
+    /**
+     * Parse a chunk of the transport stream.
+     *
+     * @param data The array containing the data.
+     * @param offset The offset within the array to start parsing.
+     * @param length The number of bytes to parse.
+     */
+    public void parse(byte data[], int offset, int length) {
+        int limit = offset + length;
+        int index = offset;
+
+        while (index < limit) {
+            if (packetFill > 0) {
+                int copy = Math.min(MTS_PACKET_LEN - packetFill, limit - index);
+                System.arraycopy(data, index, packet, packetFill, copy);
+                packetFill += copy;
+                index += copy;
+
+                if (packetFill == MTS_PACKET_LEN) {
+                    packetFill = 0;
+                    packetsParsed += 1;
+                    processPacket(packet, 0, bytesParsed + (index - offset) - MTS_PACKET_LEN);
+                }
+
+                continue;
+            }
+
+            if (data[index] != MTS_SYNC_BYTE) {
+                syncLosses += 1;
+
+                while (index < limit && data[index] != MTS_SYNC_BYTE) {
+                    index += 1;
+                }
+
+                continue;
+            }
+
+            if (index + MTS_PACKET_LEN <= limit) {
+                packetsParsed += 1;
+                processPacket(data, index, bytesParsed + (index - offset));
+                index += MTS_PACKET_LEN;
+            } else {
+                int copy = limit - index;
+                System.arraycopy(data, index, packet, 0, copy);
+                packetFill = copy;
+                index = limit;
+            }
+        }
+
+        bytesParsed += length;
+    }
+
+    /**
+     * Parse a chunk of the transport stream.
+     * <p/>
+     * Parsing starts from the current position to the limit of the buffer. The position of the
+     * buffer is not changed.
+     *
+     * @param buffer The buffer containing the data.
+     */
+    public void parse(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        ByteBuffer duplicate = buffer.duplicate();
+        byte chunk[] = chunkBuffer;
+
+        while (duplicate.hasRemaining()) {
+            int length = Math.min(chunk.length, duplicate.remaining());
+            duplicate.get(chunk, 0, length);
+            parse(chunk, 0, length);
+        }
+    }
+
+    /**
+     * Discard any partial packet. This should be done any time the next data provided will not
+     * continue from the last data provided.
+     */
+    public void discardPartial() {
+        packetFill = 0;
+    }
+
+    /**
+     * Discard any partial packet and reset the stream counters.
+     */
+    public void reset() {
+        packetFill = 0;
+        bytesParsed = 0;
+        packetsParsed = 0;
+        syncLosses = 0;
+    }
+
+    /**
+     * The total number of bytes provided to this parser since the last reset.
+     *
+     * @return The number of bytes parsed.
+     */
+    public long getBytesParsed() {
+        return bytesParsed;
+    }
+
+    /**
+     * The total number of complete packets processed since the last reset.
+     *
+     * @return The number of packets processed.
+     */
+    public long getPacketsParsed() {
+        return packetsParsed;
+    }
+
+    /**
+     * The number of times a sync byte was expected, but not found since the last reset.
+     *
+     * @return The number of sync losses.
+     */
+    public long getSyncLosses() {
+        return syncLosses;
+    }
+
+    /**
+     * Get the packet ID of a packet.
+     *
+     * @param packet The array containing the packet.
+     * @param offset The offset of the sync byte for this packet within the array.
+     * @return The packet ID.
+     */
+    public static int getPid(byte packet[], int offset) {
+        return ((packet[offset + 1] & 0x1f) << 8) | (packet[offset + 2] & 0xff);
+    }
+
+    /**
+     * Is the payload unit start indicator set on this packet?
+     *
+     * @param packet The array containing the packet.
+     * @param offset The offset of the sync byte for this packet within the array.
+     * @return <i>true</i> if the payload unit start indicator is set.
+     */
+    public static boolean isPayloadStart(byte packet[], int offset) {
+        return (packet[offset + 1] & 0x40) != 0;
+    }
+
+    /**
+     * Is the transport error indicator set on this packet?
+     *
+     * @param packet The array containing the packet.
+     * @param offset The offset of the sync byte for this packet within the array.
+     * @return <i>true</i> if the demodulator flagged this packet as bad.
+     */
+    public static boolean isTransportError(byte packet[], int offset) {
+        return (packet[offset + 1] & 0x80) != 0;
+    }
+
+    /**
+     * Is the random access indicator set on this packet?
+     * <p/>
+     * Encoders set this on the first packet of a video frame that can be decoded on its own.
+     *
+     * @param packet The array containing the packet.
+     * @param offset The offset of the sync byte for this packet within the array.
+     * @return <i>true</i> if the random access indicator is set.
+     */
+    public static boolean isRandomAccess(byte packet[], int offset) {
+        return (packet[offset + 3] & 0x20) != 0 &&
+                (packet[offset + 4] & 0xff) > 0 &&
+                (packet[offset + 5] & 0x40) != 0;
+    }
+
+    /**
+     * Get the offset of the first payload byte in this packet.
+     *
+     * @param packet The array containing the packet.
+     * @param offset The offset of the sync byte for this packet within the array.
+     * @return The offset of the payload within the array or -1 if there is no payload.
+     */
+    public static int getPayloadOffset(byte packet[], int offset) {
+        int adaptation = (packet[offset + 3] >> 4) & 0x3;
+
+        if ((adaptation & 0x1) == 0) {
+            return -1;
+        }
+
+        int payload = offset + 4;
+
+        if ((adaptation & 0x2) != 0) {
+            payload += 1 + (packet[offset + 4] & 0xff);
+        }
+
+        if (payload >= offset + MTS_PACKET_LEN) {
+            return -1;
+        }
+
+        return payload;
+    }
+
+    /**
+     * Get the presentation timestamp from the start of a PES packet.
+     *
+     * @param data The array containing the PES header.
+     * @param offset The offset of the PES start code prefix within the array.
+     * @param limit The offset after the last byte that can be read from the array.
+     * @return The 33 bit PTS in 90kHz units or -1 if there isn't a PES header with a PTS.
+     */
+    public static long getPesPts(byte data[], int offset, int limit) {
+        if (offset + 14 > limit ||
+                data[offset] != 0 || data[offset + 1] != 0 || data[offset + 2] != 1 ||
+                (data[offset + 7] & 0x80) == 0) {
+
+            return -1;
+        }
+
+        return (((long) data[offset + 9] & 0x0e) << 29) |
+                ((data[offset + 10] & 0xff) << 22) |
+                ((data[offset + 11] & 0xfe) << 14) |
+                ((data[offset + 12] & 0xff) << 7) |
+                ((data[offset + 13] & 0xfe) >> 1);
+    }
+}
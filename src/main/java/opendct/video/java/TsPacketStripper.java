@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static opendct.video.java.VideoUtil.MTS_PACKET_LEN;
+
+/**
+ * Removes null packets and selected PIDs from a transport stream.
+ * <p/>
+ * The output is always made up of complete 188 byte packets. A packet split across two calls is
+ * held until it is complete. The PAT, the PMT, the PCR PID and every elementary stream in the
+ * program are never removed, even if they are in the list of PIDs to remove, so timing and the
+ * program itself are always intact. Until the PMT has been found, only null packets are removed.
+ * The PMT continues to be followed, so when a new PMT version moves the program to different PIDs,
+ * the new PIDs are protected from that point on.
+ */
+public class TsPacketStripper extends TsPacketParser {
+    private final boolean stripNull;
+    private final boolean stripPids[] = new boolean[TsPsiParser.NULL_PID + 1];
+    private final boolean protectedPids[] = new boolean[TsPsiParser.NULL_PID + 1];
+    private final TsPsiParser psiParser;
+    private boolean psiComplete = false;
+    private int psiUpdates = 0;
+
+    private ByteBuffer output;
+
+    private long packetsStripped = 0;
+
+    /**
+     * Create a new stripper.
+     *
+     * @param program The program being recorded. Use 0 for the first program.
+     * @param stripNull If <i>true</i>, PID 0x1FFF will be removed.
+     * @param pids Any other PIDs to be removed.
+     */
+    public TsPacketStripper(int program, boolean stripNull, int... pids) {
+        this.stripNull = stripNull;
+        psiParser = new TsPsiParser(program, true);
+
+        for (int pid : pids) {
+            if (pid > TsPsiParser.PAT_PID && pid < stripPids.length) {
+                stripPids[pid] = true;
+            }
+        }
+    }
+
+    /**
+     * Copy every packet that is not being removed into <b>output</b>.
+     * <p/>
+     * The position of <b>input</b> is not changed.
+     *
+     * @param input The data to be filtered.
+     * @param output The buffer to receive the packets being kept. There must be at least one
+     *               packet more remaining than the data remaining in <b>input</b>.
+     */
+    public void strip(ByteBuffer input, ByteBuffer output) {
+        this.output = output;
+        parse(input);
+        this.output = null;
+    }
+
+    @Override
+    protected void processPacket(byte[] packet, int offset, long streamOffset) {
+        int pid = getPid(packet, offset);
+
+        if (pid == TsPsiParser.PAT_PID || pid == psiParser.getPmtPid()) {
+            psiParser.parse(packet, offset, MTS_PACKET_LEN);
+
+            int updates = psiParser.getUpdates();
+
+            if (updates != psiUpdates) {
+                psiUpdates = updates;
+                psiComplete = true;
+
+                Arrays.fill(protectedPids, false);
+                protectedPids[psiParser.getPmtPid()] = true;
+
+                if (psiParser.getPcrPid() >= 0) {
+                    protectedPids[psiParser.getPcrPid()] = true;
+                }
+
+                for (int streamPid : psiParser.getStreamPids()) {
+                    protectedPids[streamPid] = true;
+                }
+            }
+        }
+
+        if ((stripNull && pid == TsPsiParser.NULL_PID) ||
+                (psiComplete && stripPids[pid] && !protectedPids[pid])) {
+
+            packetsStripped += 1;
+            return;
+        }
+
+        output.put(packet, offset, MTS_PACKET_LEN);
+    }
+
+    /**
+     * The number of packets removed.
+     *
+     * @return The number of packets.
+     */
+    public long getPacketsStripped() {
+        return packetsStripped;
+    }
+
+    /**
+     * Parse a list of PIDs in decimal or hexadecimal with a <b>0x</b> prefix.
+     *
+     * @param values The values to parse. Invalid values are ignored.
+     * @return The valid PIDs.
+     */
+    public static int[] parsePids(String... values) {
+        int pids[] = new int[values.length];
+        int count = 0;
+
+        for (String value : values) {
+            value = value.trim();
+
+            try {
+                int pid;
+
+                if (value.startsWith("0x") || value.startsWith("0X")) {
+                    pid = Integer.parseInt(value.substring(2), 16);
+                } else {
+                    pid = Integer.parseInt(value);
+                }
+
+                if (pid > TsPsiParser.PAT_PID && pid <= TsPsiParser.NULL_PID) {
+                    pids[count++] = pid;
+                }
+            } catch (NumberFormatException e) {
+                // Ignore anything that isn't a number.
+            }
+        }
+
+        int returnValue[] = new int[count];
+        System.arraycopy(pids, 0, returnValue, 0, count);
+        return returnValue;
+    }
+}
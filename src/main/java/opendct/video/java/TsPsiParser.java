@@ -0,0 +1,336 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct.video.java;
+
+import java.util.Arrays;
+
+import static opendct.video.java.VideoUtil.MTS_PACKET_LEN;
+
+/**
+ * Locates the first PAT and the PMT for a program in a transport stream.
+ * <p/>
+ * This is intended to be fed from the producer side of a consumer until <b>isComplete()</b>
+ * returns <i>true</i>. Once the PMT has been found, all further packets are ignored until the
+ * parser is reset unless the parser was created to follow updates. In that case, the PAT and PMT
+ * keep being parsed and the results are replaced whenever the PMT PID or the PMT version changes.
+ * Only the PAT (PID 0) and the PMT PID for the selected program are ever assembled, so the cost
+ * for every other packet is a PID comparison.
+ */
+public class TsPsiParser extends TsPacketParser {
+    public static final int PAT_PID = 0x0000;
+    public static final int NULL_PID = 0x1FFF;
+
+    public static final int TABLE_ID_PAT = 0x00;
+    public static final int TABLE_ID_PMT = 0x02;
+
+    // PSI sections are limited to 1024 bytes including the 3 byte header.
+    private final byte section[] = new byte[1024];
+    private int sectionPid;
+    private int sectionFill;
+    private int sectionLength;
+
+    private final boolean followUpdates;
+
+    private volatile int desiredProgram;
+    private volatile boolean complete;
+    private volatile int updates;
+
+    private int pmtPid;
+    private int pmtVersion;
+    private int program;
+    private int pcrPid;
+    private int streamPids[];
+    private int streamTypes[];
+
+    /**
+     * Create a new PSI parser.
+     *
+     * @param desiredProgram The program to locate the PMT for. If this value is less than 1, the
+     *                       first program in the PAT will be used.
+     */
+    public TsPsiParser(int desiredProgram) {
+        this(desiredProgram, false);
+    }
+
+    /**
+     * Create a new PSI parser.
+     *
+     * @param desiredProgram The program to locate the PMT for. If this value is less than 1, the
+     *                       first program in the PAT will be used.
+     * @param followUpdates If <i>true</i>, the PAT and PMT continue to be parsed after the first
+     *                      PMT is found and <b>getUpdates()</b> changes every time a new PMT is
+     *                      parsed.
+     */
+    public TsPsiParser(int desiredProgram, boolean followUpdates) {
+        this.desiredProgram = desiredProgram;
+        this.followUpdates = followUpdates;
+        reset();
+    }
+
+    /**
+     * Set the program to locate and start looking for a new PAT.
+     *
+     * @param desiredProgram The program to locate the PMT for. If this value is less than 1, the
+     *                       first program in the PAT will be used.
+     */
+    public synchronized void setDesiredProgram(int desiredProgram) {
+        this.desiredProgram = desiredProgram;
+        reset();
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        complete = false;
+        sectionPid = -1;
+        sectionFill = 0;
+        sectionLength = 0;
+        pmtPid = -1;
+        pmtVersion = -1;
+        program = 0;
+        pcrPid = -1;
+        streamPids = new int[0];
+        streamTypes = new int[0];
+    }
+
+    @Override
+    protected void processPacket(byte[] packet, int offset, long streamOffset) {
+        if (complete && !followUpdates) {
+            return;
+        }
+
+        int pid = getPid(packet, offset);
+
+        if (pid != PAT_PID && pid != pmtPid) {
+            return;
+        }
+
+        if (isTransportError(packet, offset)) {
+            sectionPid = -1;
+            return;
+        }
+
+        int payload = getPayloadOffset(packet, offset);
+
+        if (payload < 0) {
+            return;
+        }
+
+        int limit = offset + MTS_PACKET_LEN;
+
+        if (isPayloadStart(packet, offset)) {
+            // Skip the pointer field and anything that belongs to a previous section.
+            payload += 1 + (packet[payload] & 0xff);
+
+            if (payload + 3 > limit) {
+                sectionPid = -1;
+                return;
+            }
+
+            sectionPid = pid;
+            sectionFill = 0;
+            sectionLength = (((packet[payload + 1] & 0x0f) << 8) | (packet[payload + 2] & 0xff)) + 3;
+
+            if (sectionLength > section.length || sectionLength < 12) {
+                sectionPid = -1;
+                return;
+            }
+        } else if (sectionPid != pid) {
+            return;
+        }
+
+        int copy = Math.min(limit - payload, sectionLength - sectionFill);
+        System.arraycopy(packet, payload, section, sectionFill, copy);
+        sectionFill += copy;
+
+        if (sectionFill < sectionLength) {
+            return;
+        }
+
+        sectionPid = -1;
+
+        int tableId = section[0] & 0xff;
+
+        if (pid == PAT_PID && tableId == TABLE_ID_PAT) {
+            processPat();
+        } else if (pid == pmtPid && tableId == TABLE_ID_PMT) {
+            processPmt();
+        }
+    }
+
+    private void processPat() {
+        // Program loop starts after the 8 byte header and stops before the 4 byte CRC.
+        int end = sectionLength - 4;
+
+        for (int i = 8; i + 4 <= end; i += 4) {
+            int programNumber = ((section[i] & 0xff) << 8) | (section[i + 1] & 0xff);
+            int pid = ((section[i + 2] & 0x1f) << 8) | (section[i + 3] & 0xff);
+
+            // Program 0 is the network information table.
+            if (programNumber == 0) {
+                continue;
+            }
+
+            if (desiredProgram <= 0 || desiredProgram == programNumber) {
+                if (program != programNumber || pmtPid != pid) {
+                    // Make sure the first PMT on the new PID is parsed even if the version
+                    // happens to be the same.
+                    pmtVersion = -1;
+                }
+
+                program = programNumber;
+                pmtPid = pid;
+                return;
+            }
+        }
+    }
+
+    private void processPmt() {
+        int programNumber = ((section[3] & 0xff) << 8) | (section[4] & 0xff);
+
+        if (programNumber != program) {
+            return;
+        }
+
+        // Reserved (2 bits), version (5 bits) and current/next indicator (1 bit).
+        int version = (section[5] >> 1) & 0x1f;
+        boolean current = (section[5] & 0x01) != 0;
+
+        // The next PMT doesn't apply until it's sent again as the current PMT.
+        if (complete && (!current || version == pmtVersion)) {
+            return;
+        }
+
+        int end = sectionLength - 4;
+        int newPcrPid = ((section[8] & 0x1f) << 8) | (section[9] & 0xff);
+        int programInfoLength = ((section[10] & 0x0f) << 8) | (section[11] & 0xff);
+
+        int newStreamPids[] = new int[16];
+        int newStreamTypes[] = new int[16];
+        int streams = 0;
+
+        for (int i = 12 + programInfoLength; i + 5 <= end; ) {
+            int streamType = section[i] & 0xff;
+            int pid = ((section[i + 1] & 0x1f) << 8) | (section[i + 2] & 0xff);
+            int esInfoLength = ((section[i + 3] & 0x0f) << 8) | (section[i + 4] & 0xff);
+
+            if (streams == newStreamPids.length) {
+                newStreamPids = Arrays.copyOf(newStreamPids, streams * 2);
+                newStreamTypes = Arrays.copyOf(newStreamTypes, streams * 2);
+            }
+
+            newStreamPids[streams] = pid;
+            newStreamTypes[streams++] = streamType;
+
+            i += 5 + esInfoLength;
+        }
+
+        pcrPid = newPcrPid;
+        streamPids = Arrays.copyOf(newStreamPids, streams);
+        streamTypes = Arrays.copyOf(newStreamTypes, streams);
+        pmtVersion = version;
+        complete = true;
+        updates += 1;
+    }
+
+    /**
+     * The number of times a PMT has been parsed for the desired program.
+     * <p/>
+     * Without following updates this is 1 once the first PMT has been found. When following
+     * updates, this changes every time the PMT PID or version changes, so comparing this to the
+     * last value seen is enough to know the stream PIDs need to be read again.
+     *
+     * @return The number of PMTs parsed.
+     */
+    public int getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Has the PMT for the desired program been found?
+     *
+     * @return <i>true</i> if the PMT has been found and parsed.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The program number that was selected from the PAT.
+     *
+     * @return The program number or 0 if the PAT has not been found yet.
+     */
+    public int getProgram() {
+        return program;
+    }
+
+    /**
+     * The PID carrying the PMT for the selected program.
+     *
+     * @return The PMT PID or -1 if the PAT has not been found yet.
+     */
+    public int getPmtPid() {
+        return pmtPid;
+    }
+
+    /**
+     * The PID carrying the PCR for the selected program.
+     *
+     * @return The PCR PID or -1 if the PMT has not been found yet.
+     */
+    public int getPcrPid() {
+        return pcrPid;
+    }
+
+    /**
+     * The elementary stream PIDs in the order they appear in the PMT.
+     *
+     * @return An array of PIDs. The array will be empty if the PMT has not been found yet.
+     */
+    public int[] getStreamPids() {
+        return streamPids;
+    }
+
+    /**
+     * The elementary stream types in the same order as <b>getStreamPids()</b>.
+     *
+     * @return An array of stream types. The array will be empty if the PMT has not been found yet.
+     */
+    public int[] getStreamTypes() {
+        return streamTypes;
+    }
+
+    /**
+     * Is this stream type a video stream type that we know about?
+     *
+     * @param streamType The stream type from the PMT.
+     * @return <i>true</i> if this is MPEG-1, MPEG-2, MPEG-4, H.264 or H.265 video.
+     */
+    public static boolean isVideoStreamType(int streamType) {
+        switch (streamType) {
+            case 0x01:
+            case 0x02:
+            case 0x10:
+            case 0x1B:
+            case 0x24:
+            case 0x80:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
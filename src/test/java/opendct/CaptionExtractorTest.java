@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.ccextractor.CaptionExtractor;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class CaptionExtractorTest {
+    private static final int VIDEO_PID = 0x31;
+
+    // One MPEG-2 picture carrying a single CEA-608 field 1 byte pair in ATSC user data.
+    private static byte[] getPicturePacket(long pts, int cc1, int cc2) {
+        byte packet[] = new byte[188];
+        Arrays.fill(packet, (byte) 0xff);
+
+        byte header[] = new byte[] {
+                0x47, (byte) (0x40 | (VIDEO_PID >> 8)), (byte) VIDEO_PID, 0x10,
+                // PES header with only a PTS.
+                0x00, 0x00, 0x01, (byte) 0xe0, 0x00, 0x00, (byte) 0x80, (byte) 0x80, 0x05,
+                (byte) (0x21 | ((pts >> 29) & 0x0e)),
+                (byte) (pts >> 22),
+                (byte) (0x01 | ((pts >> 14) & 0xfe)),
+                (byte) (pts >> 7),
+                (byte) (0x01 | ((pts << 1) & 0xfe)),
+                // User data with one cc_data triplet.
+                0x00, 0x00, 0x01, (byte) 0xb2, 'G', 'A', '9', '4', 0x03,
+                (byte) 0x41, (byte) 0xff, (byte) 0xfc, (byte) cc1, (byte) cc2, (byte) 0xff,
+                // Picture start code ends the user data.
+                0x00, 0x00, 0x01, 0x00
+        };
+
+        System.arraycopy(header, 0, packet, 0, header.length);
+        return packet;
+    }
+
+    // One H.264 picture carrying a single CEA-608 field 1 byte pair in an SEI message.
+    private static byte[] getSeiPacket(long pts, int cc1, int cc2) {
+        byte packet[] = getPicturePacket(pts, cc1, cc2);
+
+        byte sei[] = new byte[] {
+                0x00, 0x00, 0x01, 0x06, 0x04, 0x0e,
+                (byte) 0xb5, 0x00, 0x31, 'G', 'A', '9', '4', 0x03,
+                (byte) 0x41, (byte) 0xff, (byte) 0xfc, (byte) cc1, (byte) cc2, (byte) 0xff,
+                (byte) 0x80,
+                // Access unit delimiter ends the SEI.
+                0x00, 0x00, 0x01, 0x09
+        };
+
+        Arrays.fill(packet, 18, packet.length, (byte) 0xff);
+        System.arraycopy(sei, 0, packet, 18, sei.length);
+        return packet;
+    }
+
+    @Test(groups = { "ccextractor", "tsParsing" })
+    public void extractRollUpCaptionH264() throws IOException {
+        File base = File.createTempFile("opendct-captions", "");
+        base.deleteOnExit();
+        File srt = new File(base.getPath() + ".CC1.srt");
+        srt.deleteOnExit();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(TsPsiParserTest.getPatPacket(1, 0x1000));
+        stream.write(TsPsiParserTest.getPmtPacket(1, 0x1000, VIDEO_PID,
+                new int[] { VIDEO_PID }, new int[] { 0x1b }));
+
+        int pairs[][] = new int[][] {
+                // Roll-up with 2 rows, sent twice.
+                { 0x14, 0x25 }, { 0x14, 0x25 },
+                { 'H', 'E' }, { 'Y', 0x80 },
+                // Carriage return, sent twice.
+                { 0x14, 0x2d }, { 0x14, 0x2d },
+                { 'Y', 'O' },
+                { 0x14, 0x2d }, { 0x14, 0x2d }
+        };
+
+        long pts = 0;
+        for (int[] pair : pairs) {
+            stream.write(getSeiPacket(pts, pair[0], pair[1]));
+            pts += 9000;
+        }
+
+        CaptionExtractor extractor = new CaptionExtractor(base.getPath(), 1, false);
+        extractor.parse(stream.toByteArray(), 0, stream.size());
+        extractor.close();
+
+        String output = new String(Files.readAllBytes(srt.toPath()), StandardCharsets.UTF_8);
+        String expected = "1\r\n00:00:00,200 --> 00:00:00,400\r\nHEY\r\n\r\n" +
+                "2\r\n00:00:00,600 --> 00:00:00,700\r\nYO\r\n\r\n";
+
+        assert output.equals(expected) : "Unexpected .srt contents:\n" + output;
+    }
+
+    @Test(groups = { "ccextractor", "tsParsing" })
+    public void extractPopOnCaption() throws IOException {
+        File base = File.createTempFile("opendct-captions", "");
+        base.deleteOnExit();
+        File srt = new File(base.getPath() + ".CC1.srt");
+        srt.deleteOnExit();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(TsPsiParserTest.getPatPacket(1, 0x1000));
+        stream.write(TsPsiParserTest.getPmtPacket(1, 0x1000, VIDEO_PID,
+                new int[] { VIDEO_PID }, new int[] { 0x02 }));
+
+        int pairs[][] = new int[][] {
+                // Resume caption loading, sent twice.
+                { 0x14, 0x20 }, { 0x14, 0x20 },
+                // Preamble address code for row 15.
+                { 0x14, 0x70 }, { 0x14, 0x70 },
+                { 'H', 'I' },
+                // End of caption, sent twice.
+                { 0x14, 0x2f }, { 0x14, 0x2f }
+        };
+
+        // Pictures are 100ms apart. The caption is displayed by the first end of caption.
+        long pts = 900000;
+        for (int[] pair : pairs) {
+            stream.write(getPicturePacket(pts, pair[0], pair[1]));
+            pts += 9000;
+        }
+
+        // Erase displayed memory 3 seconds after the first picture.
+        stream.write(getPicturePacket(900000 + 270000, 0x14, 0x2c));
+        stream.write(getPicturePacket(900000 + 279000, 0x14, 0x2c));
+
+        CaptionExtractor extractor = new CaptionExtractor(base.getPath(), 0, false);
+        byte data[] = stream.toByteArray();
+
+        for (int i = 0; i < data.length; i += 100) {
+            extractor.parse(data, i, Math.min(100, data.length - i));
+        }
+
+        extractor.close();
+
+        String output = new String(Files.readAllBytes(srt.toPath()), StandardCharsets.UTF_8);
+        String expected = "1\r\n00:00:00,500 --> 00:00:03,000\r\nHI\r\n\r\n";
+
+        assert extractor.getVideoPid() == VIDEO_PID : "Expected video PID " + VIDEO_PID;
+        assert output.equals(expected) : "Unexpected .srt contents:\n" + output;
+    }
+}
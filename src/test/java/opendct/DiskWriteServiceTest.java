@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.consumer.disk.DiskWriteService;
+import opendct.consumer.disk.DiskWriteStream;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DiskWriteServiceTest {
+
+    private static byte[] generateByteData(int length) {
+        byte data[] = new byte[length];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        return data;
+    }
+
+    @Test(groups = { "buffer", "diskWriter" })
+    public void testSmallContiguousWrites() throws IOException {
+        File file = File.createTempFile("opendct-disk-writer", ".ts");
+        file.deleteOnExit();
+
+        byte data[] = generateByteData(DiskWriteService.BUFFER_SIZE * 3 + 1234);
+        final AtomicLong written = new AtomicLong();
+
+        DiskWriteStream stream = DiskWriteService.open(file.getPath(), true,
+                new DiskWriteStream.DiskWriteListener() {
+                    @Override
+                    public void bytesWritten(int bytes) {
+                        written.addAndGet(bytes);
+                    }
+                });
+
+        long offset = 0;
+        for (int i = 0; i < data.length; i += 188) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, i, Math.min(188, data.length - i));
+            int length = buffer.remaining();
+            stream.write(buffer, offset);
+            offset += length;
+        }
+
+        stream.close();
+
+        assert written.get() == data.length :
+                "Expected " + data.length + " bytes written, got " + written.get();
+        assert Arrays.equals(Files.readAllBytes(file.toPath()), data) :
+                "The file does not match what was written.";
+    }
+
+    @Test(groups = { "buffer", "diskWriter" })
+    public void testWrappedWrites() throws IOException {
+        File file = File.createTempFile("opendct-disk-writer", ".ts");
+        file.deleteOnExit();
+
+        byte first[] = generateByteData(1000);
+        byte second[] = new byte[400];
+        Arrays.fill(second, (byte) 0x47);
+
+        DiskWriteStream stream = DiskWriteService.open(file.getPath(), true, null);
+        stream.write(ByteBuffer.wrap(first), 0);
+        stream.write(ByteBuffer.wrap(second), 0);
+        stream.close();
+
+        byte expected[] = Arrays.copyOf(first, first.length);
+        System.arraycopy(second, 0, expected, 0, second.length);
+
+        assert Arrays.equals(Files.readAllBytes(file.toPath()), expected) :
+                "The second write did not replace the start of the file.";
+    }
+
+    @Test(groups = { "buffer", "diskWriter" })
+    public void testReusedBuffers() throws IOException {
+        byte first[] = generateByteData(DiskWriteService.BUFFER_SIZE * 2 + 777);
+        byte second[] = new byte[1000];
+        Arrays.fill(second, (byte) 0x47);
+
+        File firstFile = File.createTempFile("opendct-disk-writer", ".ts");
+        firstFile.deleteOnExit();
+
+        DiskWriteStream stream = DiskWriteService.open(firstFile.getPath(), true, null);
+        stream.write(ByteBuffer.wrap(first), 0);
+        stream.close();
+
+        // The buffers from the first file are back in the pool and must not carry anything
+        // into the second file.
+        File secondFile = File.createTempFile("opendct-disk-writer", ".ts");
+        secondFile.deleteOnExit();
+
+        stream = DiskWriteService.open(secondFile.getPath(), true, null);
+        stream.write(ByteBuffer.wrap(second), 0);
+        stream.close();
+
+        assert Arrays.equals(Files.readAllBytes(firstFile.toPath()), first) :
+                "The first file does not match what was written.";
+        assert Arrays.equals(Files.readAllBytes(secondFile.toPath()), second) :
+                "The second file does not match what was written.";
+    }
+}
@@ -0,0 +1,1501 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Emulates an HDHomeRun tuner in the same process so the HDHomeRun code can be tested without
+ * hardware.
+ * <p/>
+ * This implements the protocols independently of the code under test. It answers discovery
+ * requests over UDP and get/set requests over TCP on the same port and streams RTP or UDP to the
+ * tuner target by replaying a transport stream at its real bitrate. Streams can also be pulled
+ * over HTTP from {@link #getHttpPort()} using /tuner&lt;n&gt;/ch&lt;frequency&gt;-&lt;program&gt; or
+ * /tuner&lt;n&gt;/v&lt;vchannel&gt;. Channels only have a signal if they were added with
+ * {@link #addChannel(long, int, String, String)}.
+ * <p/>
+ * Latency is added to every reply. Loss only applies to UDP, so it affects discovery and
+ * streaming. Both can be changed while the emulator is running.
+ */
+public class HDHomeRunEmulator {
+    public static final int DEFAULT_PORT = 65001;
+    public static final int DEFAULT_DEVICE_ID = 0x1050E0AF;
+
+    private static final int TYPE_DISCOVER_REQ = 0x0002;
+    private static final int TYPE_DISCOVER_RPY = 0x0003;
+    private static final int TYPE_GETSET_REQ = 0x0004;
+    private static final int TYPE_GETSET_RPY = 0x0005;
+
+    private static final int TAG_DEVICE_TYPE = 0x01;
+    private static final int TAG_DEVICE_ID = 0x02;
+    private static final int TAG_GETSET_NAME = 0x03;
+    private static final int TAG_GETSET_VALUE = 0x04;
+    private static final int TAG_ERROR_MESSAGE = 0x05;
+    private static final int TAG_TUNER_COUNT = 0x10;
+    private static final int TAG_GETSET_LOCKKEY = 0x15;
+    private static final int TAG_BASE_URL = 0x2A;
+    private static final int TAG_DEVICE_AUTH_STR = 0x2B;
+
+    private static final int DEVICE_TYPE_TUNER = 0x00000001;
+    private static final int WILDCARD = 0xFFFFFFFF;
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_PACKETS_PER_DATAGRAM = 7;
+    private static final int RTP_HEADER_SIZE = 12;
+
+    private static final String UNKNOWN_VARIABLE = "ERROR: unknown getset variable";
+
+    private final InetAddress address;
+    private final int port;
+    private final int deviceId;
+    private final String hwModel;
+    private final Tuner tuners[];
+
+    private final Map<Long, List<String>> programs = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    private final AtomicLong datagramsSent = new AtomicLong(0);
+    private final AtomicLong datagramsDropped = new AtomicLong(0);
+    private final AtomicLong requests = new AtomicLong(0);
+
+    private volatile byte transportStream[] = nullPackets(1000);
+    private volatile long bitrate = 19392658;
+    private volatile long latencyMs = 0;
+    private volatile double lossRate = 0;
+    private volatile long lockDelayMs = 0;
+
+    private final List<Closeable> sockets = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = false;
+    private volatile int httpPort = -1;
+    private volatile int requestedHttpPort = 0;
+
+    /**
+     * Create a new emulator on the loopback address with the default ID and port.
+     *
+     * @param tunerCount The number of tuners.
+     */
+    public HDHomeRunEmulator(int tunerCount) {
+        this(InetAddress.getLoopbackAddress(), DEFAULT_PORT, DEFAULT_DEVICE_ID, "HDHR4-2US",
+                tunerCount);
+    }
+
+    /**
+     * Create a new emulator.
+     *
+     * @param address The address to listen on.
+     * @param port The port to listen on for discovery and control. Anything other than the default
+     *             can only be reached by code that doesn't assume the default.
+     * @param deviceId The device ID. The HDHomeRun code will ignore this device if the ID doesn't
+     *                 have a valid checksum.
+     * @param hwModel The hardware model. Models ending with -CC are CableCARD tuners.
+     * @param tunerCount The number of tuners.
+     */
+    public HDHomeRunEmulator(InetAddress address, int port, int deviceId, String hwModel,
+                             int tunerCount) {
+
+        this.address = address;
+        this.port = port;
+        this.deviceId = deviceId;
+        this.hwModel = hwModel;
+
+        tuners = new Tuner[tunerCount];
+
+        for (int i = 0; i < tunerCount; i++) {
+            tuners[i] = new Tuner(i);
+        }
+    }
+
+    /**
+     * Add a program that can be received on a frequency.
+     * <p/>
+     * Tuning into a frequency without any programs will never lock.
+     *
+     * @param frequency The frequency in Hz.
+     * @param program The program number.
+     * @param vchannel The virtual channel. e.g. 7.1
+     * @param callsign The call sign.
+     */
+    public void addChannel(long frequency, int program, String vchannel, String callsign) {
+        List<String> newPrograms = new ArrayList<>();
+        List<String> lastPrograms = programs.get(frequency);
+
+        if (lastPrograms != null) {
+            newPrograms.addAll(lastPrograms);
+        }
+
+        newPrograms.add(program + ": " + vchannel + " " + callsign);
+        programs.put(frequency, newPrograms);
+    }
+
+    /**
+     * Set the transport stream to be replayed when streaming.
+     * <p/>
+     * If the stream has a PCR, the bitrate is set from the PCR so the stream is replayed in real
+     * time. By default, null packets are streamed.
+     *
+     * @param stream The transport stream. It must start on a packet boundary.
+     */
+    public void setTransportStream(byte stream[]) {
+        int length = stream.length - (stream.length % TS_PACKET_SIZE);
+
+        if (length == 0) {
+            throw new IllegalArgumentException("The stream must contain at least one packet.");
+        }
+
+        byte newStream[] = new byte[length];
+        System.arraycopy(stream, 0, newStream, 0, length);
+
+        long pcrBitrate = getPcrBitrate(newStream);
+
+        if (pcrBitrate > 0) {
+            bitrate = pcrBitrate;
+        }
+
+        transportStream = newStream;
+    }
+
+    /**
+     * Set the transport stream to be replayed when streaming from a file.
+     *
+     * @param file The transport stream file.
+     * @throws IOException Thrown if the file can't be read.
+     */
+    public void setTransportStream(File file) throws IOException {
+        setTransportStream(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Set the bitrate used to replay the transport stream.
+     *
+     * @param bitsPerSecond The bitrate.
+     */
+    public void setBitrate(long bitsPerSecond) {
+        bitrate = Math.max(1, bitsPerSecond);
+    }
+
+    /**
+     * Set how long to wait before sending each reply.
+     *
+     * @param latencyMs The latency in milliseconds.
+     */
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = Math.max(0, latencyMs);
+    }
+
+    /**
+     * Set how many UDP packets are dropped.
+     * <p/>
+     * RTP sequence numbers still increase for dropped packets, so the loss can be detected.
+     *
+     * @param lossRate A value between 0 and 1.
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = Math.max(0, Math.min(1, lossRate));
+    }
+
+    /**
+     * Set how long a tuner takes to lock after the channel is changed.
+     *
+     * @param lockDelayMs The delay in milliseconds.
+     */
+    public void setLockDelayMs(long lockDelayMs) {
+        this.lockDelayMs = Math.max(0, lockDelayMs);
+    }
+
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Set the port streams are served on over HTTP.
+     * <p/>
+     * This only takes effect the next time the emulator is started.
+     *
+     * @param httpPort The port. 0 uses any available port.
+     */
+    public void setHttpPort(int httpPort) {
+        requestedHttpPort = httpPort;
+    }
+
+    /**
+     * Get the port streams are served on over HTTP.
+     *
+     * @return The port or -1 if the emulator has not been started.
+     */
+    public int getHttpPort() {
+        return httpPort;
+    }
+
+    public long getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Get the number of get/set requests received.
+     *
+     * @return The number of requests.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of stream datagrams sent.
+     *
+     * @return The number of datagrams that were not dropped.
+     */
+    public long getDatagramsSent() {
+        return datagramsSent.get();
+    }
+
+    /**
+     * Get the number of stream datagrams dropped.
+     *
+     * @return The number of datagrams dropped to emulate loss.
+     */
+    public long getDatagramsDropped() {
+        return datagramsDropped.get();
+    }
+
+    /**
+     * Start answering discovery and control requests.
+     *
+     * @throws IOException Thrown if the port can't be used.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        DatagramSocket discoverySocket = new DatagramSocket(null);
+        discoverySocket.setReuseAddress(true);
+        discoverySocket.bind(new InetSocketAddress(address, port));
+
+        ServerSocket controlSocket = new ServerSocket();
+        controlSocket.setReuseAddress(true);
+
+        try {
+            controlSocket.bind(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            discoverySocket.close();
+            throw e;
+        }
+
+        // Real devices use port 5004, but that might already be in use, so any available port is
+        // used unless a port was requested.
+        ServerSocket httpSocket = new ServerSocket();
+        httpSocket.setReuseAddress(true);
+
+        try {
+            httpSocket.bind(new InetSocketAddress(address, requestedHttpPort));
+        } catch (IOException e) {
+            discoverySocket.close();
+            controlSocket.close();
+            throw e;
+        }
+
+        running = true;
+        httpPort = httpSocket.getLocalPort();
+        sockets.add(discoverySocket);
+        sockets.add(controlSocket);
+        sockets.add(httpSocket);
+
+        startThread("Discovery", new DiscoveryListener(discoverySocket));
+        startThread("Control", new ControlListener(controlSocket));
+        startThread("Http", new HttpListener(httpSocket));
+    }
+
+    /**
+     * Stop the emulator and every stream.
+     */
+    public synchronized void stop() {
+        running = false;
+
+        for (Tuner tuner : tuners) {
+            synchronized (tuner) {
+                tuner.stopStreaming();
+            }
+        }
+
+        for (Closeable socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The socket is being closed to stop the thread using it.
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        sockets.clear();
+        threads.clear();
+    }
+
+    private void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setName("HDHomeRunEmulator" + name + "-" + thread.getId());
+        thread.setDaemon(true);
+        thread.start();
+
+        synchronized (this) {
+            threads.add(thread);
+        }
+    }
+
+    private boolean drop() {
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    private void sleepLatency() throws InterruptedException {
+        if (latencyMs > 0) {
+            Thread.sleep(latencyMs);
+        }
+    }
+
+    // =============================================================================================
+    // Discovery
+    // =============================================================================================
+
+    private class DiscoveryListener implements Runnable {
+        private final DatagramSocket socket;
+
+        private DiscoveryListener(DatagramSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            byte receiveBuffer[] = new byte[3074];
+
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    DatagramPacket request = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                    socket.receive(request);
+
+                    Packet packet = Packet.parse(request.getData(), request.getLength());
+
+                    if (packet == null || packet.type != TYPE_DISCOVER_REQ) {
+                        continue;
+                    }
+
+                    byte type[] = packet.tags.get(TAG_DEVICE_TYPE);
+                    byte id[] = packet.tags.get(TAG_DEVICE_ID);
+
+                    if ((type != null && !matches(type, DEVICE_TYPE_TUNER)) ||
+                            (id != null && !matches(id, deviceId))) {
+
+                        continue;
+                    }
+
+                    sleepLatency();
+
+                    if (drop()) {
+                        continue;
+                    }
+
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    putTlv(payload, TAG_DEVICE_TYPE, DEVICE_TYPE_TUNER);
+                    putTlv(payload, TAG_DEVICE_ID, deviceId);
+                    putTlv(payload, TAG_TUNER_COUNT, new byte[] { (byte) tuners.length });
+                    putTlv(payload, TAG_BASE_URL, "http://" + address.getHostAddress() + ":80");
+                    putTlv(payload, TAG_DEVICE_AUTH_STR, "emulatoremulatoremulator");
+
+                    byte reply[] = Packet.create(TYPE_DISCOVER_RPY, payload.toByteArray());
+                    socket.send(new DatagramPacket(reply, reply.length, request.getSocketAddress()));
+                } catch (InterruptedException e) {
+                    break;
+                } catch (IOException e) {
+                    if (!running) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        private boolean matches(byte value[], int expected) {
+            if (value.length != 4) {
+                return false;
+            }
+
+            int actual = ((value[0] & 0xff) << 24) | ((value[1] & 0xff) << 16) |
+                    ((value[2] & 0xff) << 8) | (value[3] & 0xff);
+
+            return actual == WILDCARD || actual == expected;
+        }
+    }
+
+    // =============================================================================================
+    // Control
+    // =============================================================================================
+
+    private class ControlListener implements Runnable {
+        private final ServerSocket serverSocket;
+
+        private ControlListener(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public void run() {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+
+                    synchronized (HDHomeRunEmulator.this) {
+                        if (!running) {
+                            socket.close();
+                            break;
+                        }
+
+                        sockets.add(socket);
+                    }
+
+                    final LinkedBlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+
+                    startThread("ControlRead", new Runnable() {
+                        @Override
+                        public void run() {
+                            readRequests(socket, replies);
+                        }
+                    });
+
+                    startThread("ControlWrite", new Runnable() {
+                        @Override
+                        public void run() {
+                            writeReplies(socket, replies);
+                        }
+                    });
+                } catch (IOException e) {
+                    if (!running) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void readRequests(Socket socket, LinkedBlockingQueue<Reply> replies) {
+        try {
+            DataInputStream inputStream = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+
+            byte header[] = new byte[4];
+
+            while (running) {
+                inputStream.readFully(header);
+
+                int length = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+                byte packetBytes[] = new byte[length + 8];
+
+                System.arraycopy(header, 0, packetBytes, 0, 4);
+                inputStream.readFully(packetBytes, 4, length + 4);
+
+                Packet packet = Packet.parse(packetBytes, packetBytes.length);
+
+                // A real device ignores anything it doesn't understand.
+                if (packet == null || packet.type != TYPE_GETSET_REQ) {
+                    continue;
+                }
+
+                requests.incrementAndGet();
+
+                // Replies are always sent in the order they were requested, so the latency is
+                // measured from when the request arrived, not from when the last reply was sent.
+                Reply reply = new Reply();
+                reply.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latencyMs);
+                reply.packet = getSet(packet, socket.getInetAddress());
+
+                replies.put(reply);
+            }
+        } catch (Exception e) {
+            // The connection was closed.
+        } finally {
+            replies.add(new Reply());
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The connection is already closing.
+            }
+        }
+    }
+
+    private void writeReplies(Socket socket, LinkedBlockingQueue<Reply> replies) {
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+
+            while (running) {
+                Reply reply = replies.take();
+
+                if (reply.packet == null) {
+                    break;
+                }
+
+                long wait = reply.due - System.nanoTime();
+
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                outputStream.write(reply.packet);
+                outputStream.flush();
+            }
+        } catch (Exception e) {
+            // The connection was closed.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The connection is already closing.
+            }
+        }
+    }
+
+    private byte[] getSet(Packet request, InetAddress remoteAddress) {
+        byte nameBytes[] = request.tags.get(TAG_GETSET_NAME);
+        byte valueBytes[] = request.tags.get(TAG_GETSET_VALUE);
+        byte lockkeyBytes[] = request.tags.get(TAG_GETSET_LOCKKEY);
+
+        String name = nameBytes == null ? "" : Packet.getString(nameBytes);
+        String value = valueBytes == null ? null : Packet.getString(valueBytes);
+        int lockkey = 0;
+
+        if (lockkeyBytes != null && lockkeyBytes.length == 4) {
+            lockkey = ((lockkeyBytes[0] & 0xff) << 24) | ((lockkeyBytes[1] & 0xff) << 16) |
+                    ((lockkeyBytes[2] & 0xff) << 8) | (lockkeyBytes[3] & 0xff);
+        }
+
+        String result;
+        boolean error;
+
+        try {
+            result = getSet(name, value, lockkey, remoteAddress);
+            error = false;
+        } catch (EmulatorException e) {
+            result = e.getMessage();
+            error = true;
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        putTlv(payload, TAG_GETSET_NAME, name);
+        putTlv(payload, error ? TAG_ERROR_MESSAGE : TAG_GETSET_VALUE, result);
+
+        return Packet.create(TYPE_GETSET_RPY, payload.toByteArray());
+    }
+
+    private String getSet(String name, String value, int lockkey, InetAddress remoteAddress)
+            throws EmulatorException {
+
+        if (name.startsWith("/tuner")) {
+            int slash = name.indexOf('/', 6);
+
+            if (slash < 0) {
+                throw new EmulatorException(UNKNOWN_VARIABLE);
+            }
+
+            int tunerNumber;
+
+            try {
+                tunerNumber = Integer.parseInt(name.substring(6, slash));
+            } catch (NumberFormatException e) {
+                throw new EmulatorException(UNKNOWN_VARIABLE);
+            }
+
+            if (tunerNumber < 0 || tunerNumber >= tuners.length) {
+                throw new EmulatorException(UNKNOWN_VARIABLE);
+            }
+
+            Tuner tuner = tuners[tunerNumber];
+
+            synchronized (tuner) {
+                return tuner.getSet(name.substring(slash + 1), value, lockkey, remoteAddress);
+            }
+        }
+
+        if (value != null) {
+            throw new EmulatorException("ERROR: read only variable");
+        }
+
+        switch (name) {
+            case "help":
+                return "Supported configuration options:\n" +
+                        "/sys/hwmodel\n/sys/model\n/sys/version\n/sys/features\n" +
+                        "/tuner<n>/channel <modulation>:<freq|ch>\n" +
+                        "/tuner<n>/channelmap <channelmap>\n" +
+                        "/tuner<n>/filter \"0x<nnnn>-0x<nnnn> [...]\"\n" +
+                        "/tuner<n>/program <program number>\n" +
+                        "/tuner<n>/target <ip>:<port>\n" +
+                        "/tuner<n>/lockkey\n";
+            case "/sys/hwmodel":
+                return hwModel;
+            case "/sys/model":
+                return isCableCard() ? "hdhomerun3_cablecard" : "hdhomerun4_atsc";
+            case "/sys/version":
+                return "20161117";
+            case "/sys/copyright":
+                return "Copyright Silicondust USA Inc. <www.silicondust.com>. All rights reserved.";
+            case "/sys/debug":
+                return "mem: nbuf=0 qdepth=0 ncache=0\nloop: pkt=0\n";
+            case "/sys/features":
+                return isCableCard() ?
+                        "channelmap: us-cable\nmodulation: qam256 qam64\nauto-modulation: auto qam\n" :
+                        "channelmap: us-bcast us-cable us-hrc us-irc\nmodulation: 8vsb qam256 qam64\n" +
+                                "auto-modulation: auto auto6t auto6c qam\n";
+            case "/card/status":
+                if (isCableCard()) {
+                    return "card=ready auth=success oob=success act=success";
+                }
+
+                throw new EmulatorException(UNKNOWN_VARIABLE);
+            default:
+                throw new EmulatorException(UNKNOWN_VARIABLE);
+        }
+    }
+
+    private boolean isCableCard() {
+        return hwModel.endsWith("-CC");
+    }
+
+    private class Tuner {
+        private final int number;
+
+        private String channel = "none";
+        private String modulation = "none";
+        private long frequency = 0;
+        private long tunedAt = 0;
+        private String channelmap;
+        private int program = 0;
+        private String filter = "0x0000-0x1FFF";
+        private String target = "none";
+        private int lockkey = 0;
+        private InetAddress lockAddress;
+        private Thread streamer;
+
+        private Tuner(int number) {
+            this.number = number;
+            channelmap = isCableCard() ? "us-cable" : "us-bcast";
+        }
+
+        // Must be called while synchronized on this tuner.
+        private String getSet(String key, String value, int requestLockkey,
+                              InetAddress remoteAddress) throws EmulatorException {
+
+            if (key.equals("vchannel") || key.equals("vstatus")) {
+                if (!isCableCard()) {
+                    throw new EmulatorException(UNKNOWN_VARIABLE);
+                }
+            }
+
+            if (value == null) {
+                return get(key);
+            }
+
+            if (key.equals("lockkey")) {
+                return setLockkey(value, requestLockkey, remoteAddress);
+            }
+
+            if (lockAddress != null && requestLockkey != lockkey) {
+                throw new EmulatorException("ERROR: resource locked by " +
+                        lockAddress.getHostAddress());
+            }
+
+            switch (key) {
+                case "channel":
+                    setChannel(value);
+                    break;
+                case "channelmap":
+                    if (!value.matches("us-bcast|us-cable|us-hrc|us-irc|eu-bcast|eu-cable|au-bcast")) {
+                        throw new EmulatorException("ERROR: invalid channelmap");
+                    }
+
+                    channelmap = value;
+                    break;
+                case "program":
+                    try {
+                        program = Integer.parseInt(value.trim());
+                    } catch (NumberFormatException e) {
+                        throw new EmulatorException("ERROR: invalid program");
+                    }
+                    break;
+                case "filter":
+                    filter = value;
+                    break;
+                case "target":
+                    setTarget(value);
+                    break;
+                case "vchannel":
+                    throw new EmulatorException("ERROR: vchannel is not supported by the emulator");
+                default:
+                    throw new EmulatorException(UNKNOWN_VARIABLE);
+            }
+
+            return get(key);
+        }
+
+        private String get(String key) throws EmulatorException {
+            switch (key) {
+                case "channel":
+                    return channel;
+                case "channelmap":
+                    return channelmap;
+                case "program":
+                    return String.valueOf(program);
+                case "filter":
+                    return filter;
+                case "target":
+                    return target;
+                case "lockkey":
+                    return lockAddress == null ? "none" : lockAddress.getHostAddress();
+                case "status":
+                    return getStatus();
+                case "streaminfo":
+                    return getStreamInfo();
+                case "vstatus":
+                    return "vch=none";
+                case "vchannel":
+                    return "none";
+                case "debug":
+                    return "tun: " + getStatus() + "\n" +
+                            "dev: bps=" + (isStreaming() ? bitrate : 0) + " resync=0 overflow=0\n" +
+                            "ts: bps=" + (isStreaming() ? bitrate : 0) + " te=0 crc=0\n" +
+                            "net: pps=" + getPacketsPerSecond() + " err=0 stop=0\n";
+                default:
+                    throw new EmulatorException(UNKNOWN_VARIABLE);
+            }
+        }
+
+        private String setLockkey(String value, int requestLockkey, InetAddress remoteAddress)
+                throws EmulatorException {
+
+            if (value.equals("force")) {
+                lockkey = 0;
+                lockAddress = null;
+                return "none";
+            }
+
+            if (lockAddress != null && requestLockkey != lockkey) {
+                throw new EmulatorException("ERROR: resource locked by " +
+                        lockAddress.getHostAddress());
+            }
+
+            if (value.equals("none")) {
+                lockkey = 0;
+                lockAddress = null;
+                return "none";
+            }
+
+            try {
+                lockkey = (int) Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new EmulatorException("ERROR: invalid lockkey");
+            }
+
+            lockAddress = remoteAddress;
+            return lockAddress.getHostAddress();
+        }
+
+        private void setChannel(String value) throws EmulatorException {
+            stopStreaming();
+
+            program = 0;
+
+            if (value.equals("none")) {
+                channel = "none";
+                modulation = "none";
+                frequency = 0;
+                return;
+            }
+
+            int colon = value.indexOf(':');
+
+            if (colon < 0) {
+                throw new EmulatorException("ERROR: invalid channel");
+            }
+
+            long newFrequency;
+
+            try {
+                newFrequency = Long.parseLong(value.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new EmulatorException("ERROR: invalid channel");
+            }
+
+            // Small numbers are channel numbers in the current channel map.
+            if (newFrequency < 1000) {
+                newFrequency = getFrequency((int) newFrequency);
+            }
+
+            if (newFrequency <= 0) {
+                throw new EmulatorException("ERROR: invalid channel");
+            }
+
+            modulation = value.substring(0, colon);
+            frequency = newFrequency;
+            channel = modulation + ":" + frequency;
+            tunedAt = System.currentTimeMillis();
+
+            startStreaming();
+        }
+
+        private void setTarget(String value) throws EmulatorException {
+            if (!value.equals("none")) {
+                try {
+                    URI uri = new URI(value.contains("://") ? value : "udp://" + value);
+
+                    if (uri.getHost() == null || uri.getPort() <= 0 ||
+                            !(uri.getScheme().equals("rtp") || uri.getScheme().equals("udp"))) {
+
+                        throw new EmulatorException("ERROR: invalid target");
+                    }
+                } catch (URISyntaxException e) {
+                    throw new EmulatorException("ERROR: invalid target");
+                }
+            }
+
+            stopStreaming();
+            target = value;
+            startStreaming();
+        }
+
+        private boolean hasSignal() {
+            return frequency > 0 && programs.containsKey(frequency);
+        }
+
+        private boolean isLocked() {
+            return hasSignal() && System.currentTimeMillis() - tunedAt >= lockDelayMs;
+        }
+
+        private boolean isStreaming() {
+            return isLocked() && !target.equals("none");
+        }
+
+        private long getPacketsPerSecond() {
+            return isStreaming() ? bitrate / (TS_PACKET_SIZE * TS_PACKETS_PER_DATAGRAM * 8) : 0;
+        }
+
+        private String getStatus() {
+            if (channel.equals("none")) {
+                return "ch=none lock=none ss=0 snq=0 seq=0 bps=0 pps=0";
+            }
+
+            if (!isLocked()) {
+                return "ch=" + channel + " lock=none ss=" + (hasSignal() ? 60 : 0) +
+                        " snq=0 seq=0 bps=0 pps=0";
+            }
+
+            String lock = modulation.startsWith("auto") ?
+                    (channelmap.equals("us-bcast") ? "8vsb" : "qam256") : modulation;
+
+            return "ch=" + channel + " lock=" + lock + " ss=83 snq=91 seq=100 bps=" + bitrate +
+                    " pps=" + getPacketsPerSecond();
+        }
+
+        private String getStreamInfo() {
+            if (!isLocked()) {
+                return "none";
+            }
+
+            StringBuilder builder = new StringBuilder();
+
+            for (String line : programs.get(frequency)) {
+                builder.append(line).append("\n");
+            }
+
+            builder.append(String.format("tsid=0x%04X\n", (frequency / 1000000) & 0xFFFF));
+
+            return builder.toString();
+        }
+
+        private long getFrequency(int channelNumber) {
+            if (!channelmap.equals("us-bcast")) {
+                return 0;
+            }
+
+            if (channelNumber >= 2 && channelNumber <= 4) {
+                return (57 + 6 * (channelNumber - 2)) * 1000000L;
+            } else if (channelNumber >= 5 && channelNumber <= 6) {
+                return (79 + 6 * (channelNumber - 5)) * 1000000L;
+            } else if (channelNumber >= 7 && channelNumber <= 13) {
+                return (177 + 6 * (channelNumber - 7)) * 1000000L;
+            } else if (channelNumber >= 14 && channelNumber <= 69) {
+                return (473 + 6 * (channelNumber - 14)) * 1000000L;
+            }
+
+            return 0;
+        }
+
+        // Must be called while synchronized on this tuner.
+        private void startStreaming() {
+            if (!hasSignal() || target.equals("none") || !running) {
+                return;
+            }
+
+            URI uri = URI.create(target.contains("://") ? target : "udp://" + target);
+            InetSocketAddress destination = new InetSocketAddress(uri.getHost(), uri.getPort());
+            boolean rtp = uri.getScheme().equals("rtp");
+
+            streamer = new Thread(new Streamer(destination, rtp, tunedAt + lockDelayMs));
+            streamer.setName("HDHomeRunEmulatorStream-" + streamer.getId() + ":" + number);
+            streamer.setDaemon(true);
+            streamer.start();
+        }
+
+        // Must be called while synchronized on this tuner.
+        private void stopStreaming() {
+            if (streamer != null) {
+                streamer.interrupt();
+                streamer = null;
+            }
+        }
+    }
+
+    // =============================================================================================
+    // HTTP streaming
+    // =============================================================================================
+
+    private class HttpListener implements Runnable {
+        private final ServerSocket serverSocket;
+
+        private HttpListener(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public void run() {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+
+                    synchronized (HDHomeRunEmulator.this) {
+                        if (!running) {
+                            socket.close();
+                            break;
+                        }
+
+                        sockets.add(socket);
+                    }
+
+                    startThread("HttpRequest", new Runnable() {
+                        @Override
+                        public void run() {
+                            serveHttp(socket);
+                        }
+                    });
+                } catch (IOException e) {
+                    if (!running) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void serveHttp(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream output = socket.getOutputStream();
+
+            String requestLine = reader.readLine();
+            String line;
+
+            // The headers are not used.
+            do {
+                line = reader.readLine();
+            } while (line != null && line.length() > 0);
+
+            sleepLatency();
+
+            String parts[] = requestLine == null ? new String[0] : requestLine.split(" ");
+
+            if (parts.length < 2 || !parts[0].equals("GET")) {
+                writeHttpError(socket, output, "400 Bad Request");
+                return;
+            }
+
+            String path = parts[1];
+            int query = path.indexOf('?');
+
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+
+            String segments[] = path.split("/");
+
+            if (segments.length != 3 || !segments[1].startsWith("tuner")) {
+                writeHttpError(socket, output, "404 Not Found");
+                return;
+            }
+
+            int tunerNumber;
+
+            try {
+                tunerNumber = Integer.parseInt(segments[1].substring("tuner".length()));
+            } catch (NumberFormatException e) {
+                tunerNumber = -1;
+            }
+
+            if (tunerNumber < 0 || tunerNumber >= tuners.length) {
+                writeHttpError(socket, output, "404 Not Found");
+                return;
+            }
+
+            long frequency = 0;
+            int program = 0;
+
+            try {
+                if (segments[2].startsWith("ch")) {
+                    String channel[] = segments[2].substring(2).split("-");
+                    frequency = Long.parseLong(channel[0]);
+                    program = channel.length > 1 ? Integer.parseInt(channel[1]) : 0;
+                } else if (segments[2].startsWith("v")) {
+                    String vchannel = segments[2].substring(1);
+
+                    for (Map.Entry<Long, List<String>> entry : programs.entrySet()) {
+                        for (String programLine : entry.getValue()) {
+                            String fields[] = programLine.split(" ");
+
+                            if (fields.length > 1 && fields[1].equals(vchannel)) {
+                                frequency = entry.getKey();
+                                program = Integer.parseInt(
+                                        fields[0].substring(0, fields[0].length() - 1));
+                            }
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                frequency = 0;
+            }
+
+            if (frequency <= 0 || !programs.containsKey(frequency)) {
+                writeHttpError(socket, output, "404 Not Found");
+                return;
+            }
+
+            Tuner tuner = tuners[tunerNumber];
+
+            synchronized (tuner) {
+                if (tuner.lockAddress != null) {
+                    writeHttpError(socket, output, "503 Service Unavailable");
+                    return;
+                }
+
+                try {
+                    tuner.setChannel("auto:" + frequency);
+                } catch (EmulatorException e) {
+                    writeHttpError(socket, output, "404 Not Found");
+                    return;
+                }
+
+                // The stream goes to this connection instead of the target.
+                tuner.stopStreaming();
+                tuner.program = program;
+
+                output.write(("HTTP/1.1 200 OK\r\n" +
+                        "Content-Type: video/mpeg\r\n" +
+                        "Connection: close\r\n" +
+                        "\r\n").getBytes(StandardCharsets.US_ASCII));
+                output.flush();
+
+                // Setting the channel or the target again stops this stream like it would on a
+                // real device.
+                tuner.streamer = new Thread(new Streamer(socket, tuner.tunedAt + lockDelayMs));
+                tuner.streamer.setName("HDHomeRunEmulatorHttpStream-" +
+                        tuner.streamer.getId() + ":" + tunerNumber);
+                tuner.streamer.setDaemon(true);
+                tuner.streamer.start();
+            }
+        } catch (InterruptedException e) {
+            closeQuietly(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void writeHttpError(Socket socket, OutputStream output, String status)
+            throws IOException {
+
+        output.write(("HTTP/1.1 " + status + "\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n" +
+                "\r\n").getBytes(StandardCharsets.US_ASCII));
+        output.flush();
+        socket.close();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // The socket is already closed.
+        }
+    }
+
+    // =============================================================================================
+    // Streaming
+    // =============================================================================================
+
+    private class Streamer implements Runnable {
+        private final InetSocketAddress destination;
+        private final Socket httpSocket;
+        private final boolean rtp;
+        private final long startTime;
+
+        private Streamer(InetSocketAddress destination, boolean rtp, long startTime) {
+            this.destination = destination;
+            this.httpSocket = null;
+            this.rtp = rtp;
+            this.startTime = startTime;
+        }
+
+        private Streamer(Socket httpSocket, long startTime) {
+            this.destination = null;
+            this.httpSocket = httpSocket;
+            this.rtp = false;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void run() {
+            int payloadSize = TS_PACKET_SIZE * TS_PACKETS_PER_DATAGRAM;
+            int headerSize = rtp ? RTP_HEADER_SIZE : 0;
+            byte datagram[] = new byte[headerSize + payloadSize];
+            int ssrc = random.nextInt();
+            int sequence = random.nextInt(0xFFFF);
+            int position = 0;
+            long bytesSent = 0;
+
+            try (DatagramSocket socket = new DatagramSocket()) {
+                long wait = startTime - System.currentTimeMillis();
+
+                // The tuner doesn't stream until it's locked.
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+
+                long start = System.nanoTime();
+
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    byte stream[] = transportStream;
+                    long currentBitrate = bitrate;
+
+                    if (rtp) {
+                        long timestamp = bytesSent * 8 * 90000 / currentBitrate;
+
+                        datagram[0] = (byte) 0x80;
+                        datagram[1] = 33;
+                        datagram[2] = (byte) (sequence >> 8);
+                        datagram[3] = (byte) sequence;
+                        datagram[4] = (byte) (timestamp >> 24);
+                        datagram[5] = (byte) (timestamp >> 16);
+                        datagram[6] = (byte) (timestamp >> 8);
+                        datagram[7] = (byte) timestamp;
+                        datagram[8] = (byte) (ssrc >> 24);
+                        datagram[9] = (byte) (ssrc >> 16);
+                        datagram[10] = (byte) (ssrc >> 8);
+                        datagram[11] = (byte) ssrc;
+
+                        sequence = (sequence + 1) & 0xFFFF;
+                    }
+
+                    for (int i = 0; i < TS_PACKETS_PER_DATAGRAM; i++) {
+                        if (position >= stream.length) {
+                            position = 0;
+                        }
+
+                        System.arraycopy(stream, position, datagram,
+                                headerSize + i * TS_PACKET_SIZE, TS_PACKET_SIZE);
+
+                        position += TS_PACKET_SIZE;
+                    }
+
+                    if (httpSocket != null) {
+                        // TCP doesn't lose anything.
+                        httpSocket.getOutputStream().write(datagram, 0, datagram.length);
+                    } else if (drop()) {
+                        datagramsDropped.incrementAndGet();
+                    } else {
+                        socket.send(new DatagramPacket(datagram, datagram.length, destination));
+                        datagramsSent.incrementAndGet();
+                    }
+
+                    bytesSent += payloadSize;
+
+                    // Stay on schedule for the bitrate, sending in bursts when the timer is too
+                    // coarse to wait between every datagram.
+                    long due = start + bytesSent * 8 * 1000000000L / currentBitrate;
+                    long sleep = due - System.nanoTime();
+
+                    if (sleep > 1000000) {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The stream was stopped.
+            } catch (IOException e) {
+                // The destination is unreachable or the emulator is stopping.
+            } finally {
+                if (httpSocket != null) {
+                    closeQuietly(httpSocket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the bitrate of a transport stream from the first PCR PID.
+     *
+     * @param stream The transport stream.
+     * @return The bitrate or 0 if it could not be determined.
+     */
+    static long getPcrBitrate(byte stream[]) {
+        int pcrPid = -1;
+        long firstPcr = -1;
+        long firstPosition = 0;
+        long lastPcr = -1;
+        long lastPosition = 0;
+
+        for (int position = 0; position + TS_PACKET_SIZE <= stream.length;
+             position += TS_PACKET_SIZE) {
+
+            if (stream[position] != 0x47) {
+                return 0;
+            }
+
+            int pid = ((stream[position + 1] & 0x1F) << 8) | (stream[position + 2] & 0xff);
+            boolean adaptationField = (stream[position + 3] & 0x20) != 0;
+
+            if (!adaptationField || (stream[position + 4] & 0xff) < 7 ||
+                    (stream[position + 5] & 0x10) == 0) {
+
+                continue;
+            }
+
+            if (pcrPid == -1) {
+                pcrPid = pid;
+            } else if (pid != pcrPid) {
+                continue;
+            }
+
+            long base = ((long) (stream[position + 6] & 0xff) << 25) |
+                    ((stream[position + 7] & 0xff) << 17) |
+                    ((stream[position + 8] & 0xff) << 9) |
+                    ((stream[position + 9] & 0xff) << 1) |
+                    ((stream[position + 10] & 0x80) >> 7);
+            long extension = ((stream[position + 10] & 0x01) << 8) | (stream[position + 11] & 0xff);
+            long pcr = base * 300 + extension;
+
+            if (firstPcr == -1) {
+                firstPcr = pcr;
+                firstPosition = position;
+            } else if (pcr > firstPcr) {
+                lastPcr = pcr;
+                lastPosition = position;
+            }
+        }
+
+        if (lastPcr <= firstPcr || lastPosition <= firstPosition) {
+            return 0;
+        }
+
+        return (lastPosition - firstPosition) * 8 * 27000000L / (lastPcr - firstPcr);
+    }
+
+    private static byte[] nullPackets(int count) {
+        byte stream[] = new byte[count * TS_PACKET_SIZE];
+
+        for (int i = 0; i < count; i++) {
+            int position = i * TS_PACKET_SIZE;
+
+            stream[position] = 0x47;
+            stream[position + 1] = 0x1F;
+            stream[position + 2] = (byte) 0xFF;
+            stream[position + 3] = (byte) (0x10 | (i & 0x0F));
+
+            for (int j = 4; j < TS_PACKET_SIZE; j++) {
+                stream[position + j] = (byte) 0xFF;
+            }
+        }
+
+        return stream;
+    }
+
+    // =============================================================================================
+    // Packets
+    // =============================================================================================
+
+    private static void putTlv(ByteArrayOutputStream out, int tag, int value) {
+        putTlv(out, tag, new byte[] {
+                (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value });
+    }
+
+    private static void putTlv(ByteArrayOutputStream out, int tag, String value) {
+        byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+        byte terminated[] = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, terminated, 0, bytes.length);
+
+        putTlv(out, tag, terminated);
+    }
+
+    private static void putTlv(ByteArrayOutputStream out, int tag, byte value[]) {
+        out.write(tag);
+
+        if (value.length <= 127) {
+            out.write(value.length);
+        } else {
+            out.write((value.length & 0x7F) | 0x80);
+            out.write(value.length >> 7);
+        }
+
+        out.write(value, 0, value.length);
+    }
+
+    private static class Packet {
+        private int type;
+        private final Map<Integer, byte[]> tags = new HashMap<>();
+
+        private static byte[] create(int type, byte payload[]) {
+            byte packet[] = new byte[payload.length + 8];
+
+            packet[0] = (byte) (type >> 8);
+            packet[1] = (byte) type;
+            packet[2] = (byte) (payload.length >> 8);
+            packet[3] = (byte) payload.length;
+            System.arraycopy(payload, 0, packet, 4, payload.length);
+
+            CRC32 crc = new CRC32();
+            crc.update(packet, 0, payload.length + 4);
+            long value = crc.getValue();
+
+            // The CRC is the only little endian value in the protocol.
+            for (int i = 0; i < 4; i++) {
+                packet[payload.length + 4 + i] = (byte) (value >> (i * 8));
+            }
+
+            return packet;
+        }
+
+        private static Packet parse(byte bytes[], int length) {
+            if (length < 8) {
+                return null;
+            }
+
+            int payloadLength = ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+
+            if (payloadLength + 8 > length) {
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, payloadLength + 4);
+            long value = crc.getValue();
+
+            for (int i = 0; i < 4; i++) {
+                if (bytes[payloadLength + 4 + i] != (byte) (value >> (i * 8))) {
+                    return null;
+                }
+            }
+
+            Packet packet = new Packet();
+            packet.type = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
+
+            int position = 4;
+            int end = payloadLength + 4;
+
+            while (position + 2 <= end) {
+                int tag = bytes[position++] & 0xff;
+                int tagLength = bytes[position++] & 0xff;
+
+                if ((tagLength & 0x80) != 0) {
+                    if (position >= end) {
+                        return null;
+                    }
+
+                    tagLength = (tagLength & 0x7F) | ((bytes[position++] & 0xff) << 7);
+                }
+
+                if (position + tagLength > end) {
+                    return null;
+                }
+
+                byte tagValue[] = new byte[tagLength];
+                System.arraycopy(bytes, position, tagValue, 0, tagLength);
+                packet.tags.put(tag, tagValue);
+
+                position += tagLength;
+            }
+
+            return packet;
+        }
+
+        private static String getString(byte value[]) {
+            int length = value.length;
+
+            // Strings are null terminated.
+            if (length > 0 && value[length - 1] == 0) {
+                length--;
+            }
+
+            return new String(value, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Reply {
+        private long due;
+        private byte packet[];
+    }
+
+    private static class EmulatorException extends Exception {
+        private EmulatorException(String message) {
+            super(message);
+        }
+    }
+}
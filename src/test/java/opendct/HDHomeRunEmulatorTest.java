@@ -0,0 +1,454 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.capture.HDHRNativeCaptureDevice;
+import opendct.config.Config;
+import opendct.consumer.RawSageTVConsumerImpl;
+import opendct.sagetv.SageTVDeviceCrossbar;
+import opendct.tuning.discovery.discoverers.HDHomeRunDiscoverer;
+import opendct.tuning.hdhomerun.GetSetException;
+import opendct.tuning.hdhomerun.HDHomeRunControl;
+import opendct.tuning.hdhomerun.HDHomeRunDevice;
+import opendct.tuning.hdhomerun.HDHomeRunDiscoveredDevice;
+import opendct.tuning.hdhomerun.HDHomeRunDiscoveredDeviceParent;
+import opendct.tuning.hdhomerun.HDHomeRunDiscovery;
+import opendct.tuning.hdhomerun.HDHomeRunTuner;
+import opendct.tuning.hdhomerun.returns.HDHomeRunProgram;
+import opendct.tuning.hdhomerun.returns.HDHomeRunStatus;
+import opendct.video.http.NIOHttpDownloader;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class HDHomeRunEmulatorTest {
+    private static final long FREQUENCY = 575000000;
+
+    private HDHomeRunEmulator startEmulator() throws Exception {
+        HDHomeRunEmulator emulator = new HDHomeRunEmulator(2);
+        emulator.addChannel(FREQUENCY, 3, "7.1", "WXYZ");
+        emulator.addChannel(FREQUENCY, 4, "7.2", "WXYZ-SD");
+        emulator.start();
+
+        return emulator;
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void defaultDeviceIdIsValid() {
+        assert HDHomeRunDiscovery.validateDeviceId(HDHomeRunEmulator.DEFAULT_DEVICE_ID);
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void tuneAndReadStatus() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        HDHomeRunControl control = new HDHomeRunControl();
+        InetAddress address = emulator.getAddress();
+
+        try {
+            assert control.getVariable(address, "/sys/hwmodel").equals("HDHR4-2US");
+
+            try {
+                control.getVariable(address, "/tuner2/status");
+                assert false : "Tuner 2 does not exist.";
+            } catch (GetSetException e) {
+                assert e.getMessage().contains("unknown");
+            }
+
+            control.setVariable(address, "/tuner0/channel", "auto:" + FREQUENCY);
+
+            String status = control.getVariable(address, "/tuner0/status");
+            assert status.contains("lock=8vsb") : status;
+
+            String streamInfo = control.getVariable(address, "/tuner0/streaminfo");
+            assert streamInfo.contains("3: 7.1 WXYZ\n") : streamInfo;
+            assert streamInfo.contains("4: 7.2 WXYZ-SD\n") : streamInfo;
+
+            // Nothing is on channel 14.
+            control.setVariable(address, "/tuner1/channel", "auto:14");
+            status = control.getVariable(address, "/tuner1/status");
+            assert status.startsWith("ch=auto:473000000 lock=none") : status;
+        } finally {
+            control.closeSocket();
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void discoversEmulator() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        final CountDownLatch found = new CountDownLatch(1);
+        final AtomicReference<HDHomeRunDevice> discovered = new AtomicReference<>();
+        HDHomeRunDiscovery discovery = new HDHomeRunDiscovery(emulator.getAddress());
+
+        try {
+            discovery.start(new HDHomeRunDiscoverer() {
+                @Override
+                public boolean isWaitingForDevices() {
+                    return true;
+                }
+
+                @Override
+                public void addCaptureDevice(HDHomeRunDevice device, InetAddress broadcastAddress) {
+                    if (discovered.compareAndSet(null, device)) {
+                        found.countDown();
+                    }
+                }
+            });
+
+            assert found.await(5, TimeUnit.SECONDS) : "The emulator was not discovered.";
+
+            HDHomeRunDevice device = discovered.get();
+            assert device.getDeviceId() == emulator.getDeviceId() : device.getDeviceIdHex();
+            assert device.getTunerCount() == 2 : device.getTunerCount();
+            assert device.getIpAddress().equals(emulator.getAddress()) : device.getIpAddress();
+        } finally {
+            discovery.stop();
+            discovery.waitForStop();
+
+            HDHomeRunDevice device = discovered.get();
+            if (device != null) {
+                device.CONTROL.closeSocket();
+            }
+
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void tunesThroughHDHomeRunTuner() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        HDHomeRunDevice device = new HDHomeRunDevice(emulator.getAddress(), 1,
+                emulator.getDeviceId(), 0, false, null, null);
+
+        try {
+            new HDHomeRunDiscovery().setTunerCount(device);
+            assert device.getTunerCount() == 2 : device.getTunerCount();
+
+            HDHomeRunTuner tuner = device.getTuner(1);
+            tuner.setChannel("auto", String.valueOf(FREQUENCY), false);
+            assert tuner.getChannel().equals("auto:" + FREQUENCY) : tuner.getChannel();
+
+            HDHomeRunStatus status = tuner.getStatus();
+            assert status.CHANNEL.equals("auto:" + FREQUENCY) : status;
+            assert status.LOCK_STR.equals("8vsb") : status;
+
+            boolean foundProgram = false;
+
+            for (HDHomeRunProgram program : tuner.getStreamInfo().getProgramsParsed()) {
+                if (program.PROGRAM == 4) {
+                    assert program.CHANNEL.equals("7.2") : program.CHANNEL;
+                    assert program.isTunable();
+                    foundProgram = true;
+                }
+            }
+
+            assert foundProgram : "Program 4 is missing from the stream info.";
+
+            tuner.setProgram(4);
+            assert tuner.getProgram() == 4;
+
+            tuner.clearChannel();
+            status = tuner.getStatus();
+            assert status.LOCK_STR.equals("none") : status;
+        } finally {
+            device.CONTROL.closeSocket();
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void lockkeyIsEnforced() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        HDHomeRunControl control = new HDHomeRunControl();
+        InetAddress address = emulator.getAddress();
+
+        try {
+            control.setVariable(address, "/tuner0/lockkey", "1234", 1234);
+            assert control.getVariable(address, "/tuner0/lockkey").equals(address.getHostAddress());
+
+            try {
+                control.setVariable(address, "/tuner0/channel", "auto:" + FREQUENCY);
+                assert false : "The tuner is locked.";
+            } catch (GetSetException e) {
+                assert e.getMessage().contains("locked") : e.getMessage();
+            }
+
+            control.setVariable(address, "/tuner0/channel", "auto:" + FREQUENCY, 1234);
+            control.setVariable(address, "/tuner0/lockkey", "force");
+            assert control.getVariable(address, "/tuner0/lockkey").equals("none");
+        } finally {
+            control.closeSocket();
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void pipelinedRequestsShareLatency() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        HDHomeRunControl control = new HDHomeRunControl();
+        InetAddress address = emulator.getAddress();
+        String keys[] = new String[10];
+
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "/tuner" + (i % 2) + "/status";
+        }
+
+        try {
+            // Connect before measuring.
+            control.getVariable(address, "/sys/hwmodel");
+            emulator.setLatencyMs(100);
+
+            long start = System.currentTimeMillis();
+            String values[] = control.getVariables(address, keys);
+            long elapsed = System.currentTimeMillis() - start;
+
+            for (String value : values) {
+                assert value != null && value.startsWith("ch=none");
+            }
+
+            // One request at a time would take at least 1000ms.
+            assert elapsed < 500 : "Took " + elapsed + "ms";
+        } finally {
+            control.closeSocket();
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void streamsRtpToTarget() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        HDHomeRunControl control = new HDHomeRunControl();
+        InetAddress address = emulator.getAddress();
+
+        try (DatagramSocket socket = new DatagramSocket(0, address)) {
+            socket.setSoTimeout(2000);
+
+            control.setVariable(address, "/tuner0/target",
+                    "rtp://" + address.getHostAddress() + ":" + socket.getLocalPort());
+            control.setVariable(address, "/tuner0/channel", "auto:" + FREQUENCY);
+
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            int lastSequence = -1;
+
+            for (int i = 0; i < 50; i++) {
+                socket.receive(packet);
+
+                byte data[] = packet.getData();
+                int sequence = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+
+                assert packet.getLength() == 12 + 188 * 7 : "Length " + packet.getLength();
+                assert (data[0] & 0xC0) == 0x80 : "Not RTP version 2.";
+                assert data[12] == 0x47 : "Not a transport stream.";
+                assert lastSequence == -1 || sequence == ((lastSequence + 1) & 0xFFFF) :
+                        "Sequence " + sequence + " after " + lastSequence;
+
+                lastSequence = sequence;
+            }
+
+            // Clearing the channel stops the stream.
+            control.setVariable(address, "/tuner0/channel", "none");
+            socket.setSoTimeout(250);
+
+            try {
+                while (true) {
+                    socket.receive(packet);
+                }
+            } catch (SocketTimeoutException e) {
+                // The stream stopped.
+            }
+        } finally {
+            control.closeSocket();
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void streamsHttpWithoutLoss() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        HDHomeRunControl control = new HDHomeRunControl();
+        InetAddress address = emulator.getAddress();
+        NIOHttpDownloader downloader = new NIOHttpDownloader();
+
+        try {
+            // Half of every UDP datagram would be lost.
+            emulator.setLossRate(0.5);
+
+            downloader.connect(new URL("http://" + address.getHostAddress() + ":" +
+                    emulator.getHttpPort() + "/tuner1/ch" + FREQUENCY + "-4"));
+
+            ByteBuffer buffer = ByteBuffer.allocate(188 * 7 * 100);
+
+            while (buffer.hasRemaining()) {
+                assert downloader.read(buffer) != -1 : "The stream ended early.";
+            }
+
+            for (int i = 0; i < buffer.capacity(); i += 188) {
+                assert buffer.get(i) == 0x47 : "Lost sync at " + i;
+            }
+
+            assert emulator.getDatagramsDropped() == 0;
+            assert control.getVariable(address, "/tuner1/channel").equals("auto:" + FREQUENCY);
+            assert control.getVariable(address, "/tuner1/program").equals("4");
+        } finally {
+            downloader.close();
+            control.closeSocket();
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void httpRefusedWhileLocked() throws Exception {
+        HDHomeRunEmulator emulator = startEmulator();
+        HDHomeRunControl control = new HDHomeRunControl();
+        InetAddress address = emulator.getAddress();
+        NIOHttpDownloader downloader = new NIOHttpDownloader();
+
+        try {
+            control.setVariable(address, "/tuner0/lockkey", "1234", 1234);
+
+            try {
+                downloader.connect(new URL("http://" + address.getHostAddress() + ":" +
+                        emulator.getHttpPort() + "/tuner0/v7.1"));
+                assert false : "The tuner is locked.";
+            } catch (IOException e) {
+                assert e.getMessage().contains("503") : e.getMessage();
+            }
+        } finally {
+            downloader.close();
+            control.closeSocket();
+            emulator.stop();
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void retunesOverHttpWithoutStopping() throws Exception {
+        int parentId = 0x1050E0A0;
+        HDHomeRunEmulator emulator = new HDHomeRunEmulator(2);
+        emulator.addChannel(FREQUENCY, 3, "7.1", "WXYZ");
+        emulator.addChannel(FREQUENCY, 4, "7.2", "WXYZ-SD");
+        // The capture device always streams over HTTP from the port real devices use.
+        emulator.setHttpPort(5004);
+
+        try {
+            emulator.start();
+        } catch (BindException e) {
+            throw new SkipException("The emulator can't use the HDHomeRun ports => " +
+                    e.getMessage());
+        }
+
+        String streamingModeKey = "sagetv.device.parent." + parentId + ".streaming_mode";
+        String consumerKey = "sagetv.new.default_channel_scan_consumer_impl";
+        String oldStreamingMode = Config.getString(streamingModeKey);
+        String oldConsumer = Config.getString(consumerKey);
+
+        Config.setString(streamingModeKey, "http");
+        Config.setString(consumerKey, RawSageTVConsumerImpl.class.getName());
+
+        HDHomeRunDevice device = null;
+        HDHRNativeCaptureDevice captureDevice = null;
+
+        try {
+            device = new HDHomeRunDevice(emulator.getAddress(), 1,
+                    emulator.getDeviceId(), 0, false, null, null);
+            new HDHomeRunDiscovery().setTunerCount(device);
+
+            HDHomeRunDiscoveredDeviceParent deviceParent = new HDHomeRunDiscoveredDeviceParent(
+                    "HDHomeRun Emulator", parentId, emulator.getAddress(), device);
+            captureDevice = new HDHRNativeCaptureDevice(deviceParent,
+                    new HDHomeRunDiscoveredDevice("HDHomeRun Emulator Tuner 0", parentId + 1,
+                            parentId, "", 0, deviceParent));
+
+            // Channel scans tune one channel after another without stopping in between.
+            for (String channel : new String[] { "7.1", "7.2" }) {
+                assert captureDevice.startEncoding(channel, null, "", 0,
+                        SageTVDeviceCrossbar.DIGITAL_TV_TUNER, 0, 0, null) : channel;
+
+                long timeout = System.currentTimeMillis() + 5000;
+
+                while (captureDevice.getRecordedBytes() == 0 &&
+                        System.currentTimeMillis() < timeout) {
+
+                    Thread.sleep(100);
+                }
+
+                assert captureDevice.getRecordedBytes() > 0 : channel + " is not streaming.";
+            }
+        } finally {
+            if (captureDevice != null) {
+                captureDevice.stopDevice();
+            }
+
+            if (device != null) {
+                device.CONTROL.closeSocket();
+            }
+
+            emulator.stop();
+            restoreConfig(streamingModeKey, oldStreamingMode);
+            restoreConfig(consumerKey, oldConsumer);
+        }
+    }
+
+    private static void restoreConfig(String key, String value) {
+        if (value == null) {
+            Config.removeKey(key);
+        } else {
+            Config.setString(key, value);
+        }
+    }
+
+    @Test(groups = { "hdhomerun" })
+    public void pcrBitrate() {
+        // One packet with a PCR every 1000 packets and 100ms between them is 15,040,000 bps.
+        byte stream[] = new byte[188 * 2001];
+
+        for (int i = 0; i < 2001; i++) {
+            int position = i * 188;
+            stream[position] = 0x47;
+            stream[position + 1] = 0x01;
+            stream[position + 2] = 0x00;
+            stream[position + 3] = 0x10;
+
+            if (i % 1000 == 0) {
+                long base = (i / 1000) * 9000;
+
+                stream[position + 3] = 0x30;
+                stream[position + 4] = 7;
+                stream[position + 5] = 0x10;
+                stream[position + 6] = (byte) (base >> 25);
+                stream[position + 7] = (byte) (base >> 17);
+                stream[position + 8] = (byte) (base >> 9);
+                stream[position + 9] = (byte) (base >> 1);
+                stream[position + 10] = (byte) ((base & 1) << 7);
+                stream[position + 11] = 0;
+            }
+        }
+
+        long bitrate = HDHomeRunEmulator.getPcrBitrate(stream);
+        assert bitrate == 15040000 : "Bitrate is " + bitrate;
+    }
+}
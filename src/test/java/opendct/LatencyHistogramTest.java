@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.util.LatencyHistogram;
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+    @Test(groups = { "latency" })
+    public void bucketLimits() {
+        assert LatencyHistogram.getBucket(0) == 0;
+        assert LatencyHistogram.getBucket(1) == 1;
+        assert LatencyHistogram.getBucket(3) == 2;
+        assert LatencyHistogram.getBucket(4) == 3;
+        assert LatencyHistogram.getBucket(Long.MAX_VALUE) == LatencyHistogram.BUCKETS - 1;
+
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            long limit = LatencyHistogram.getBucketLimitUs(i);
+            assert LatencyHistogram.getBucket(limit) == i : "Bucket " + i + " limit is wrong.";
+            assert LatencyHistogram.getBucket(limit + 1) == i + 1;
+        }
+    }
+
+    @Test(groups = { "latency" })
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // 90 quick times of 100us and 10 slow times of 50ms.
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50000000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+
+        assert snapshot.COUNT == 100;
+        assert snapshot.MAX_US == 50000;
+        assert snapshot.AVERAGE_US == (90 * 100 + 10 * 50000) / 100;
+        assert snapshot.P50_US >= 100 && snapshot.P50_US < 200 : "p50 is " + snapshot.P50_US;
+        assert snapshot.P90_US >= 100 && snapshot.P90_US < 200 : "p90 is " + snapshot.P90_US;
+        assert snapshot.P99_US == 50000 : "p99 is " + snapshot.P99_US;
+
+        histogram.reset();
+        snapshot = histogram.getSnapshot();
+
+        assert snapshot.COUNT == 0 && snapshot.P99_US == 0 && snapshot.MAX_US == 0;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.util.SlidingRateWindow;
+import org.testng.annotations.Test;
+
+public class SlidingRateWindowTest {
+
+    @Test(groups = { "monitor" })
+    public void rateOverWindow() {
+        SlidingRateWindow window = new SlidingRateWindow(1000);
+
+        // 1000 bytes every 250ms is 4000 bytes per second.
+        for (int i = 0; i <= 4; i++) {
+            window.add(i * 250, i * 1000);
+        }
+
+        assert window.isFull();
+        assert window.getRatePerSecond() == 4000 : "Rate is " + window.getRatePerSecond();
+
+        // The stream stops. Once a full window has passed with no change, the rate is 0.
+        for (int i = 5; i <= 8; i++) {
+            window.add(i * 250, 4000);
+            assert window.getRatePerSecond() > 0 || i == 8 : "Rate hit 0 early at " + i;
+        }
+
+        assert window.getRatePerSecond() == 0 : "Rate is " + window.getRatePerSecond();
+    }
+
+    @Test(groups = { "monitor" })
+    public void notFullUntilWindowPasses() {
+        SlidingRateWindow window = new SlidingRateWindow(1000);
+
+        assert window.getRatePerSecond() == -1;
+
+        window.add(0, 0);
+        window.add(500, 100);
+        assert !window.isFull();
+        assert window.getRatePerSecond() == -1;
+
+        window.add(1000, 200);
+        assert window.isFull();
+        assert window.getRatePerSecond() == 200;
+
+        window.clear();
+        assert !window.isFull();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.java.TsHealthAnalyzer;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class TsHealthAnalyzerTest {
+    private static final int VIDEO_PID = 0x31;
+    private static final int AUDIO_PID = 0x34;
+
+    private static byte[] getPacket(int pid, int cc, boolean transportError) {
+        byte packet[] = new byte[188];
+        Arrays.fill(packet, (byte) 0xff);
+        packet[0] = 0x47;
+        packet[1] = (byte) ((transportError ? 0x80 : 0x00) | (pid >> 8));
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | (cc & 0x0f));
+        return packet;
+    }
+
+    private static byte[] getPcrPacket(int pid, int cc, long pcrBase) {
+        byte packet[] = getPacket(pid, cc, false);
+        // Adaptation field only, so the continuity counter does not increment.
+        packet[3] = (byte) (0x20 | (cc & 0x0f));
+        packet[4] = (byte) 183;
+        packet[5] = 0x10;
+        packet[6] = (byte) (pcrBase >> 25);
+        packet[7] = (byte) (pcrBase >> 17);
+        packet[8] = (byte) (pcrBase >> 9);
+        packet[9] = (byte) (pcrBase >> 1);
+        packet[10] = (byte) (((pcrBase & 0x01) << 7) | 0x7e);
+        packet[11] = 0x00;
+        return packet;
+    }
+
+    @Test(groups = { "analyzer", "tsParsing" })
+    public void countErrors() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        // 0-4 are continuous, 4 is repeated which is allowed, then 6 skips 5.
+        for (int cc : new int[] { 0, 1, 2, 3, 4, 4, 6, 7 }) {
+            stream.write(getPacket(VIDEO_PID, cc, false));
+        }
+
+        // An adaptation field only packet keeps the same counter.
+        stream.write(getPcrPacket(VIDEO_PID, 7, 0));
+        stream.write(getPacket(VIDEO_PID, 8, false));
+
+        stream.write(getPacket(AUDIO_PID, 0, false));
+        stream.write(getPacket(AUDIO_PID, 1, true));
+        stream.write(getPacket(AUDIO_PID, 2, false));
+
+        stream.write(getPacket(0x1fff, 0, false));
+        stream.write(getPacket(0x1fff, 0, false));
+
+        byte data[] = stream.toByteArray();
+
+        TsHealthAnalyzer analyzer = new TsHealthAnalyzer();
+
+        // Use a length that will split packets across writes.
+        for (int i = 0; i < data.length; i += 100) {
+            analyzer.analyze(data, i, Math.min(100, data.length - i));
+        }
+
+        TsHealthAnalyzer.Status status = analyzer.getStatus();
+
+        assert status.PACKETS == 15 : "Expected 15 packets, got " + status.PACKETS;
+        assert status.CC_ERRORS == 1 : "Expected 1 continuity error, got " + status.CC_ERRORS;
+        assert status.TEI_ERRORS == 1 : "Expected 1 transport error, got " + status.TEI_ERRORS;
+        assert status.PCR_PID == VIDEO_PID;
+        assert status.PIDS.length == 3;
+        assert status.PIDS[0].PID == VIDEO_PID && status.PIDS[0].CC_ERRORS == 1;
+        assert status.PIDS[1].PID == AUDIO_PID && status.PIDS[1].TEI_ERRORS == 1;
+        assert status.PIDS[2].PID == 0x1fff && status.PIDS[2].PACKETS == 2;
+
+        analyzer.reset();
+        status = analyzer.getStatus();
+
+        assert status.PACKETS == 0 && status.CC_ERRORS == 0 && status.PIDS.length == 0;
+    }
+
+    @Test(groups = { "analyzer", "tsParsing" })
+    public void measurePcrInterval() throws Exception {
+        TsHealthAnalyzer analyzer = new TsHealthAnalyzer();
+
+        // 40ms apart in 90kHz units.
+        analyzer.analyze(getPcrPacket(VIDEO_PID, 0, 90000), 0, 188);
+        analyzer.analyze(getPcrPacket(VIDEO_PID, 0, 90000 + 3600), 0, 188);
+
+        TsHealthAnalyzer.Status status = analyzer.getStatus();
+
+        assert status.PCR_INTERVAL_US == 40000 :
+                "Expected a 40000us interval, got " + status.PCR_INTERVAL_US;
+        assert status.PCR_MAX_JITTER_US > 0;
+    }
+}
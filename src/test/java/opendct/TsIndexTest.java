@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.java.TsIndex;
+import opendct.video.java.TsIndexWriter;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TsIndexTest {
+    private static final int VIDEO_PID = 0x31;
+
+    // The first packet of a video frame with a PTS.
+    private static byte[] getFramePacket(long pts, boolean randomAccess) {
+        byte packet[] = new byte[188];
+        Arrays.fill(packet, (byte) 0xff);
+
+        byte header[] = new byte[] {
+                0x47, (byte) (0x40 | (VIDEO_PID >> 8)), (byte) VIDEO_PID, 0x30,
+                // Adaptation field with only the flags.
+                0x01, (byte) (randomAccess ? 0x40 : 0x00),
+                0x00, 0x00, 0x01, (byte) 0xe0, 0x00, 0x00, (byte) 0x80, (byte) 0x80, 0x05,
+                (byte) (0x21 | ((pts >> 29) & 0x0e)),
+                (byte) (pts >> 22),
+                (byte) (0x01 | ((pts >> 14) & 0xfe)),
+                (byte) (pts >> 7),
+                (byte) (0x01 | ((pts << 1) & 0xfe))
+        };
+
+        System.arraycopy(header, 0, packet, 0, header.length);
+        return packet;
+    }
+
+    // The rest of a video frame.
+    private static byte[] getContinuationPacket() {
+        byte packet[] = new byte[188];
+        Arrays.fill(packet, (byte) 0xff);
+        packet[0] = 0x47;
+        packet[1] = (byte) (VIDEO_PID >> 8);
+        packet[2] = (byte) VIDEO_PID;
+        packet[3] = 0x10;
+        return packet;
+    }
+
+    private static byte[] getRecording() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(TsPsiParserTest.getPatPacket(1, 0x1000));
+        stream.write(TsPsiParserTest.getPmtPacket(1, 0x1000, VIDEO_PID,
+                new int[] { VIDEO_PID }, new int[] { 0x02 }));
+
+        // 10 seconds of 10 frames per second with a random access point every second. The PTS
+        // wraps just after 5 seconds.
+        long pts = (1L << 33) - 90000 * 5 - 4500;
+
+        for (int i = 0; i < 100; i++) {
+            stream.write(getFramePacket(pts & 0x1ffffffffL, i % 10 == 0));
+            stream.write(getContinuationPacket());
+            pts += 9000;
+        }
+
+        return stream.toByteArray();
+    }
+
+    @Test(groups = { "index", "tsParsing" })
+    public void writeAndSeek() throws IOException {
+        File recording = File.createTempFile("opendct-index", ".ts");
+        recording.deleteOnExit();
+        new File(recording.getPath() + TsIndex.EXTENSION).deleteOnExit();
+
+        byte data[] = getRecording();
+
+        TsIndexWriter writer = new TsIndexWriter(recording.getPath(), 0, 1);
+
+        for (int i = 0; i < data.length; i += 1000) {
+            writer.parse(data, i, Math.min(1000, data.length - i));
+        }
+
+        writer.close();
+
+        assert writer.getEntries() == 10 : "Expected 10 entries, got " + writer.getEntries();
+
+        TsIndex index = TsIndex.read(recording.getPath());
+        long first = index.getFirstPts();
+
+        // Each frame is two packets.
+        int frameLength = 188 * 2;
+
+        assert index.size() == 10;
+        assert index.getLastPts() - first == 9 * 90000 : "The PTS wrap was not handled.";
+        assert index.getPositionAtTime(0) == 188 * 2;
+        assert index.getPositionAtTime(6500) == 188 * 2 + frameLength * 60;
+        assert index.getPosition(first - 1) == 188 * 2;
+        assert index.getPositionAtTime(60000) == 188 * 2 + frameLength * 90;
+    }
+
+    @Test(groups = { "index", "tsParsing" })
+    public void seekInWrappedRecording() {
+        // The recording wraps every 1000 bytes, so only the last 1000 bytes are available.
+        TsIndex index = new TsIndex(1000,
+                new long[] { 0, 90000, 180000, 270000, 360000 },
+                new long[] { 0, 400, 800, 1200, 1600 });
+
+        assert index.size() == 3 : "Expected 3 seek points, got " + index.size();
+        assert index.getFirstPts() == 180000;
+        assert index.getPosition(0) == 800;
+        assert index.getPosition(270000) == 200;
+        assert index.getPosition(400000) == 600;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.java.TsPacketParser;
+import opendct.video.java.TsPacketStripper;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TsPacketStripperTest {
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x31;
+    private static final int EIT_PID = 0x12;
+    private static final int AUDIO_PID = 0x34;
+
+    private static byte[] getPacket(int pid) {
+        byte packet[] = new byte[188];
+        Arrays.fill(packet, (byte) 0xff);
+        packet[0] = 0x47;
+        packet[1] = (byte) (pid >> 8);
+        packet[2] = (byte) pid;
+        packet[3] = 0x10;
+        return packet;
+    }
+
+    @Test(groups = { "stripper", "tsParsing" })
+    public void stripPackets() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        // Configured PIDs are not removed until the PMT is known.
+        stream.write(getPacket(EIT_PID));
+        stream.write(getPacket(0x1fff));
+        stream.write(TsPsiParserTest.getPatPacket(1, PMT_PID));
+        stream.write(TsPsiParserTest.getPmtPacket(1, PMT_PID, VIDEO_PID,
+                new int[] { VIDEO_PID }, new int[] { 0x02 }));
+
+        for (int i = 0; i < 20; i++) {
+            stream.write(getPacket(VIDEO_PID));
+            stream.write(getPacket(0x1fff));
+            stream.write(getPacket(EIT_PID));
+        }
+
+        byte data[] = stream.toByteArray();
+
+        // The video PID is in the list, but it can't be removed because it's in the program.
+        TsPacketStripper stripper = new TsPacketStripper(1, true,
+                TsPacketStripper.parsePids("0x12", String.valueOf(VIDEO_PID), "invalid"));
+
+        ByteBuffer input = ByteBuffer.allocateDirect(data.length);
+        ByteBuffer output = ByteBuffer.allocateDirect(data.length + 188);
+
+        // Use a length that will split packets across calls.
+        for (int i = 0; i < data.length; i += 1000) {
+            input.clear();
+            input.put(data, i, Math.min(1000, data.length - i));
+            input.flip();
+            stripper.strip(input, output);
+            assert input.remaining() == Math.min(1000, data.length - i);
+        }
+
+        output.flip();
+
+        assert output.remaining() % 188 == 0 : "Output is not aligned to 188 byte packets.";
+        assert output.remaining() == 188 * 23 :
+                "Expected 23 packets, but got " + output.remaining() / 188.0;
+        assert stripper.getPacketsStripped() == 41;
+
+        int videoPackets = 0;
+        byte packet[] = new byte[188];
+        while (output.hasRemaining()) {
+            output.get(packet);
+            int pid = TsPacketParser.getPid(packet, 0);
+
+            assert pid != 0x1fff : "Null packet was not removed.";
+            if (pid == VIDEO_PID) {
+                videoPackets += 1;
+            }
+        }
+
+        assert videoPackets == 20;
+    }
+
+    @Test(groups = { "stripper", "tsParsing" })
+    public void followPmtUpdates() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        stream.write(TsPsiParserTest.getPatPacket(1, PMT_PID));
+        stream.write(TsPsiParserTest.getPmtPacket(1, PMT_PID, VIDEO_PID,
+                new int[] { VIDEO_PID }, new int[] { 0x02 }));
+
+        // The audio PID is not in the program yet, so it is removed.
+        for (int i = 0; i < 5; i++) {
+            stream.write(getPacket(VIDEO_PID));
+            stream.write(getPacket(AUDIO_PID));
+        }
+
+        // A new version of the PMT adds the audio PID to the program.
+        byte pmt[] = TsPsiParserTest.getPmtPacket(1, PMT_PID, VIDEO_PID,
+                new int[] { VIDEO_PID, AUDIO_PID }, new int[] { 0x02, 0x81 });
+        pmt[10] = (byte) (0xc1 | (1 << 1));
+        stream.write(pmt);
+
+        for (int i = 0; i < 5; i++) {
+            stream.write(getPacket(VIDEO_PID));
+            stream.write(getPacket(AUDIO_PID));
+        }
+
+        byte data[] = stream.toByteArray();
+
+        TsPacketStripper stripper = new TsPacketStripper(1, true,
+                TsPacketStripper.parsePids(String.valueOf(AUDIO_PID)));
+
+        ByteBuffer input = ByteBuffer.wrap(data);
+        ByteBuffer output = ByteBuffer.allocate(data.length + 188);
+        stripper.strip(input, output);
+        output.flip();
+
+        assert stripper.getPacketsStripped() == 5 :
+                "Expected 5 packets removed, but got " + stripper.getPacketsStripped();
+
+        int audioPackets = 0;
+        byte packet[] = new byte[188];
+        while (output.hasRemaining()) {
+            output.get(packet);
+
+            if (TsPacketParser.getPid(packet, 0) == AUDIO_PID) {
+                audioPackets += 1;
+            }
+        }
+
+        assert audioPackets == 5 : "Expected 5 audio packets, but got " + audioPackets;
+    }
+}
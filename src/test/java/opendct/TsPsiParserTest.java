@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 The OpenDCT Authors. All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package opendct;
+
+import opendct.video.java.TsPsiParser;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TsPsiParserTest {
+
+    public static byte[] getPatPacket(int program, int pmtPid) {
+        byte packet[] = new byte[188];
+        Arrays.fill(packet, (byte) 0xff);
+
+        byte header[] = new byte[] {
+                0x47, 0x40, 0x00, 0x10,
+                // Pointer field.
+                0x00,
+                // Table ID, section length 13, transport stream ID, version, section numbers.
+                0x00, (byte) 0xb0, 0x0d, 0x00, 0x01, (byte) 0xc1, 0x00, 0x00,
+                (byte) (program >> 8), (byte) program,
+                (byte) (0xe0 | (pmtPid >> 8)), (byte) pmtPid,
+                // CRC is not verified.
+                0x00, 0x00, 0x00, 0x00
+        };
+
+        System.arraycopy(header, 0, packet, 0, header.length);
+        return packet;
+    }
+
+    public static byte[] getPmtPacket(int program, int pmtPid, int pcrPid, int pids[], int types[]) {
+        byte packet[] = new byte[188];
+        Arrays.fill(packet, (byte) 0xff);
+
+        int sectionLength = 9 + 5 * pids.length + 4;
+        int index = 0;
+
+        packet[index++] = 0x47;
+        packet[index++] = (byte) (0x40 | (pmtPid >> 8));
+        packet[index++] = (byte) pmtPid;
+        packet[index++] = 0x10;
+        packet[index++] = 0x00;
+        packet[index++] = 0x02;
+        packet[index++] = (byte) (0xb0 | (sectionLength >> 8));
+        packet[index++] = (byte) sectionLength;
+        packet[index++] = (byte) (program >> 8);
+        packet[index++] = (byte) program;
+        packet[index++] = (byte) 0xc1;
+        packet[index++] = 0x00;
+        packet[index++] = 0x00;
+        packet[index++] = (byte) (0xe0 | (pcrPid >> 8));
+        packet[index++] = (byte) pcrPid;
+        packet[index++] = (byte) 0xf0;
+        packet[index++] = 0x00;
+
+        for (int i = 0; i < pids.length; i++) {
+            packet[index++] = (byte) types[i];
+            packet[index++] = (byte) (0xe0 | (pids[i] >> 8));
+            packet[index++] = (byte) pids[i];
+            packet[index++] = (byte) 0xf0;
+            packet[index++] = 0x00;
+        }
+
+        packet[index++] = 0x00;
+        packet[index++] = 0x00;
+        packet[index++] = 0x00;
+        packet[index] = 0x00;
+
+        return packet;
+    }
+
+    private static byte[] getStream() {
+        byte pat[] = getPatPacket(3, 0x1000);
+        byte pmt[] = getPmtPacket(3, 0x1000, 0x31, new int[] { 0x31, 0x34 }, new int[] { 0x02, 0x81 });
+
+        // Some garbage, then a null packet before the tables.
+        byte stream[] = new byte[5 + 188 * 3];
+        Arrays.fill(stream, 0, 5, (byte) 0x12);
+        stream[5] = 0x47;
+        stream[6] = 0x1f;
+        stream[7] = (byte) 0xff;
+        stream[8] = 0x10;
+        System.arraycopy(pat, 0, stream, 5 + 188, 188);
+        System.arraycopy(pmt, 0, stream, 5 + 188 * 2, 188);
+
+        return stream;
+    }
+
+    @Test(groups = { "tsParsing", "psi" })
+    public void parseChunkedPatPmt() {
+        byte stream[] = getStream();
+        TsPsiParser parser = new TsPsiParser(0);
+
+        for (int i = 0; i < stream.length; i += 7) {
+            parser.parse(stream, i, Math.min(7, stream.length - i));
+        }
+
+        assert parser.isComplete() : "PMT was not found.";
+        assert parser.getProgram() == 3 : "Expected program 3, got " + parser.getProgram();
+        assert parser.getPmtPid() == 0x1000 : "Expected PMT PID 0x1000, got " + parser.getPmtPid();
+        assert parser.getPcrPid() == 0x31 : "Expected PCR PID 0x31, got " + parser.getPcrPid();
+        assert Arrays.equals(parser.getStreamPids(), new int[] { 0x31, 0x34 }) :
+                "Unexpected PIDs " + Arrays.toString(parser.getStreamPids());
+        assert Arrays.equals(parser.getStreamTypes(), new int[] { 0x02, 0x81 }) :
+                "Unexpected stream types " + Arrays.toString(parser.getStreamTypes());
+        assert parser.getSyncLosses() == 1 : "Expected 1 sync loss, got " + parser.getSyncLosses();
+    }
+
+    @Test(groups = { "tsParsing", "psi" })
+    public void parseDirectBufferWrongProgram() {
+        byte stream[] = getStream();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(stream.length);
+        buffer.put(stream);
+        buffer.flip();
+
+        TsPsiParser parser = new TsPsiParser(4);
+        parser.parse(buffer);
+
+        assert buffer.position() == 0 : "The buffer position was changed.";
+        assert !parser.isComplete() : "Program 4 does not exist in this stream.";
+
+        parser.setDesiredProgram(3);
+        parser.parse(buffer);
+
+        assert parser.isComplete() : "PMT was not found.";
+    }
+}